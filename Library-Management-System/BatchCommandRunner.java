@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BatchCommandRunner class runs a script of catalog commands without the menus, for bulk changes
+ * from a file or a pipe. Commands are read with a CommandReader (one per line, tab-separated
+ * fields) and each prints one result line to a buffered stream, in script order:
+ *
+ *   add ID TITLE AUTHOR QUANTITY     ok, or error: reason
+ *   update ID TITLE AUTHOR QUANTITY  ok, or not found
+ *   delete ID                        ok, or not found
+ *   get ID                           ID TITLE AUTHOR QUANTITY, or not found
+ *   exists ID                        true or false
+ *   checkout ID COPIES               ok, or unavailable
+ *   return ID COPIES                 ok, or not found
+ *   title TEXT / author TEXT         the number of matches, then one line per book
+ *   count                            the number of books
+ *
+ * In grouped mode, runs of consecutive adds, updates or deletes are applied with one addBooks,
+ * updateBooks or deleteBooks call each, so a persistent catalog journals them as one batch.
+ * Any other command ends the run first, so every command still sees the ones before it.
+ */
+public class BatchCommandRunner {
+    
+    // Largest number of commands applied in one batch call
+    private static final int GROUP_LIMIT = 10_000;
+    
+    private final LibraryService libraryService;
+    private final PrintStream out;
+    private final boolean grouped;
+    
+    // Run of commands waiting to be applied together: their name, and their books or IDs
+    private String groupCommand;
+    private final List<Book> groupBooks = new ArrayList<>();
+    private final List<String> groupIds = new ArrayList<>();
+    
+    private long commandCount;
+    private long errorCount;
+    
+    /**
+     * Creates a runner
+     * @param libraryService Catalog the commands apply to
+     * @param out Stream the results are written to; it is flushed when the script ends
+     * @param grouped true to apply runs of adds, updates and deletes as batches
+     */
+    public BatchCommandRunner(LibraryService libraryService, PrintStream out, boolean grouped) {
+        this.libraryService = libraryService;
+        this.out = out;
+        this.grouped = grouped;
+    }
+    
+    /**
+     * Runs every command of a script. A command that fails prints an error line and the
+     * script carries on.
+     * @param commands Script to run
+     * @throws IOException if the script cannot be read
+     */
+    public void run(CommandReader commands) throws IOException {
+        try {
+            while (commands.next()) {
+                commandCount++;
+                try {
+                    execute(commands);
+                } catch (IllegalArgumentException e) {
+                    applyGroup();
+                    error("line " + commands.getLineNumber() + ": " + e.getMessage());
+                }
+            }
+            applyGroup();
+        } finally {
+            out.flush();
+        }
+    }
+    
+    public long getCommandCount() {
+        return commandCount;
+    }
+    
+    public long getErrorCount() {
+        return errorCount;
+    }
+    
+    private void execute(CommandReader commands) {
+        String command = commands.getField(0);
+        if (grouped && isGroupable(command)) {
+            if (!command.equals(groupCommand) || groupBooks.size() + groupIds.size() >= GROUP_LIMIT) {
+                applyGroup();
+            }
+            if (command.equals("delete")) {
+                groupIds.add(commands.getField(1));
+            } else {
+                groupBooks.add(readBook(commands));
+            }
+            groupCommand = command;
+            return;
+        }
+        applyGroup();
+        
+        switch (command) {
+            case "add":
+                addBook(readBook(commands));
+                break;
+            case "update":
+                Book book = readBook(commands);
+                result(libraryService.updateBook(book.getBookId(), book) ? "ok" : "not found");
+                break;
+            case "delete":
+                result(libraryService.deleteBook(commands.getField(1)) ? "ok" : "not found");
+                break;
+            case "get":
+                Book found = libraryService.searchBookById(commands.getField(1)).orElse(null);
+                if (found != null) {
+                    printBook(found);
+                } else {
+                    result("not found");
+                }
+                break;
+            case "exists":
+                result(String.valueOf(libraryService.bookExists(commands.getField(1))));
+                break;
+            case "checkout":
+                result(libraryService.checkout(commands.getField(1), commands.getIntField(2)) ? "ok" : "unavailable");
+                break;
+            case "return":
+                result(libraryService.returnBook(commands.getField(1), commands.getIntField(2)) ? "ok" : "not found");
+                break;
+            case "title":
+                printBooks(libraryService.searchBookByTitle(commands.getField(1)));
+                break;
+            case "author":
+                printBooks(libraryService.getBooksByAuthor(commands.getField(1)));
+                break;
+            case "count":
+                result(String.valueOf(libraryService.getBookCount()));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command '" + command + "'");
+        }
+    }
+    
+    private static boolean isGroupable(String command) {
+        return command.equals("add") || command.equals("update") || command.equals("delete");
+    }
+    
+    private static Book readBook(CommandReader commands) {
+        return new Book(commands.getField(1), commands.getField(2), commands.getField(3), commands.getIntField(4));
+    }
+    
+    private void addBook(Book book) {
+        try {
+            libraryService.addBook(book);
+            result("ok");
+        } catch (IllegalArgumentException e) {
+            error(e.getMessage());
+        }
+    }
+    
+    /**
+     * Applies the waiting run of commands and prints a result for each
+     */
+    private void applyGroup() {
+        if (groupCommand == null) {
+            return;
+        }
+        
+        switch (groupCommand) {
+            case "add":
+                try {
+                    libraryService.addBooks(groupBooks);
+                    for (int i = 0; i < groupBooks.size(); i++) {
+                        result("ok");
+                    }
+                } catch (IllegalArgumentException e) {
+                    // addBooks adds nothing if any book is rejected; add them one at a time to
+                    // find out which
+                    for (Book book : groupBooks) {
+                        addBook(book);
+                    }
+                }
+                break;
+            case "update":
+                printStatuses(libraryService.updateBooks(groupBooks));
+                break;
+            default:
+                printStatuses(libraryService.deleteBooks(groupIds));
+                break;
+        }
+        groupCommand = null;
+        groupBooks.clear();
+        groupIds.clear();
+    }
+    
+    private void printStatuses(BatchResult batchResult) {
+        for (int i = 0; i < batchResult.size(); i++) {
+            result(batchResult.isApplied(i) ? "ok" : "not found");
+        }
+    }
+    
+    private void printBooks(List<Book> books) {
+        result(String.valueOf(books.size()));
+        for (Book book : books) {
+            printBook(book);
+        }
+    }
+    
+    private void printBook(Book book) {
+        out.print(book.getBookId());
+        out.print('\t');
+        out.print(book.getTitle());
+        out.print('\t');
+        out.print(book.getAuthor());
+        out.print('\t');
+        out.println(book.getQuantity());
+    }
+    
+    private void result(String text) {
+        out.println(text);
+    }
+    
+    private void error(String message) {
+        errorCount++;
+        out.println("error: " + message);
+    }
+}
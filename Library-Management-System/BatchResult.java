@@ -0,0 +1,71 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BatchResult class holds the outcome of each item of a batch update or delete, in input order.
+ */
+public final class BatchResult {
+    
+    /**
+     * Outcome of one item
+     */
+    public enum Status {
+        /** The item was applied */
+        OK,
+        /** No book has the item's ID */
+        NOT_FOUND,
+        /** The item was null or had no ID */
+        INVALID
+    }
+    
+    private final Status[] statuses;
+    
+    /**
+     * Creates a result
+     * @param statuses Outcome of each item, in input order; the array is not copied
+     */
+    public BatchResult(Status[] statuses) {
+        this.statuses = statuses;
+    }
+    
+    public int size() {
+        return statuses.length;
+    }
+    
+    /**
+     * Gets the outcome of one item
+     * @param index Position of the item in the batch
+     * @return Its outcome
+     */
+    public Status getStatus(int index) {
+        return statuses[index];
+    }
+    
+    public boolean isApplied(int index) {
+        return statuses[index] == Status.OK;
+    }
+    
+    /**
+     * Counts the items that were applied
+     * @return Number of items with status OK
+     */
+    public int getAppliedCount() {
+        int applied = 0;
+        for (Status status : statuses) {
+            if (status == Status.OK) {
+                applied++;
+            }
+        }
+        return applied;
+    }
+    
+    public List<Status> getStatuses() {
+        return Collections.unmodifiableList(Arrays.asList(statuses));
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchResult: " + getAppliedCount() + " of " + statuses.length + " applied";
+    }
+}
@@ -1,12 +1,30 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Book class represents a book in the library system.
  * Follows encapsulation principle with private fields and public getters/setters.
+ * The quantity is updated with compare-and-set so concurrent checkouts never oversell a title.
+ * Lower-cased search keys for the title and author are computed when those fields are set,
+ * so searches can match without lower-casing every book on every query.
  */
 public class Book {
+    // Field updater gives CAS access to quantity without an AtomicInteger per book
+    private static final AtomicIntegerFieldUpdater<Book> QUANTITY =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "quantity");
+    
+    // Longest ID, title or author the journal and snapshot files can store: DataOutput.writeUTF
+    // limits a string to 65535 bytes of modified UTF-8
+    public static final int MAX_FIELD_BYTES = 65535;
+    
     private String bookId;
     private String title;
     private String author;
-    private int quantity;
+    private volatile int quantity;
+    
+    // Search keys: title and author lower-cased with Locale.ROOT
+    private String titleKey;
+    private String authorKey;
     
     /**
      * Constructor to initialize a Book object
@@ -20,6 +38,28 @@ public class Book {
         this.title = title;
         this.author = author;
         this.quantity = quantity;
+        this.titleKey = searchKey(title);
+        this.authorKey = searchKey(author);
+    }
+    
+    /**
+     * Copy constructor; the search keys are copied rather than computed again
+     */
+    private Book(Book source) {
+        this.bookId = source.bookId;
+        this.title = source.title;
+        this.author = source.author;
+        this.quantity = source.quantity;
+        this.titleKey = source.titleKey;
+        this.authorKey = source.authorKey;
+    }
+    
+    /**
+     * Copies the book, so that later changes to either one do not affect the other
+     * @return A new Book with the same details and quantity
+     */
+    public Book copy() {
+        return new Book(this);
     }
     
     // Getter methods
@@ -39,11 +79,30 @@ public class Book {
         return quantity;
     }
     
+    /**
+     * Gets the title lower-cased for searching
+     * @return Title search key
+     */
+    public String getTitleKey() {
+        return titleKey;
+    }
+    
+    /**
+     * Gets the author lower-cased for searching
+     * @return Author search key
+     */
+    public String getAuthorKey() {
+        return authorKey;
+    }
+    
     // Setter methods with validation
     public void setBookId(String bookId) {
         if (bookId == null || bookId.trim().isEmpty()) {
             throw new IllegalArgumentException("Book ID cannot be null or empty");
         }
+        if (!fitsField(bookId)) {
+            throw new IllegalArgumentException("Book ID cannot be longer than " + MAX_FIELD_BYTES + " bytes");
+        }
         this.bookId = bookId;
     }
     
@@ -51,14 +110,22 @@ public class Book {
         if (title == null || title.trim().isEmpty()) {
             throw new IllegalArgumentException("Title cannot be null or empty");
         }
+        if (!fitsField(title)) {
+            throw new IllegalArgumentException("Title cannot be longer than " + MAX_FIELD_BYTES + " bytes");
+        }
         this.title = title;
+        this.titleKey = searchKey(title);
     }
     
     public void setAuthor(String author) {
         if (author == null || author.trim().isEmpty()) {
             throw new IllegalArgumentException("Author cannot be null or empty");
         }
+        if (!fitsField(author)) {
+            throw new IllegalArgumentException("Author cannot be longer than " + MAX_FIELD_BYTES + " bytes");
+        }
         this.author = author;
+        this.authorKey = searchKey(author);
     }
     
     public void setQuantity(int quantity) {
@@ -68,6 +135,83 @@ public class Book {
         this.quantity = quantity;
     }
     
+    /**
+     * Atomically removes copies from the available stock
+     * @param count Number of copies to check out
+     * @return true if enough copies were available, false otherwise
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public boolean checkoutCopies(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Checkout count must be positive");
+        }
+        
+        while (true) {
+            int current = quantity;
+            if (current < count) {
+                return false;
+            }
+            if (QUANTITY.compareAndSet(this, current, current - count)) {
+                return true;
+            }
+            // Lost the race to another thread; back off briefly before re-reading
+            Thread.onSpinWait();
+        }
+    }
+    
+    /**
+     * Atomically adds returned copies back to the available stock
+     * @param count Number of copies being returned
+     * @throws IllegalArgumentException if count is not positive or the stock would overflow
+     */
+    public void returnCopies(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Return count must be positive");
+        }
+        
+        while (true) {
+            int current = quantity;
+            if (current > Integer.MAX_VALUE - count) {
+                throw new IllegalArgumentException("Quantity cannot exceed " + Integer.MAX_VALUE);
+            }
+            if (QUANTITY.compareAndSet(this, current, current + count)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    /**
+     * Lower-cases text for case-insensitive searching. Locale.ROOT keeps the result the same
+     * on every machine; String.toLowerCase returns the same instance if nothing changes.
+     * @param value Text to fold
+     * @return The lower-cased text, or null if value is null
+     */
+    public static String searchKey(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Checks that a field can be written to the journal and snapshot files
+     * @param value Field value; must not be null
+     * @return true if its modified UTF-8 encoding is at most MAX_FIELD_BYTES long
+     */
+    public static boolean fitsField(String value) {
+        // Every char encodes to at most 3 bytes, so short strings need no counting
+        if (value.length() <= MAX_FIELD_BYTES / 3) {
+            return true;
+        }
+        if (value.length() > MAX_FIELD_BYTES) {
+            return false;
+        }
+        long bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return bytes <= MAX_FIELD_BYTES;
+    }
+    
     /**
      * Returns a string representation of the Book object
      * @return Formatted string with book details
@@ -75,7 +219,7 @@ public class Book {
     @Override
     public String toString() {
         return String.format("Book ID: %s | Title: %s | Author: %s | Quantity: %d", 
-                           bookId, title, author, quantity);
+                           getBookId(), getTitle(), getAuthor(), getQuantity());
     }
     
     /**
@@ -86,13 +230,13 @@ public class Book {
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (obj == null || getClass() != obj.getClass()) return false;
+        if (!(obj instanceof Book)) return false;
         Book book = (Book) obj;
-        return bookId.equals(book.bookId);
+        return getBookId().equals(book.getBookId());
     }
     
     @Override
     public int hashCode() {
-        return bookId.hashCode();
+        return getBookId().hashCode();
     }
 }
@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * BookBatch class validates the fields of a batch of books before it is loaded into a catalog.
+ * Validation runs in parallel. Duplicate IDs are detected by the catalog while it inserts the
+ * batch, since that needs one hash lookup per book that the insert performs anyway.
+ */
+public class BookBatch {
+    
+    // Number of problems listed in the exception message before it is cut short
+    private static final int MAX_REPORTED_PROBLEMS = 10;
+    
+    private BookBatch() {
+    }
+    
+    /**
+     * Validates the fields of every book in a batch
+     * @param books Books to validate
+     * @throws IllegalArgumentException describing the problems if any book is invalid
+     */
+    public static void validate(Collection<Book> books) {
+        if (books == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        
+        // The common case, a valid batch, is checked in parallel without collecting anything;
+        // only an invalid batch is walked again, in order, to report its first problems
+        if (books.parallelStream().allMatch(book -> problemWith(book) == null)) {
+            return;
+        }
+        List<String> problems = books.stream()
+                .map(BookBatch::problemWith)
+                .filter(problem -> problem != null)
+                .limit(MAX_REPORTED_PROBLEMS + 1)
+                .collect(Collectors.toList());
+        
+        if (!problems.isEmpty()) {
+            List<String> reported = new ArrayList<>(problems.subList(0, Math.min(problems.size(), MAX_REPORTED_PROBLEMS)));
+            if (problems.size() > MAX_REPORTED_PROBLEMS) {
+                reported.add("...");
+            }
+            throw new IllegalArgumentException("Cannot add books: " + String.join("; ", reported));
+        }
+    }
+    
+    /**
+     * Builds the exception for a duplicate ID found while inserting a batch
+     * @param bookId The duplicate book ID
+     * @param existedBefore Whether the ID was in the catalog before the batch
+     * @return Exception describing the duplicate
+     */
+    public static IllegalArgumentException duplicate(String bookId, boolean existedBefore) {
+        if (existedBefore) {
+            return new DuplicateBookException(bookId);
+        }
+        return new IllegalArgumentException("Book with ID " + bookId + " appears more than once in the batch");
+    }
+    
+    /**
+     * Checks that a book ID can be matched exactly: not blank and without surrounding whitespace
+     * @param bookId ID to check
+     * @return true if the ID is usable as is
+     */
+    public static boolean isExactId(String bookId) {
+        return !isBlank(bookId) && bookId.charAt(0) > ' ' && bookId.charAt(bookId.length() - 1) > ' ';
+    }
+    
+    /**
+     * Validates the fields of a single book, by the same rules as a batch
+     * @param book Book to validate
+     * @throws IllegalArgumentException describing the problem if the book is invalid
+     */
+    public static void validate(Book book) {
+        String problem = problemWith(book);
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
+        }
+    }
+    
+    private static String problemWith(Book book) {
+        if (book == null) {
+            return "Book cannot be null";
+        }
+        if (isBlank(book.getBookId())) {
+            return "Book ID cannot be null or empty";
+        }
+        if (isBlank(book.getTitle())) {
+            return "Title cannot be null or empty for book " + book.getBookId();
+        }
+        if (isBlank(book.getAuthor())) {
+            return "Author cannot be null or empty for book " + book.getBookId();
+        }
+        if (book.getQuantity() < 0) {
+            return "Quantity cannot be negative for book " + book.getBookId();
+        }
+        if (!Book.fitsField(book.getBookId()) || !Book.fitsField(book.getTitle()) || !Book.fitsField(book.getAuthor())) {
+            return "Fields cannot be longer than " + Book.MAX_FIELD_BYTES + " bytes for book " + abbreviate(book.getBookId());
+        }
+        return null;
+    }
+    
+    private static String abbreviate(String value) {
+        return value.length() <= 40 ? value : value.substring(0, 40) + "...";
+    }
+    
+    /**
+     * Same rule as trim().isEmpty() in the Book setters, without allocating a trimmed copy
+     */
+    private static boolean isBlank(String value) {
+        if (value == null) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
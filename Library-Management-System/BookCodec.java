@@ -0,0 +1,35 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * BookCodec class tells a RecordStore how to key and serialize books.
+ * Books are keyed by book ID and written in the same form as in the catalog journal.
+ */
+public class BookCodec implements RecordCodec<String, Book> {
+    
+    @Override
+    public String keyOf(Book book) {
+        return book.getBookId();
+    }
+    
+    @Override
+    public void writeKey(DataOutput out, String bookId) throws IOException {
+        out.writeUTF(bookId);
+    }
+    
+    @Override
+    public String readKey(DataInput in) throws IOException {
+        return in.readUTF();
+    }
+    
+    @Override
+    public void writeValue(DataOutput out, Book book) throws IOException {
+        CatalogJournal.writeBook(out, book);
+    }
+    
+    @Override
+    public Book readValue(DataInput in) throws IOException {
+        return CatalogJournal.readBook(in);
+    }
+}
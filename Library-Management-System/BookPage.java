@@ -0,0 +1,37 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BookPage class holds one page of a keyset-paginated book listing.
+ * Books are ordered by book ID; the cursor for the next page is the ID of the last book.
+ */
+public class BookPage {
+    private final List<Book> books;
+    private final String nextCursor;
+    
+    /**
+     * Constructor to initialize a page
+     * @param books Books on this page, in book ID order
+     * @param nextCursor Cursor for the next page, or null if this is the last page
+     */
+    public BookPage(List<Book> books, String nextCursor) {
+        this.books = Collections.unmodifiableList(books);
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<Book> getBooks() {
+        return books;
+    }
+    
+    /**
+     * Gets the cursor to pass as afterBookId to fetch the next page
+     * @return Cursor for the next page, or null if there are no more books
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,685 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BookSearchIndex class is an inverted index over book titles and authors for ranked keyword search.
+ * Text is split into words and folded to lower case without accents. Books are scored with BM25F:
+ * a word in the title counts TITLE_WEIGHT times as much as one in the author name, and matches in
+ * short fields score higher than matches in long ones.
+ *
+ * Queries walk the posting lists of their words in book order and keep only the best results in a
+ * bounded heap, so the full set of matching books is never materialized or sorted.
+ * A sorted dictionary of the indexed words lets title searches tolerate typos.
+ */
+public class BookSearchIndex {
+    
+    static final int TITLE_WEIGHT = 2;
+    
+    // Standard BM25 parameters: term frequency saturation and length normalization
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    
+    // Per-field term counts are stored in four bits each
+    private static final int MAX_TERM_COUNT = 15;
+    
+    // Deleted books are purged from the posting lists once they outnumber the live ones
+    private static final int MIN_PURGE_COUNT = 1024;
+    
+    private final Map<String, Postings> postings = new HashMap<>();
+    
+    // Every word in the posting lists, for typo-tolerant lookup
+    private final TermDictionary dictionary = new TermDictionary();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    // Books by document number; null once deleted. Lengths are weighted like term counts.
+    private Book[] documents = new Book[16];
+    private int[] lengths = new int[16];
+    private int documentCount;
+    private int liveCount;
+    private long totalLength;
+    
+    /**
+     * Adds a book to the index
+     * @param book Book to index
+     */
+    public void add(Book book) {
+        lock.writeLock().lock();
+        try {
+            addDocument(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds a batch of books to the index
+     * @param books Books to index
+     */
+    public void addAll(Iterable<Book> books) {
+        lock.writeLock().lock();
+        try {
+            for (Book book : books) {
+                addDocument(book);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes a book from the index. The book must still have the title and author it was indexed with.
+     * @param book Book to remove
+     * @return true if the book was indexed
+     */
+    public boolean remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            TermCounts terms = TermCounts.of(book);
+            int document = find(book, terms);
+            if (document < 0) {
+                return false;
+            }
+            
+            documents[document] = null;
+            liveCount--;
+            totalLength -= lengths[document];
+            for (int i = 0; i < terms.size; i++) {
+                postings.get(terms.terms[i]).documentFrequency--;
+            }
+            
+            int deleted = documentCount - liveCount;
+            if (deleted >= MIN_PURGE_COUNT && deleted > liveCount) {
+                purgeDeleted();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the books that best match the query words
+     * @param query Keywords to search for
+     * @param limit Maximum number of results
+     * @return Up to limit books, best match first; books matching equally keep insertion order
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    public List<Book> search(String query, int limit) {
+        checkLimit(limit);
+        List<String> queryTerms = distinctTokens(query);
+        
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>(queryTerms.size());
+            for (String term : queryTerms) {
+                Postings list = postings.get(term);
+                if (list != null && list.documentFrequency > 0) {
+                    lists.add(list);
+                }
+            }
+            float[] weights = new float[lists.size()];
+            Arrays.fill(weights, 1);
+            return rank(lists, weights, false, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the books whose titles best match the query words, tolerating typos. Each query word
+     * also matches indexed words within maxEdits of it. The matching words are found by walking the
+     * sorted dictionary like a trie, so the query is never compared against every title.
+     * A match counts less the more edits it needs.
+     * @param query Title words to search for, possibly misspelled
+     * @param limit Maximum number of results
+     * @return Up to limit books, best match first
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    public List<Book> searchFuzzy(String query, int limit) {
+        checkLimit(limit);
+        List<String> queryTerms = distinctTokens(query);
+        
+        lock.readLock().lock();
+        try {
+            // Weight of each dictionary word: the closest query word decides
+            Map<String, Float> expansions = new HashMap<>();
+            for (String term : queryTerms) {
+                for (Map.Entry<String, Integer> match : dictionary.search(term, maxEdits(term)).entrySet()) {
+                    expansions.merge(match.getKey(), similarity(match.getValue()), Math::max);
+                }
+            }
+            
+            List<Postings> lists = new ArrayList<>(expansions.size());
+            float[] weights = new float[expansions.size()];
+            for (Map.Entry<String, Float> expansion : expansions.entrySet()) {
+                Postings list = postings.get(expansion.getKey());
+                if (list != null && list.documentFrequency > 0) {
+                    weights[lists.size()] = expansion.getValue();
+                    lists.add(list);
+                }
+            }
+            return rank(lists, weights, true, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Scores the documents in the given posting lists and keeps the best ones
+     * @param lists Posting lists of the matched words
+     * @param weights Weight of each word's score
+     * @param titleOnly Whether to ignore matches in the author name
+     */
+    private List<Book> rank(List<Postings> lists, float[] weights, boolean titleOnly, int limit) {
+        if (lists.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        float averageLength = (float) totalLength / liveCount;
+        float[] idf = new float[lists.size()];
+        for (int i = 0; i < idf.length; i++) {
+            idf[i] = weights[i] * idf(liveCount, lists.get(i).documentFrequency);
+        }
+        
+        // Merge the posting lists in document order, scoring each document once
+        TopBooks top = new TopBooks(limit);
+        int[] cursors = new int[lists.size()];
+        while (true) {
+            int document = Integer.MAX_VALUE;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] < lists.get(i).size) {
+                    document = Math.min(document, lists.get(i).documents[cursors[i]]);
+                }
+            }
+            if (document == Integer.MAX_VALUE) {
+                break;
+            }
+            
+            float score = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                Postings list = lists.get(i);
+                if (cursors[i] < list.size && list.documents[cursors[i]] == document) {
+                    int counts = list.counts[cursors[i]] & 0xFF;
+                    int weighted = TITLE_WEIGHT * (counts >>> 4) + (titleOnly ? 0 : counts & 0xF);
+                    if (weighted > 0) {
+                        score += termScore(idf[i], weighted, lengths[document], averageLength);
+                    }
+                    cursors[i]++;
+                }
+            }
+            
+            Book book = documents[document];
+            if (book != null && score > 0) {
+                top.offer(score, document, book);
+            }
+        }
+        return top.toList();
+    }
+    
+    /**
+     * Ranks books without an index by reading the catalog twice: once to collect the statistics
+     * BM25 needs, once to score. Memory stays bounded by the limit.
+     * @param catalog Catalog to search
+     * @param query Keywords to search for
+     * @param limit Maximum number of results
+     * @return Up to limit books, best match first
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    public static List<Book> searchByScan(LibraryService catalog, String query, int limit) {
+        checkLimit(limit);
+        List<String> queryTerms = distinctTokens(query);
+        if (queryTerms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        int[] documentFrequencies = new int[queryTerms.size()];
+        long[] totals = new long[2]; // books, total length
+        catalog.streamBooks().forEachOrdered(book -> {
+            TermCounts terms = TermCounts.of(book);
+            totals[0]++;
+            totals[1] += terms.length;
+            for (int i = 0; i < documentFrequencies.length; i++) {
+                if (terms.indexOf(queryTerms.get(i)) >= 0) {
+                    documentFrequencies[i]++;
+                }
+            }
+        });
+        
+        float averageLength = totals[0] == 0 ? 0 : (float) totals[1] / totals[0];
+        float[] idf = new float[queryTerms.size()];
+        for (int i = 0; i < idf.length; i++) {
+            idf[i] = idf((int) totals[0], documentFrequencies[i]);
+        }
+        
+        TopBooks top = new TopBooks(limit);
+        Iterator<Book> books = catalog.streamBooks().iterator();
+        for (int position = 0; books.hasNext(); position++) {
+            Book book = books.next();
+            TermCounts terms = TermCounts.of(book);
+            float score = 0;
+            for (int i = 0; i < idf.length; i++) {
+                int index = terms.indexOf(queryTerms.get(i));
+                if (index >= 0) {
+                    score += termScore(idf[i], terms.weightedCount(index), terms.length, averageLength);
+                }
+            }
+            if (score > 0) {
+                top.offer(score, position, book);
+            }
+        }
+        return top.toList();
+    }
+    
+    /**
+     * Fuzzy title search without an index: compares each query word with the words of every title.
+     * Books are ranked by how closely their title words match, since no word statistics are kept.
+     * @param catalog Catalog to search
+     * @param query Title words to search for, possibly misspelled
+     * @param limit Maximum number of results
+     * @return Up to limit books, best match first
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    public static List<Book> searchFuzzyByScan(LibraryService catalog, String query, int limit) {
+        checkLimit(limit);
+        List<String> queryTerms = distinctTokens(query);
+        if (queryTerms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        TopBooks top = new TopBooks(limit);
+        Iterator<Book> books = catalog.streamBooks().iterator();
+        for (int position = 0; books.hasNext(); position++) {
+            Book book = books.next();
+            List<String> titleTerms = tokenize(book.getTitle());
+            float score = 0;
+            for (String term : queryTerms) {
+                int maxEdits = maxEdits(term);
+                int closest = maxEdits + 1;
+                for (String titleTerm : titleTerms) {
+                    closest = Math.min(closest, TermDictionary.distance(term, titleTerm, maxEdits));
+                }
+                if (closest <= maxEdits) {
+                    score += similarity(closest);
+                }
+            }
+            if (score > 0) {
+                top.offer(score, position, book);
+            }
+        }
+        return top.toList();
+    }
+    
+    /**
+     * Splits text into lower-case words with accents removed, so "Résumé" yields "resume"
+     * @param text Text to split
+     * @return Words in order of appearance
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        
+        int start = -1;
+        boolean ascii = true;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (isWordPart(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                    ascii = true;
+                }
+                ascii &= codePoint < 0x80;
+            } else if (start >= 0) {
+                tokens.add(fold(text.substring(start, i), ascii));
+                start = -1;
+            }
+            i += i < text.length() ? Character.charCount(codePoint) : 1;
+        }
+        return tokens;
+    }
+    
+    private void addDocument(Book book) {
+        TermCounts terms = TermCounts.of(book);
+        if (documentCount == documents.length) {
+            documents = Arrays.copyOf(documents, documentCount * 2);
+            lengths = Arrays.copyOf(lengths, documentCount * 2);
+        }
+        
+        int document = documentCount++;
+        documents[document] = book;
+        lengths[document] = terms.length;
+        liveCount++;
+        totalLength += terms.length;
+        
+        for (int i = 0; i < terms.size; i++) {
+            Postings list = postings.get(terms.terms[i]);
+            if (list == null) {
+                list = new Postings();
+                postings.put(terms.terms[i], list);
+                dictionary.add(terms.terms[i]);
+            }
+            list.add(document, Math.min(terms.titleCounts[i], MAX_TERM_COUNT),
+                     Math.min(terms.authorCounts[i], MAX_TERM_COUNT));
+        }
+    }
+    
+    /**
+     * Finds the document number of a book by scanning the shortest of its posting lists
+     */
+    private int find(Book book, TermCounts terms) {
+        Postings shortest = null;
+        for (int i = 0; i < terms.size; i++) {
+            Postings list = postings.get(terms.terms[i]);
+            if (list == null) {
+                return -1;
+            }
+            if (shortest == null || list.size < shortest.size) {
+                shortest = list;
+            }
+        }
+        
+        if (shortest == null) {
+            // A book without any words appears in no posting list
+            for (int document = 0; document < documentCount; document++) {
+                if (isDocumentOf(document, book)) {
+                    return document;
+                }
+            }
+            return -1;
+        }
+        for (int i = 0; i < shortest.size; i++) {
+            if (isDocumentOf(shortest.documents[i], book)) {
+                return shortest.documents[i];
+            }
+        }
+        return -1;
+    }
+    
+    private boolean isDocumentOf(int document, Book book) {
+        Book indexed = documents[document];
+        return indexed != null && (indexed == book || indexed.getBookId().equals(book.getBookId()));
+    }
+    
+    /**
+     * Renumbers the live documents densely and drops deleted ones from every posting list.
+     * Numbering keeps its order, so the posting lists stay sorted.
+     */
+    private void purgeDeleted() {
+        int[] renumbered = new int[documentCount];
+        int live = 0;
+        for (int document = 0; document < documentCount; document++) {
+            if (documents[document] != null) {
+                documents[live] = documents[document];
+                lengths[live] = lengths[document];
+                renumbered[document] = live++;
+            } else {
+                renumbered[document] = -1;
+            }
+        }
+        Arrays.fill(documents, live, documentCount, null);
+        documentCount = live;
+        
+        for (Iterator<Map.Entry<String, Postings>> lists = postings.entrySet().iterator(); lists.hasNext(); ) {
+            Map.Entry<String, Postings> entry = lists.next();
+            Postings list = entry.getValue();
+            int kept = 0;
+            for (int i = 0; i < list.size; i++) {
+                int document = renumbered[list.documents[i]];
+                if (document >= 0) {
+                    list.documents[kept] = document;
+                    list.counts[kept] = list.counts[i];
+                    kept++;
+                }
+            }
+            list.size = kept;
+            if (kept == 0) {
+                lists.remove();
+                dictionary.remove(entry.getKey());
+            }
+        }
+    }
+    
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Result limit must be positive");
+        }
+    }
+    
+    /**
+     * Number of typos tolerated in a word: none for very short words, where any edit gives a
+     * different common word, one for short words and two for longer ones
+     */
+    static int maxEdits(String term) {
+        if (term.length() <= 2) {
+            return 0;
+        }
+        return term.length() <= 5 ? 1 : 2;
+    }
+    
+    private static float similarity(int edits) {
+        return 1f / (1 + edits);
+    }
+    
+    private static float idf(int books, int documentFrequency) {
+        return (float) Math.log(1 + (books - documentFrequency + 0.5) / (documentFrequency + 0.5));
+    }
+    
+    private static float termScore(float idf, int weightedCount, int length, float averageLength) {
+        float norm = K1 * (1 - B + B * length / averageLength);
+        return idf * weightedCount * (K1 + 1) / (weightedCount + norm);
+    }
+    
+    private static List<String> distinctTokens(String text) {
+        List<String> distinct = new ArrayList<>();
+        for (String token : tokenize(text)) {
+            if (!distinct.contains(token)) {
+                distinct.add(token);
+            }
+        }
+        return distinct;
+    }
+    
+    private static boolean isWordPart(int codePoint) {
+        if (codePoint < 0x80) {
+            return (codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z')
+                    || (codePoint >= '0' && codePoint <= '9');
+        }
+        return Character.isLetterOrDigit(codePoint) || isMark(codePoint);
+    }
+    
+    private static boolean isMark(int codePoint) {
+        int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
+    
+    private static String fold(String token, boolean ascii) {
+        if (ascii) {
+            return token.toLowerCase(Locale.ROOT);
+        }
+        
+        // Decompose accented letters and drop the accents
+        String decomposed = Normalizer.normalize(token, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ) {
+            int codePoint = decomposed.codePointAt(i);
+            if (!isMark(codePoint)) {
+                folded.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return folded.toString().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Distinct words of one book with their counts in the title and in the author name
+     */
+    private static class TermCounts {
+        private String[] terms = new String[8];
+        private int[] titleCounts = new int[8];
+        private int[] authorCounts = new int[8];
+        private int size;
+        private int length;
+        
+        static TermCounts of(Book book) {
+            TermCounts counts = new TermCounts();
+            for (String token : tokenize(book.getTitle())) {
+                int slot = counts.slotOf(token);
+                counts.titleCounts[slot]++;
+                counts.length += TITLE_WEIGHT;
+            }
+            for (String token : tokenize(book.getAuthor())) {
+                int slot = counts.slotOf(token);
+                counts.authorCounts[slot]++;
+                counts.length++;
+            }
+            return counts;
+        }
+        
+        int indexOf(String term) {
+            for (int i = 0; i < size; i++) {
+                if (terms[i].equals(term)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        int weightedCount(int index) {
+            return TITLE_WEIGHT * titleCounts[index] + authorCounts[index];
+        }
+        
+        private int slotOf(String term) {
+            int index = indexOf(term);
+            if (index >= 0) {
+                return index;
+            }
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, size * 2);
+                titleCounts = Arrays.copyOf(titleCounts, size * 2);
+                authorCounts = Arrays.copyOf(authorCounts, size * 2);
+            }
+            terms[size] = term;
+            return size++;
+        }
+    }
+    
+    /**
+     * Posting list of one word: the documents containing it, in increasing order, with the
+     * title count in the high and the author count in the low four bits of each count byte
+     */
+    private static class Postings {
+        private int[] documents = new int[2];
+        private byte[] counts = new byte[2];
+        private int size;
+        private int documentFrequency;
+        
+        void add(int document, int titleCount, int authorCount) {
+            if (size == documents.length) {
+                int capacity = size + (size >> 1) + 1;
+                documents = Arrays.copyOf(documents, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            documents[size] = document;
+            counts[size] = (byte) ((titleCount << 4) | authorCount);
+            size++;
+            documentFrequency++;
+        }
+    }
+    
+    /**
+     * Bounded min-heap keeping the best results seen so far. The root is the weakest result:
+     * the lowest score, and among equal scores the latest position.
+     */
+    private static class TopBooks {
+        private final float[] scores;
+        private final int[] positions;
+        private final Book[] books;
+        private int size;
+        
+        TopBooks(int limit) {
+            scores = new float[limit];
+            positions = new int[limit];
+            books = new Book[limit];
+        }
+        
+        void offer(float score, int position, Book book) {
+            if (size < scores.length) {
+                set(size, score, position, book);
+                siftUp(size++);
+            } else if (weaker(0, score, position)) {
+                set(0, score, position, book);
+                siftDown(0);
+            }
+        }
+        
+        List<Book> toList() {
+            // Pop the weakest repeatedly and fill the result from the back
+            Book[] ordered = new Book[size];
+            while (size > 0) {
+                ordered[size - 1] = books[0];
+                size--;
+                set(0, scores[size], positions[size], books[size]);
+                siftDown(0);
+            }
+            return new ArrayList<>(Arrays.asList(ordered));
+        }
+        
+        /**
+         * Whether the entry at index ranks below a result with the given score and position
+         */
+        private boolean weaker(int index, float score, int position) {
+            return scores[index] < score || (scores[index] == score && positions[index] > position);
+        }
+        
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (!weaker(index, scores[parent], positions[parent])) {
+                    break;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+        
+        private void siftDown(int index) {
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && weaker(child + 1, scores[child], positions[child])) {
+                    child++;
+                }
+                if (!weaker(child, scores[index], positions[index])) {
+                    break;
+                }
+                swap(index, child);
+                index = child;
+            }
+        }
+        
+        private void set(int index, float score, int position, Book book) {
+            scores[index] = score;
+            positions[index] = position;
+            books[index] = book;
+        }
+        
+        private void swap(int a, int b) {
+            float score = scores[a];
+            int position = positions[a];
+            Book book = books[a];
+            set(a, scores[b], positions[b], books[b]);
+            set(b, score, position, book);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * CachingLibraryService class caches title and author search results in front of another LibraryService.
+ * A cached result is the list of matching book IDs for a normalized query; the books themselves are
+ * looked up by ID on every hit, so quantities changed by checkouts are always current.
+ *
+ * Eviction follows W-TinyLFU: new queries enter a small LRU window, and a query leaving the window
+ * only displaces an entry of the main segmented LRU if a frequency sketch says it is searched more
+ * often. A burst of one-off searches therefore cannot flush the popular queries out of the cache.
+ *
+ * Adding, updating or deleting a book removes exactly the cached queries that the book matched
+ * before or after the change. All mutations must go through this service for that to hold.
+ */
+public class CachingLibraryService implements LibraryService {
+    
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+    
+    private final LibraryService delegate;
+    private final int windowMaximum;
+    private final int mainMaximum;
+    private final int protectedMaximum;
+    
+    // Access-ordered segments; the eldest entry of each is its least recently used
+    private final LinkedHashMap<String, CachedQuery> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedQuery> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedQuery> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    
+    // Bumped by every invalidation, so a search that raced with a mutation does not cache its result
+    private long epoch;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+    private long invalidations;
+    
+    /**
+     * Creates a cache holding up to DEFAULT_MAXIMUM_SIZE queries
+     * @param delegate Service that answers cache misses and receives all mutations
+     */
+    public CachingLibraryService(LibraryService delegate) {
+        this(delegate, DEFAULT_MAXIMUM_SIZE);
+    }
+    
+    /**
+     * Creates a cache holding up to the given number of queries
+     * @param delegate Service that answers cache misses and receives all mutations
+     * @param maximumSize Maximum number of cached queries
+     * @throws IllegalArgumentException if maximumSize is less than 2
+     */
+    public CachingLibraryService(LibraryService delegate, int maximumSize) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate service cannot be null");
+        }
+        if (maximumSize < 2) {
+            throw new IllegalArgumentException("Cache size must be at least 2");
+        }
+        this.delegate = delegate;
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.mainMaximum = maximumSize - windowMaximum;
+        this.protectedMaximum = mainMaximum * 4 / 5;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        delegate.addBook(book);
+        invalidate(Collections.singletonList(book));
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        delegate.addBooks(books);
+        invalidate(books);
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return delegate.getAllBooks();
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return delegate.streamBooks();
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        return delegate.snapshot();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        return delegate.getBooksPage(afterBookId, pageSize);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        return delegate.searchBookById(bookId);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return search(title, false);
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return delegate.searchRanked(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return delegate.searchBookByTitleFuzzy(title, limit);
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        // Copy the old values first; some catalogs update the stored book in place
+        Book before = copyOf(bookId);
+        if (!delegate.updateBook(bookId, updatedBook)) {
+            return false;
+        }
+        
+        List<Book> touched = new ArrayList<>(2);
+        touched.add(updatedBook);
+        if (before != null) {
+            touched.add(before);
+            invalidate(touched);
+        } else {
+            // The book was added concurrently after the copy was taken
+            invalidateAll();
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        Book before = copyOf(bookId);
+        if (!delegate.deleteBook(bookId)) {
+            return false;
+        }
+        
+        if (before != null) {
+            invalidate(Collections.singletonList(before));
+        } else {
+            invalidateAll();
+        }
+        return true;
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        return delegate.getBooksByIds(bookIds);
+    }
+    
+    @Override
+    public BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        List<String> bookIds = new ArrayList<>(updatedBooks.size());
+        for (Book book : updatedBooks) {
+            bookIds.add(book == null ? null : book.getBookId());
+        }
+        List<Book> before = copiesOf(bookIds);
+        
+        BatchResult result = delegate.updateBooks(updatedBooks);
+        List<Book> touched = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            if (result.isApplied(i)) {
+                if (before.get(i) == null) {
+                    // The book was added concurrently after the copies were taken
+                    invalidateAll();
+                    return result;
+                }
+                touched.add(before.get(i));
+                touched.add(updatedBooks.get(i));
+            }
+        }
+        // One invalidation pass for the whole batch
+        if (!touched.isEmpty()) {
+            invalidate(touched);
+        }
+        return result;
+    }
+    
+    @Override
+    public BatchResult deleteBooks(List<String> bookIds) {
+        List<Book> before = copiesOf(bookIds);
+        
+        BatchResult result = delegate.deleteBooks(bookIds);
+        List<Book> touched = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            if (result.isApplied(i)) {
+                if (before.get(i) == null) {
+                    invalidateAll();
+                    return result;
+                }
+                touched.add(before.get(i));
+            }
+        }
+        if (!touched.isEmpty()) {
+            invalidate(touched);
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        return delegate.bookExists(bookId);
+    }
+    
+    // Quantities are not part of any cached query, so checkouts and returns never invalidate
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        return delegate.checkout(bookId, copies);
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        return delegate.returnBook(bookId, copies);
+    }
+    
+    @Override
+    public int getBookCount() {
+        return delegate.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return search(author, true);
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return delegate.getLowQuantityBooks(threshold);
+    }
+    
+    /**
+     * Gets the number of searches answered from the cache
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+    
+    /**
+     * Gets the number of searches passed on to the underlying service
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+    
+    /**
+     * Gets the fraction of searches answered from the cache
+     * @return Hit rate between 0 and 1, or 0 if nothing has been searched yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+    
+    /**
+     * Gets the number of queries dropped to keep the cache within its size, including
+     * new queries that were refused admission
+     * @return Eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+    
+    /**
+     * Gets the number of cached queries removed because a matching book changed
+     * @return Invalidation count
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+    
+    public LibraryService getDelegate() {
+        return delegate;
+    }
+    
+    /**
+     * Gets the number of queries currently cached
+     * @return Cached query count
+     */
+    public synchronized int getCachedQueryCount() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+    
+    private List<Book> search(String text, boolean byAuthor) {
+        if (text == null || text.trim().isEmpty()) {
+            return byAuthor ? delegate.getBooksByAuthor(text) : delegate.searchBookByTitle(text);
+        }
+        
+        // Same normalization as the catalogs, so equal keys always have equal results
+        String query = Book.searchKey(text.trim());
+        String key = (byAuthor ? "a:" : "t:") + query;
+        
+        String[] ids;
+        long startEpoch;
+        synchronized (this) {
+            ids = lookup(key);
+            startEpoch = epoch;
+        }
+        
+        if (ids != null) {
+            List<Book> books = resolve(ids);
+            if (books != null) {
+                hits.increment();
+                return books;
+            }
+        }
+        misses.increment();
+        
+        List<Book> books = byAuthor ? delegate.getBooksByAuthor(text) : delegate.searchBookByTitle(text);
+        String[] resultIds = new String[books.size()];
+        for (int i = 0; i < resultIds.length; i++) {
+            resultIds[i] = books.get(i).getBookId();
+        }
+        store(key, new CachedQuery(query, byAuthor, resultIds), startEpoch);
+        return books;
+    }
+    
+    /**
+     * Looks the books of a cached result up by ID
+     * @return The books, or null if one of them has been deleted in the meantime
+     */
+    private List<Book> resolve(String[] ids) {
+        List<Book> books = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            Optional<Book> book = delegate.searchBookById(id);
+            if (!book.isPresent()) {
+                return null;
+            }
+            books.add(book.get());
+        }
+        return books;
+    }
+    
+    /**
+     * Finds a cached query, recording the access in the frequency sketch.
+     * A hit in probation promotes the entry to the protected segment.
+     */
+    private String[] lookup(String key) {
+        sketch.increment(key.hashCode());
+        
+        CachedQuery entry = window.get(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                protectedSegment.put(key, entry);
+                if (protectedSegment.size() > protectedMaximum) {
+                    Map.Entry<String, CachedQuery> demoted = removeEldest(protectedSegment);
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            } else {
+                entry = protectedSegment.get(key);
+            }
+        }
+        return entry == null ? null : entry.ids;
+    }
+    
+    private synchronized void store(String key, CachedQuery entry, long startEpoch) {
+        if (epoch != startEpoch || window.containsKey(key) || probation.containsKey(key)
+                || protectedSegment.containsKey(key)) {
+            return;
+        }
+        
+        window.put(key, entry);
+        if (window.size() <= windowMaximum) {
+            return;
+        }
+        
+        // The query leaving the window competes with the main segment's next victim
+        Map.Entry<String, CachedQuery> candidate = removeEldest(window);
+        if (probation.size() + protectedSegment.size() < mainMaximum) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        
+        LinkedHashMap<String, CachedQuery> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        String victim = victimSegment.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.hashCode())) {
+            victimSegment.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions++;
+    }
+    
+    /**
+     * Removes every cached query matched by one of the given books
+     */
+    private synchronized void invalidate(Collection<Book> touched) {
+        epoch++;
+        
+        // Checking a large batch against every query costs more than refilling the cache
+        if (touched.size() > mainMaximum) {
+            invalidateAll();
+            return;
+        }
+        
+        String[] titles = new String[touched.size()];
+        String[] authors = new String[titles.length];
+        int i = 0;
+        for (Book book : touched) {
+            titles[i] = lowerCase(book.getTitle());
+            authors[i] = lowerCase(book.getAuthor());
+            i++;
+        }
+        
+        invalidations += removeMatching(window, titles, authors)
+                + removeMatching(probation, titles, authors)
+                + removeMatching(protectedSegment, titles, authors);
+    }
+    
+    private synchronized void invalidateAll() {
+        epoch++;
+        invalidations += window.size() + probation.size() + protectedSegment.size();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+    
+    private static int removeMatching(Map<String, CachedQuery> segment, String[] titles, String[] authors) {
+        int removed = 0;
+        for (Iterator<CachedQuery> entries = segment.values().iterator(); entries.hasNext(); ) {
+            CachedQuery entry = entries.next();
+            String[] fields = entry.byAuthor ? authors : titles;
+            for (String field : fields) {
+                if (field.contains(entry.query)) {
+                    entries.remove();
+                    removed++;
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+    
+    private static Map.Entry<String, CachedQuery> removeEldest(Map<String, CachedQuery> segment) {
+        Iterator<Map.Entry<String, CachedQuery>> entries = segment.entrySet().iterator();
+        Map.Entry<String, CachedQuery> eldest = entries.next();
+        entries.remove();
+        return eldest;
+    }
+    
+    private static String lowerCase(String value) {
+        // Matches nothing: every cached query is non-empty
+        return value == null ? "" : Book.searchKey(value);
+    }
+    
+    /**
+     * Copies the searchable fields of many books, with null for IDs that match no book
+     */
+    private List<Book> copiesOf(List<String> bookIds) {
+        List<Book> books = delegate.getBooksByIds(bookIds);
+        List<Book> copies = new ArrayList<>(books.size());
+        for (Book book : books) {
+            copies.add(book == null ? null : new Book(book.getBookId(), book.getTitle(), book.getAuthor(), 0));
+        }
+        return copies;
+    }
+    
+    private Book copyOf(String bookId) {
+        Optional<Book> book = delegate.searchBookById(bookId);
+        if (!book.isPresent()) {
+            return null;
+        }
+        return new Book(book.get().getBookId(), book.get().getTitle(), book.get().getAuthor(), 0);
+    }
+    
+    /**
+     * A cached search: the normalized query and the IDs of the matching books in result order
+     */
+    private static class CachedQuery {
+        private final String query;
+        private final boolean byAuthor;
+        private final String[] ids;
+        
+        CachedQuery(String query, boolean byAuthor, String[] ids) {
+            this.query = query;
+            this.byAuthor = byAuthor;
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * CatalogChange class describes one change to the catalog, as published by a CatalogChangeLog.
+ * Changes are numbered with consecutive sequence numbers, so a consumer that remembers the last
+ * sequence it handled can resume from the next one.
+ *
+ * Books carried by a change are copies taken when the change was made.
+ */
+public final class CatalogChange {
+    
+    /**
+     * Kinds of change
+     */
+    public enum Type {
+        /** A book was added; getAfter holds it */
+        ADDED,
+        /** A book's details were replaced; getBefore and getAfter hold both versions, whose IDs may differ */
+        UPDATED,
+        /** A book was deleted; getBefore holds it */
+        DELETED,
+        /** Copies were checked out or returned; getQuantityDelta holds the change in quantity */
+        QUANTITY_CHANGED
+    }
+    
+    private final long sequence;
+    private final Type type;
+    private final String bookId;
+    private final Book before;
+    private final Book after;
+    private final int quantityDelta;
+    private final long timestamp;
+    
+    CatalogChange(long sequence, Type type, String bookId, Book before, Book after, int quantityDelta, long timestamp) {
+        this.sequence = sequence;
+        this.type = type;
+        this.bookId = bookId;
+        this.before = before;
+        this.after = after;
+        this.quantityDelta = quantityDelta;
+        this.timestamp = timestamp;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    /**
+     * Gets the ID of the book that changed; for an update that changed the ID, the old ID
+     * @return Book ID
+     */
+    public String getBookId() {
+        return bookId;
+    }
+    
+    /**
+     * Gets the book as it was before the change
+     * @return Copy of the book, or null for ADDED and QUANTITY_CHANGED
+     */
+    public Book getBefore() {
+        return before == null ? null : before.copy();
+    }
+    
+    /**
+     * Gets the book as it was after the change
+     * @return Copy of the book, or null for DELETED and QUANTITY_CHANGED
+     */
+    public Book getAfter() {
+        return after == null ? null : after.copy();
+    }
+    
+    /**
+     * Gets the change in quantity of a QUANTITY_CHANGED event: negative for a checkout, positive for a return.
+     * Checkouts of the same book on different threads may be published in a different order than
+     * they took effect, so consumers should add the delta rather than expect a resulting quantity.
+     * @return Change in quantity, or 0 for other types
+     */
+    public int getQuantityDelta() {
+        return quantityDelta;
+    }
+    
+    /**
+     * Gets the time the change was published
+     * @return Milliseconds since the epoch, as System.currentTimeMillis
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + type + " " + bookId
+                + (type == Type.QUANTITY_CHANGED ? " " + (quantityDelta > 0 ? "+" : "") + quantityDelta : "");
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * CatalogChangeLog class publishes catalog changes, in order, to any number of subscribers.
+ *
+ * Changes are kept in a fixed ring of slots. Publishers claim the next sequence number with one
+ * atomic increment and store the change in its slot; there is no lock. Each subscriber reads at
+ * its own position, and a publisher may only reuse a slot once every subscriber has read past
+ * it, so a slow subscriber holds publishers back instead of missing changes. With no subscriber
+ * nothing holds publishers back, and the ring keeps the latest changes for consumers that resume.
+ */
+public class CatalogChangeLog {
+    
+    /** Number of changes kept by default */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    
+    // Spins before a waiting publisher or subscriber starts parking
+    private static final int SPIN_LIMIT = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    
+    private final AtomicReferenceArray<CatalogChange> ring;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    
+    // Guarded by subscriptions; publishers only take the lock to rescan once they reach cachedGate
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    
+    // Lowest subscriber position at the last scan; slots below it are free
+    private volatile long cachedGate;
+    
+    /**
+     * Creates a log keeping the default number of changes
+     */
+    public CatalogChangeLog() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a log
+     * @param capacity Number of changes kept, rounded up to a power of two
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public CatalogChangeLog(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + (1 << 30));
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+    
+    public int getCapacity() {
+        return ring.length();
+    }
+    
+    /**
+     * Gets the sequence number the next change will get
+     * @return Number of changes published so far
+     */
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+    
+    /**
+     * Publishes the addition of a book
+     * @param book Book that was added
+     */
+    public void added(Book book) {
+        publish(CatalogChange.Type.ADDED, book.getBookId(), null, book.copy(), 0);
+    }
+    
+    /**
+     * Publishes the replacement of a book's details
+     * @param before Book as it was
+     * @param after Book as it is now
+     */
+    public void updated(Book before, Book after) {
+        publish(CatalogChange.Type.UPDATED, before.getBookId(), before.copy(), after.copy(), 0);
+    }
+    
+    /**
+     * Publishes the deletion of a book
+     * @param book Book that was deleted
+     */
+    public void deleted(Book book) {
+        publish(CatalogChange.Type.DELETED, book.getBookId(), book.copy(), null, 0);
+    }
+    
+    /**
+     * Publishes a checkout or return
+     * @param bookId ID of the book
+     * @param delta Change in quantity
+     */
+    public void quantityChanged(String bookId, int delta) {
+        publish(CatalogChange.Type.QUANTITY_CHANGED, bookId, null, null, delta);
+    }
+    
+    /**
+     * Subscribes to changes published from now on
+     * @return The subscription; close it when done so it no longer holds publishers back
+     */
+    public Subscription subscribe() {
+        synchronized (subscriptions) {
+            // Every sequence claimed so far is below the new position, so no publisher that
+            // overlooked this subscription can overwrite a change it still has to read
+            Subscription subscription = new Subscription(nextSequence.get());
+            subscriptions.add(subscription);
+            return subscription;
+        }
+    }
+    
+    /**
+     * Subscribes to changes starting at a given sequence number, to resume after an earlier subscription
+     * @param fromSequence Sequence number of the first change to receive
+     * @return The subscription; close it when done so it no longer holds publishers back
+     * @throws IllegalArgumentException if fromSequence has not been reached yet
+     * @throws IllegalStateException if the change with that sequence is no longer kept
+     */
+    public Subscription subscribe(long fromSequence) {
+        if (fromSequence < 0 || fromSequence > nextSequence.get()) {
+            throw new IllegalArgumentException("No change with sequence " + fromSequence + " has been published");
+        }
+        synchronized (subscriptions) {
+            Subscription subscription = new Subscription(fromSequence);
+            subscriptions.add(subscription);
+            cachedGate = Math.min(cachedGate, fromSequence);
+            // A publisher that read the gate before it was lowered claimed its sequence before this
+            // read, so it overwrites at most the changes before nextSequence - capacity
+            if (fromSequence < nextSequence.get() - ring.length()) {
+                subscriptions.remove(subscription);
+                throw new IllegalStateException("Change " + fromSequence + " is no longer kept");
+            }
+            return subscription;
+        }
+    }
+    
+    private void publish(CatalogChange.Type type, String bookId, Book before, Book after, int quantityDelta) {
+        long sequence = nextSequence.getAndIncrement();
+        awaitSlot(sequence);
+        
+        CatalogChange change = new CatalogChange(sequence, type, bookId, before, after, quantityDelta,
+                                                 System.currentTimeMillis());
+        int slot = (int) sequence & mask;
+        while (true) {
+            // With nobody subscribed, a publisher that stalled for a whole lap must not put its
+            // change over a newer one
+            CatalogChange current = ring.get(slot);
+            if (current != null && current.getSequence() > sequence) {
+                return;
+            }
+            if (ring.compareAndSet(slot, current, change)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Waits until every subscriber has read the change that last used the slot for a sequence
+     */
+    private void awaitSlot(long sequence) {
+        long wrapPoint = sequence - ring.length();
+        if (wrapPoint < cachedGate) {
+            return;
+        }
+        
+        int spins = 0;
+        while (true) {
+            synchronized (subscriptions) {
+                long gate = sequence + 1;
+                for (Subscription subscription : subscriptions) {
+                    gate = Math.min(gate, subscription.position);
+                }
+                cachedGate = gate;
+                if (wrapPoint < gate) {
+                    return;
+                }
+            }
+            if (++spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+    
+    /**
+     * Subscription class reads changes in sequence order from one position in the log.
+     * A subscription belongs to one consumer thread.
+     */
+    public final class Subscription implements AutoCloseable {
+        
+        // Sequence of the next change to read; publishers read it to know which slots are free
+        private volatile long position;
+        
+        private Subscription(long position) {
+            this.position = position;
+        }
+        
+        /**
+         * Gets the sequence number of the next change this subscription will return
+         * @return Position to pass to subscribe to resume from here
+         */
+        public long getPosition() {
+            return position;
+        }
+        
+        /**
+         * Returns the next change if it has been published
+         * @return The change, or null if there is none yet
+         * @throws IllegalStateException if the subscription was closed and the change was overwritten
+         */
+        public CatalogChange poll() {
+            long next = position;
+            CatalogChange change = ring.get((int) next & mask);
+            if (change == null || change.getSequence() < next) {
+                return null;
+            }
+            if (change.getSequence() > next) {
+                throw new IllegalStateException("Change " + next + " is no longer kept");
+            }
+            // Only now may publishers reuse the slot
+            position = next + 1;
+            return change;
+        }
+        
+        /**
+         * Waits for the next change
+         * @param timeout Longest time to wait
+         * @param unit Unit of timeout
+         * @return The change, or null if none was published in time
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public CatalogChange poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int spins = 0;
+            while (true) {
+                CatalogChange change = poll();
+                if (change != null) {
+                    return change;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return null;
+                }
+                if (++spins < SPIN_LIMIT) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        }
+        
+        /**
+         * Hands every change published so far, up to a limit, to a consumer
+         * @param consumer Receives the changes in sequence order
+         * @param maxChanges Maximum number of changes to hand over
+         * @return Number of changes handed over
+         */
+        public int drainTo(Consumer<CatalogChange> consumer, int maxChanges) {
+            int drained = 0;
+            CatalogChange change;
+            while (drained < maxChanges && (change = poll()) != null) {
+                consumer.accept(change);
+                drained++;
+            }
+            return drained;
+        }
+        
+        /**
+         * Stops holding publishers back. Changes can still be read while they are kept.
+         */
+        @Override
+        public void close() {
+            synchronized (subscriptions) {
+                subscriptions.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CatalogImage class exports and maps an immutable, memory-mapped image of the catalog.
+ *
+ * Layout (all numbers big-endian):
+ *   header      magic, version, book count, and the offsets of the three sections below
+ *   id table    one 24-byte entry per book, sorted by the UTF-8 bytes of the book ID,
+ *               holding pool offsets of the ID, title and author strings
+ *   quantities  one int per book, in id table order
+ *   string pool 2-byte length followed by UTF-8 bytes; authors are stored once and shared
+ *
+ * The image is mapped read-only, so opening it costs no parsing and every process that maps
+ * the same file shares one copy in the operating system page cache.
+ */
+public class CatalogImage implements Closeable {
+    
+    private static final int MAGIC = 0x4C494249; // "LIBI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    static final int ENTRY_SIZE = 24;
+    
+    // Files larger than 2 GB are mapped as several chunks
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    
+    private final MappedByteBuffer[] chunks;
+    private final int bookCount;
+    private final long idTableOffset;
+    private final long quantitiesOffset;
+    
+    private CatalogImage(MappedByteBuffer[] chunks, int bookCount, long idTableOffset, long quantitiesOffset) {
+        this.chunks = chunks;
+        this.bookCount = bookCount;
+        this.idTableOffset = idTableOffset;
+        this.quantitiesOffset = quantitiesOffset;
+    }
+    
+    /**
+     * Maps an image file read-only. Only the header is read; all other pages are
+     * faulted in on demand by the first queries that touch them.
+     * @param file Image file path
+     * @return The mapped image
+     * @throws IOException if the file cannot be mapped or is not a catalog image
+     */
+    public static CatalogImage open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            }
+            
+            if (size < HEADER_SIZE || chunks[0].getInt(0) != MAGIC) {
+                throw new IOException("Not a catalog image: " + file);
+            }
+            if (chunks[0].getInt(4) != VERSION) {
+                throw new IOException("Unsupported catalog image version " + chunks[0].getInt(4) + ": " + file);
+            }
+            return new CatalogImage(chunks, chunks[0].getInt(8), chunks[0].getLong(16), chunks[0].getLong(24));
+        }
+    }
+    
+    /**
+     * Writes an image of the given books. The file is written under a temporary name
+     * and renamed into place, so readers never map a half-written image.
+     * @param file Image file path
+     * @param books Books to export
+     * @throws IOException if the image cannot be written
+     */
+    public static void export(Path file, List<Book> books) throws IOException {
+        int count = books.size();
+        
+        // Sort by encoded ID so lookups can binary search on raw bytes
+        byte[][] ids = new byte[count][];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = books.get(i).getBookId().getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(ids[a], ids[b]));
+        
+        long idTableOffset = HEADER_SIZE;
+        long quantitiesOffset = idTableOffset + (long) count * ENTRY_SIZE;
+        long poolOffset = quantitiesOffset + (long) count * 4;
+        
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            RegionWriter table = new RegionWriter(channel, idTableOffset);
+            RegionWriter quantities = new RegionWriter(channel, quantitiesOffset);
+            RegionWriter pool = new RegionWriter(channel, poolOffset);
+            Map<String, Long> authorOffsets = new HashMap<>();
+            
+            for (int index : order) {
+                Book book = books.get(index);
+                long idRef = pool.position();
+                pool.putString(ids[index]);
+                long titleRef = pool.position();
+                pool.putString(book.getTitle().getBytes(StandardCharsets.UTF_8));
+                
+                Long authorRef = authorOffsets.get(book.getAuthor());
+                if (authorRef == null) {
+                    authorRef = pool.position();
+                    pool.putString(book.getAuthor().getBytes(StandardCharsets.UTF_8));
+                    authorOffsets.put(book.getAuthor(), authorRef);
+                }
+                
+                table.putLong(idRef);
+                table.putLong(titleRef);
+                table.putLong(authorRef);
+                quantities.putInt(book.getQuantity());
+            }
+            
+            table.flush();
+            quantities.flush();
+            pool.flush();
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+            header.putLong(idTableOffset).putLong(quantitiesOffset).putLong(poolOffset);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public int getBookCount() {
+        return bookCount;
+    }
+    
+    /**
+     * Finds the position of a book in the id table
+     * @param bookId Book ID to look up
+     * @return Index of the book, or -1 if it is not in the image
+     */
+    public int indexOf(String bookId) {
+        int position = search(bookId);
+        return position >= 0 ? position : -1;
+    }
+    
+    /**
+     * Finds the position of the first book whose ID sorts after the given ID
+     * @param bookId Book ID to start after; it does not need to be in the image
+     * @return Index of the first later book, or the book count if there is none
+     */
+    public int indexAfter(String bookId) {
+        int position = search(bookId);
+        return position >= 0 ? position + 1 : -(position + 1);
+    }
+    
+    /**
+     * Binary search over the id table
+     * @return Index of the book if found, otherwise (-(insertion point) - 1)
+     */
+    private int search(String bookId) {
+        byte[] key = bookId.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = bookCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareString(getLong(entryOffset(mid)), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+    
+    public String getBookId(int index) {
+        return readString(getLong(entryOffset(index)));
+    }
+    
+    public String getTitle(int index) {
+        return readString(getLong(entryOffset(index) + 8));
+    }
+    
+    /**
+     * Gets the pool offset of a book's author. Books by the same author share one offset,
+     * which lets author scans evaluate each distinct author only once.
+     * @param index Index of the book
+     * @return Pool offset of the author string
+     */
+    public long getAuthorRef(int index) {
+        return getLong(entryOffset(index) + 16);
+    }
+    
+    public String getAuthor(int index) {
+        return readString(getAuthorRef(index));
+    }
+    
+    /**
+     * Checks whether a book's title, lower-cased, contains a search key
+     * @param index Index of the book
+     * @param key Lower-cased text to look for
+     * @return true if the title contains the key
+     */
+    public boolean titleContains(int index, String key) {
+        return stringContains(getLong(entryOffset(index) + 8), key);
+    }
+    
+    /**
+     * Checks whether a pooled string, lower-cased with Locale.ROOT, contains a search key.
+     * ASCII strings are compared in place on the mapped bytes; others are decoded first.
+     * @param offset Pool offset of the string
+     * @param key Lower-cased text to look for
+     * @return true if the string contains the key
+     */
+    public boolean stringContains(long offset, String key) {
+        int length = getShort(offset);
+        long start = offset + 2;
+        for (int i = 0; i < length; i++) {
+            if (getByte(start + i) < 0) {
+                return Book.searchKey(readString(offset)).contains(key);
+            }
+        }
+        
+        for (int i = 0; i <= length - key.length(); i++) {
+            if (regionMatchesFolded(start + i, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public int getQuantity(int index) {
+        return getInt(quantitiesOffset + (long) index * 4);
+    }
+    
+    /**
+     * Materializes the book stored at an index
+     * @param index Index of the book
+     * @return A new Book with the stored values
+     */
+    public Book getBook(int index) {
+        return new Book(getBookId(index), getTitle(index), getAuthor(index), getQuantity(index));
+    }
+    
+    String readString(long offset) {
+        int length = getShort(offset);
+        byte[] bytes = new byte[length];
+        readBytes(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * The mapping is released by the garbage collector; closing only documents that the
+     * image is no longer in use.
+     */
+    @Override
+    public void close() {
+        Arrays.fill(chunks, null);
+    }
+    
+    private long entryOffset(int index) {
+        return idTableOffset + (long) index * ENTRY_SIZE;
+    }
+    
+    private int compareString(long offset, byte[] key) {
+        int length = getShort(offset);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(getByte(offset + 2 + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+    
+    private boolean regionMatchesFolded(long offset, String key) {
+        for (int j = 0; j < key.length(); j++) {
+            int c = getByte(offset + j);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != key.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private byte getByte(long offset) {
+        return chunks[(int) (offset / CHUNK_SIZE)].get((int) (offset % CHUNK_SIZE));
+    }
+    
+    private int getShort(long offset) {
+        return ((getByte(offset) & 0xFF) << 8) | (getByte(offset + 1) & 0xFF);
+    }
+    
+    private int getInt(long offset) {
+        int chunk = (int) (offset / CHUNK_SIZE);
+        int position = (int) (offset % CHUNK_SIZE);
+        if (position + 4 <= chunks[chunk].limit()) {
+            return chunks[chunk].getInt(position);
+        }
+        return (getShort(offset) << 16) | getShort(offset + 2);
+    }
+    
+    private long getLong(long offset) {
+        int chunk = (int) (offset / CHUNK_SIZE);
+        int position = (int) (offset % CHUNK_SIZE);
+        if (position + 8 <= chunks[chunk].limit()) {
+            return chunks[chunk].getLong(position);
+        }
+        return ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xFFFFFFFFL);
+    }
+    
+    private void readBytes(long offset, byte[] destination) {
+        int copied = 0;
+        while (copied < destination.length) {
+            long current = offset + copied;
+            int chunk = (int) (current / CHUNK_SIZE);
+            int position = (int) (current % CHUNK_SIZE);
+            int length = Math.min(destination.length - copied, chunks[chunk].limit() - position);
+            chunks[chunk].get(position, destination, copied, length);
+            copied += length;
+        }
+    }
+    
+    /**
+     * Buffered writer for one section of the image, flushed with positional writes
+     * so several sections can be filled in a single pass over the books
+     */
+    private static class RegionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private long flushedPosition;
+        
+        RegionWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.flushedPosition = start;
+        }
+        
+        long position() {
+            return flushedPosition + buffer.position();
+        }
+        
+        void putLong(long value) throws IOException {
+            ensureCapacity(8);
+            buffer.putLong(value);
+        }
+        
+        void putInt(int value) throws IOException {
+            ensureCapacity(4);
+            buffer.putInt(value);
+        }
+        
+        void putString(byte[] bytes) throws IOException {
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("String too long for catalog image: " + bytes.length + " bytes");
+            }
+            ensureCapacity(2 + bytes.length);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushedPosition += channel.write(buffer, flushedPosition);
+            }
+            buffer.clear();
+        }
+        
+        private void ensureCapacity(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * CatalogJournal class is an append-only log of catalog mutations.
+ * Every record is framed as length, payload and CRC32, so a record torn by a crash
+ * is detected during replay and cut off instead of corrupting the catalog.
+ */
+public class CatalogJournal implements Closeable {
+    
+    // Record types stored as the first payload byte
+    static final byte OP_ADD = 1;
+    static final byte OP_UPDATE = 2;
+    static final byte OP_DELETE = 3;
+    static final byte OP_QUANTITY = 4;
+    
+    private final Path file;
+    private final FileOutputStream fileStream;
+    private final DataOutputStream out;
+    
+    // Reusable buffers for framing a record before it is written
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBuffer);
+    private final CRC32 crc = new CRC32();
+    
+    /**
+     * Opens a journal for appending, creating the file if needed
+     * @param file Path of the journal file
+     * @throws IOException if the file cannot be opened
+     */
+    public CatalogJournal(Path file) throws IOException {
+        this.file = file;
+        this.fileStream = new FileOutputStream(file.toFile(), true);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    public void appendAdd(Book book) throws IOException {
+        try {
+            payload.writeByte(OP_ADD);
+            writeBook(payload, book);
+        } catch (IOException | RuntimeException e) {
+            discardRecord();
+            throw e;
+        }
+        commitRecord();
+    }
+    
+    public void appendUpdate(String bookId, Book updatedBook) throws IOException {
+        try {
+            payload.writeByte(OP_UPDATE);
+            payload.writeUTF(bookId);
+            writeBook(payload, updatedBook);
+        } catch (IOException | RuntimeException e) {
+            discardRecord();
+            throw e;
+        }
+        commitRecord();
+    }
+    
+    public void appendDelete(String bookId) throws IOException {
+        try {
+            payload.writeByte(OP_DELETE);
+            payload.writeUTF(bookId);
+        } catch (IOException | RuntimeException e) {
+            discardRecord();
+            throw e;
+        }
+        commitRecord();
+    }
+    
+    /**
+     * Appends a quantity change. The resulting quantity is logged rather than the delta,
+     * so replaying the record is idempotent.
+     * @param bookId ID of the book whose quantity changed
+     * @param quantity Quantity after the change
+     * @throws IOException if the record cannot be written
+     */
+    public void appendQuantity(String bookId, int quantity) throws IOException {
+        try {
+            payload.writeByte(OP_QUANTITY);
+            payload.writeUTF(bookId);
+            payload.writeInt(quantity);
+        } catch (IOException | RuntimeException e) {
+            discardRecord();
+            throw e;
+        }
+        commitRecord();
+    }
+    
+    /**
+     * Flushes buffered records to the operating system
+     * @throws IOException if the flush fails
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    /**
+     * Flushes buffered records and forces them to the storage device
+     * @throws IOException if the sync fails
+     */
+    public void sync() throws IOException {
+        out.flush();
+        fileStream.getFD().sync();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        sync();
+        out.close();
+    }
+    
+    private void commitRecord() throws IOException {
+        byte[] bytes = payloadBuffer.toByteArray();
+        int length = payloadBuffer.size();
+        payloadBuffer.reset();
+        
+        crc.reset();
+        crc.update(bytes, 0, length);
+        
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    /**
+     * Drops a record that could not be encoded, e.g. a field too long for writeUTF, so its
+     * first bytes are not framed together with the next record
+     */
+    private void discardRecord() {
+        payloadBuffer.reset();
+    }
+    
+    static void writeBook(DataOutput out, Book book) throws IOException {
+        out.writeUTF(book.getBookId());
+        out.writeUTF(book.getTitle());
+        out.writeUTF(book.getAuthor());
+        out.writeInt(book.getQuantity());
+    }
+    
+    static Book readBook(DataInput in) throws IOException {
+        String bookId = in.readUTF();
+        String title = in.readUTF();
+        String author = in.readUTF();
+        int quantity = in.readInt();
+        return new Book(bookId, title, author, quantity);
+    }
+    
+    /**
+     * Replays every intact record of a journal file into the target catalog.
+     * A truncated or corrupt tail left by a crash is cut off so appends can resume after it.
+     * @param file Journal file to replay
+     * @param target Catalog the records are applied to
+     * @return Number of records applied
+     * @throws IOException if the file cannot be read
+     */
+    public static long replay(Path file, LibraryService target) throws IOException {
+        long applied = 0;
+        long validLength = 0;
+        CRC32 checksum = new CRC32();
+        
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            byte[] buffer = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    checksum.reset();
+                    checksum.update(buffer, 0, length);
+                    if (in.readInt() != (int) checksum.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                apply(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)), target);
+                validLength += 4 + length + 4;
+                applied++;
+            }
+        }
+        
+        if (validLength < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return applied;
+    }
+    
+    private static void apply(DataInputStream in, LibraryService target) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case OP_ADD:
+                target.addBook(readBook(in));
+                break;
+            case OP_UPDATE:
+                String bookId = in.readUTF();
+                target.updateBook(bookId, readBook(in));
+                break;
+            case OP_DELETE:
+                target.deleteBook(in.readUTF());
+                break;
+            case OP_QUANTITY:
+                String quantityId = in.readUTF();
+                int quantity = in.readInt();
+                target.searchBookById(quantityId).ifPresent(book -> book.setQuantity(quantity));
+                break;
+            default:
+                throw new IOException("Unknown journal record type: " + op);
+        }
+    }
+}
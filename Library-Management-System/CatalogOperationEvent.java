@@ -0,0 +1,35 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * CatalogOperationEvent class is the Java Flight Recorder event emitted for each catalog
+ * operation by InstrumentedLibraryService. The event's duration is the time the operation took.
+ *
+ * Record it with: java -XX:StartFlightRecording:filename=library.jfr LibraryManagementSystem --instrument
+ * and read it with: jfr print --events library.CatalogOperation library.jfr
+ */
+@Name("library.CatalogOperation")
+@Label("Catalog Operation")
+@Category("Library")
+@Description("A call to a LibraryService operation")
+@StackTrace(false)
+public class CatalogOperationEvent extends jdk.jfr.Event {
+    
+    @Label("Operation")
+    String operation;
+    
+    @Label("Key")
+    @Description("Book ID, query or other argument identifying what the operation worked on")
+    String key;
+    
+    @Label("Result Size")
+    @Description("Books returned or changed; for true/false results, 1 or 0")
+    int resultSize;
+    
+    @Label("Failed")
+    @Description("Whether the operation threw an exception")
+    boolean failed;
+}
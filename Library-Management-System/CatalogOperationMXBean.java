@@ -0,0 +1,28 @@
+/**
+ * CatalogOperationMXBean interface is the JMX view of the timings of one catalog operation,
+ * registered by InstrumentedLibraryService as library:type=CatalogOperation,name=&lt;operation&gt;.
+ * Times are in microseconds.
+ */
+public interface CatalogOperationMXBean {
+    
+    String getOperation();
+    
+    long getCount();
+    
+    long getErrorCount();
+    
+    double getMeanMicros();
+    
+    double getP50Micros();
+    
+    double getP99Micros();
+    
+    double getP999Micros();
+    
+    double getMaxMicros();
+    
+    /**
+     * Clears the counts and timings of this operation
+     */
+    void reset();
+}
@@ -0,0 +1,404 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * CatalogSnapshot class is an immutable version of the catalog.
+ * Reports that need several figures to agree with each other read them all from one snapshot,
+ * while writers go on changing the live catalog.
+ *
+ * Books are kept in a hash array mapped trie keyed by book ID. Adding, replacing or removing a
+ * book copies only the path from the root to that book's entry, one small node per level and
+ * about five levels for a million books, and shares everything else with the previous version.
+ * A catalog can therefore publish a new version on every change and hand out the current one
+ * in constant time.
+ * Books in a snapshot are listed in book ID order.
+ */
+public final class CatalogSnapshot {
+    
+    /** Snapshot of an empty catalog */
+    public static final CatalogSnapshot EMPTY = new CatalogSnapshot(Node.EMPTY, 0, 0);
+    
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+    
+    // Entries whose hashes agree in all 32 bits end up in a collision node below the last level
+    private static final int HASH_BITS = 32;
+    
+    private static final Comparator<Book> BY_ID = Comparator.comparing(Book::getBookId);
+    
+    private final Node root;
+    private final int bookCount;
+    private final long totalQuantity;
+    
+    private CatalogSnapshot(Node root, int bookCount, long totalQuantity) {
+        this.root = root;
+        this.bookCount = bookCount;
+        this.totalQuantity = totalQuantity;
+    }
+    
+    /**
+     * Takes a snapshot of a sequence of books by copying them
+     * @param books Books to include; each must have a distinct ID
+     * @return Snapshot holding the books
+     */
+    public static CatalogSnapshot of(Stream<Book> books) {
+        Entry[] entries = books.map(book -> new Entry(book.getBookId(), book.getTitle(),
+                                                      book.getAuthor(), book.getQuantity()))
+                               .toArray(Entry[]::new);
+        if (entries.length == 0) {
+            return EMPTY;
+        }
+        
+        long totalQuantity = 0;
+        for (Entry entry : entries) {
+            totalQuantity += entry.quantity;
+        }
+        // Build the trie directly instead of inserting one book at a time, which would copy
+        // the path to every book only to throw the copy away at the next insert
+        Object root = build(entries, 0, entries.length, 0, new Entry[entries.length]);
+        Node rootNode = root instanceof Node ? (Node) root : new Node(1 << (((Entry) root).hash & LEVEL_MASK),
+                                                                      new Object[] { root });
+        return new CatalogSnapshot(rootNode, entries.length, totalQuantity);
+    }
+    
+    /**
+     * Builds the subtree for a range of entries that agree in the hash bits below shift,
+     * partitioning them by the next five bits like one pass of a radix sort
+     * @return The single entry if the range has one, otherwise a node
+     */
+    private static Object build(Entry[] entries, int from, int to, int shift, Entry[] scratch) {
+        if (to - from == 1) {
+            return entries[from];
+        }
+        if (shift >= HASH_BITS) {
+            return new Node(0, Arrays.copyOfRange(entries, from, to, Object[].class));
+        }
+        
+        int[] starts = new int[LEVEL_MASK + 2];
+        for (int i = from; i < to; i++) {
+            starts[((entries[i].hash >>> shift) & LEVEL_MASK) + 1]++;
+        }
+        int bitmap = 0;
+        int branches = 0;
+        for (int b = 0; b <= LEVEL_MASK; b++) {
+            if (starts[b + 1] > 0) {
+                bitmap |= 1 << b;
+                branches++;
+            }
+            starts[b + 1] += starts[b];
+        }
+        
+        int[] next = Arrays.copyOf(starts, starts.length);
+        for (int i = from; i < to; i++) {
+            scratch[from + next[(entries[i].hash >>> shift) & LEVEL_MASK]++] = entries[i];
+        }
+        System.arraycopy(scratch, from, entries, from, to - from);
+        
+        Object[] slots = new Object[branches];
+        int slot = 0;
+        for (int b = 0; b <= LEVEL_MASK; b++) {
+            if (starts[b + 1] > starts[b]) {
+                slots[slot++] = build(entries, from + starts[b], from + starts[b + 1], shift + BITS_PER_LEVEL, scratch);
+            }
+        }
+        return new Node(bitmap, slots);
+    }
+    
+    /**
+     * Returns a snapshot that also holds the book, replacing any book with the same ID.
+     * The book's current fields are copied, so later changes to it are not seen by the snapshot.
+     * @param book Book to add or replace
+     * @return The new snapshot; this snapshot is unchanged
+     */
+    public CatalogSnapshot with(Book book) {
+        return with(new Entry(book.getBookId(), book.getTitle(), book.getAuthor(), book.getQuantity()));
+    }
+    
+    private CatalogSnapshot with(Entry entry) {
+        Entry[] replaced = new Entry[1];
+        Node updated = root.put(entry, 0, replaced);
+        if (replaced[0] == null) {
+            return new CatalogSnapshot(updated, bookCount + 1, totalQuantity + entry.quantity);
+        }
+        return new CatalogSnapshot(updated, bookCount, totalQuantity - replaced[0].quantity + entry.quantity);
+    }
+    
+    /**
+     * Returns a snapshot without the book with the given ID
+     * @param bookId ID of the book to remove
+     * @return The new snapshot, or this snapshot if it has no such book
+     */
+    public CatalogSnapshot without(String bookId) {
+        Entry[] removed = new Entry[1];
+        Node updated = root.remove(bookId, hash(bookId), 0, removed);
+        if (removed[0] == null) {
+            return this;
+        }
+        return new CatalogSnapshot(updated == null ? Node.EMPTY : updated,
+                                   bookCount - 1, totalQuantity - removed[0].quantity);
+    }
+    
+    /**
+     * Returns a snapshot holding the books of both snapshots; on equal IDs the other snapshot's book wins
+     * @param other Snapshot to merge in
+     * @return The merged snapshot
+     */
+    public CatalogSnapshot withAll(CatalogSnapshot other) {
+        CatalogSnapshot merged = this;
+        List<Entry> entries = new ArrayList<>(other.bookCount);
+        other.root.collect(entries);
+        for (Entry entry : entries) {
+            merged = merged.with(entry);
+        }
+        return merged;
+    }
+    
+    public int getBookCount() {
+        return bookCount;
+    }
+    
+    /**
+     * Gets the sum of the quantities of all books, kept up to date as the snapshot is built
+     * @return Total number of copies
+     */
+    public long getTotalQuantity() {
+        return totalQuantity;
+    }
+    
+    /**
+     * Searches for a book by ID
+     * @param bookId ID of the book
+     * @return A copy of the book as it was when the snapshot was taken, if it was in the catalog
+     */
+    public Optional<Book> searchBookById(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        String searchId = bookId.trim();
+        Entry entry = root.get(searchId, hash(searchId), 0);
+        return entry == null ? Optional.empty() : Optional.of(entry.toBook());
+    }
+    
+    /**
+     * Gets every book in the snapshot
+     * @return Copies of the books, in book ID order
+     */
+    public List<Book> getAllBooks() {
+        List<Entry> entries = new ArrayList<>(bookCount);
+        root.collect(entries);
+        List<Book> books = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            books.add(entry.toBook());
+        }
+        books.sort(BY_ID);
+        return books;
+    }
+    
+    public Stream<Book> streamBooks() {
+        return getAllBooks().stream();
+    }
+    
+    /**
+     * Gets books with quantity less than or equal to a threshold
+     * @param threshold Quantity threshold
+     * @return Copies of the matching books, in book ID order
+     */
+    public List<Book> getLowQuantityBooks(int threshold) {
+        List<Entry> entries = new ArrayList<>();
+        root.collect(entries);
+        List<Book> books = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.quantity <= threshold) {
+                books.add(entry.toBook());
+            }
+        }
+        books.sort(BY_ID);
+        return books;
+    }
+    
+    private static int hash(String bookId) {
+        int hash = bookId.hashCode();
+        // Similar IDs differ mostly in the low bits, which pick the branch at the top levels
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     * One book as it was when the entry was made; Book itself is mutable, so it is not shared
+     */
+    private static final class Entry {
+        final String bookId;
+        final String title;
+        final String author;
+        final int quantity;
+        final int hash;
+        
+        Entry(String bookId, String title, String author, int quantity) {
+            this.bookId = bookId;
+            this.title = title;
+            this.author = author;
+            this.quantity = quantity;
+            this.hash = hash(bookId);
+        }
+        
+        Book toBook() {
+            return new Book(bookId, title, author, quantity);
+        }
+    }
+    
+    /**
+     * Trie node. Each level consumes five bits of the hash; the bitmap records which of the 32
+     * branches are present and slots holds only those, each an Entry or a child Node.
+     * Below the last level a node is a collision node: bitmap 0 and slots holding entries only.
+     * Nodes are never modified once published.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+        
+        final int bitmap;
+        final Object[] slots;
+        
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+        
+        Entry get(String bookId, int hash, int shift) {
+            if (shift >= HASH_BITS) {
+                for (Object slot : slots) {
+                    Entry entry = (Entry) slot;
+                    if (entry.bookId.equals(bookId)) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+            int bit = 1 << ((hash >>> shift) & LEVEL_MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+            if (slot instanceof Node) {
+                return ((Node) slot).get(bookId, hash, shift + BITS_PER_LEVEL);
+            }
+            Entry entry = (Entry) slot;
+            return entry.bookId.equals(bookId) ? entry : null;
+        }
+        
+        /**
+         * Returns a copy of this node with the entry added
+         * @param replaced Receives the entry with the same ID that the new one replaces, if any
+         */
+        Node put(Entry entry, int shift, Entry[] replaced) {
+            if (shift >= HASH_BITS) {
+                for (int i = 0; i < slots.length; i++) {
+                    if (((Entry) slots[i]).bookId.equals(entry.bookId)) {
+                        replaced[0] = (Entry) slots[i];
+                        return withSlot(i, entry);
+                    }
+                }
+                return withInsertedSlot(0, slots.length, entry);
+            }
+            
+            int bit = 1 << ((entry.hash >>> shift) & LEVEL_MASK);
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                return withInsertedSlot(bit, index, entry);
+            }
+            
+            Object slot = slots[index];
+            if (slot instanceof Node) {
+                return withSlot(index, ((Node) slot).put(entry, shift + BITS_PER_LEVEL, replaced));
+            }
+            Entry existing = (Entry) slot;
+            if (existing.bookId.equals(entry.bookId)) {
+                replaced[0] = existing;
+                return withSlot(index, entry);
+            }
+            // Two books share this branch: push both one level down
+            Node child = EMPTY.put(existing, shift + BITS_PER_LEVEL, new Entry[1])
+                              .put(entry, shift + BITS_PER_LEVEL, replaced);
+            return withSlot(index, child);
+        }
+        
+        /**
+         * Returns a copy of this node without the entry for the ID
+         * @param removed Receives the removed entry, if any
+         * @return The new node, this node if it has no such entry, or null if the node becomes empty
+         */
+        Node remove(String bookId, int hash, int shift, Entry[] removed) {
+            int index;
+            int bit = 0;
+            if (shift >= HASH_BITS) {
+                index = -1;
+                for (int i = 0; i < slots.length; i++) {
+                    if (((Entry) slots[i]).bookId.equals(bookId)) {
+                        index = i;
+                        break;
+                    }
+                }
+                if (index < 0) {
+                    return this;
+                }
+            } else {
+                bit = 1 << ((hash >>> shift) & LEVEL_MASK);
+                if ((bitmap & bit) == 0) {
+                    return this;
+                }
+                index = Integer.bitCount(bitmap & (bit - 1));
+                Object slot = slots[index];
+                if (slot instanceof Node) {
+                    Node child = ((Node) slot).remove(bookId, hash, shift + BITS_PER_LEVEL, removed);
+                    if (child == slot) {
+                        return this;
+                    }
+                    if (child != null) {
+                        // A child left with a single entry is replaced by that entry
+                        boolean single = child.slots.length == 1 && child.slots[0] instanceof Entry;
+                        return withSlot(index, single ? child.slots[0] : child);
+                    }
+                } else if (!((Entry) slot).bookId.equals(bookId)) {
+                    return this;
+                }
+            }
+            
+            if (removed[0] == null && !(slots[index] instanceof Node)) {
+                removed[0] = (Entry) slots[index];
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 1, copy, index, copy.length - index);
+            return new Node(bitmap & ~bit, copy);
+        }
+        
+        void collect(List<Entry> entries) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).collect(entries);
+                } else {
+                    entries.add((Entry) slot);
+                }
+            }
+        }
+        
+        private Node withSlot(int index, Object value) {
+            Object[] copy = slots.clone();
+            copy[index] = value;
+            return new Node(bitmap, copy);
+        }
+        
+        private Node withInsertedSlot(int bit, int index, Object value) {
+            Object[] copy = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            copy[index] = value;
+            System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+            return new Node(bitmap | bit, copy);
+        }
+    }
+}
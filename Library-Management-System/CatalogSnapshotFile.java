@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * CatalogSnapshotFile class reads and writes compact binary snapshots of the catalog.
+ * A snapshot records the journal generation it covers, so recovery only replays newer journals.
+ * Books are stored in compressed blocks (see BlockSnapshotFile), where authors and ID prefixes
+ * that repeat from book to book cost a few bytes each; version 1 snapshots, one uncompressed
+ * stream, can still be read.
+ */
+public class CatalogSnapshotFile {
+    
+    private static final int MAGIC = 0x4C494253; // "LIBS"
+    private static final int VERSION = 2;
+    private static final int STREAM_VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private CatalogSnapshotFile() {
+    }
+    
+    /**
+     * Writes a snapshot atomically: the data goes to a temporary file that replaces the
+     * old snapshot only after it has been fully written and synced.
+     * @param file Snapshot file path
+     * @param generation First journal generation not covered by this snapshot
+     * @param ids Book IDs to store
+     * @param titles Titles of the books, in the same order
+     * @param authors Authors of the books, in the same order
+     * @param quantities Quantities of the books, in the same order
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void write(Path file, long generation, String[] ids, String[] titles,
+                             String[] authors, int[] quantities) throws IOException {
+        List<Book> books = new AbstractList<Book>() {
+            @Override
+            public Book get(int index) {
+                return new Book(ids[index], titles[index], authors[index], quantities[index]);
+            }
+            
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+        BlockSnapshotFile.write(file, MAGIC, VERSION, generation, new BookCodec(), books);
+    }
+    
+    /**
+     * Loads a snapshot into an empty catalog
+     * @param file Snapshot file path
+     * @param catalogFactory Creates the catalog, given the number of books it will hold
+     * @return The loaded catalog and the journal generation it covers
+     * @throws IOException if the snapshot is missing or malformed
+     */
+    public static Loaded read(Path file, IntFunction<LibraryService> catalogFactory) throws IOException {
+        if (readVersion(file) == VERSION) {
+            try (BlockSnapshotFile.Reader<String, Book> reader = new BlockSnapshotFile.Reader<>(file, MAGIC, new BookCodec())) {
+                List<Book> books = new ArrayList<>((int) reader.size());
+                reader.forEach(books::add);
+                
+                // Pre-size the catalog and load it as one batch
+                LibraryService catalog = catalogFactory.apply(books.size());
+                catalog.addBooks(books);
+                return new Loaded(catalog, reader.getTag());
+            }
+        }
+        
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a catalog snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (version != STREAM_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            
+            long generation = in.readLong();
+            int count = in.readInt();
+            
+            List<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                books.add(CatalogJournal.readBook(in));
+            }
+            
+            // Pre-size the catalog and load it as one batch
+            LibraryService catalog = catalogFactory.apply(count);
+            catalog.addBooks(books);
+            return new Loaded(catalog, generation);
+        }
+    }
+    
+    private static int readVersion(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a catalog snapshot: " + file);
+            }
+            return in.readInt();
+        }
+    }
+    
+    /**
+     * Result of loading a snapshot
+     */
+    public static class Loaded {
+        private final LibraryService catalog;
+        private final long generation;
+        
+        Loaded(LibraryService catalog, long generation) {
+            this.catalog = catalog;
+            this.generation = generation;
+        }
+        
+        public LibraryService getCatalog() {
+            return catalog;
+        }
+        
+        public long getGeneration() {
+            return generation;
+        }
+    }
+}
@@ -0,0 +1,1075 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CompactLibraryService class stores the catalog in primitive columns instead of Book objects.
+ * Book IDs and titles live in a shared byte arena (one byte per character when the text is
+ * Latin-1), authors are dictionary-encoded, and quantities sit in an int array. Callers get
+ * lightweight Book views that read through to the columns, so a catalog costs a fraction of
+ * the heap used by LibraryServiceImpl.
+ *
+ * Reads and checkouts share a read lock; quantities are changed with compare-and-set so
+ * checkouts stay concurrent. Structural changes take the write lock.
+ */
+public class CompactLibraryService implements LibraryService {
+    
+    private static final VarHandle QUANTITY = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    // Per-slot columns; a slot keeps its position for as long as the book exists
+    private int[] idRefs;
+    private int[] titleRefs;
+    private int[] authorCodes;
+    private int[] quantities;
+    private int[] stamps;
+    
+    // Insertion order as a doubly linked list of slots; freed slots are chained through next
+    private int[] next;
+    private int[] previous;
+    private int head = NONE;
+    private int tail = NONE;
+    private int freeList = NONE;
+    private int highWater;
+    private int size;
+    
+    // Open-addressing index from book ID to slot + 1 (0 marks an empty bucket)
+    private int[] index;
+    
+    private StringArena arena;
+    private final List<String> authors = new ArrayList<>();
+    private final List<String> authorKeys = new ArrayList<>();
+    private final Map<String, Integer> authorDictionary = new HashMap<>();
+    
+    /**
+     * Constructor initializes an empty catalog
+     */
+    public CompactLibraryService() {
+        this(INITIAL_CAPACITY);
+    }
+    
+    /**
+     * Constructor that pre-sizes the columns and index
+     * @param expectedBooks Number of books the catalog is expected to hold
+     */
+    public CompactLibraryService(int expectedBooks) {
+        int capacity = Math.max(INITIAL_CAPACITY, expectedBooks);
+        this.idRefs = new int[capacity];
+        this.titleRefs = new int[capacity];
+        this.authorCodes = new int[capacity];
+        this.quantities = new int[capacity];
+        this.stamps = new int[capacity];
+        this.next = new int[capacity];
+        this.previous = new int[capacity];
+        this.index = new int[tableSizeFor(capacity)];
+        this.arena = new StringArena((int) Math.min((long) capacity * 16, Integer.MAX_VALUE - 8));
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        if (book == null) {
+            throw new IllegalArgumentException("Book cannot be null");
+        }
+        
+        lock.writeLock().lock();
+        try {
+            if (findSlot(book.getBookId()) != NONE) {
+                throw new DuplicateBookException(book.getBookId());
+            }
+            
+            int slot = allocateSlot();
+            idRefs[slot] = arena.append(book.getBookId());
+            titleRefs[slot] = arena.append(book.getTitle());
+            authorCodes[slot] = encodeAuthor(book.getAuthor());
+            quantities[slot] = book.getQuantity();
+            
+            linkLast(slot);
+            insertIntoIndex(slot);
+            size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        lock.writeLock().lock();
+        try {
+            BookBatch.validate(books);
+            
+            // Size the columns, index and arena once for the whole batch; the arena is grown to
+            // exactly the bytes the batch needs, so a bulk load leaves no unused tail in it
+            ensureCapacity(size + books.size());
+            long arenaBytes = 0;
+            for (Book book : books) {
+                arenaBytes += StringArena.encodedSize(book.getBookId()) + StringArena.encodedSize(book.getTitle());
+            }
+            arena.reserve(arenaBytes);
+            int firstSlot = NONE;
+            for (Book book : books) {
+                if (findSlot(book.getBookId()) != NONE) {
+                    boolean existedBefore = !insertedSince(firstSlot, book.getBookId());
+                    removeSince(firstSlot);
+                    throw BookBatch.duplicate(book.getBookId(), existedBefore);
+                }
+                
+                int slot = allocateSlot();
+                if (firstSlot == NONE) {
+                    firstSlot = slot;
+                }
+                idRefs[slot] = arena.append(book.getBookId());
+                titleRefs[slot] = arena.append(book.getTitle());
+                authorCodes[slot] = encodeAuthor(book.getAuthor());
+                quantities[slot] = book.getQuantity();
+                
+                linkLast(slot);
+                insertIntoIndex(slot);
+                size++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Checks whether a book ID was added by the batch that started at firstSlot
+     */
+    private boolean insertedSince(int firstSlot, String bookId) {
+        if (firstSlot == NONE) {
+            return false;
+        }
+        for (int slot = firstSlot; slot != NONE; slot = next[slot]) {
+            if (arena.matches(idRefs[slot], bookId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Removes every book from firstSlot to the end of the catalog, undoing a failed batch
+     */
+    private void removeSince(int firstSlot) {
+        while (firstSlot != NONE && tail != NONE) {
+            int slot = tail;
+            removeSlot(slot);
+            if (slot == firstSlot) {
+                break;
+            }
+        }
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        lock.readLock().lock();
+        try {
+            List<Book> result = new ArrayList<>(size);
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                result.add(new BookView(slot, stamps[slot]));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Streams the books in slot order, which matches insertion order until deleted slots
+     * are reused. Parallel streams split the slot range directly.
+     */
+    @Override
+    public Stream<Book> streamBooks() {
+        lock.readLock().lock();
+        try {
+            return StreamSupport.stream(new SlotSpliterator(0, highWater), false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Copies every book into a detached Book while holding the read lock, so the snapshot
+     * holds the catalog as of one moment; the default, built on streamBooks, would read
+     * views after the lock is released and could meet books deleted or slots reused since.
+     */
+    @Override
+    public CatalogSnapshot snapshot() {
+        Book[] copies;
+        lock.readLock().lock();
+        try {
+            copies = new Book[size];
+            int count = 0;
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                copies[count++] = new Book(arena.decode(idRefs[slot]), arena.decode(titleRefs[slot]),
+                                           authors.get(authorCodes[slot]), (int) QUANTITY.getVolatile(quantities, slot));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // The trie is built from the copies after writers are let go again
+        return CatalogSnapshot.of(Arrays.stream(copies));
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(bookId.trim());
+            return slot == NONE ? Optional.empty() : Optional.of(new BookView(slot, stamps[slot]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        List<Book> result = new ArrayList<>();
+        if (title == null || title.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchTitle = Book.searchKey(title.trim());
+        
+        lock.readLock().lock();
+        try {
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                if (arena.contains(titleRefs[slot], searchTitle)) {
+                    result.add(new BookView(slot, stamps[slot]));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        if (bookId == null || bookId.trim().isEmpty() || updatedBook == null) {
+            return false;
+        }
+        
+        String searchId = bookId.trim();
+        
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(searchId);
+            if (slot == NONE) {
+                return false;
+            }
+            
+            // Check if updated book ID conflicts with existing book (if ID is being changed)
+            String newId = updatedBook.getBookId();
+            if (!searchId.equals(newId) && findSlot(newId) != NONE) {
+                throw new DuplicateBookException(newId);
+            }
+            
+            // Read every field before writing, in case updatedBook is a view of this slot
+            String newTitle = updatedBook.getTitle();
+            String newAuthor = updatedBook.getAuthor();
+            int newQuantity = updatedBook.getQuantity();
+            
+            // The book keeps its slot, and so its position in the catalog
+            if (!searchId.equals(newId)) {
+                removeFromIndex(slot);
+                arena.release(idRefs[slot]);
+                idRefs[slot] = arena.append(newId);
+                insertIntoIndex(slot);
+            }
+            replaceTitle(slot, newTitle);
+            authorCodes[slot] = encodeAuthor(newAuthor);
+            quantities[slot] = newQuantity;
+            
+            compactArenaIfWasteful();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(bookId.trim());
+            if (slot == NONE) {
+                return false;
+            }
+            
+            removeSlot(slot);
+            compactArenaIfWasteful();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        lock.readLock().lock();
+        try {
+            return findSlot(bookId.trim()) != NONE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to check out must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(bookId.trim());
+            return slot != NONE && checkoutSlot(slot, copies);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to return must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(bookId.trim());
+            if (slot == NONE) {
+                return false;
+            }
+            returnSlot(slot, copies);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public int getBookCount() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        List<Book> result = new ArrayList<>();
+        if (author == null || author.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchAuthor = Book.searchKey(author.trim());
+        
+        lock.readLock().lock();
+        try {
+            // Match each distinct author once, then scan the code column
+            boolean[] matches = new boolean[authors.size()];
+            for (int code = 0; code < matches.length; code++) {
+                matches[code] = authorKeys.get(code).contains(searchAuthor);
+            }
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                if (matches[authorCodes[slot]]) {
+                    result.add(new BookView(slot, stamps[slot]));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        List<Book> result = new ArrayList<>();
+        
+        lock.readLock().lock();
+        try {
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                if ((int) QUANTITY.getVolatile(quantities, slot) <= threshold) {
+                    result.add(new BookView(slot, stamps[slot]));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private boolean checkoutSlot(int slot, int copies) {
+        while (true) {
+            int current = (int) QUANTITY.getVolatile(quantities, slot);
+            if (current < copies) {
+                return false;
+            }
+            if (QUANTITY.compareAndSet(quantities, slot, current, current - copies)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    private void returnSlot(int slot, int copies) {
+        while (true) {
+            int current = (int) QUANTITY.getVolatile(quantities, slot);
+            if (current > Integer.MAX_VALUE - copies) {
+                throw new IllegalArgumentException("Quantity cannot exceed " + Integer.MAX_VALUE);
+            }
+            if (QUANTITY.compareAndSet(quantities, slot, current, current + copies)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    private void removeSlot(int slot) {
+        removeFromIndex(slot);
+        unlink(slot);
+        arena.release(idRefs[slot]);
+        arena.release(titleRefs[slot]);
+        idRefs[slot] = NONE;
+        
+        // Invalidate outstanding views before the slot is reused
+        stamps[slot]++;
+        next[slot] = freeList;
+        freeList = slot;
+        size--;
+    }
+    
+    private void replaceTitle(int slot, String title) {
+        arena.release(titleRefs[slot]);
+        titleRefs[slot] = arena.append(title);
+    }
+    
+    private int encodeAuthor(String author) {
+        Integer code = authorDictionary.get(author);
+        if (code == null) {
+            code = authors.size();
+            authors.add(author);
+            authorKeys.add(Book.searchKey(author));
+            authorDictionary.put(author, code);
+        }
+        return code;
+    }
+    
+    private int allocateSlot() {
+        if (freeList != NONE) {
+            int slot = freeList;
+            freeList = next[slot];
+            return slot;
+        }
+        if (highWater == idRefs.length) {
+            ensureCapacity(highWater + 1);
+        }
+        return highWater++;
+    }
+    
+    private void ensureCapacity(int required) {
+        if (required <= idRefs.length) {
+            return;
+        }
+        int capacity = Math.max(required, idRefs.length * 2);
+        idRefs = Arrays.copyOf(idRefs, capacity);
+        titleRefs = Arrays.copyOf(titleRefs, capacity);
+        authorCodes = Arrays.copyOf(authorCodes, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        stamps = Arrays.copyOf(stamps, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        
+        // Keep the index at most half full
+        index = new int[tableSizeFor(capacity)];
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            insertIntoIndex(slot);
+        }
+    }
+    
+    private void linkLast(int slot) {
+        previous[slot] = tail;
+        next[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+    }
+    
+    private void unlink(int slot) {
+        if (previous[slot] == NONE) {
+            head = next[slot];
+        } else {
+            next[previous[slot]] = next[slot];
+        }
+        if (next[slot] == NONE) {
+            tail = previous[slot];
+        } else {
+            previous[next[slot]] = previous[slot];
+        }
+    }
+    
+    private int findSlot(String bookId) {
+        int hash = spread(bookId.hashCode());
+        int mask = index.length - 1;
+        for (int bucket = hash & mask; index[bucket] != 0; bucket = (bucket + 1) & mask) {
+            int slot = index[bucket] - 1;
+            if (arena.matches(idRefs[slot], bookId)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+    
+    private void insertIntoIndex(int slot) {
+        int mask = index.length - 1;
+        int bucket = spread(arena.hash(idRefs[slot])) & mask;
+        while (index[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        index[bucket] = slot + 1;
+    }
+    
+    private void removeFromIndex(int slot) {
+        int mask = index.length - 1;
+        int bucket = spread(arena.hash(idRefs[slot])) & mask;
+        while (index[bucket] != slot + 1) {
+            bucket = (bucket + 1) & mask;
+        }
+        
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        int gap = bucket;
+        for (int probe = (gap + 1) & mask; index[probe] != 0; probe = (probe + 1) & mask) {
+            int home = spread(arena.hash(idRefs[index[probe] - 1])) & mask;
+            if (((probe - home) & mask) >= ((probe - gap) & mask)) {
+                index[gap] = index[probe];
+                gap = probe;
+            }
+        }
+        index[gap] = 0;
+    }
+    
+    private void compactArenaIfWasteful() {
+        if (arena.wasted() <= arena.used() / 2) {
+            return;
+        }
+        
+        // Copy live strings into a fresh arena; slots do not move, so views stay valid
+        StringArena compacted = new StringArena(Math.max(16, arena.used() - arena.wasted()));
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            idRefs[slot] = compacted.copyFrom(arena, idRefs[slot]);
+            titleRefs[slot] = compacted.copyFrom(arena, titleRefs[slot]);
+        }
+        arena = compacted;
+    }
+    
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+    }
+    
+    /**
+     * Growable byte arena of strings. Each string starts with a varint header holding its
+     * character count and encoding, followed by one byte per character when the text is
+     * Latin-1 or two bytes per character (UTF-16) otherwise. Strings are referenced by offset.
+     */
+    private static class StringArena {
+        // Lower case of each Latin-1 character; matches String.toLowerCase(Locale.ROOT) in that range
+        private static final char[] LATIN1_LOWER_CASE = new char[256];
+        
+        static {
+            for (int c = 0; c < LATIN1_LOWER_CASE.length; c++) {
+                LATIN1_LOWER_CASE[c] = Character.toLowerCase((char) c);
+            }
+        }
+        
+        private byte[] data;
+        private int used;
+        private int wasted;
+        
+        StringArena(int initialCapacity) {
+            this.data = new byte[Math.max(16, initialCapacity)];
+        }
+        
+        int used() {
+            return used;
+        }
+        
+        int wasted() {
+            return wasted;
+        }
+        
+        /**
+         * Gets the number of bytes a string takes in an arena, header included
+         */
+        static int encodedSize(String value) {
+            int length = value.length();
+            boolean latin1 = isLatin1(value);
+            return varintSize((length << 1) | (latin1 ? 0 : 1)) + (latin1 ? length : length * 2);
+        }
+        
+        /**
+         * Makes room for some more bytes, growing the arena to exactly the size needed if it is too small
+         */
+        void reserve(long bytes) {
+            long required = used + bytes;
+            if (required <= data.length) {
+                return;
+            }
+            if (required > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Compact catalog string arena is full");
+            }
+            data = Arrays.copyOf(data, (int) required);
+        }
+        
+        int append(String value) {
+            int length = value.length();
+            boolean latin1 = isLatin1(value);
+            int header = (length << 1) | (latin1 ? 0 : 1);
+            ensureCapacity(varintSize(header) + (latin1 ? length : length * 2));
+            
+            int offset = used;
+            int position = writeVarint(used, header);
+            if (latin1) {
+                for (int i = 0; i < length; i++) {
+                    data[position++] = (byte) value.charAt(i);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    char c = value.charAt(i);
+                    data[position++] = (byte) (c >> 8);
+                    data[position++] = (byte) c;
+                }
+            }
+            used = position;
+            return offset;
+        }
+        
+        int copyFrom(StringArena source, int offset) {
+            int bytes = source.totalSize(offset);
+            ensureCapacity(bytes);
+            System.arraycopy(source.data, offset, data, used, bytes);
+            int copied = used;
+            used += bytes;
+            return copied;
+        }
+        
+        void release(int offset) {
+            wasted += totalSize(offset);
+        }
+        
+        String decode(int offset) {
+            int header = readVarint(offset);
+            int start = offset + varintSize(header);
+            int length = header >>> 1;
+            if ((header & 1) == 0) {
+                return new String(data, start, length, StandardCharsets.ISO_8859_1);
+            }
+            return new String(data, start, length * 2, StandardCharsets.UTF_16BE);
+        }
+        
+        /**
+         * Checks whether a stored string, lower-cased with Locale.ROOT, contains a search key.
+         * Latin-1 strings are compared byte by byte without decoding.
+         */
+        boolean contains(int offset, String key) {
+            int header = readVarint(offset);
+            if ((header & 1) != 0) {
+                // Outside Latin-1 a character can lower-case to several, so use String's folding
+                return Book.searchKey(decode(offset)).contains(key);
+            }
+            
+            int length = header >>> 1;
+            int start = offset + varintSize(header);
+            for (int i = 0; i <= length - key.length(); i++) {
+                if (regionMatchesFolded(start + i, key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private boolean regionMatchesFolded(int position, String key) {
+            for (int j = 0; j < key.length(); j++) {
+                if (LATIN1_LOWER_CASE[data[position + j] & 0xFF] != key.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Compares a stored string with a String without decoding it
+         */
+        boolean matches(int offset, String value) {
+            int header = readVarint(offset);
+            int length = header >>> 1;
+            if (length != value.length()) {
+                return false;
+            }
+            int position = offset + varintSize(header);
+            for (int i = 0; i < length; i++) {
+                if (charAt(header, position, i) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Computes String.hashCode of a stored string without decoding it
+         */
+        int hash(int offset) {
+            int header = readVarint(offset);
+            int length = header >>> 1;
+            int position = offset + varintSize(header);
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + charAt(header, position, i);
+            }
+            return hash;
+        }
+        
+        private char charAt(int header, int position, int i) {
+            if ((header & 1) == 0) {
+                return (char) (data[position + i] & 0xFF);
+            }
+            return (char) (((data[position + 2 * i] & 0xFF) << 8) | (data[position + 2 * i + 1] & 0xFF));
+        }
+        
+        private int totalSize(int offset) {
+            int header = readVarint(offset);
+            int length = header >>> 1;
+            return varintSize(header) + ((header & 1) == 0 ? length : length * 2);
+        }
+        
+        private int writeVarint(int position, int value) {
+            while ((value & ~0x7F) != 0) {
+                data[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[position++] = (byte) value;
+            return position;
+        }
+        
+        private int readVarint(int position) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+        
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+        
+        private void ensureCapacity(int bytes) {
+            if (used + bytes <= data.length) {
+                return;
+            }
+            long required = (long) used + bytes;
+            if (required > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Compact catalog string arena is full");
+            }
+            // Grow by half to keep the unused tail of the arena small
+            long grown = Math.max(required, Math.min(data.length + (long) (data.length >> 1), Integer.MAX_VALUE - 8));
+            data = Arrays.copyOf(data, (int) grown);
+        }
+        
+        private static boolean isLatin1(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) > 0xFF) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Spliterator over a range of slots. Slots are read in small batches under the read lock,
+     * and the lock is released before books are handed to the stream, so a stream action
+     * may safely modify the catalog.
+     */
+    private class SlotSpliterator implements Spliterator<Book> {
+        private static final int BATCH_SIZE = 1024;
+        
+        private int position;
+        private final int end;
+        private final List<Book> buffer = new ArrayList<>();
+        private int bufferIndex;
+        
+        SlotSpliterator(int position, int end) {
+            this.position = position;
+            this.end = end;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            if (bufferIndex == buffer.size() && !fill()) {
+                return false;
+            }
+            action.accept(buffer.get(bufferIndex++));
+            return true;
+        }
+        
+        @Override
+        public Spliterator<Book> trySplit() {
+            int middle = (position + end) >>> 1;
+            if (bufferIndex < buffer.size() || middle - position < BATCH_SIZE) {
+                return null;
+            }
+            Spliterator<Book> prefix = new SlotSpliterator(position, middle);
+            position = middle;
+            return prefix;
+        }
+        
+        @Override
+        public long estimateSize() {
+            return (end - position) + (buffer.size() - bufferIndex);
+        }
+        
+        @Override
+        public int characteristics() {
+            return NONNULL | ORDERED;
+        }
+        
+        private boolean fill() {
+            buffer.clear();
+            bufferIndex = 0;
+            lock.readLock().lock();
+            try {
+                while (buffer.isEmpty() && position < end) {
+                    int batchEnd = Math.min(end, position + BATCH_SIZE);
+                    for (; position < batchEnd; position++) {
+                        if (position < idRefs.length && idRefs[position] != NONE) {
+                            buffer.add(new BookView(position, stamps[position]));
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return !buffer.isEmpty();
+        }
+    }
+    
+    /**
+     * Flyweight Book handed out by the compact catalog. It holds only a slot number and reads
+     * every field from the columns, so it always reflects the current state of the book.
+     * Setters write through to the catalog; the ID can only be changed with updateBook.
+     */
+    private class BookView extends Book {
+        private final int slot;
+        private final int stamp;
+        
+        BookView(int slot, int stamp) {
+            super(null, null, null, 0);
+            this.slot = slot;
+            this.stamp = stamp;
+        }
+        
+        @Override
+        public String getBookId() {
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return arena.decode(idRefs[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public String getTitle() {
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return arena.decode(titleRefs[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public String getAuthor() {
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return authors.get(authorCodes[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public int getQuantity() {
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return (int) QUANTITY.getVolatile(quantities, slot);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        /**
+         * Copies the book's current details into an ordinary Book, which keeps them after the
+         * catalog book is changed or deleted
+         * @return A new Book, not backed by the catalog
+         */
+        @Override
+        public Book copy() {
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return new Book(arena.decode(idRefs[slot]), arena.decode(titleRefs[slot]),
+                                authors.get(authorCodes[slot]), (int) QUANTITY.getVolatile(quantities, slot));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public String getTitleKey() {
+            return searchKey(getTitle());
+        }
+        
+        @Override
+        public String getAuthorKey() {
+            return searchKey(getAuthor());
+        }
+        
+        @Override
+        public void setBookId(String bookId) {
+            throw new UnsupportedOperationException("Use updateBook to change the ID of a catalog book");
+        }
+        
+        @Override
+        public void setTitle(String title) {
+            if (title == null || title.trim().isEmpty()) {
+                throw new IllegalArgumentException("Title cannot be null or empty");
+            }
+            lock.writeLock().lock();
+            try {
+                checkLive();
+                replaceTitle(slot, title);
+                compactArenaIfWasteful();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        @Override
+        public void setAuthor(String author) {
+            if (author == null || author.trim().isEmpty()) {
+                throw new IllegalArgumentException("Author cannot be null or empty");
+            }
+            lock.writeLock().lock();
+            try {
+                checkLive();
+                authorCodes[slot] = encodeAuthor(author);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        @Override
+        public void setQuantity(int quantity) {
+            if (quantity < 0) {
+                throw new IllegalArgumentException("Quantity cannot be negative");
+            }
+            lock.readLock().lock();
+            try {
+                checkLive();
+                QUANTITY.setVolatile(quantities, slot, quantity);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public boolean checkoutCopies(int count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Checkout count must be positive");
+            }
+            lock.readLock().lock();
+            try {
+                checkLive();
+                return checkoutSlot(slot, count);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        @Override
+        public void returnCopies(int count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Return count must be positive");
+            }
+            lock.readLock().lock();
+            try {
+                checkLive();
+                returnSlot(slot, count);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        private void checkLive() {
+            if (stamps[slot] != stamp) {
+                throw new IllegalStateException("Book has been deleted from the catalog");
+            }
+        }
+    }
+}
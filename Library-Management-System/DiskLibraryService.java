@@ -0,0 +1,408 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * DiskLibraryService class keeps the catalog in an on-disk B+tree keyed by book ID, for catalogs
+ * larger than the heap. Only a bounded cache of tree pages is held in memory; books are decoded
+ * when an operation needs them, so a returned Book is a copy and changing it does not change the
+ * catalog. Books are listed in book ID order.
+ *
+ * Lookups by ID and pages of books by ID read a handful of pages. Title, author and low-quantity
+ * searches have no index here and scan every leaf, keeping only the matches in memory.
+ *
+ * A cuckoo filter over the book IDs answers most lookups of missing IDs (bookExists,
+ * searchBookById and the duplicate checks of addBook) without reading the tree. It is saved next
+ * to the tree on close and deleted while the catalog is open, so after a crash it is rebuilt from
+ * the tree rather than trusted.
+ */
+public class DiskLibraryService implements LibraryService, Closeable {
+    
+    // Number of books read from the tree at a time by streamBooks
+    private static final int STREAM_BATCH_SIZE = 1024;
+    
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    private static final String FILTER_SUFFIX = ".filter";
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    
+    private final BPlusTreeFile<String, Book> tree;
+    private final Path filterFile;
+    private final double falsePositiveRate;
+    private CuckooFilter filter;
+    
+    /**
+     * Opens the catalog in the given file, creating it if needed
+     * @param file B+tree file holding the catalog
+     * @throws IOException if the file cannot be opened or is not a B+tree file
+     */
+    public DiskLibraryService(Path file) throws IOException {
+        this(file, BPlusTreeFile.DEFAULT_CACHE_PAGES);
+    }
+    
+    /**
+     * Opens the catalog in the given file, creating it if needed
+     * @param file B+tree file holding the catalog
+     * @param cachePages Number of tree pages kept in memory
+     * @throws IOException if the file cannot be opened or is not a B+tree file
+     */
+    public DiskLibraryService(Path file, int cachePages) throws IOException {
+        this(file, cachePages, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+    
+    /**
+     * Opens the catalog in the given file, creating it if needed
+     * @param file B+tree file holding the catalog; the ID filter is kept next to it in file.filter
+     * @param cachePages Number of tree pages kept in memory
+     * @param falsePositiveRate Share of missing IDs the filter lets through to the tree, for example 0.01
+     * @throws IOException if the file cannot be opened or is not a B+tree file
+     * @throws IllegalArgumentException if the rate is not between 0 and 1
+     */
+    public DiskLibraryService(Path file, int cachePages, double falsePositiveRate) throws IOException {
+        int fingerprintBits = CuckooFilter.fingerprintBits(falsePositiveRate);
+        this.tree = new BPlusTreeFile<>(file, new BookCodec(), String::compareTo,
+                                        BPlusTreeFile.DEFAULT_PAGE_SIZE, cachePages);
+        this.filterFile = file.resolveSibling(file.getFileName() + FILTER_SUFFIX);
+        this.falsePositiveRate = falsePositiveRate;
+        
+        // A saved filter is only used if it was written for this tree and this rate
+        if (Files.exists(filterFile)) {
+            try {
+                CuckooFilter saved = CuckooFilter.read(filterFile);
+                if (saved.getFingerprintBits() == fingerprintBits && saved.size() == tree.size()) {
+                    filter = saved;
+                }
+            } catch (IOException e) {
+                // A damaged filter is rebuilt below
+            }
+            Files.delete(filterFile);
+        }
+        if (filter == null) {
+            rebuildFilter(tree.size());
+        }
+    }
+    
+    /**
+     * Gets the B+tree holding the catalog, for its page statistics
+     * @return The tree
+     */
+    public BPlusTreeFile<String, Book> getTree() {
+        return tree;
+    }
+    
+    /**
+     * Gets the filter over the book IDs, for its size
+     * @return The filter
+     */
+    public synchronized CuckooFilter getFilter() {
+        return filter;
+    }
+    
+    @Override
+    public synchronized void addBook(Book book) {
+        if (book == null) {
+            throw new IllegalArgumentException("Book cannot be null");
+        }
+        if (mightExist(book.getBookId()) && tree.containsKey(book.getBookId())) {
+            throw new DuplicateBookException(book.getBookId());
+        }
+        tree.put(book);
+        addToFilter(book.getBookId());
+    }
+    
+    @Override
+    public synchronized void addBooks(Collection<Book> books) {
+        BookBatch.validate(books);
+        
+        // Check the whole batch first, so a duplicate leaves the catalog unchanged
+        Set<String> batchIds = new HashSet<>();
+        for (Book book : books) {
+            if (mightExist(book.getBookId()) && tree.containsKey(book.getBookId())) {
+                throw BookBatch.duplicate(book.getBookId(), true);
+            }
+            if (!batchIds.add(book.getBookId())) {
+                throw BookBatch.duplicate(book.getBookId(), false);
+            }
+        }
+        tree.putAll(books);
+        if (filter.size() + books.size() > filter.getCapacity()) {
+            rebuildFilter(tree.size());
+        } else {
+            for (Book book : books) {
+                addToFilter(book.getBookId());
+            }
+        }
+    }
+    
+    /**
+     * Reads the whole catalog into a list; streamBooks or getBooksPage keep heap use bounded
+     * @return List of all books, ordered by book ID
+     */
+    @Override
+    public List<Book> getAllBooks() {
+        List<Book> books = new ArrayList<>();
+        tree.scan(null, true, books::add);
+        return books;
+    }
+    
+    /**
+     * Streams the catalog in book ID order, reading it from the tree in batches
+     */
+    @Override
+    public Stream<Book> streamBooks() {
+        Iterator<Book> books = new Iterator<Book>() {
+            private final List<Book> batch = new ArrayList<>(STREAM_BATCH_SIZE);
+            private int position;
+            private boolean exhausted;
+            
+            @Override
+            public boolean hasNext() {
+                if (position < batch.size()) {
+                    return true;
+                }
+                if (exhausted) {
+                    return false;
+                }
+                
+                // Continue after the last book read, so concurrent changes do not repeat or skip books
+                String after = batch.isEmpty() ? null : batch.get(batch.size() - 1).getBookId();
+                batch.clear();
+                position = 0;
+                tree.scan(after, false, book -> {
+                    batch.add(book);
+                    return batch.size() < STREAM_BATCH_SIZE;
+                });
+                exhausted = batch.size() < STREAM_BATCH_SIZE;
+                return !batch.isEmpty();
+            }
+            
+            @Override
+            public Book next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(position++);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                books, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * The tree is ordered by book ID, so a page is one descent plus a sequential leaf scan
+     */
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        
+        List<Book> page = new ArrayList<>(pageSize + 1);
+        tree.scan(afterBookId, false, book -> {
+            page.add(book);
+            return page.size() <= pageSize;
+        });
+        if (page.size() <= pageSize) {
+            return new BookPage(page, null);
+        }
+        page.remove(pageSize);
+        return new BookPage(page, page.get(pageSize - 1).getBookId());
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty() || !mightExist(bookId.trim())) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(tree.get(bookId.trim()));
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        List<Book> result = new ArrayList<>();
+        if (title == null || title.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchTitle = Book.searchKey(title.trim());
+        tree.scan(null, true, book -> {
+            if (book.getTitleKey().contains(searchTitle)) {
+                result.add(book);
+            }
+            return true;
+        });
+        return result;
+    }
+    
+    @Override
+    public synchronized boolean updateBook(String bookId, Book updatedBook) {
+        if (bookId == null || bookId.trim().isEmpty() || updatedBook == null) {
+            return false;
+        }
+        
+        String searchId = bookId.trim();
+        if (!mightExist(searchId) || !tree.containsKey(searchId)) {
+            return false;
+        }
+        
+        // Check if updated book ID conflicts with existing book (if ID is being changed)
+        boolean idChanged = !searchId.equals(updatedBook.getBookId());
+        if (idChanged && mightExist(updatedBook.getBookId()) && tree.containsKey(updatedBook.getBookId())) {
+            throw new DuplicateBookException(updatedBook.getBookId());
+        }
+        
+        if (idChanged) {
+            tree.remove(searchId);
+            filter.remove(CuckooFilter.hash(searchId));
+        }
+        tree.put(updatedBook);
+        if (idChanged) {
+            addToFilter(updatedBook.getBookId());
+        }
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean deleteBook(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty() || !mightExist(bookId.trim())) {
+            return false;
+        }
+        if (!tree.remove(bookId.trim())) {
+            return false;
+        }
+        filter.remove(CuckooFilter.hash(bookId.trim()));
+        return true;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        return mightExist(bookId.trim()) && tree.containsKey(bookId.trim());
+    }
+    
+    @Override
+    public synchronized boolean checkout(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to check out must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        Book book = tree.get(bookId.trim());
+        if (book == null || !book.checkoutCopies(copies)) {
+            return false;
+        }
+        tree.put(book);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean returnBook(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to return must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        Book book = tree.get(bookId.trim());
+        if (book == null) {
+            return false;
+        }
+        book.returnCopies(copies);
+        tree.put(book);
+        return true;
+    }
+    
+    @Override
+    public int getBookCount() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.size());
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        List<Book> result = new ArrayList<>();
+        if (author == null || author.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchAuthor = Book.searchKey(author.trim());
+        tree.scan(null, true, book -> {
+            if (book.getAuthorKey().contains(searchAuthor)) {
+                result.add(book);
+            }
+            return true;
+        });
+        return result;
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        List<Book> result = new ArrayList<>();
+        tree.scan(null, true, book -> {
+            if (book.getQuantity() <= threshold) {
+                result.add(book);
+            }
+            return true;
+        });
+        return result;
+    }
+    
+    /**
+     * Saves the ID filter, then writes the tree to the storage device and closes it
+     * @throws IOException if the files cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        filter.write(filterFile);
+        tree.close();
+    }
+    
+    /**
+     * Checks the filter; false means the tree certainly has no book with the ID
+     */
+    private synchronized boolean mightExist(String bookId) {
+        return filter.mightContain(CuckooFilter.hash(bookId));
+    }
+    
+    /**
+     * Adds an ID already stored in the tree to the filter, rebuilding a full filter at twice the size
+     */
+    private void addToFilter(String bookId) {
+        if (!filter.put(CuckooFilter.hash(bookId))) {
+            rebuildFilter(tree.size());
+        }
+    }
+    
+    /**
+     * Builds a new filter from the IDs in the tree, with room for twice the given number of books
+     */
+    private void rebuildFilter(long books) {
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(MIN_FILTER_CAPACITY, books)) * 2;
+        while (true) {
+            CuckooFilter rebuilt = new CuckooFilter(capacity, falsePositiveRate);
+            boolean[] fits = {true};
+            tree.scan(null, true, book -> fits[0] = rebuilt.put(CuckooFilter.hash(book.getBookId())));
+            if (fits[0]) {
+                filter = rebuilt;
+                return;
+            }
+            capacity *= 2;
+        }
+    }
+}
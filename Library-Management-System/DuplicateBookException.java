@@ -0,0 +1,23 @@
+/**
+ * DuplicateBookException class is thrown when a book would get an ID that another book in the
+ * catalog already has, whether it is being added or renamed by an update.
+ * It is an IllegalArgumentException, so callers that treat every rejected book alike need not
+ * change; callers that report a conflict differently, such as the HTTP server, catch it first.
+ */
+public class DuplicateBookException extends IllegalArgumentException {
+    
+    private final String bookId;
+    
+    /**
+     * Creates the exception
+     * @param bookId The ID that is already taken
+     */
+    public DuplicateBookException(String bookId) {
+        super("Book with ID " + bookId + " already exists");
+        this.bookId = bookId;
+    }
+    
+    public String getBookId() {
+        return bookId;
+    }
+}
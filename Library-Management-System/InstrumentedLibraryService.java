@@ -0,0 +1,676 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.EventType;
+
+/**
+ * InstrumentedLibraryService class times every operation of another LibraryService.
+ *
+ * Each call is recorded in a per-operation LatencyHistogram, with failed calls also counted as
+ * errors, and emitted as a CatalogOperationEvent for Java Flight Recorder. The timings can be read
+ * through getStats or, after registerMBeans, over JMX. JFR events are not even created while no
+ * recording has them enabled.
+ *
+ * Reading the clock is what instrumentation costs most: around a fast lookup it can triple the
+ * time of the call. Every call is counted, but only about one in sampleInterval calls is timed,
+ * picked at random so the sample is not skewed. JFR events time themselves with the recorder's
+ * own clock.
+ *
+ * When disabled, every call goes straight to the delegate after one volatile read. Streams are
+ * passed through untimed, since their work happens when the caller consumes them.
+ */
+public class InstrumentedLibraryService implements LibraryService {
+    
+    /**
+     * A timed operation
+     */
+    public enum Operation {
+        ADD_BOOK("addBook"),
+        ADD_BOOKS("addBooks"),
+        GET_ALL_BOOKS("getAllBooks"),
+        GET_BOOKS_PAGE("getBooksPage"),
+        SEARCH_BOOK_BY_ID("searchBookById"),
+        SEARCH_BOOK_BY_TITLE("searchBookByTitle"),
+        SEARCH_RANKED("searchRanked"),
+        SEARCH_BOOK_BY_TITLE_FUZZY("searchBookByTitleFuzzy"),
+        SNAPSHOT("snapshot"),
+        GET_BOOKS_BY_IDS("getBooksByIds"),
+        UPDATE_BOOKS("updateBooks"),
+        DELETE_BOOKS("deleteBooks"),
+        UPDATE_BOOK("updateBook"),
+        DELETE_BOOK("deleteBook"),
+        BOOK_EXISTS("bookExists"),
+        CHECKOUT("checkout"),
+        RETURN_BOOK("returnBook"),
+        GET_BOOK_COUNT("getBookCount"),
+        GET_BOOKS_BY_AUTHOR("getBooksByAuthor"),
+        GET_LOW_QUANTITY_BOOKS("getLowQuantityBooks");
+        
+        private final String methodName;
+        
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+        
+        /**
+         * Gets the name of the LibraryService method
+         * @return Method name, such as searchBookById
+         */
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+    
+    /**
+     * Call count, error count and latency distribution of one operation. Every call is counted;
+     * the latencies are those of the timed calls.
+     */
+    public static final class OperationStats implements CatalogOperationMXBean {
+        private final Operation operation;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        
+        private OperationStats(Operation operation) {
+            this.operation = operation;
+        }
+        
+        @Override
+        public String getOperation() {
+            return operation.getMethodName();
+        }
+        
+        @Override
+        public long getCount() {
+            return calls.sum();
+        }
+        
+        @Override
+        public long getErrorCount() {
+            return errors.sum();
+        }
+        
+        @Override
+        public double getMeanMicros() {
+            return latencies.getMeanNanos() / 1000;
+        }
+        
+        @Override
+        public double getP50Micros() {
+            return latencies.getPercentileNanos(50) / 1000.0;
+        }
+        
+        @Override
+        public double getP99Micros() {
+            return latencies.getPercentileNanos(99) / 1000.0;
+        }
+        
+        @Override
+        public double getP999Micros() {
+            return latencies.getPercentileNanos(99.9) / 1000.0;
+        }
+        
+        @Override
+        public double getMaxMicros() {
+            return latencies.getMaxNanos() / 1000.0;
+        }
+        
+        /**
+         * Gets the durations of the timed calls
+         * @return Histogram in nanoseconds
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+        
+        @Override
+        public void reset() {
+            latencies.reset();
+            calls.reset();
+            errors.reset();
+        }
+        
+        private void record(long start) {
+            calls.increment();
+            if (start != NOT_TIMED) {
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+    }
+    
+    private static final EventType EVENT_TYPE = EventType.getEventType(CatalogOperationEvent.class);
+    
+    // Start time of a call that is counted but not timed
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    
+    private final LibraryService delegate;
+    private final int sampleMask;
+    private final OperationStats[] stats = new OperationStats[Operation.values().length];
+    private volatile boolean enabled = true;
+    
+    /**
+     * Creates an enabled instrumentation layer that times every call
+     * @param delegate Service whose operations are timed
+     */
+    public InstrumentedLibraryService(LibraryService delegate) {
+        this(delegate, 1);
+    }
+    
+    /**
+     * Creates an enabled instrumentation layer that times a random sample of the calls
+     * @param delegate Service whose operations are timed
+     * @param sampleInterval Times about one call in this many, rounded up to a power of two;
+     *                       1 times every call
+     * @throws IllegalArgumentException if sampleInterval is not positive
+     */
+    public InstrumentedLibraryService(LibraryService delegate, int sampleInterval) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate service cannot be null");
+        }
+        if (sampleInterval <= 0 || sampleInterval > 1 << 30) {
+            throw new IllegalArgumentException("Sample interval must be between 1 and 2^30");
+        }
+        this.delegate = delegate;
+        this.sampleMask = sampleInterval == 1 ? 0 : (Integer.highestOneBit(sampleInterval - 1) << 1) - 1;
+        for (Operation operation : Operation.values()) {
+            stats[operation.ordinal()] = new OperationStats(operation);
+        }
+    }
+    
+    public LibraryService getDelegate() {
+        return delegate;
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Turns timing on or off; calls already running are still recorded
+     * @param enabled Whether to time calls and emit events
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Gets the timings of one operation
+     * @param operation The operation
+     * @return Its live statistics
+     */
+    public OperationStats getStats(Operation operation) {
+        return stats[operation.ordinal()];
+    }
+    
+    /**
+     * Gets the timings of the operations that have been called at least once
+     * @return Statistics in Operation order
+     */
+    public List<OperationStats> getCalledOperations() {
+        List<OperationStats> called = new ArrayList<>();
+        for (OperationStats operationStats : stats) {
+            if (operationStats.getCount() > 0) {
+                called.add(operationStats);
+            }
+        }
+        return called;
+    }
+    
+    /**
+     * Clears the timings of every operation
+     */
+    public void reset() {
+        for (OperationStats operationStats : stats) {
+            operationStats.reset();
+        }
+    }
+    
+    /**
+     * Registers the timings of every operation with the platform MBean server, as
+     * library:type=CatalogOperation,name=&lt;operation&gt;, replacing earlier registrations
+     * @throws JMException if registration fails
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (OperationStats operationStats : stats) {
+            ObjectName name = new ObjectName("library:type=CatalogOperation,name=" + operationStats.getOperation());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(operationStats, name);
+        }
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        if (!enabled) {
+            delegate.addBook(book);
+            return;
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        try {
+            delegate.addBook(book);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.ADD_BOOK, book == null ? null : book.getBookId(), event, start);
+            throw e;
+        }
+        finish(Operation.ADD_BOOK, book == null ? null : book.getBookId(), event, start, 1);
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        if (!enabled) {
+            delegate.addBooks(books);
+            return;
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        try {
+            delegate.addBooks(books);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.ADD_BOOKS, null, event, start);
+            throw e;
+        }
+        finish(Operation.ADD_BOOKS, null, event, start, books.size());
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        if (!enabled) {
+            return delegate.getAllBooks();
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.getAllBooks();
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_ALL_BOOKS, null, event, start);
+            throw e;
+        }
+        finish(Operation.GET_ALL_BOOKS, null, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return delegate.streamBooks();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        if (!enabled) {
+            return delegate.getBooksPage(afterBookId, pageSize);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        BookPage page;
+        try {
+            page = delegate.getBooksPage(afterBookId, pageSize);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_BOOKS_PAGE, afterBookId, event, start);
+            throw e;
+        }
+        finish(Operation.GET_BOOKS_PAGE, afterBookId, event, start, page.getBooks().size());
+        return page;
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        if (!enabled) {
+            return delegate.searchBookById(bookId);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        Optional<Book> book;
+        try {
+            book = delegate.searchBookById(bookId);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.SEARCH_BOOK_BY_ID, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.SEARCH_BOOK_BY_ID, bookId, event, start, book.isPresent() ? 1 : 0);
+        return book;
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        if (!enabled) {
+            return delegate.searchBookByTitle(title);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.searchBookByTitle(title);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.SEARCH_BOOK_BY_TITLE, title, event, start);
+            throw e;
+        }
+        finish(Operation.SEARCH_BOOK_BY_TITLE, title, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        if (!enabled) {
+            return delegate.searchRanked(query, limit);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.searchRanked(query, limit);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.SEARCH_RANKED, query, event, start);
+            throw e;
+        }
+        finish(Operation.SEARCH_RANKED, query, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        if (!enabled) {
+            return delegate.searchBookByTitleFuzzy(title, limit);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.searchBookByTitleFuzzy(title, limit);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.SEARCH_BOOK_BY_TITLE_FUZZY, title, event, start);
+            throw e;
+        }
+        finish(Operation.SEARCH_BOOK_BY_TITLE_FUZZY, title, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        if (!enabled) {
+            return delegate.snapshot();
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        CatalogSnapshot snapshot;
+        try {
+            snapshot = delegate.snapshot();
+        } catch (RuntimeException | Error e) {
+            fail(Operation.SNAPSHOT, null, event, start);
+            throw e;
+        }
+        finish(Operation.SNAPSHOT, null, event, start, snapshot.getBookCount());
+        return snapshot;
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        if (!enabled) {
+            return delegate.getBooksByIds(bookIds);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.getBooksByIds(bookIds);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_BOOKS_BY_IDS, null, event, start);
+            throw e;
+        }
+        finish(Operation.GET_BOOKS_BY_IDS, null, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public BatchResult updateBooks(List<Book> updatedBooks) {
+        if (!enabled) {
+            return delegate.updateBooks(updatedBooks);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        BatchResult result;
+        try {
+            result = delegate.updateBooks(updatedBooks);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.UPDATE_BOOKS, null, event, start);
+            throw e;
+        }
+        finish(Operation.UPDATE_BOOKS, null, event, start, result.getAppliedCount());
+        return result;
+    }
+    
+    @Override
+    public BatchResult deleteBooks(List<String> bookIds) {
+        if (!enabled) {
+            return delegate.deleteBooks(bookIds);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        BatchResult result;
+        try {
+            result = delegate.deleteBooks(bookIds);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.DELETE_BOOKS, null, event, start);
+            throw e;
+        }
+        finish(Operation.DELETE_BOOKS, null, event, start, result.getAppliedCount());
+        return result;
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        if (!enabled) {
+            return delegate.updateBook(bookId, updatedBook);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        boolean updated;
+        try {
+            updated = delegate.updateBook(bookId, updatedBook);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.UPDATE_BOOK, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.UPDATE_BOOK, bookId, event, start, updated ? 1 : 0);
+        return updated;
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        if (!enabled) {
+            return delegate.deleteBook(bookId);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        boolean deleted;
+        try {
+            deleted = delegate.deleteBook(bookId);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.DELETE_BOOK, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.DELETE_BOOK, bookId, event, start, deleted ? 1 : 0);
+        return deleted;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        if (!enabled) {
+            return delegate.bookExists(bookId);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        boolean exists;
+        try {
+            exists = delegate.bookExists(bookId);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.BOOK_EXISTS, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.BOOK_EXISTS, bookId, event, start, exists ? 1 : 0);
+        return exists;
+    }
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        if (!enabled) {
+            return delegate.checkout(bookId, copies);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        boolean checkedOut;
+        try {
+            checkedOut = delegate.checkout(bookId, copies);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.CHECKOUT, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.CHECKOUT, bookId, event, start, checkedOut ? 1 : 0);
+        return checkedOut;
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        if (!enabled) {
+            return delegate.returnBook(bookId, copies);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        boolean returned;
+        try {
+            returned = delegate.returnBook(bookId, copies);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.RETURN_BOOK, bookId, event, start);
+            throw e;
+        }
+        finish(Operation.RETURN_BOOK, bookId, event, start, returned ? 1 : 0);
+        return returned;
+    }
+    
+    @Override
+    public int getBookCount() {
+        if (!enabled) {
+            return delegate.getBookCount();
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        int count;
+        try {
+            count = delegate.getBookCount();
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_BOOK_COUNT, null, event, start);
+            throw e;
+        }
+        finish(Operation.GET_BOOK_COUNT, null, event, start, count);
+        return count;
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        if (!enabled) {
+            return delegate.getBooksByAuthor(author);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.getBooksByAuthor(author);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_BOOKS_BY_AUTHOR, author, event, start);
+            throw e;
+        }
+        finish(Operation.GET_BOOKS_BY_AUTHOR, author, event, start, books.size());
+        return books;
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        if (!enabled) {
+            return delegate.getLowQuantityBooks(threshold);
+        }
+        CatalogOperationEvent event = begin();
+        long start = startClock();
+        List<Book> books;
+        try {
+            books = delegate.getLowQuantityBooks(threshold);
+        } catch (RuntimeException | Error e) {
+            fail(Operation.GET_LOW_QUANTITY_BOOKS, null, event, start);
+            throw e;
+        }
+        finish(Operation.GET_LOW_QUANTITY_BOOKS, null, event, start, books.size());
+        return books;
+    }
+    
+    /**
+     * Starts the JFR event of a call
+     * @return The event, or null while no recording has the event enabled
+     */
+    private static CatalogOperationEvent begin() {
+        // Checked first so the event is not allocated at all while nothing records it
+        if (!EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+        CatalogOperationEvent event = new CatalogOperationEvent();
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Reads the clock for the calls picked for timing
+     * @return System.nanoTime(), or NOT_TIMED for a call that is only counted
+     */
+    private long startClock() {
+        if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return NOT_TIMED;
+        }
+        return System.nanoTime();
+    }
+    
+    /**
+     * Records a call that returned normally
+     * @param operation Operation called
+     * @param key Argument identifying what the call worked on, or null
+     * @param event The call's JFR event
+     * @param start Value of startClock() when the call started
+     * @param resultSize Number of books returned or changed, or 1 or 0 for a true or false result
+     */
+    private void finish(Operation operation, String key, CatalogOperationEvent event, long start, int resultSize) {
+        stats[operation.ordinal()].record(start);
+        commit(operation, key, event, resultSize, false);
+    }
+    
+    /**
+     * Records a call that threw an exception
+     */
+    private void fail(Operation operation, String key, CatalogOperationEvent event, long start) {
+        OperationStats operationStats = stats[operation.ordinal()];
+        operationStats.record(start);
+        operationStats.errors.increment();
+        commit(operation, key, event, 0, true);
+    }
+    
+    private static void commit(Operation operation, String key, CatalogOperationEvent event, int resultSize, boolean failed) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation.getMethodName();
+            event.key = key;
+            event.resultSize = resultSize;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+}
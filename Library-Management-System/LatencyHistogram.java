@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram class counts durations in buckets whose width grows with the duration, so any
+ * percentile it reports is within 1/8 (12.5%) of the true value, from nanoseconds up to minutes.
+ *
+ * Recording is one atomic increment. Threads are spread over several copies of the counters
+ * (stripes) by thread ID, so threads on different cores rarely write the same cache line. Reads
+ * add the stripes up and may miss durations recorded at the same moment.
+ */
+public final class LatencyHistogram {
+    
+    // Durations below 2^LINEAR_BITS nanoseconds get one bucket per nanosecond
+    private static final int LINEAR_BITS = 4;
+    // Each power of two above that is split into 2^SUB_BUCKET_BITS buckets
+    private static final int SUB_BUCKET_BITS = 3;
+    // Durations of 2^MAX_EXPONENT nanoseconds (about 18 minutes) or more share the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (1 << LINEAR_BITS) + (MAX_EXPONENT - LINEAR_BITS) * (1 << SUB_BUCKET_BITS);
+    
+    // Stripes start on separate 128-byte blocks so neighbouring stripes share no cache line
+    private static final int STRIPE_LENGTH = (BUCKETS + 15) & ~15;
+    
+    private final int stripeMask;
+    private final AtomicLongArray counts;
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    /**
+     * Creates a histogram with one stripe per available processor, rounded up to a power of two
+     */
+    public LatencyHistogram() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = processors == 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+        this.stripeMask = stripes - 1;
+        this.counts = new AtomicLongArray(stripes * STRIPE_LENGTH);
+    }
+    
+    /**
+     * Records one duration
+     * @param nanos Duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counts.getAndIncrement(stripe * STRIPE_LENGTH + bucketOf(value));
+        totalNanos.add(value);
+        if (value > maxNanos.get()) {
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+    }
+    
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : bucketCounts()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+    
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+    
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    /**
+     * Gets the mean duration
+     * @return Mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getTotalNanos() / count;
+    }
+    
+    /**
+     * Estimates a percentile of the recorded durations
+     * @param percent Percentile between 0 and 100, such as 99 or 99.9
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, never more than the
+     *         maximum; 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percent) {
+        long[] buckets = bucketCounts();
+        long count = 0;
+        for (long bucketCount : buckets) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return Math.min(upperBound(bucket), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+    
+    /**
+     * Clears every count
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+    
+    private long[] bucketCounts() {
+        long[] buckets = new long[BUCKETS];
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                buckets[bucket] += counts.get(stripe * STRIPE_LENGTH + bucket);
+            }
+        }
+        return buckets;
+    }
+    
+    private static int bucketOf(long nanos) {
+        if (nanos < (1 << LINEAR_BITS)) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        // The bits just below the leading one pick the sub-bucket
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return (1 << LINEAR_BITS) + ((exponent - LINEAR_BITS) << SUB_BUCKET_BITS) + subBucket;
+    }
+    
+    private static long upperBound(int bucket) {
+        if (bucket < (1 << LINEAR_BITS)) {
+            return bucket;
+        }
+        int exponent = LINEAR_BITS + ((bucket - (1 << LINEAR_BITS)) >>> SUB_BUCKET_BITS);
+        int subBucket = (bucket - (1 << LINEAR_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
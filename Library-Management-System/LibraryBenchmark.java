@@ -0,0 +1,953 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibraryBenchmark class measures the average time, allocation and garbage collection of the
+ * catalog operations on a SyntheticCatalog, for every combination of the given parameters.
+ *
+ * Each combination runs in a fresh JVM (a fork) so that code compiled for one benchmark does not
+ * slow down the next, first for warmup iterations that are discarded and then for measured
+ * iterations. Lookups, searches and updates run back to back on one catalog for the length of
+ * an iteration. Adds and deletes change the catalog size, so they run in batches of at most 1000
+ * operations against a newly built catalog, and only the batch is timed.
+ *
+ * addBookLoop and addBooks load the whole catalog into an empty one, with addBook for each book
+ * or with one addBooks call, and time the load; their score is per book loaded.
+ *
+ * Checkout benchmarks run --threads threads at once on one catalog, each checking a copy out and
+ * returning it again: checkoutReturn spreads the threads over many books, checkoutReturnHot puts
+ * them all on one title. Their score is wall-clock time divided by the checkout-and-return pairs
+ * of all threads together, so it falls as threads are added if the operation scales.
+ *
+ * Allocation is read from the JVM's per-thread allocation counters of all threads, so work
+ * handed to other threads (as ShardedLibraryService searches do) is included. Garbage
+ * collections are counted over the timed part of each iteration only.
+ *
+ * Usage: java LibraryBenchmark [--benchmarks all] [--services impl] [--sizes 10000,100000]
+ *        [--hit-ratios 1,0.5] [--selectivities 0.001,0.01] [--warmup 3] [--iterations 5]
+ *        [--iteration-millis 1000] [--forks 1] [--seed 42] [--threads 4] [--csv results.csv]
+ *
+ * Benchmarks: addBook, searchBookById, searchBookByTitle, getBooksByAuthor, updateBook,
+ * deleteBook, getLowQuantityBooks, addBookLoop, addBooks, checkoutReturn, checkoutReturnHot. Services: impl, compact,
+ * sharded, caching, locked (impl with checkout and return under a lock on the book, as quantity
+ * changes were made before compare-and-set), and to measure the cost of instrumentation,
+ * instrumented and sampled (impl behind an InstrumentedLibraryService
+ * timing every call, or one call in 16). store-memory, store-journal and store-mapped write impl
+ * through to a RecordStore of each storage engine, and btree keeps the catalog in a
+ * DiskLibraryService; both are kept in a temporary directory.
+ * With --forks 0 everything runs in this JVM, which is quicker but less reliable.
+ *
+ * With --footprint it instead prints the live heap each service keeps per book, for each size
+ * and each of --title-lengths (0 for the generated titles), measured as the heap in use after a
+ * full collection with the catalog loaded less the heap in use before. Run it with
+ * -XX:+UseSerialGC for stable figures.
+ */
+public class LibraryBenchmark {
+    
+    /**
+     * A benchmarked operation and the parameters that change what it does
+     */
+    private enum Benchmark {
+        ADD_BOOK("addBook", false, false, true),
+        SEARCH_BOOK_BY_ID("searchBookById", true, false, false),
+        SEARCH_BOOK_BY_TITLE("searchBookByTitle", true, true, false),
+        GET_BOOKS_BY_AUTHOR("getBooksByAuthor", true, true, false),
+        UPDATE_BOOK("updateBook", true, false, false),
+        DELETE_BOOK("deleteBook", true, false, true),
+        GET_LOW_QUANTITY_BOOKS("getLowQuantityBooks", false, true, false),
+        ADD_BOOK_LOOP("addBookLoop", false, false, false),
+        ADD_BOOKS("addBooks", false, false, false),
+        CHECKOUT_RETURN("checkoutReturn", false, false, false),
+        CHECKOUT_RETURN_HOT("checkoutReturnHot", false, false, false);
+        
+        private final String name;
+        private final boolean usesHitRatio;
+        private final boolean usesSelectivity;
+        private final boolean batched;
+        
+        Benchmark(String name, boolean usesHitRatio, boolean usesSelectivity, boolean batched) {
+            this.name = name;
+            this.usesHitRatio = usesHitRatio;
+            this.usesSelectivity = usesSelectivity;
+            this.batched = batched;
+        }
+        
+        static Benchmark named(String name) {
+            for (Benchmark benchmark : values()) {
+                if (benchmark.name.equalsIgnoreCase(name)) {
+                    return benchmark;
+                }
+            }
+            throw new IllegalArgumentException("Unknown benchmark: " + name);
+        }
+    }
+    
+    // Number of distinct keys or queries each benchmark cycles through
+    private static final int KEY_COUNT = 1 << 12;
+    private static final int MAX_BATCH = 1000;
+    private static final int SHARD_COUNT = 4;
+    private static final int INSTRUMENTATION_SAMPLE_INTERVAL = 16;
+    // Copies given to each book the checkout benchmarks use, so checkouts do not run out
+    private static final int CHECKOUT_STOCK = 1_000_000;
+    private static final String STORE_SERVICE_PREFIX = "store-";
+    
+    // Temporary directories of the store and B+tree services still in use
+    private static final Map<LibraryService, Path> storeDirectories = new IdentityHashMap<>();
+    
+    // Values used when a parameter does not apply to a benchmark, so the catalog is the same
+    private static final double DEFAULT_HIT_RATIO = 1.0;
+    private static final double DEFAULT_SELECTIVITY = 0.01;
+    
+    private static final String ITERATION_PREFIX = "ITERATION\t";
+    
+    /**
+     * One combination of parameters
+     */
+    private static final class Configuration {
+        final Benchmark benchmark;
+        final String service;
+        final int size;
+        final double hitRatio;
+        final double selectivity;
+        
+        Configuration(Benchmark benchmark, String service, int size, double hitRatio, double selectivity) {
+            this.benchmark = benchmark;
+            this.service = service;
+            this.size = size;
+            this.hitRatio = hitRatio;
+            this.selectivity = selectivity;
+        }
+        
+        String[] arguments() {
+            return new String[] {"--benchmarks", benchmark.name, "--services", service, "--sizes", Integer.toString(size),
+                                 "--hit-ratios", Double.toString(hitRatio), "--selectivities", Double.toString(selectivity)};
+        }
+        
+        String hitRatioLabel() {
+            return benchmark.usesHitRatio ? Double.toString(hitRatio) : "-";
+        }
+        
+        String selectivityLabel() {
+            return benchmark.usesSelectivity ? Double.toString(selectivity) : "-";
+        }
+    }
+    
+    /**
+     * Measurements of one iteration: the timed nanoseconds, the operations completed in them,
+     * and the bytes allocated and garbage collections that happened meanwhile
+     */
+    private static final class Iteration {
+        final long nanos;
+        final long operations;
+        final long allocatedBytes;
+        final long gcCount;
+        final long gcMillis;
+        
+        Iteration(long nanos, long operations, long allocatedBytes, long gcCount, long gcMillis) {
+            this.nanos = nanos;
+            this.operations = operations;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+        
+        double nanosPerOperation() {
+            return (double) nanos / operations;
+        }
+        
+        String encode() {
+            return ITERATION_PREFIX + nanos + "\t" + operations + "\t" + allocatedBytes + "\t" + gcCount + "\t" + gcMillis;
+        }
+        
+        static Iteration decode(String line) {
+            String[] fields = line.substring(ITERATION_PREFIX.length()).split("\t");
+            return new Iteration(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                 Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        }
+    }
+    
+    private final long seed;
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+    private final int threadCount;
+    
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    
+    // Results are folded into this field so the JIT compiler cannot discard the benchmarked calls
+    private long sink;
+    
+    private LibraryBenchmark(long seed, int warmupIterations, int measuredIterations, long iterationMillis,
+                             int threadCount) {
+        this.seed = seed;
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+        this.threadCount = threadCount;
+    }
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (String name : listOption(args, "--benchmarks", "all")) {
+            if (name.equalsIgnoreCase("all")) {
+                benchmarks.addAll(Arrays.asList(Benchmark.values()));
+            } else {
+                benchmarks.add(Benchmark.named(name));
+            }
+        }
+        List<String> services = listOption(args, "--services", "impl");
+        List<String> sizes = listOption(args, "--sizes", "10000,100000");
+        List<String> hitRatios = listOption(args, "--hit-ratios", "1,0.5");
+        List<String> selectivities = listOption(args, "--selectivities", "0.001,0.01");
+        int forks = Integer.parseInt(optionValue(args, "--forks", "1"));
+        String csvFile = optionValue(args, "--csv", null);
+        boolean forked = Arrays.asList(args).contains("--forked");
+        
+        LibraryBenchmark runner = new LibraryBenchmark(Long.parseLong(optionValue(args, "--seed", "42")),
+                                                       Integer.parseInt(optionValue(args, "--warmup", "3")),
+                                                       Integer.parseInt(optionValue(args, "--iterations", "5")),
+                                                       Long.parseLong(optionValue(args, "--iteration-millis", "1000")),
+                                                       Integer.parseInt(optionValue(args, "--threads", "4")));
+        
+        if (Arrays.asList(args).contains("--footprint")) {
+            runner.measureFootprint(services, sizes, listOption(args, "--title-lengths", "0,30"));
+            return;
+        }
+        
+        // Parameters a benchmark ignores are not varied for it, so it is not run several times over
+        List<Configuration> configurations = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            for (String service : services) {
+                for (String size : sizes) {
+                    for (String hitRatio : benchmark.usesHitRatio ? hitRatios : List.of(Double.toString(DEFAULT_HIT_RATIO))) {
+                        for (String selectivity : benchmark.usesSelectivity ? selectivities : List.of(Double.toString(DEFAULT_SELECTIVITY))) {
+                            configurations.add(new Configuration(benchmark, service, Integer.parseInt(size),
+                                                                 Double.parseDouble(hitRatio), Double.parseDouble(selectivity)));
+                        }
+                    }
+                }
+            }
+        }
+        
+        if (forked) {
+            // Running inside a fork: report each measured iteration to the parent
+            for (Configuration configuration : configurations) {
+                for (Iteration iteration : runner.run(configuration)) {
+                    System.out.println(iteration.encode());
+                }
+            }
+            return;
+        }
+        
+        List<String> rows = new ArrayList<>();
+        rows.add(String.join(",", "benchmark", "service", "size", "hit_ratio", "selectivity", "score_ns_per_op",
+                             "error_ns_per_op", "alloc_bytes_per_op", "alloc_mb_per_sec", "gc_count", "gc_time_ms"));
+        System.out.printf("%-20s %-14s %9s %5s %8s %14s %12s %12s %11s %5s %8s%n", "Benchmark", "Service", "Size", "Hit",
+                          "Select.", "Score (ns/op)", "Error (sd)", "Alloc (B/op)", "Alloc (MB/s)", "GCs", "GC (ms)");
+        for (Configuration configuration : configurations) {
+            List<Iteration> iterations = new ArrayList<>();
+            if (forks == 0) {
+                iterations.addAll(runner.run(configuration));
+            } else {
+                for (int fork = 0; fork < forks; fork++) {
+                    iterations.addAll(fork(configuration, args));
+                }
+            }
+            rows.add(report(configuration, iterations));
+        }
+        
+        if (csvFile != null) {
+            Files.write(Paths.get(csvFile), rows, StandardCharsets.UTF_8);
+            System.out.println("Results written to " + csvFile);
+        }
+    }
+    
+    /**
+     * Runs one configuration in a new JVM with the same class path and JVM options as this one
+     * @return The measured iterations reported by the fork
+     */
+    private static List<Iteration> fork(Configuration configuration, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!option.startsWith("-agentlib:jdwp")) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LibraryBenchmark.class.getName());
+        command.add("--forked");
+        command.addAll(Arrays.asList(configuration.arguments()));
+        for (String option : new String[] {"--seed", "--warmup", "--iterations", "--iteration-millis", "--threads"}) {
+            String value = optionValue(args, option, null);
+            if (value != null) {
+                command.add(option);
+                command.add(value);
+            }
+        }
+        
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<Iteration> iterations = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(ITERATION_PREFIX)) {
+                    iterations.add(Iteration.decode(line));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("Benchmark fork for " + configuration.benchmark.name + " exited with code " + exitCode);
+        }
+        return iterations;
+    }
+    
+    /**
+     * Prints one line of the results table
+     * @return The same results as a CSV row
+     */
+    private static String report(Configuration configuration, List<Iteration> iterations) {
+        double mean = 0;
+        long nanos = 0;
+        long operations = 0;
+        long allocatedBytes = 0;
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (Iteration iteration : iterations) {
+            mean += iteration.nanosPerOperation() / iterations.size();
+            nanos += iteration.nanos;
+            operations += iteration.operations;
+            allocatedBytes += iteration.allocatedBytes;
+            gcCount += iteration.gcCount;
+            gcMillis += iteration.gcMillis;
+        }
+        double variance = 0;
+        for (Iteration iteration : iterations) {
+            double deviation = iteration.nanosPerOperation() - mean;
+            variance += deviation * deviation / Math.max(1, iterations.size() - 1);
+        }
+        double error = Math.sqrt(variance);
+        double bytesPerOperation = (double) allocatedBytes / operations;
+        double megabytesPerSecond = allocatedBytes / 1e6 / (nanos / 1e9);
+        
+        System.out.printf("%-20s %-14s %9d %5s %8s %14.1f %12.1f %12.1f %11.1f %5d %8d%n", configuration.benchmark.name,
+                          configuration.service, configuration.size, configuration.hitRatioLabel(),
+                          configuration.selectivityLabel(), mean, error, bytesPerOperation, megabytesPerSecond, gcCount, gcMillis);
+        return String.join(",", configuration.benchmark.name, configuration.service, Integer.toString(configuration.size),
+                           configuration.hitRatioLabel(), configuration.selectivityLabel(), format(mean), format(error),
+                           format(bytesPerOperation), format(megabytesPerSecond), Long.toString(gcCount), Long.toString(gcMillis));
+    }
+    
+    /**
+     * Prints the heap each service keeps per book, for every size and title length. A title
+     * length of 0 keeps the generated titles (about 25 characters); others pad or cut every title
+     * to that many characters. Each figure is compared with impl's when impl is listed first.
+     */
+    private void measureFootprint(List<String> services, List<String> sizes, List<String> titleLengths) {
+        System.out.printf("%-14s %9s %6s %14s %8s%n", "Service", "Size", "Title", "Heap (B/book)", "vs impl");
+        for (String size : sizes) {
+            for (String titleLength : titleLengths) {
+                double implBytes = 0;
+                for (String service : services) {
+                    double bytes = footprint(service, Integer.parseInt(size), Integer.parseInt(titleLength));
+                    if (service.equals("impl")) {
+                        implBytes = bytes;
+                    }
+                    System.out.printf("%-14s %9s %6s %14.1f %8s%n", service, size,
+                                      titleLength.equals("0") ? "-" : titleLength, bytes,
+                                      implBytes > 0 ? String.format(Locale.ROOT, "%.2fx", implBytes / bytes) : "-");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Measures the live heap a loaded catalog keeps, including its books, per book
+     */
+    private double footprint(String serviceName, int size, int titleLength) {
+        long before = usedHeap();
+        LibraryService service = newFootprintService(serviceName, size, titleLength);
+        long after = usedHeap();
+        sink += service.getBookCount();
+        discardService(service);
+        return (double) (after - before) / size;
+    }
+    
+    private LibraryService newFootprintService(String serviceName, int size, int titleLength) {
+        SyntheticCatalog catalog = new SyntheticCatalog(seed, size, DEFAULT_SELECTIVITY);
+        List<Book> books = catalog.books();
+        if (titleLength > 0) {
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                StringBuilder title = new StringBuilder(book.getTitle());
+                while (title.length() < titleLength) {
+                    title.append(' ').append(book.getTitle());
+                }
+                title.setLength(titleLength);
+                books.set(i, new Book(book.getBookId(), title.toString(), book.getAuthor(), book.getQuantity()));
+            }
+        }
+        return newService(serviceName, books);
+    }
+    
+    /**
+     * Gets the heap in use after full collections, taking the lowest of a few readings
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+    
+    /**
+     * Runs the warmup and measured iterations of one configuration in this JVM
+     * @return The measured iterations
+     */
+    private List<Iteration> run(Configuration configuration) {
+        if (configuration.size < 1) {
+            throw new IllegalArgumentException("Catalog size must be at least 1");
+        }
+        SyntheticCatalog catalog = new SyntheticCatalog(seed, configuration.size, configuration.selectivity);
+        Workload workload;
+        if (configuration.benchmark.batched) {
+            workload = new BatchWorkload(configuration, catalog);
+        } else if (configuration.benchmark == Benchmark.ADD_BOOK_LOOP || configuration.benchmark == Benchmark.ADD_BOOKS) {
+            workload = new LoadWorkload(configuration, catalog);
+        } else if (configuration.benchmark == Benchmark.CHECKOUT_RETURN
+                   || configuration.benchmark == Benchmark.CHECKOUT_RETURN_HOT) {
+            workload = new CheckoutWorkload(configuration, catalog);
+        } else {
+            workload = new SteadyWorkload(configuration, catalog);
+        }
+        
+        List<Iteration> iterations = new ArrayList<>();
+        for (int i = 0; i < warmupIterations + measuredIterations; i++) {
+            Iteration iteration = workload.iterate();
+            if (i >= warmupIterations) {
+                iterations.add(iteration);
+            }
+        }
+        workload.finish();
+        return iterations;
+    }
+    
+    /**
+     * Builds a catalog holding the given books
+     */
+    private static LibraryService newService(String name, List<Book> books) {
+        int expectedBooks = books.size() + MAX_BATCH;
+        LibraryService service;
+        switch (name) {
+            case "impl":
+                service = new LibraryServiceImpl(expectedBooks);
+                break;
+            case "compact":
+                service = new CompactLibraryService(expectedBooks);
+                break;
+            case "sharded":
+                service = new ShardedLibraryService(SHARD_COUNT, expectedBooks, LibraryServiceImpl::new);
+                break;
+            case "caching":
+                service = new CachingLibraryService(new LibraryServiceImpl(expectedBooks));
+                break;
+            case "locked":
+                service = new LockedCheckoutService(expectedBooks);
+                break;
+            case "instrumented":
+                service = new InstrumentedLibraryService(new LibraryServiceImpl(expectedBooks));
+                break;
+            case "sampled":
+                service = new InstrumentedLibraryService(new LibraryServiceImpl(expectedBooks), INSTRUMENTATION_SAMPLE_INTERVAL);
+                break;
+            case "btree":
+                service = newDiskService();
+                break;
+            default:
+                if (!name.startsWith(STORE_SERVICE_PREFIX)) {
+                    throw new IllegalArgumentException("Unknown service: " + name);
+                }
+                service = newStoreService(name.substring(STORE_SERVICE_PREFIX.length()), expectedBooks);
+                break;
+        }
+        service.addBooks(books);
+        return service;
+    }
+    
+    /**
+     * Builds an empty catalog written through to a record store in a new temporary directory
+     */
+    private static LibraryService newStoreService(String engine, int expectedBooks) {
+        try {
+            Path directory = Files.createTempDirectory("library-benchmark-");
+            RecordStore<String, Book> store = RecordStores.open(engine, directory, "books", new BookCodec());
+            LibraryService service = new StoredLibraryService(store, ignored -> new LibraryServiceImpl(expectedBooks));
+            storeDirectories.put(service, directory);
+            return service;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a store for the benchmark", e);
+        }
+    }
+    
+    /**
+     * Builds an empty catalog in a B+tree file in a new temporary directory
+     */
+    private static LibraryService newDiskService() {
+        try {
+            Path directory = Files.createTempDirectory("library-benchmark-");
+            LibraryService service = new DiskLibraryService(directory.resolve("books.btree"));
+            storeDirectories.put(service, directory);
+            return service;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a B+tree for the benchmark", e);
+        }
+    }
+    
+    /**
+     * Closes a catalog that is no longer used and deletes its files, if it has any
+     */
+    private static void discardService(LibraryService service) {
+        Path directory = storeDirectories.remove(service);
+        if (directory == null) {
+            return;
+        }
+        try {
+            ((Closeable) service).close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete benchmark store " + directory, e);
+        }
+    }
+    
+    /**
+     * Runs the operations of one benchmark and measures them
+     */
+    private abstract class Workload {
+        final Configuration configuration;
+        final SyntheticCatalog catalog;
+        final SplittableRandom random;
+        
+        Workload(Configuration configuration, SyntheticCatalog catalog) {
+            this.configuration = configuration;
+            this.catalog = catalog;
+            this.random = new SplittableRandom(seed);
+        }
+        
+        abstract Iteration iterate();
+        
+        /**
+         * Releases the catalogs kept between iterations
+         */
+        void finish() {
+        }
+        
+        boolean hit() {
+            return random.nextDouble() < configuration.hitRatio;
+        }
+        
+        long allocatedBytes() {
+            long total = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                total += Math.max(0, bytes);
+            }
+            return total;
+        }
+        
+        long gcCount() {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionCount());
+            }
+            return total;
+        }
+        
+        long gcMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : collectors) {
+                total += Math.max(0, collector.getCollectionTime());
+            }
+            return total;
+        }
+    }
+    
+    /**
+     * Repeats an operation on one catalog until the iteration time is up
+     */
+    private final class SteadyWorkload extends Workload {
+        private final LibraryService service;
+        private final String[] keys = new String[KEY_COUNT];
+        // For updateBook: two versions of each key's book, alternated on every pass over the keys
+        private final Book[][] updates = new Book[2][KEY_COUNT];
+        
+        SteadyWorkload(Configuration configuration, SyntheticCatalog catalog) {
+            super(configuration, catalog);
+            this.service = newService(configuration.service, catalog.books());
+            for (int i = 0; i < KEY_COUNT; i++) {
+                switch (configuration.benchmark) {
+                    case SEARCH_BOOK_BY_TITLE:
+                        keys[i] = hit() ? catalog.titleQuery(random.nextInt(catalog.getGroupCount())) : catalog.missingQuery();
+                        break;
+                    case GET_BOOKS_BY_AUTHOR:
+                        keys[i] = hit() ? catalog.authorQuery(random.nextInt(catalog.getGroupCount())) : catalog.missingQuery();
+                        break;
+                    case UPDATE_BOOK:
+                        Book original = hit()
+                                ? catalog.book(random.nextInt(catalog.getSize()))
+                                : new Book(catalog.missingBookId(i), "Missing", "Nobody", 1);
+                        keys[i] = original.getBookId();
+                        updates[0][i] = new Book(original.getBookId(), original.getTitle() + " Revised",
+                                                 original.getAuthor(), original.getQuantity());
+                        updates[1][i] = original;
+                        break;
+                    default:
+                        keys[i] = hit() ? catalog.bookId(random.nextInt(catalog.getSize())) : catalog.missingBookId(i);
+                        break;
+                }
+            }
+        }
+        
+        @Override
+        void finish() {
+            discardService(service);
+        }
+        
+        @Override
+        Iteration iterate() {
+            long allocatedBefore = allocatedBytes();
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+            long start = System.nanoTime();
+            long deadline = start + iterationNanos;
+            long operations = 0;
+            
+            // Read the clock once per round, doubling the round until it lasts about a millisecond
+            int round = 1;
+            long now = start;
+            while (now < deadline) {
+                long roundStart = now;
+                for (int i = 0; i < round; i++) {
+                    invoke(operations++);
+                }
+                now = System.nanoTime();
+                if (now - roundStart < TimeUnit.MILLISECONDS.toNanos(1) && round < (1 << 20)) {
+                    round <<= 1;
+                }
+            }
+            
+            return new Iteration(now - start, operations, allocatedBytes() - allocatedBefore,
+                                 gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        }
+        
+        private void invoke(long operation) {
+            int key = (int) operation & (KEY_COUNT - 1);
+            switch (configuration.benchmark) {
+                case SEARCH_BOOK_BY_ID:
+                    sink += service.searchBookById(keys[key]).isPresent() ? 1 : 0;
+                    break;
+                case SEARCH_BOOK_BY_TITLE:
+                    sink += service.searchBookByTitle(keys[key]).size();
+                    break;
+                case GET_BOOKS_BY_AUTHOR:
+                    sink += service.getBooksByAuthor(keys[key]).size();
+                    break;
+                case UPDATE_BOOK:
+                    sink += service.updateBook(keys[key], updates[(int) (operation / KEY_COUNT) & 1][key]) ? 1 : 0;
+                    break;
+                case GET_LOW_QUANTITY_BOOKS:
+                    sink += service.getLowQuantityBooks(SyntheticCatalog.LOW_QUANTITY_THRESHOLD).size();
+                    break;
+                default:
+                    throw new IllegalStateException("Not a steady benchmark: " + configuration.benchmark.name);
+            }
+        }
+    }
+    
+    /**
+     * Loads the whole catalog into an empty one, book by book or in one batch, until the iteration
+     * time is up. At least one load runs.
+     */
+    private final class LoadWorkload extends Workload {
+        private final List<Book> books;
+        
+        LoadWorkload(Configuration configuration, SyntheticCatalog catalog) {
+            super(configuration, catalog);
+            this.books = catalog.books();
+        }
+        
+        @Override
+        Iteration iterate() {
+            long nanos = 0;
+            long operations = 0;
+            long allocatedBytes = 0;
+            long gcCount = 0;
+            long gcMillis = 0;
+            long deadline = System.nanoTime() + iterationNanos;
+            do {
+                LibraryService service = newService(configuration.service, List.of());
+                System.gc();
+                
+                long allocatedBefore = allocatedBytes();
+                long gcCountBefore = gcCount();
+                long gcMillisBefore = gcMillis();
+                long start = System.nanoTime();
+                if (configuration.benchmark == Benchmark.ADD_BOOK_LOOP) {
+                    for (Book book : books) {
+                        service.addBook(book);
+                    }
+                } else {
+                    service.addBooks(books);
+                }
+                nanos += System.nanoTime() - start;
+                allocatedBytes += allocatedBytes() - allocatedBefore;
+                gcCount += gcCount() - gcCountBefore;
+                gcMillis += gcMillis() - gcMillisBefore;
+                operations += books.size();
+                sink += service.getBookCount();
+                discardService(service);
+            } while (System.nanoTime() < deadline);
+            return new Iteration(nanos, operations, allocatedBytes, gcCount, gcMillis);
+        }
+    }
+    
+    /**
+     * Runs checkouts and returns on several threads at once until the iteration time is up
+     */
+    private final class CheckoutWorkload extends Workload {
+        private final LibraryService service;
+        private final String[] keys = new String[KEY_COUNT];
+        
+        CheckoutWorkload(Configuration configuration, SyntheticCatalog catalog) {
+            super(configuration, catalog);
+            this.service = newService(configuration.service, catalog.books());
+            boolean hot = configuration.benchmark == Benchmark.CHECKOUT_RETURN_HOT;
+            for (int i = 0; i < KEY_COUNT; i++) {
+                keys[i] = hot ? catalog.bookId(0) : catalog.bookId(random.nextInt(catalog.getSize()));
+                Book book = service.searchBookById(keys[i]).orElseThrow();
+                service.updateBook(keys[i], new Book(keys[i], book.getTitle(), book.getAuthor(), CHECKOUT_STOCK));
+            }
+        }
+        
+        @Override
+        void finish() {
+            discardService(service);
+        }
+        
+        @Override
+        Iteration iterate() {
+            long[] operations = new long[threadCount];
+            long[] sinks = new long[threadCount];
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>(threadCount);
+            for (int t = 0; t < threadCount; t++) {
+                int worker = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long deadline = System.nanoTime() + iterationNanos;
+                    // Threads start at different keys so that, spread out, they rarely meet
+                    int key = worker * (KEY_COUNT / threadCount);
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            String bookId = keys[key++ & (KEY_COUNT - 1)];
+                            if (service.checkout(bookId, 1)) {
+                                sinks[worker] += service.returnBook(bookId, 1) ? 1 : 0;
+                            }
+                        }
+                        count += 256;
+                    }
+                    operations[worker] = count;
+                }, "benchmark-checkout-" + t);
+                workers.add(thread);
+                thread.start();
+            }
+            
+            long allocatedBefore = allocatedBytes();
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : workers) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the checkout threads", e);
+                }
+            }
+            long nanos = System.nanoTime() - begin;
+            
+            long total = 0;
+            for (int t = 0; t < threadCount; t++) {
+                total += operations[t];
+                sink += sinks[t];
+            }
+            return new Iteration(nanos, total, allocatedBytes() - allocatedBefore,
+                                 gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        }
+    }
+    
+    /**
+     * LibraryServiceImpl with checkout and return made the way quantity changes were made before
+     * Book had compare-and-set: under a lock on the book, reading the quantity and then setting it.
+     * The checkout benchmarks compare it with the lock-free path.
+     */
+    private static final class LockedCheckoutService extends LibraryServiceImpl {
+        
+        LockedCheckoutService(int expectedBooks) {
+            super(expectedBooks);
+        }
+        
+        @Override
+        public boolean checkout(String bookId, int copies) {
+            Book book = searchBookById(bookId).orElse(null);
+            if (book == null) {
+                return false;
+            }
+            synchronized (book) {
+                int quantity = book.getQuantity();
+                if (quantity < copies) {
+                    return false;
+                }
+                book.setQuantity(quantity - copies);
+                return true;
+            }
+        }
+        
+        @Override
+        public boolean returnBook(String bookId, int copies) {
+            Book book = searchBookById(bookId).orElse(null);
+            if (book == null) {
+                return false;
+            }
+            synchronized (book) {
+                book.setQuantity(book.getQuantity() + copies);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Runs batches of adds or deletes, each on a newly built catalog, until the iteration time is
+     * up. At least one batch runs, however long building the catalog takes.
+     */
+    private final class BatchWorkload extends Workload {
+        private final List<Book> books;
+        private final Book[] additions;
+        private final String[] deletions;
+        
+        BatchWorkload(Configuration configuration, SyntheticCatalog catalog) {
+            super(configuration, catalog);
+            this.books = catalog.books();
+            int batchSize = Math.max(1, Math.min(MAX_BATCH, catalog.getSize() / 10));
+            this.additions = new Book[batchSize];
+            this.deletions = new String[batchSize];
+            
+            Set<Integer> deleted = new HashSet<>();
+            for (int i = 0; i < batchSize; i++) {
+                additions[i] = catalog.book(catalog.getSize() + i);
+                if (hit()) {
+                    int index;
+                    do {
+                        index = random.nextInt(catalog.getSize());
+                    } while (!deleted.add(index));
+                    deletions[i] = catalog.bookId(index);
+                } else {
+                    deletions[i] = catalog.missingBookId(i);
+                }
+            }
+        }
+        
+        @Override
+        Iteration iterate() {
+            long nanos = 0;
+            long operations = 0;
+            long allocatedBytes = 0;
+            long gcCount = 0;
+            long gcMillis = 0;
+            long deadline = System.nanoTime() + iterationNanos;
+            do {
+                // Building the catalog is not measured; collect its garbage before the batch starts
+                LibraryService service = newService(configuration.service, books);
+                System.gc();
+                
+                long allocatedBefore = allocatedBytes();
+                long gcCountBefore = gcCount();
+                long gcMillisBefore = gcMillis();
+                long start = System.nanoTime();
+                if (configuration.benchmark == Benchmark.ADD_BOOK) {
+                    for (Book book : additions) {
+                        service.addBook(book);
+                    }
+                } else {
+                    for (String bookId : deletions) {
+                        sink += service.deleteBook(bookId) ? 1 : 0;
+                    }
+                }
+                nanos += System.nanoTime() - start;
+                allocatedBytes += allocatedBytes() - allocatedBefore;
+                gcCount += gcCount() - gcCountBefore;
+                gcMillis += gcMillis() - gcMillisBefore;
+                operations += configuration.benchmark == Benchmark.ADD_BOOK ? additions.length : deletions.length;
+                sink += service.getBookCount();
+                discardService(service);
+            } while (System.nanoTime() < deadline);
+            return new Iteration(nanos, operations, allocatedBytes, gcCount, gcMillis);
+        }
+    }
+    
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+    
+    private static List<String> listOption(String[] args, String name, String defaultValue) {
+        return Arrays.asList(optionValue(args, name, defaultValue).split(","));
+    }
+    
+    private static String optionValue(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,492 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibraryHttpServer class exposes a LibraryService over HTTP, so several clients can share one catalog.
+ * Uses only the HTTP server built into the JDK. Connections are kept alive between requests, and
+ * requests sent back to back on one connection are answered in order.
+ *
+ * Each request runs on its own virtual thread when the runtime has them (Java 21 and later);
+ * otherwise requests run on a small fixed pool, since handlers only block on the catalog itself.
+ *
+ * Requests pass parameters in the query string or as a form-encoded body; responses are JSON.
+ * <pre>
+ * GET    /books?after=ID&amp;limit=N        page of books in ID order
+ * GET    /books?title=T | author=A | q=KEYWORDS | low=N
+ * GET    /books?ids=ID1,ID2,...             books in the order asked, null where not found
+ * POST   /books                          id, title, author, quantity
+ * GET    /books/{id}
+ * PUT    /books/{id}                     any of id, title, author, quantity
+ * DELETE /books/{id}
+ * POST   /books/{id}/checkout?copies=N
+ * POST   /books/{id}/return?copies=N
+ * GET    /stats
+ * </pre>
+ */
+public class LibraryHttpServer implements Closeable {
+    
+    // Books per page, and results per search, unless the request asks for fewer
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 1000;
+    
+    // Quantity at or below which /stats counts a book as low on stock, as the console does
+    private static final int LOW_QUANTITY_THRESHOLD = 5;
+    
+    // Pending connections queued by the operating system before they are accepted
+    private static final int BACKLOG = 4096;
+    
+    // The JDK server closes keep-alive connections beyond 200 that are idle between requests
+    private static final String MAX_IDLE_CONNECTIONS_PROPERTY = "sun.net.httpserver.maxIdleConnections";
+    private static final int MAX_IDLE_CONNECTIONS = 100_000;
+    
+    // The JDK server writes headers and body separately; with Nagle's algorithm on, the body then
+    // waits for the client's delayed acknowledgement, adding about 40 ms to every response
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    
+    private final LibraryService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    
+    /**
+     * Creates a server; call start to begin accepting requests
+     * @param service Catalog to serve
+     * @param address Address to listen on; port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     */
+    public LibraryHttpServer(LibraryService service, InetSocketAddress address) throws IOException {
+        this.service = service;
+        
+        // Read once when the first server is created; explicit settings are left alone
+        if (System.getProperty(MAX_IDLE_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(MAX_IDLE_CONNECTIONS_PROPERTY, String.valueOf(MAX_IDLE_CONNECTIONS));
+        }
+        if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+        this.server = HttpServer.create(address, BACKLOG);
+        
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualExecutor != null;
+        this.executor = virtualThreads
+                ? virtualExecutor
+                : Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        
+        server.setExecutor(executor);
+        server.createContext("/books", this::handleBooks);
+        server.createContext("/stats", this::handleStats);
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /**
+     * Tells whether requests run on virtual threads
+     * @return true on runtimes with virtual threads, false if a thread pool is used instead
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Stops accepting requests, gives running ones a second to finish, then stops the threads
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void handleBooks(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = readParameters(exchange);
+            
+            // Path is /books, /books/{id} or /books/{id}/{action}
+            String[] path = exchange.getRequestURI().getRawPath().split("/");
+            String bookId = path.length > 2 ? decode(path[2]) : null;
+            String action = path.length > 3 ? path[3] : null;
+            
+            if (path.length > 4 || (bookId != null && bookId.trim().isEmpty())) {
+                send(exchange, 404, error("Not found"));
+            } else if (bookId == null) {
+                switch (method) {
+                    case "GET":
+                        listBooks(exchange, params);
+                        break;
+                    case "POST":
+                        addBook(exchange, params);
+                        break;
+                    default:
+                        send(exchange, 405, error("Use GET or POST on /books"));
+                }
+            } else if (action == null) {
+                switch (method) {
+                    case "GET":
+                        getBook(exchange, bookId);
+                        break;
+                    case "PUT":
+                        updateBook(exchange, bookId, params);
+                        break;
+                    case "DELETE":
+                        deleteBook(exchange, bookId);
+                        break;
+                    default:
+                        send(exchange, 405, error("Use GET, PUT or DELETE on a book"));
+                }
+            } else if (!method.equals("POST")) {
+                send(exchange, 405, error("Use POST to " + action + " a book"));
+            } else if (action.equals("checkout") || action.equals("return")) {
+                changeQuantity(exchange, bookId, action.equals("checkout"), params);
+            } else {
+                send(exchange, 404, error("Not found"));
+            }
+        } catch (DuplicateBookException e) {
+            // Checked by the catalog while it makes the change, so a concurrent request cannot slip in
+            send(exchange, 409, error(e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } catch (UnsupportedOperationException e) {
+            // Read-only catalogs, such as a mapped image, reject changes
+            send(exchange, 405, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            send(exchange, 500, error("Internal error: " + e));
+        }
+    }
+    
+    private void handleStats(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET on /stats"));
+            return;
+        }
+        
+        // Read every figure from one version of the catalog so they agree with each other
+        CatalogSnapshot snapshot = service.snapshot();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"books\":").append(snapshot.getBookCount())
+            .append(",\"totalQuantity\":").append(snapshot.getTotalQuantity())
+            .append(",\"lowQuantityBooks\":").append(snapshot.getLowQuantityBooks(LOW_QUANTITY_THRESHOLD).size());
+        LibraryService layer = service;
+        if (layer instanceof InstrumentedLibraryService) {
+            json.append(",\"operations\":{");
+            List<InstrumentedLibraryService.OperationStats> operations = ((InstrumentedLibraryService) layer).getCalledOperations();
+            for (int i = 0; i < operations.size(); i++) {
+                InstrumentedLibraryService.OperationStats stats = operations.get(i);
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendString(json, stats.getOperation());
+                json.append(":{\"count\":").append(stats.getCount())
+                    .append(",\"errors\":").append(stats.getErrorCount())
+                    .append(",\"meanMicros\":").append(stats.getMeanMicros())
+                    .append(",\"p99Micros\":").append(stats.getP99Micros())
+                    .append(",\"maxMicros\":").append(stats.getMaxMicros()).append('}');
+            }
+            json.append('}');
+            layer = ((InstrumentedLibraryService) layer).getDelegate();
+        }
+        if (layer instanceof CachingLibraryService) {
+            CachingLibraryService cache = (CachingLibraryService) layer;
+            json.append(",\"cacheHitRate\":").append(cache.getHitRate())
+                .append(",\"cacheEvictions\":").append(cache.getEvictionCount());
+            layer = cache.getDelegate();
+        }
+        if (layer instanceof ReplicationLeader) {
+            ReplicationLeader leader = (ReplicationLeader) layer;
+            json.append(",\"replication\":{\"role\":\"leader\",\"sequence\":").append(leader.getSequence())
+                .append(",\"followers\":").append(leader.getFollowerCount())
+                .append(",\"maxFollowerLagChanges\":").append(leader.getMaxFollowerLag()).append('}');
+        } else if (layer instanceof ReplicaLibraryService) {
+            ReplicaLibraryService replica = (ReplicaLibraryService) layer;
+            json.append(",\"replication\":{\"role\":\"replica\",\"connected\":").append(replica.isConnected())
+                .append(",\"position\":").append(replica.getPosition())
+                .append(",\"lagChanges\":").append(replica.getLagChanges())
+                .append(",\"lagMillis\":").append(replica.getLagMillis()).append('}');
+        }
+        send(exchange, 200, json.append('}').toString());
+    }
+    
+    private void listBooks(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int limit = parseInt(params, "limit", DEFAULT_LIMIT, 1, MAX_LIMIT);
+        
+        List<Book> books;
+        String nextCursor = null;
+        if (params.containsKey("ids")) {
+            // One lookup for the whole list instead of a round trip per book
+            List<String> bookIds = Arrays.asList(params.get("ids").split(","));
+            if (bookIds.size() > MAX_LIMIT) {
+                throw new IllegalArgumentException("At most " + MAX_LIMIT + " IDs can be looked up at once");
+            }
+            books = service.getBooksByIds(bookIds);
+            limit = bookIds.size();
+        } else if (params.containsKey("title")) {
+            books = service.searchBookByTitle(params.get("title"));
+        } else if (params.containsKey("author")) {
+            books = service.getBooksByAuthor(params.get("author"));
+        } else if (params.containsKey("q")) {
+            books = service.searchRanked(params.get("q"), limit);
+        } else if (params.containsKey("low")) {
+            books = service.getLowQuantityBooks(parseInt(params, "low", 0, 0, Integer.MAX_VALUE));
+        } else {
+            BookPage page = service.getBooksPage(params.get("after"), limit);
+            books = page.getBooks();
+            nextCursor = page.getNextCursor();
+        }
+        
+        StringBuilder json = new StringBuilder("{\"books\":[");
+        int count = Math.min(books.size(), limit);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendBook(json, books.get(i));
+        }
+        json.append("],\"total\":").append(books.size());
+        if (nextCursor != null) {
+            json.append(",\"next\":");
+            appendString(json, nextCursor);
+        }
+        send(exchange, 200, json.append('}').toString());
+    }
+    
+    private void addBook(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Book book = new Book(required(params, "id"), required(params, "title"), required(params, "author"),
+                             parseInt(params, "quantity", -1, 0, Integer.MAX_VALUE));
+        service.addBook(book);
+        send(exchange, 201, bookJson(book));
+    }
+    
+    private void getBook(HttpExchange exchange, String bookId) throws IOException {
+        Optional<Book> book = service.searchBookById(bookId);
+        if (book.isPresent()) {
+            send(exchange, 200, bookJson(book.get()));
+        } else {
+            send(exchange, 404, error("Book " + bookId + " not found"));
+        }
+    }
+    
+    private void updateBook(HttpExchange exchange, String bookId, Map<String, String> params) throws IOException {
+        Optional<Book> current = service.searchBookById(bookId);
+        if (!current.isPresent()) {
+            send(exchange, 404, error("Book " + bookId + " not found"));
+            return;
+        }
+        
+        // Fields left out keep their current values, as in the console
+        Book book = current.get();
+        Book updated = new Book(optional(params, "id", book.getBookId()),
+                                optional(params, "title", book.getTitle()),
+                                optional(params, "author", book.getAuthor()),
+                                parseInt(params, "quantity", book.getQuantity(), 0, Integer.MAX_VALUE));
+        if (service.updateBook(bookId, updated)) {
+            send(exchange, 200, bookJson(updated));
+        } else {
+            send(exchange, 404, error("Book " + bookId + " not found"));
+        }
+    }
+    
+    private void deleteBook(HttpExchange exchange, String bookId) throws IOException {
+        if (service.deleteBook(bookId)) {
+            send(exchange, 204, null);
+        } else {
+            send(exchange, 404, error("Book " + bookId + " not found"));
+        }
+    }
+    
+    private void changeQuantity(HttpExchange exchange, String bookId, boolean checkout,
+                                Map<String, String> params) throws IOException {
+        int copies = parseInt(params, "copies", 1, 1, Integer.MAX_VALUE);
+        boolean done = checkout ? service.checkout(bookId, copies) : service.returnBook(bookId, copies);
+        if (done) {
+            Optional<Book> book = service.searchBookById(bookId);
+            send(exchange, 200, book.isPresent() ? bookJson(book.get()) : "{}");
+        } else if (!service.bookExists(bookId)) {
+            send(exchange, 404, error("Book " + bookId + " not found"));
+        } else {
+            send(exchange, 409, error("Not enough copies of " + bookId + " available"));
+        }
+    }
+    
+    /**
+     * Reads the query string and, for form posts, the body into one map; body values win
+     */
+    private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        
+        // Read the body even when it is not used, so the connection can carry the next request
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readAllBytes();
+            if (bytes.length > 0) {
+                parseForm(new String(bytes, StandardCharsets.UTF_8), params);
+            }
+        }
+        return params;
+    }
+    
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+            } else if (!pair.isEmpty()) {
+                params.put(decode(pair), "");
+            }
+        }
+    }
+    
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+    
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("Parameter '" + name + "' is required");
+        }
+        return value.trim();
+    }
+    
+    private static String optional(Map<String, String> params, String name, String defaultValue) {
+        String value = params.get(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+    
+    /**
+     * Gets a whole number parameter
+     * @param defaultValue Value if the parameter is absent; a negative default makes it required
+     * @throws IllegalArgumentException if the value is not a number in [min, max]
+     */
+    private static int parseInt(Map<String, String> params, String name, int defaultValue, int min, int max) {
+        String value = params.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            if (defaultValue < 0) {
+                throw new IllegalArgumentException("Parameter '" + name + "' is required");
+            }
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number < min || number > max) {
+                throw new IllegalArgumentException("Parameter '" + name + "' must be between " + min + " and " + max);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter '" + name + "' must be a whole number");
+        }
+    }
+    
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        if (json == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private static String bookJson(Book book) {
+        StringBuilder json = new StringBuilder();
+        appendBook(json, book);
+        return json.toString();
+    }
+    
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        return json.append('}').toString();
+    }
+    
+    private static void appendBook(StringBuilder json, Book book) {
+        if (book == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"id\":");
+        appendString(json, book.getBookId());
+        json.append(",\"title\":");
+        appendString(json, book.getTitle());
+        json.append(",\"author\":");
+        appendString(json, book.getAuthor());
+        json.append(",\"quantity\":").append(book.getQuantity()).append('}');
+    }
+    
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+    
+    /**
+     * Creates an executor that starts a virtual thread per task, looked up reflectively so the
+     * server also compiles and runs on runtimes without virtual threads
+     * @return The executor, or null if the runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
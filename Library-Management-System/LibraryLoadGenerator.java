@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibraryLoadGenerator class measures the throughput and latency of a LibraryHttpServer.
+ *
+ * One thread drives every connection through a selector, so thousands of connections need no
+ * more than one client thread. Each connection stays open and keeps a fixed number of requests
+ * in flight, sending the next request as soon as a response arrives. Most requests look a book
+ * up by ID; the rest check a copy out or return it, add or delete a book, or scan the catalog with
+ * a title or low-quantity search, so searches run while the catalog's list of books is changing.
+ *
+ * Usage: java LibraryLoadGenerator [--host localhost] [--port 8080] [--connections 1000]
+ *        [--pipeline 1] [--books 1000] [--warmup 5] [--seconds 20]
+ */
+public class LibraryLoadGenerator {
+    
+    // Share of requests that check a copy out or return it, that add or delete one of a separate
+    // set of books, and that search the whole catalog; the rest are lookups by ID
+    private static final int UPDATE_PERCENT = 10;
+    private static final int CHURN_PERCENT = 2;
+    private static final int SCAN_PERCENT = 2;
+    
+    // Connections opened per selector round while connecting, to stay within the accept backlog
+    private static final int CONNECT_BATCH = 500;
+    
+    private static final String BOOK_ID_PREFIX = "LOAD-";
+    private static final String CHURN_ID_PREFIX = "CHURN-";
+    
+    private final String host;
+    private final int port;
+    private final int books;
+    private final int pipeline;
+    
+    // Latencies in nanoseconds of the responses received while measuring
+    private long[] latencies = new long[1 << 20];
+    private int latencyCount;
+    private long errors;
+    private String firstError;
+    private boolean measuring;
+    
+    private LibraryLoadGenerator(String host, int port, int books, int pipeline) {
+        this.host = host;
+        this.port = port;
+        this.books = books;
+        this.pipeline = pipeline;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        String host = optionValue(args, "--host", "localhost");
+        int port = Integer.parseInt(optionValue(args, "--port", "8080"));
+        int connections = Integer.parseInt(optionValue(args, "--connections", "1000"));
+        int pipeline = Integer.parseInt(optionValue(args, "--pipeline", "1"));
+        int books = Integer.parseInt(optionValue(args, "--books", "1000"));
+        int warmupSeconds = Integer.parseInt(optionValue(args, "--warmup", "5"));
+        int seconds = Integer.parseInt(optionValue(args, "--seconds", "20"));
+        
+        LibraryLoadGenerator generator = new LibraryLoadGenerator(host, port, books, pipeline);
+        generator.addBooks();
+        System.out.println("Opening " + connections + " connections with " + pipeline + " request(s) in flight each");
+        generator.run(connections, warmupSeconds, seconds);
+    }
+    
+    /**
+     * Adds the books the requests refer to, skipping those that already exist
+     */
+    private void addBooks() throws IOException {
+        int added = 0;
+        for (int i = 0; i < books; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http", host, port, "/books").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(("id=" + BOOK_ID_PREFIX + i + "&title=Load+Test+Book+" + i
+                           + "&author=Load+Generator&quantity=1000000").getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    in.readAllBytes();
+                }
+            }
+            if (status == 201) {
+                added++;
+            } else if (status != 409) {
+                throw new IOException("Adding book " + i + " failed with status " + status);
+            }
+        }
+        System.out.println("Added " + added + " book(s); " + (books - added) + " already existed");
+    }
+    
+    private void run(int connectionCount, int warmupSeconds, int seconds) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        try (Selector selector = Selector.open()) {
+            int opened = 0;
+            int connected = 0;
+            long start = System.nanoTime();
+            long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+            long measuredStart = 0;
+            long measuredRequests = 0;
+            long[] completed = new long[1];
+            
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < CONNECT_BATCH && opened < connectionCount; i++, opened++) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.connect(address);
+                    channel.register(selector, SelectionKey.OP_CONNECT, new Connection(channel, pipeline));
+                }
+                
+                long now = System.nanoTime();
+                if (!measuring && now >= measureStart) {
+                    measuring = true;
+                    measuredStart = now;
+                    measuredRequests = completed[0];
+                    System.out.println(connected + " connection(s) open; measuring for " + seconds + " s");
+                }
+                
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable() && connection.channel.finishConnect()) {
+                            connected++;
+                            for (int i = 0; i < pipeline; i++) {
+                                connection.queueRequest(nextRequest());
+                            }
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            completed[0] += read(key, connection);
+                        }
+                        if (key.isValid() && key.isWritable() && connection.flush()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } catch (IOException e) {
+                        errors++;
+                        if (firstError == null) {
+                            firstError = e.toString();
+                        }
+                        key.cancel();
+                        connection.channel.close();
+                        connected--;
+                    }
+                }
+            }
+            
+            long elapsed = System.nanoTime() - measuredStart;
+            report(connected, completed[0] - measuredRequests, elapsed);
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+    }
+    
+    /**
+     * Reads what has arrived on a connection and answers each complete response with a new request
+     * @return Number of complete responses read
+     */
+    private int read(SelectionKey key, Connection connection) throws IOException {
+        if (!connection.fill()) {
+            throw new IOException("Server closed the connection");
+        }
+        int responses = 0;
+        int status;
+        while ((status = connection.nextResponse()) != 0) {
+            long latency = System.nanoTime() - connection.takeSendTime();
+            if (status >= 500 || status == 400) {
+                errors++;
+            }
+            if (measuring) {
+                recordLatency(latency);
+            }
+            responses++;
+            connection.queueRequest(nextRequest());
+        }
+        if (responses > 0 && !connection.flush()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return responses;
+    }
+    
+    private byte[] nextRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String bookId = BOOK_ID_PREFIX + random.nextInt(books);
+        String request;
+        int kind = random.nextInt(100);
+        if (kind < UPDATE_PERCENT / 2) {
+            request = "POST /books/" + bookId + "/checkout HTTP/1.1\r\nHost: " + host + "\r\nContent-Length: 0\r\n\r\n";
+        } else if (kind < UPDATE_PERCENT) {
+            request = "POST /books/" + bookId + "/return HTTP/1.1\r\nHost: " + host + "\r\nContent-Length: 0\r\n\r\n";
+        } else if (kind < UPDATE_PERCENT + CHURN_PERCENT) {
+            // Adds and deletes of the same few IDs; a 409 or 404 for a book already added or
+            // deleted is expected
+            String churnId = CHURN_ID_PREFIX + random.nextInt(Math.max(1, books / 10));
+            if (random.nextBoolean()) {
+                request = "POST /books?id=" + churnId + "&title=Churn+Book&author=Load+Generator&quantity=1 HTTP/1.1\r\n"
+                          + "Host: " + host + "\r\nContent-Length: 0\r\n\r\n";
+            } else {
+                request = "DELETE /books/" + churnId + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+            }
+        } else if (kind < UPDATE_PERCENT + CHURN_PERCENT + SCAN_PERCENT) {
+            String query = random.nextBoolean() ? "title=Book+" + random.nextInt(books) : "low=1";
+            request = "GET /books?" + query + "&limit=10 HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+        } else {
+            request = "GET /books/" + bookId + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n";
+        }
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    private void recordLatency(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+    
+    private void report(int connections, long requests, long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println("Connections open:  " + connections);
+        System.out.println("Requests:          " + requests + " in " + String.format("%.1f", seconds) + " s");
+        System.out.printf("Throughput:        %.0f requests/s%n", requests / seconds);
+        System.out.println("Errors:            " + errors + (firstError == null ? "" : " (first: " + firstError + ")"));
+        if (sorted.length > 0) {
+            System.out.printf("Latency (ms):      p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                              percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                              percentile(sorted, 99.9), sorted[sorted.length - 1] / 1e6);
+        }
+    }
+    
+    private static double percentile(long[] sorted, double percent) {
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+    
+    private static String optionValue(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * One client connection: requests waiting to be written, the send times of requests still
+     * waiting for a response, and response bytes not yet parsed
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final long[] sendTimes;
+        private int firstSendTime;
+        private int pendingCount;
+        private ByteBuffer out = ByteBuffer.allocate(1024);
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        
+        Connection(SocketChannel channel, int pipeline) {
+            this.channel = channel;
+            this.sendTimes = new long[pipeline];
+        }
+        
+        void queueRequest(byte[] request) {
+            if (out.remaining() < request.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + request.length));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(request);
+            sendTimes[(firstSendTime + pendingCount) % sendTimes.length] = System.nanoTime();
+            pendingCount++;
+        }
+        
+        long takeSendTime() {
+            long sendTime = sendTimes[firstSendTime];
+            firstSendTime = (firstSendTime + 1) % sendTimes.length;
+            pendingCount--;
+            return sendTime;
+        }
+        
+        /**
+         * Writes as much of the queued requests as the socket takes
+         * @return true if nothing is left to write
+         */
+        boolean flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean empty = !out.hasRemaining();
+            out.compact();
+            return empty;
+        }
+        
+        /**
+         * Reads available bytes into the input buffer
+         * @return false if the server closed the connection
+         */
+        boolean fill() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+            return channel.read(in) >= 0;
+        }
+        
+        /**
+         * Removes one complete response from the input buffer
+         * @return Its status code, or 0 if no complete response has arrived yet
+         */
+        int nextResponse() {
+            byte[] bytes = in.array();
+            int length = in.position();
+            int headerEnd = -1;
+            for (int i = 3; i < length; i++) {
+                if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if (headerEnd < 0) {
+                return 0;
+            }
+            
+            String headers = new String(bytes, 0, headerEnd, StandardCharsets.US_ASCII);
+            int status = Integer.parseInt(headers.substring(9, 12));
+            int contentLength = 0;
+            for (String line : headers.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            if (length < headerEnd + contentLength) {
+                return 0;
+            }
+            
+            in.flip();
+            in.position(headerEnd + contentLength);
+            in.compact();
+            return status;
+        }
+    }
+}
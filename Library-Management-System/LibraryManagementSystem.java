@@ -1,7 +1,20 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.InputMismatchException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import javax.management.JMException;
 
 /**
  * Main class for the Library Management System.
@@ -10,18 +23,203 @@ import java.util.Scanner;
  */
 public class LibraryManagementSystem {
     
+    // Directory holding the catalog snapshot and journal
+    private static final String DATA_DIRECTORY = "library-data";
+    
+    // Name of the record store used by --engine, kept next to the journal files
+    private static final String STORE_NAME = "books";
+    
+    // B+tree file used by --btree
+    private static final String BTREE_FILE = "books.btree";
+    
+    // Number of results shown by a keyword search
+    private static final int RANKED_RESULT_LIMIT = 20;
+    
     private static LibraryService libraryService;
+    private static CachingLibraryService searchCache;
+    private static ReplicationLeader replicationLeader;
+    private static ReplicaLibraryService replica;
     private static Scanner scanner;
     
     public static void main(String[] args) {
         // Initialize service and scanner
-        libraryService = new LibraryServiceImpl();
+        Closeable storage;
+        String loadedFrom;
+        long startTime = System.nanoTime();
+        try {
+            String imageFile = optionValue(args, "--image");
+            String followOption = optionValue(args, "--follow");
+            if (followOption != null) {
+                // Keep a read-only copy of the catalog of a leader started with --replicate PORT
+                int separator = followOption.lastIndexOf(':');
+                int port = separator < 0 ? -1 : parseNumberOption(followOption.substring(separator + 1));
+                if (port <= 0 || port > 65535) {
+                    System.out.println("Error: --follow needs HOST:PORT, got '" + followOption + "'");
+                    return;
+                }
+                replica = new ReplicaLibraryService(new InetSocketAddress(followOption.substring(0, separator), port));
+                replica.start();
+                if (!awaitReplicaSnapshot()) {
+                    System.out.println("Warning: No snapshot from " + followOption + " yet ("
+                                       + replica.getLastError() + "); the catalog fills in once the leader is reachable");
+                }
+                libraryService = replica;
+                storage = replica;
+                loadedFrom = "leader " + followOption;
+            } else if (imageFile != null) {
+                // Serve a read-only catalog image without loading it into memory
+                MappedLibraryService mappedService = new MappedLibraryService(Paths.get(imageFile));
+                libraryService = mappedService;
+                storage = mappedService;
+                loadedFrom = "read-only image " + imageFile;
+            } else if (hasOption(args, "--btree")) {
+                // Keep the catalog in an on-disk B+tree, for catalogs larger than the heap;
+                // --filter-fpr RATE sets how many missing IDs the ID filter lets through to the tree
+                double falsePositiveRate = DiskLibraryService.DEFAULT_FALSE_POSITIVE_RATE;
+                String rateOption = optionValue(args, "--filter-fpr");
+                if (rateOption != null) {
+                    falsePositiveRate = parseRateOption(rateOption);
+                    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                        System.out.println("Error: --filter-fpr needs a rate between 0 and 1, got '" + rateOption + "'");
+                        return;
+                    }
+                }
+                Files.createDirectories(Paths.get(DATA_DIRECTORY));
+                DiskLibraryService diskService = new DiskLibraryService(Paths.get(DATA_DIRECTORY, BTREE_FILE),
+                        BPlusTreeFile.DEFAULT_CACHE_PAGES, falsePositiveRate);
+                libraryService = diskService;
+                storage = diskService;
+                loadedFrom = DATA_DIRECTORY + "/" + BTREE_FILE;
+            } else {
+                // --compact keeps the catalog in primitive columns instead of Book objects
+                IntFunction<LibraryService> shardFactory = hasOption(args, "--compact")
+                        ? CompactLibraryService::new
+                        : LibraryServiceImpl::new;
+                
+                // --shards N partitions the catalog by book ID across N independently locked shards
+                IntFunction<LibraryService> catalogFactory = shardFactory;
+                String shardOption = optionValue(args, "--shards");
+                if (shardOption != null) {
+                    int shardCount = parseNumberOption(shardOption);
+                    if (shardCount <= 0) {
+                        System.out.println("Error: --shards needs a positive number, got '" + shardOption + "'");
+                        return;
+                    }
+                    catalogFactory = expectedBooks -> new ShardedLibraryService(shardCount, expectedBooks, shardFactory);
+                }
+                
+                // --engine memory|journal|mapped|tiered keeps the catalog in the shared record store instead
+                String engine = optionValue(args, "--engine");
+                if (engine != null) {
+                    RecordStore<String, Book> store;
+                    try {
+                        store = RecordStores.open(engine, Paths.get(DATA_DIRECTORY), STORE_NAME, new BookCodec());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error: " + e.getMessage());
+                        return;
+                    }
+                    StoredLibraryService storedService = new StoredLibraryService(store, catalogFactory);
+                    libraryService = storedService;
+                    storage = storedService;
+                    loadedFrom = DATA_DIRECTORY + " (" + engine + " engine)";
+                } else {
+                    PersistentLibraryService persistentService =
+                            new PersistentLibraryService(Paths.get(DATA_DIRECTORY), catalogFactory);
+                    libraryService = persistentService;
+                    storage = persistentService;
+                    loadedFrom = DATA_DIRECTORY;
+                }
+                
+                String exportFile = optionValue(args, "--export-image");
+                if (exportFile != null) {
+                    CatalogImage.export(Paths.get(exportFile), libraryService.getAllBooks());
+                    System.out.println("Exported " + libraryService.getBookCount() + " book(s) to " + exportFile);
+                    storage.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Could not open library data: " + e.getMessage());
+            return;
+        }
+        long loadMillis = (System.nanoTime() - startTime) / 1_000_000;
+        
+        // --replicate PORT streams every change to read replicas started with --follow HOST:PORT
+        String replicateOption = optionValue(args, "--replicate");
+        if (replicateOption != null) {
+            if (replica != null) {
+                System.out.println("Error: --replicate and --follow cannot be combined; replicas follow the leader directly");
+                replica.close();
+                return;
+            }
+            int port = parseNumberOption(replicateOption);
+            if (port < 0 || port > 65535) {
+                System.out.println("Error: --replicate needs a port number, got '" + replicateOption + "'");
+                return;
+            }
+            ReplicationLeader leader = new ReplicationLeader(libraryService);
+            try {
+                leader.listen(new InetSocketAddress(port));
+            } catch (IOException e) {
+                System.out.println("Error: Could not listen for replicas on port " + port + ": " + e.getMessage());
+                return;
+            }
+            replicationLeader = leader;
+            libraryService = leader;
+            Closeable catalogStorage = storage;
+            storage = () -> {
+                leader.close();
+                catalogStorage.close();
+            };
+        }
+        
+        // Popular title and author searches are answered from a cache instead of a full scan.
+        // A replica's changes arrive underneath any cache, so it is searched directly.
+        if (replica == null) {
+            searchCache = new CachingLibraryService(libraryService);
+            libraryService = searchCache;
+        }
+        
+        // --instrument [N] times every operation, or one call in N, for the statistics screen, JMX
+        // and Flight Recorder
+        if (hasOption(args, "--instrument")) {
+            String sampleOption = optionValue(args, "--instrument");
+            int sampleInterval = sampleOption == null || sampleOption.startsWith("--") ? 1 : parseNumberOption(sampleOption);
+            if (sampleInterval <= 0 || sampleInterval > 1 << 30) {
+                System.out.println("Error: --instrument takes a positive sample interval, got '" + sampleOption + "'");
+                return;
+            }
+            InstrumentedLibraryService instrumentedService = new InstrumentedLibraryService(libraryService, sampleInterval);
+            try {
+                instrumentedService.registerMBeans();
+            } catch (JMException e) {
+                System.out.println("Warning: Operation timings are not available over JMX: " + e.getMessage());
+            }
+            libraryService = instrumentedService;
+        }
+        
+        // --serve PORT shares the catalog over HTTP instead of starting the console
+        String serveOption = optionValue(args, "--serve");
+        if (serveOption != null) {
+            serve(serveOption, storage, loadMillis);
+            return;
+        }
+        
+        // --batch FILE runs a command script (- for standard input) instead of the menu;
+        // --grouped applies runs of adds, updates and deletes as batches
+        String batchOption = optionValue(args, "--batch");
+        if (batchOption != null) {
+            runBatch(batchOption, hasOption(args, "--grouped"), storage);
+            return;
+        }
         scanner = new Scanner(System.in);
         
         System.out.println("==============================================");
         System.out.println("   LIBRARY MANAGEMENT SYSTEM");
         System.out.println("==============================================");
         System.out.println("Welcome to the Library Management System!");
+        System.out.println("Loaded " + libraryService.getBookCount() + " book(s) from " + loadedFrom
+                           + " in " + loadMillis + " ms.");
         System.out.println();
         
         // Main menu loop
@@ -76,8 +274,89 @@ public class LibraryManagementSystem {
             
         } while (choice != 8);
         
-        // Close scanner
+        // Close scanner and flush the catalog journal
         scanner.close();
+        try {
+            storage.close();
+        } catch (IOException e) {
+            System.out.println("Error: Could not save library data: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Starts the HTTP server; it runs until the process is stopped, and the catalog is saved on shutdown
+     * @param portOption Value of the --serve option
+     * @param storage Storage to close on shutdown
+     * @param loadMillis Time taken to load the catalog
+     */
+    private static void serve(String portOption, Closeable storage, long loadMillis) {
+        int port = parseNumberOption(portOption);
+        if (port < 0 || port > 65535) {
+            System.out.println("Error: --serve needs a port number, got '" + portOption + "'");
+            return;
+        }
+        
+        LibraryHttpServer server;
+        try {
+            server = new LibraryHttpServer(libraryService, new InetSocketAddress(port));
+        } catch (IOException e) {
+            System.out.println("Error: Could not listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            try {
+                storage.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save library data: " + e.getMessage());
+            }
+        }));
+        server.start();
+        System.out.println("Serving " + libraryService.getBookCount() + " book(s), loaded in " + loadMillis
+                           + " ms, on http://localhost:" + server.getPort() + "/books ("
+                           + (server.usesVirtualThreads() ? "virtual thread per request" : "thread pool") + ")");
+    }
+    
+    /**
+     * Runs a command script against the catalog and saves the catalog. Results go to standard
+     * output through a buffer, one line per command; the summary goes to standard error.
+     * @param source Path of the script, or - for standard input
+     * @param grouped true to apply runs of adds, updates and deletes as batches
+     * @param storage Storage to close when the script ends
+     */
+    private static void runBatch(String source, boolean grouped, Closeable storage) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                                                                   CommandReader.BUFFER_SIZE), false);
+        BatchCommandRunner runner = new BatchCommandRunner(libraryService, out, grouped);
+        long startTime = System.nanoTime();
+        try (CommandReader commands = CommandReader.open(source)) {
+            runner.run(commands);
+        } catch (IOException e) {
+            System.err.println("Error: Could not read commands from " + source + ": " + e.getMessage());
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+        System.err.println("Ran " + runner.getCommandCount() + " command(s) in " + elapsedMillis + " ms, "
+                           + runner.getErrorCount() + " error(s)");
+        
+        try {
+            storage.close();
+        } catch (IOException e) {
+            System.err.println("Error: Could not save library data: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Waits for a replica's first snapshot, for as long as the leader keeps sending it
+     * @return true once the snapshot is loaded, false if the leader sent nothing for 10 seconds
+     */
+    private static boolean awaitReplicaSnapshot() {
+        try {
+            return replica.awaitSnapshot(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
     
     /**
@@ -135,18 +414,20 @@ public class LibraryManagementSystem {
         System.out.println("ALL BOOKS");
         System.out.println("---------");
         
-        List<Book> books = libraryService.getAllBooks();
+        int bookCount = libraryService.getBookCount();
         
-        if (books.isEmpty()) {
+        if (bookCount == 0) {
             System.out.println("No books found in the library.");
             return;
         }
         
-        System.out.println("Total Books: " + books.size());
+        System.out.println("Total Books: " + bookCount);
         System.out.println("----------------------------------------");
         
-        for (int i = 0; i < books.size(); i++) {
-            System.out.println((i + 1) + ". " + books.get(i));
+        // Stream instead of copying the catalog, so large catalogs print in bounded memory
+        Iterator<Book> books = libraryService.streamBooks().iterator();
+        for (int i = 1; books.hasNext(); i++) {
+            System.out.println(i + ". " + books.next());
         }
         
         System.out.println("----------------------------------------");
@@ -162,8 +443,9 @@ public class LibraryManagementSystem {
         System.out.println("Search by:");
         System.out.println("1. Book ID");
         System.out.println("2. Title");
+        System.out.println("3. Keywords (best matches first)");
         
-        int searchChoice = getValidIntInput("Enter search option (1-2): ");
+        int searchChoice = getValidIntInput("Enter search option (1-3): ");
         
         switch (searchChoice) {
             case 1:
@@ -172,6 +454,9 @@ public class LibraryManagementSystem {
             case 2:
                 searchByTitle();
                 break;
+            case 3:
+                searchByKeywords();
+                break;
             default:
                 System.out.println("Invalid search option!");
         }
@@ -202,7 +487,19 @@ public class LibraryManagementSystem {
         List<Book> books = libraryService.searchBookByTitle(title);
         
         if (books.isEmpty()) {
-            System.out.println("No books found with title containing '" + title + "'.");
+            // Most empty results are typos, so offer the closest titles instead of a retry
+            List<Book> closest = libraryService.searchBookByTitleFuzzy(title, RANKED_RESULT_LIMIT);
+            if (closest.isEmpty()) {
+                System.out.println("No books found with title containing '" + title + "'.");
+                return;
+            }
+            
+            System.out.println("No books found with title containing '" + title + "'. Did you mean:");
+            System.out.println("----------------------------------------");
+            for (int i = 0; i < closest.size(); i++) {
+                System.out.println((i + 1) + ". " + closest.get(i));
+            }
+            System.out.println("----------------------------------------");
             return;
         }
         
@@ -216,6 +513,29 @@ public class LibraryManagementSystem {
         System.out.println("----------------------------------------");
     }
     
+    /**
+     * Searches titles and authors by keywords and shows the best matches
+     */
+    private static void searchByKeywords() {
+        String query = getValidStringInput("Enter keywords to search for: ");
+        
+        List<Book> books = libraryService.searchRanked(query, RANKED_RESULT_LIMIT);
+        
+        if (books.isEmpty()) {
+            System.out.println("No books found matching '" + query + "'.");
+            return;
+        }
+        
+        System.out.println("Top " + books.size() + " match(es):");
+        System.out.println("----------------------------------------");
+        
+        for (int i = 0; i < books.size(); i++) {
+            System.out.println((i + 1) + ". " + books.get(i));
+        }
+        
+        System.out.println("----------------------------------------");
+    }
+    
     /**
      * Updates book details
      */
@@ -307,16 +627,15 @@ public class LibraryManagementSystem {
         System.out.println("LIBRARY STATISTICS");
         System.out.println("------------------");
         
-        System.out.println("Total Books: " + libraryService.getBookCount());
+        // Read every figure from one version of the catalog so they agree with each other
+        CatalogSnapshot snapshot = libraryService.snapshot();
+        System.out.println("Total Books: " + snapshot.getBookCount());
         
-        List<Book> books = libraryService.getAllBooks();
-        if (!books.isEmpty()) {
-            int totalQuantity = books.stream().mapToInt(Book::getQuantity).sum();
-            System.out.println("Total Quantity: " + totalQuantity);
+        if (snapshot.getBookCount() > 0) {
+            System.out.println("Total Quantity: " + snapshot.getTotalQuantity());
             
             // Find books with low quantity
-            LibraryServiceImpl impl = (LibraryServiceImpl) libraryService;
-            List<Book> lowQuantityBooks = impl.getLowQuantityBooks(5);
+            List<Book> lowQuantityBooks = snapshot.getLowQuantityBooks(5);
             
             if (!lowQuantityBooks.isEmpty()) {
                 System.out.println("Books with low quantity (≤5): " + lowQuantityBooks.size());
@@ -325,6 +644,37 @@ public class LibraryManagementSystem {
                 }
             }
         }
+        
+        if (searchCache != null) {
+            System.out.printf("Search cache: %.1f%% hit rate (%d hits, %d misses), %d evictions, %d invalidations%n",
+                              searchCache.getHitRate() * 100, searchCache.getHitCount(), searchCache.getMissCount(),
+                              searchCache.getEvictionCount(), searchCache.getInvalidationCount());
+        }
+        
+        if (replicationLeader != null) {
+            System.out.printf("Replication: %d replica(s) at sequence %d, slowest %d change(s) behind; "
+                              + "%d snapshot(s) sent, %d catch-up(s) from the log%n",
+                              replicationLeader.getFollowerCount(), replicationLeader.getSequence(),
+                              replicationLeader.getMaxFollowerLag(), replicationLeader.getBootstrapCount(),
+                              replicationLeader.getCatchUpCount());
+        }
+        if (replica != null) {
+            System.out.printf("Replication: %s %s at position %d, %d change(s) and at most %d ms behind; "
+                              + "%d snapshot(s) loaded%n",
+                              replica.isConnected() ? "following" : "reconnecting to", replica.getLeaderAddress(),
+                              replica.getPosition(), replica.getLagChanges(), replica.getLagMillis(),
+                              replica.getSnapshotCount());
+        }
+        
+        if (libraryService instanceof InstrumentedLibraryService) {
+            System.out.println("Operation timings (microseconds):");
+            System.out.printf("  %-24s %8s %7s %10s %10s %10s %10s%n", "Operation", "Calls", "Errors", "Mean", "p50", "p99", "Max");
+            for (InstrumentedLibraryService.OperationStats stats : ((InstrumentedLibraryService) libraryService).getCalledOperations()) {
+                System.out.printf("  %-24s %8d %7d %10.1f %10.1f %10.1f %10.1f%n", stats.getOperation(), stats.getCount(),
+                                  stats.getErrorCount(), stats.getMeanMicros(), stats.getP50Micros(),
+                                  stats.getP99Micros(), stats.getMaxMicros());
+            }
+        }
     }
     
     /**
@@ -361,6 +711,56 @@ public class LibraryManagementSystem {
         }
     }
     
+    // Utility methods for command line options
+    
+    /**
+     * Checks whether a command line flag is present
+     */
+    private static boolean hasOption(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the value following a command line option, or null if the option is absent
+     */
+    private static String optionValue(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Parses a numeric option value such as --shards or --serve
+     * @return The number, or -1 if the value is not a number
+     */
+    private static int parseNumberOption(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Parses a rate option value such as --filter-fpr
+     * @return The rate, or -1 if the value is not a number
+     */
+    private static double parseRateOption(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
     // Utility methods for input validation
     
     /**
@@ -1,26 +1,97 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * LibraryService interface defines the contract for library operations.
- * Follows abstraction principle by defining only the method signatures.
- * All classes implementing this interface must provide concrete implementations.
+ * Follows abstraction principle: implementations must provide the core operations (adding,
+ * finding, updating and removing books, checkout and return), while batch operations, paging,
+ * ranked and typo-tolerant search and snapshots have default implementations built on them.
+ * The search defaults scan the catalog through BookSearchIndex; implementations that keep an
+ * index or versions of the catalog override them to answer without a scan.
  */
 public interface LibraryService {
     
     /**
      * Adds a new book to the library
      * @param book Book object to be added
-     * @throws IllegalArgumentException if book already exists or validation fails
+     * @throws DuplicateBookException if a book with the same ID already exists
+     * @throws IllegalArgumentException if validation fails
      */
     void addBook(Book book);
     
+    /**
+     * Adds a batch of books in one operation. The batch is validated first and nothing is added
+     * if any book is invalid, appears twice in the batch, or already exists in the library.
+     * @param books Books to add
+     * @throws IllegalArgumentException if validation fails
+     */
+    void addBooks(Collection<Book> books);
+    
+    /**
+     * Adds a stream of books as a single batch
+     * @param books Books to add
+     * @throws IllegalArgumentException if validation fails
+     */
+    default void addBooks(Stream<Book> books) {
+        addBooks(books.collect(Collectors.toList()));
+    }
+    
     /**
      * Retrieves all books from the library
      * @return List of all books
      */
     List<Book> getAllBooks();
     
+    /**
+     * Streams all books straight from the backing storage without copying the catalog.
+     * The stream is read-only and splits the storage directly when run in parallel.
+     * @return Stream of all books
+     */
+    Stream<Book> streamBooks();
+    
+    /**
+     * Gets one page of books ordered by book ID (keyset pagination).
+     * The default implementation scans the catalog once keeping only pageSize + 1 books,
+     * so memory stays bounded by the page size.
+     * @param afterBookId ID of the last book on the previous page, or null for the first page
+     * @param pageSize Maximum number of books on the page
+     * @return The page and the cursor for the next one
+     * @throws IllegalArgumentException if pageSize is not positive
+     */
+    default BookPage getBooksPage(String afterBookId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        
+        // Max-heap of the smallest pageSize + 1 IDs after the cursor; the extra one tells
+        // whether another page follows
+        Comparator<Book> byId = Comparator.comparing(Book::getBookId);
+        PriorityQueue<Book> smallest = new PriorityQueue<>(pageSize + 2, byId.reversed());
+        streamBooks()
+                .filter(book -> afterBookId == null || book.getBookId().compareTo(afterBookId) > 0)
+                .forEachOrdered(book -> {
+                    smallest.add(book);
+                    if (smallest.size() > pageSize + 1) {
+                        smallest.poll();
+                    }
+                });
+        
+        List<Book> page = new ArrayList<>(smallest);
+        Collections.sort(page, byId);
+        if (page.size() <= pageSize) {
+            return new BookPage(page, null);
+        }
+        page.remove(pageSize);
+        return new BookPage(page, page.get(pageSize - 1).getBookId());
+    }
+    
     /**
      * Searches for a book by its ID
      * @param bookId Unique identifier of the book
@@ -35,11 +106,113 @@ public interface LibraryService {
      */
     List<Book> searchBookByTitle(String title);
     
+    /**
+     * Searches titles and authors by keyword and returns the best matches first.
+     * Words are matched whole, ignoring case and accents; books are ranked with BM25, with title
+     * matches weighing more than author matches. The default implementation reads the catalog
+     * twice and keeps only the best results, so memory stays bounded by the limit.
+     * @param query Keywords to search for
+     * @param limit Maximum number of books to return
+     * @return Up to limit books, best match first
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    default List<Book> searchRanked(String query, int limit) {
+        return BookSearchIndex.searchByScan(this, query, limit);
+    }
+    
+    /**
+     * Searches titles by words that may be misspelled. Each word also matches title words within
+     * one edit (words of up to five letters) or two edits (longer words) of it; closer matches rank first.
+     * The default implementation compares the query with every title.
+     * @param title Title words to search for
+     * @param limit Maximum number of books to return
+     * @return Up to limit books, best match first
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    default List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return BookSearchIndex.searchFuzzyByScan(this, title, limit);
+    }
+    
+    /**
+     * Takes an immutable snapshot of the catalog. Figures read from one snapshot always agree
+     * with each other, however the catalog changes after it is taken.
+     * The default implementation copies the catalog; implementations that keep versions of the
+     * catalog return the current one without copying.
+     * @return Snapshot of the catalog
+     */
+    default CatalogSnapshot snapshot() {
+        return CatalogSnapshot.of(streamBooks());
+    }
+    
+    /**
+     * Looks up many books by ID in one call
+     * @param bookIds IDs of the books
+     * @return The books in the order of the IDs, with null for each ID that matches no book
+     * @throws IllegalArgumentException if bookIds is null
+     */
+    default List<Book> getBooksByIds(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        List<Book> books = new ArrayList<>(bookIds.size());
+        for (String bookId : bookIds) {
+            books.add(searchBookById(bookId).orElse(null));
+        }
+        return books;
+    }
+    
+    /**
+     * Replaces the details of many books in one call. Each book replaces the book with the same ID,
+     * which is matched exactly; use updateBook to change an ID. Items are applied in order, so if
+     * an ID appears twice the later book wins.
+     * @param updatedBooks Books with updated details
+     * @return Outcome of each item, in input order
+     * @throws IllegalArgumentException if updatedBooks is null
+     */
+    default BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        BatchResult.Status[] statuses = new BatchResult.Status[updatedBooks.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            Book book = updatedBooks.get(i);
+            if (book == null || !BookBatch.isExactId(book.getBookId())) {
+                statuses[i] = BatchResult.Status.INVALID;
+            } else {
+                statuses[i] = updateBook(book.getBookId(), book) ? BatchResult.Status.OK : BatchResult.Status.NOT_FOUND;
+            }
+        }
+        return new BatchResult(statuses);
+    }
+    
+    /**
+     * Deletes many books in one call
+     * @param bookIds IDs of the books to delete
+     * @return Outcome of each item, in input order; an ID that appears twice is NOT_FOUND the second time
+     * @throws IllegalArgumentException if bookIds is null
+     */
+    default BatchResult deleteBooks(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        BatchResult.Status[] statuses = new BatchResult.Status[bookIds.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            String bookId = bookIds.get(i);
+            if (bookId == null || bookId.trim().isEmpty()) {
+                statuses[i] = BatchResult.Status.INVALID;
+            } else {
+                statuses[i] = deleteBook(bookId) ? BatchResult.Status.OK : BatchResult.Status.NOT_FOUND;
+            }
+        }
+        return new BatchResult(statuses);
+    }
+    
     /**
      * Updates book details
      * @param bookId ID of the book to update
      * @param updatedBook Book object with updated details
      * @return true if update successful, false if book not found
+     * @throws DuplicateBookException if the update changes the ID to one another book already has
      */
     boolean updateBook(String bookId, Book updatedBook);
     
@@ -57,9 +230,41 @@ public interface LibraryService {
      */
     boolean bookExists(String bookId);
     
+    /**
+     * Checks out copies of a book, atomically decreasing its quantity
+     * @param bookId ID of the book to check out
+     * @param copies Number of copies to check out
+     * @return true if checkout successful, false if book not found or not enough copies
+     * @throws IllegalArgumentException if copies is not positive
+     */
+    boolean checkout(String bookId, int copies);
+    
+    /**
+     * Returns copies of a book, atomically increasing its quantity
+     * @param bookId ID of the book being returned
+     * @param copies Number of copies being returned
+     * @return true if return successful, false if book not found
+     * @throws IllegalArgumentException if copies is not positive
+     */
+    boolean returnBook(String bookId, int copies);
+    
     /**
      * Gets the total count of books in the library
      * @return Total number of books
      */
     int getBookCount();
+    
+    /**
+     * Gets books by a specific author (partial match)
+     * @param author Author name to search for
+     * @return List of books by the author
+     */
+    List<Book> getBooksByAuthor(String author);
+    
+    /**
+     * Gets books with low quantity (less than or equal to specified threshold)
+     * @param threshold Quantity threshold
+     * @return List of books with low quantity
+     */
+    List<Book> getLowQuantityBooks(int threshold);
 }
@@ -1,29 +1,75 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * LibraryServiceImpl class implements the LibraryService interface.
  * Provides concrete implementations for all library management operations.
- * Uses ArrayList for storage and HashMap for efficient search operations.
+ * Uses ArrayList for storage and ConcurrentHashMap for efficient search operations.
+ * The list is guarded by a read/write lock, so scans and searches can run alongside each other
+ * but not alongside adds, updates and deletes, which take the write lock.
+ * Checkout and return are lock-free: they look the book up in the map and CAS its quantity.
+ * Once the change log is in use, changes of every kind are serialized so that the log
+ * lists them in the order they took effect.
+ * Ranked keyword search uses an inverted index that is only built once it is first needed.
+ * Likewise, once the first snapshot is taken every change publishes a new immutable version
+ * of the catalog, so later snapshots are free and never block writers, and once the change log
+ * is first requested every change is published to it.
  */
 public class LibraryServiceImpl implements LibraryService {
     
-    // ArrayList to store all books
+    // ArrayList to store all books, guarded by lock
     private final List<Book> books;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     
-    // HashMap for efficient book lookup by ID
-    private final Map<String, Book> bookMap;
+    // ConcurrentHashMap for efficient book lookup by ID, safe for concurrent checkouts
+    // (replaced by a pre-sized copy when a large batch is added)
+    private volatile Map<String, Book> bookMap;
+    
+    // Keyword index for ranked search, built on the first ranked search and kept up to date after
+    private volatile BookSearchIndex searchIndex;
+    
+    // Current immutable version of the catalog, kept from the first snapshot on
+    private final AtomicReference<CatalogSnapshot> versions = new AtomicReference<>();
+    private volatile boolean versioned;
+    
+    // IDs changed while the first version was being built
+    private final Set<String> pendingVersions = ConcurrentHashMap.newKeySet();
+    
+    // Change events for downstream consumers, created on first request
+    private volatile CatalogChangeLog changeLog;
+    
+    // Orders changes with their publication once the change log is in use; see startChange
+    private final ReentrantLock publishLock = new ReentrantLock();
     
     /**
      * Constructor initializes the data structures
      */
     public LibraryServiceImpl() {
         this.books = new ArrayList<>();
-        this.bookMap = new HashMap<>();
+        this.bookMap = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Constructor that pre-sizes the data structures, used when the catalog size is known up front
+     * @param expectedBooks Number of books the catalog is expected to hold
+     */
+    public LibraryServiceImpl(int expectedBooks) {
+        this.books = new ArrayList<>(expectedBooks);
+        this.bookMap = new ConcurrentHashMap<>(expectedBooks);
     }
     
     @Override
@@ -33,20 +79,118 @@ public class LibraryServiceImpl implements LibraryService {
             throw new IllegalArgumentException("Book cannot be null");
         }
         
-        // Check if book already exists
-        if (bookExists(book.getBookId())) {
-            throw new IllegalArgumentException("Book with ID " + book.getBookId() + " already exists");
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                // Check if book already exists
+                if (bookExists(book.getBookId())) {
+                    throw new DuplicateBookException(book.getBookId());
+                }
+                
+                // Add to both data structures
+                books.add(book);
+                bookMap.put(book.getBookId(), book);
+                
+                BookSearchIndex index = searchIndex;
+                if (index != null) {
+                    index.add(book);
+                }
+                publishVersion(Collections.singletonList(book.getBookId()));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (log != null) {
+                log.added(book);
+            }
+        } finally {
+            endChange(log);
         }
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> newBooks) {
+        BookBatch.validate(newBooks);
         
-        // Add to both data structures
-        books.add(book);
-        bookMap.put(book.getBookId(), book);
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                // A batch larger than the catalog goes into a map sized for the result, so the
+                // table is allocated once instead of doubling repeatedly during the insert
+                Map<String, Book> target = bookMap;
+                if (newBooks.size() > target.size()) {
+                    target = new ConcurrentHashMap<>(target.size() + newBooks.size());
+                    target.putAll(bookMap);
+                }
+                
+                // putIfAbsent finds duplicates against the catalog and within the batch in one lookup
+                int inserted = 0;
+                for (Book book : newBooks) {
+                    if (target.putIfAbsent(book.getBookId(), book) != null) {
+                        // Roll back the part of the batch inserted so far
+                        int removed = 0;
+                        for (Book added : newBooks) {
+                            if (removed++ == inserted) {
+                                break;
+                            }
+                            target.remove(added.getBookId(), added);
+                        }
+                        throw BookBatch.duplicate(book.getBookId(), target.containsKey(book.getBookId()));
+                    }
+                    inserted++;
+                }
+                
+                // Grow the list once for the whole batch
+                books.addAll(newBooks);
+                bookMap = target;
+                
+                BookSearchIndex index = searchIndex;
+                if (index != null) {
+                    index.addAll(newBooks);
+                }
+                
+                if (versioned) {
+                    List<String> bookIds = new ArrayList<>(newBooks.size());
+                    for (Book book : newBooks) {
+                        bookIds.add(book.getBookId());
+                    }
+                    publishVersion(bookIds);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (log != null) {
+                for (Book book : newBooks) {
+                    log.added(book);
+                }
+            }
+        } finally {
+            endChange(log);
+        }
     }
     
     @Override
     public List<Book> getAllBooks() {
-        // Return a copy to prevent external modification
-        return new ArrayList<>(books);
+        lock.readLock().lock();
+        try {
+            // Return a copy to prevent external modification
+            return new ArrayList<>(books);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        // The stream runs after the lock is released, so it reads a copy of the list; the
+        // array's spliterator is SIZED and SUBSIZED, so parallel streams split it directly
+        lock.readLock().lock();
+        try {
+            return Arrays.stream(books.toArray(new Book[0]));
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     @Override
@@ -66,12 +210,32 @@ public class LibraryServiceImpl implements LibraryService {
             return new ArrayList<>();
         }
         
-        String searchTitle = title.trim().toLowerCase();
+        String searchTitle = Book.searchKey(title.trim());
         
-        // Use Java 8 streams for filtering
-        return books.stream()
-                   .filter(book -> book.getTitle().toLowerCase().contains(searchTitle))
-                   .collect(Collectors.toList());
+        lock.readLock().lock();
+        try {
+            // Match against the precomputed keys; nothing is allocated per book
+            List<Book> result = new ArrayList<>();
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                if (book.getTitleKey().contains(searchTitle)) {
+                    result.add(book);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return searchIndex().search(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return searchIndex().searchFuzzy(title, limit);
     }
     
     @Override
@@ -81,35 +245,60 @@ public class LibraryServiceImpl implements LibraryService {
         }
         
         String searchId = bookId.trim();
+        Book replaced = null;
         
-        // Check if book exists
-        if (!bookExists(searchId)) {
-            return false;
-        }
-        
-        // Check if updated book ID conflicts with existing book (if ID is being changed)
-        if (!searchId.equals(updatedBook.getBookId()) && bookExists(updatedBook.getBookId())) {
-            throw new IllegalArgumentException("Book with ID " + updatedBook.getBookId() + " already exists");
-        }
-        
-        // Find and update the book
-        for (int i = 0; i < books.size(); i++) {
-            if (books.get(i).getBookId().equals(searchId)) {
-                // Remove old entry from map if ID is changing
-                if (!searchId.equals(updatedBook.getBookId())) {
-                    bookMap.remove(searchId);
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                // Check if book exists
+                if (!bookExists(searchId)) {
+                    return false;
                 }
                 
-                // Update the book in list
-                books.set(i, updatedBook);
+                // Check if updated book ID conflicts with existing book (if ID is being changed)
+                if (!searchId.equals(updatedBook.getBookId()) && bookExists(updatedBook.getBookId())) {
+                    throw new DuplicateBookException(updatedBook.getBookId());
+                }
                 
-                // Update the book in map
-                bookMap.put(updatedBook.getBookId(), updatedBook);
-                return true;
+                // Find and update the book
+                for (int i = 0; i < books.size(); i++) {
+                    if (books.get(i).getBookId().equals(searchId)) {
+                        // Remove old entry from map if ID is changing
+                        if (!searchId.equals(updatedBook.getBookId())) {
+                            bookMap.remove(searchId);
+                        }
+                        
+                        // Update the book in list
+                        Book previous = books.set(i, updatedBook);
+                        
+                        // Update the book in map
+                        bookMap.put(updatedBook.getBookId(), updatedBook);
+                        
+                        BookSearchIndex index = searchIndex;
+                        if (index != null) {
+                            index.remove(previous);
+                            index.add(updatedBook);
+                        }
+                        // One version for both IDs, so no snapshot sees the book twice or not at all
+                        publishVersion(Arrays.asList(searchId, updatedBook.getBookId()));
+                        replaced = previous;
+                        break;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (replaced == null) {
+                return false;
+            }
+            if (log != null) {
+                log.updated(replaced, updatedBook);
             }
+            return true;
+        } finally {
+            endChange(log);
         }
-        
-        return false;
     }
     
     @Override
@@ -119,14 +308,175 @@ public class LibraryServiceImpl implements LibraryService {
         }
         
         String searchId = bookId.trim();
+        boolean removedFromList;
+        Book removedFromMap;
         
-        // Remove from ArrayList
-        boolean removedFromList = books.removeIf(book -> book.getBookId().equals(searchId));
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                // Remove from ArrayList
+                removedFromList = books.removeIf(book -> book.getBookId().equals(searchId));
+                
+                // Remove from HashMap
+                removedFromMap = bookMap.remove(searchId);
+                
+                BookSearchIndex index = searchIndex;
+                if (index != null && removedFromMap != null) {
+                    index.remove(removedFromMap);
+                }
+                publishVersion(Collections.singletonList(searchId));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (log != null && removedFromMap != null) {
+                log.deleted(removedFromMap);
+            }
+            return removedFromList || removedFromMap != null;
+        } finally {
+            endChange(log);
+        }
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
         
-        // Remove from HashMap
-        Book removedFromMap = bookMap.remove(searchId);
+        // Straight map lookups; a blank ID simply matches nothing
+        Map<String, Book> map = bookMap;
+        List<Book> result = new ArrayList<>(bookIds.size());
+        for (String bookId : bookIds) {
+            result.add(bookId == null ? null : map.get(bookId.trim()));
+        }
+        return result;
+    }
+    
+    @Override
+    public BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
         
-        return removedFromList || removedFromMap != null;
+        BatchResult result;
+        // Before and after of each replaced book, in order, for the change log
+        List<Book> changes = new ArrayList<>();
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                BatchResult.Status[] statuses = new BatchResult.Status[updatedBooks.size()];
+                Map<String, Book> replacements = new HashMap<>();
+                BookSearchIndex index = searchIndex;
+                for (int i = 0; i < statuses.length; i++) {
+                    Book updatedBook = updatedBooks.get(i);
+                    if (updatedBook == null || !BookBatch.isExactId(updatedBook.getBookId())) {
+                        statuses[i] = BatchResult.Status.INVALID;
+                        continue;
+                    }
+                    Book previous = bookMap.get(updatedBook.getBookId());
+                    if (previous == null) {
+                        statuses[i] = BatchResult.Status.NOT_FOUND;
+                        continue;
+                    }
+                    
+                    bookMap.put(updatedBook.getBookId(), updatedBook);
+                    replacements.put(updatedBook.getBookId(), updatedBook);
+                    if (index != null) {
+                        index.remove(previous);
+                        index.add(updatedBook);
+                    }
+                    if (log != null) {
+                        changes.add(previous);
+                        changes.add(updatedBook);
+                    }
+                    statuses[i] = BatchResult.Status.OK;
+                }
+                
+                // One pass over the list for the whole batch, instead of one scan per book
+                int remaining = replacements.size();
+                for (int i = 0; i < books.size() && remaining > 0; i++) {
+                    Book replacement = replacements.get(books.get(i).getBookId());
+                    if (replacement != null) {
+                        books.set(i, replacement);
+                        remaining--;
+                    }
+                }
+                
+                if (!replacements.isEmpty()) {
+                    publishVersion(new ArrayList<>(replacements.keySet()));
+                }
+                result = new BatchResult(statuses);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (log != null) {
+                for (int i = 0; i < changes.size(); i += 2) {
+                    log.updated(changes.get(i), changes.get(i + 1));
+                }
+            }
+            return result;
+        } finally {
+            endChange(log);
+        }
+    }
+    
+    @Override
+    public BatchResult deleteBooks(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        
+        BatchResult result;
+        List<Book> deleted = new ArrayList<>();
+        CatalogChangeLog log = startChange();
+        try {
+            lock.writeLock().lock();
+            try {
+                BatchResult.Status[] statuses = new BatchResult.Status[bookIds.size()];
+                Set<String> removed = new HashSet<>();
+                BookSearchIndex index = searchIndex;
+                for (int i = 0; i < statuses.length; i++) {
+                    String bookId = bookIds.get(i);
+                    if (bookId == null || bookId.trim().isEmpty()) {
+                        statuses[i] = BatchResult.Status.INVALID;
+                        continue;
+                    }
+                    Book book = bookMap.remove(bookId.trim());
+                    if (book == null) {
+                        statuses[i] = BatchResult.Status.NOT_FOUND;
+                        continue;
+                    }
+                    
+                    removed.add(book.getBookId());
+                    if (index != null) {
+                        index.remove(book);
+                    }
+                    if (log != null) {
+                        deleted.add(book);
+                    }
+                    statuses[i] = BatchResult.Status.OK;
+                }
+                
+                // One pass over the list removes the whole batch
+                if (!removed.isEmpty()) {
+                    books.removeIf(book -> removed.contains(book.getBookId()));
+                    publishVersion(new ArrayList<>(removed));
+                }
+                result = new BatchResult(statuses);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (log != null) {
+                for (Book book : deleted) {
+                    log.deleted(book);
+                }
+            }
+            return result;
+        } finally {
+            endChange(log);
+        }
     }
     
     @Override
@@ -138,36 +488,237 @@ public class LibraryServiceImpl implements LibraryService {
         return bookMap.containsKey(bookId.trim());
     }
     
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to check out must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        // Lock-free unless the change log is in use; see startChange
+        CatalogChangeLog log = startChange();
+        try {
+            Book book = bookMap.get(bookId.trim());
+            if (book == null || !book.checkoutCopies(copies)) {
+                return false;
+            }
+            publishVersion(Collections.singletonList(book.getBookId()));
+            
+            if (log != null) {
+                log.quantityChanged(book.getBookId(), -copies);
+            }
+            return true;
+        } finally {
+            endChange(log);
+        }
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to return must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        
+        CatalogChangeLog log = startChange();
+        try {
+            Book book = bookMap.get(bookId.trim());
+            if (book == null) {
+                return false;
+            }
+            
+            book.returnCopies(copies);
+            publishVersion(Collections.singletonList(book.getBookId()));
+            
+            if (log != null) {
+                log.quantityChanged(book.getBookId(), copies);
+            }
+            return true;
+        } finally {
+            endChange(log);
+        }
+    }
+    
     @Override
     public int getBookCount() {
-        return books.size();
+        lock.readLock().lock();
+        try {
+            return books.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
-    /**
-     * Gets books by a specific author
-     * @param author Author name to search for
-     * @return List of books by the author
-     */
+    @Override
     public List<Book> getBooksByAuthor(String author) {
         if (author == null || author.trim().isEmpty()) {
             return new ArrayList<>();
         }
         
-        String searchAuthor = author.trim().toLowerCase();
+        String searchAuthor = Book.searchKey(author.trim());
         
-        return books.stream()
-                   .filter(book -> book.getAuthor().toLowerCase().contains(searchAuthor))
-                   .collect(Collectors.toList());
+        lock.readLock().lock();
+        try {
+            List<Book> result = new ArrayList<>();
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                if (book.getAuthorKey().contains(searchAuthor)) {
+                    result.add(book);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        lock.readLock().lock();
+        try {
+            return books.stream()
+                       .filter(book -> book.getQuantity() <= threshold)
+                       .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
-     * Gets books with low quantity (less than or equal to specified threshold)
-     * @param threshold Quantity threshold
-     * @return List of books with low quantity
+     * Gets the log that changes to this catalog are published to, creating it on the first call.
+     * Changes made before the first call are not in the log.
+     *
+     * Changes are published after the catalog's lock is released, so subscribers may read the
+     * catalog while publishers wait for them. They must not change it from the thread that reads
+     * their subscription, though: while the ring is full that change would wait for itself.
+     * @return The change log
      */
-    public List<Book> getLowQuantityBooks(int threshold) {
-        return books.stream()
-                   .filter(book -> book.getQuantity() <= threshold)
-                   .collect(Collectors.toList());
+    public CatalogChangeLog getChangeLog() {
+        CatalogChangeLog log = changeLog;
+        if (log == null) {
+            synchronized (this) {
+                log = changeLog;
+                if (log == null) {
+                    log = new CatalogChangeLog();
+                    changeLog = log;
+                }
+            }
+        }
+        return log;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The first call builds a version of the whole catalog; after that every change publishes a
+     * new version that shares all unchanged books with the previous one, and this returns the
+     * current version without copying or locking.
+     */
+    @Override
+    public CatalogSnapshot snapshot() {
+        CatalogSnapshot current = versions.get();
+        return current != null ? current : startVersioning();
+    }
+    
+    /**
+     * Builds the first version of the catalog. Writers are not stopped: once versioned is set they
+     * record the IDs they change, and those books are refreshed after the first version is published.
+     */
+    private synchronized CatalogSnapshot startVersioning() {
+        CatalogSnapshot current = versions.get();
+        if (current != null) {
+            return current;
+        }
+        
+        versioned = true;
+        // The map is read only after versioned is set, so a change either shows up here or
+        // is recorded by its writer
+        versions.set(CatalogSnapshot.of(bookMap.values().stream()));
+        
+        List<String> changed = new ArrayList<>(pendingVersions);
+        pendingVersions.removeAll(changed);
+        refreshVersion(changed);
+        return versions.get();
+    }
+    
+    /**
+     * Starts a change that may have to be published. Once the change log is in use, every change
+     * holds the publish lock from before it is made until it is published, so the log lists
+     * changes in the order they took effect: a checkout cannot land on a book that an update
+     * replaces before the checkout is published, nor be published after the book's deletion.
+     * The publish lock is taken before the write lock, and the write lock is released before
+     * publishing, so a publisher held back by a full ring never blocks readers.
+     * @return The change log if it is in use, with the publish lock held; otherwise null
+     */
+    private CatalogChangeLog startChange() {
+        CatalogChangeLog log = changeLog;
+        if (log != null) {
+            publishLock.lock();
+        }
+        return log;
+    }
+    
+    private void endChange(CatalogChangeLog log) {
+        if (log != null) {
+            publishLock.unlock();
+        }
+    }
+    
+    /**
+     * Publishes a new version after books have changed, once snapshots are in use
+     * @param bookIds IDs of the books that were added, changed or removed
+     */
+    private void publishVersion(List<String> bookIds) {
+        if (!versioned) {
+            return;
+        }
+        if (versions.get() == null) {
+            // The first version is still being built; leave the IDs for it, unless it was
+            // published in the meantime and may already have drained them
+            pendingVersions.addAll(bookIds);
+            if (versions.get() == null) {
+                return;
+            }
+        }
+        refreshVersion(bookIds);
+    }
+    
+    /**
+     * Copies the live state of some books into a new version. Each attempt reads the books again,
+     * so when concurrent checkouts race, the version published last holds the latest quantities.
+     */
+    private void refreshVersion(List<String> bookIds) {
+        versions.updateAndGet(version -> {
+            for (String bookId : bookIds) {
+                Book book = bookMap.get(bookId);
+                version = book == null ? version.without(bookId) : version.with(book);
+            }
+            return version;
+        });
+    }
+    
+    /**
+     * Gets the keyword index, building it from the catalog on first use. It is built under the
+     * write lock, so no change can be made between reading the list and publishing the index.
+     */
+    private BookSearchIndex searchIndex() {
+        BookSearchIndex index = searchIndex;
+        if (index == null) {
+            lock.writeLock().lock();
+            try {
+                index = searchIndex;
+                if (index == null) {
+                    index = new BookSearchIndex();
+                    index.addAll(books);
+                    searchIndex = index;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return index;
     }
 }
@@ -0,0 +1,194 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * MappedLibraryService class serves a read-only catalog straight from a memory-mapped CatalogImage.
+ * Nothing is loaded at startup: Book objects are materialized only when a query returns them.
+ * All mutating operations throw UnsupportedOperationException.
+ */
+public class MappedLibraryService implements LibraryService, Closeable {
+    
+    private final CatalogImage image;
+    
+    /**
+     * Maps the catalog image at the given path
+     * @param imageFile Path of an image written by CatalogImage.export
+     * @throws IOException if the image cannot be mapped
+     */
+    public MappedLibraryService(Path imageFile) throws IOException {
+        this.image = CatalogImage.open(imageFile);
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        throw readOnly();
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        throw readOnly();
+    }
+    
+    /**
+     * Returns a read-only list view over the image; each element is materialized on access
+     * @return List of all books, ordered by book ID
+     */
+    @Override
+    public List<Book> getAllBooks() {
+        return new AbstractList<Book>() {
+            @Override
+            public Book get(int index) {
+                if (index < 0 || index >= image.getBookCount()) {
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+                return image.getBook(index);
+            }
+            
+            @Override
+            public int size() {
+                return image.getBookCount();
+            }
+        };
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        // An index range splits evenly and each book is materialized by the thread that consumes it
+        return IntStream.range(0, image.getBookCount()).mapToObj(image::getBook);
+    }
+    
+    /**
+     * The image is sorted by book ID, so a page is a binary search plus a sequential read
+     */
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        
+        int start = afterBookId == null ? 0 : image.indexAfter(afterBookId);
+        int end = Math.min(image.getBookCount(), start + pageSize);
+        List<Book> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            page.add(image.getBook(i));
+        }
+        
+        String nextCursor = end < image.getBookCount() && !page.isEmpty() ? page.get(page.size() - 1).getBookId() : null;
+        return new BookPage(page, nextCursor);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        
+        int index = image.indexOf(bookId.trim());
+        return index < 0 ? Optional.empty() : Optional.of(image.getBook(index));
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        List<Book> result = new ArrayList<>();
+        if (title == null || title.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchTitle = Book.searchKey(title.trim());
+        for (int i = 0; i < image.getBookCount(); i++) {
+            if (image.titleContains(i, searchTitle)) {
+                result.add(image.getBook(i));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        return image.indexOf(bookId.trim()) >= 0;
+    }
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        throw readOnly();
+    }
+    
+    @Override
+    public int getBookCount() {
+        return image.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        List<Book> result = new ArrayList<>();
+        if (author == null || author.trim().isEmpty()) {
+            return result;
+        }
+        
+        String searchAuthor = Book.searchKey(author.trim());
+        
+        // Authors are deduplicated in the image, so each distinct author is decoded once per query
+        Map<Long, Boolean> matches = new HashMap<>();
+        for (int i = 0; i < image.getBookCount(); i++) {
+            long authorRef = image.getAuthorRef(i);
+            Boolean match = matches.get(authorRef);
+            if (match == null) {
+                match = image.stringContains(authorRef, searchAuthor);
+                matches.put(authorRef, match);
+            }
+            if (match) {
+                result.add(image.getBook(i));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        // Scans only the quantities column; other pages are touched for matches alone
+        List<Book> result = new ArrayList<>();
+        for (int i = 0; i < image.getBookCount(); i++) {
+            if (image.getQuantity(i) <= threshold) {
+                result.add(image.getBook(i));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public void close() {
+        image.close();
+    }
+    
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("The catalog image is read-only");
+    }
+}
@@ -0,0 +1,461 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * PersistentLibraryService class makes a LibraryService durable.
+ * Reads go straight to an in-memory catalog (LibraryServiceImpl unless another in-memory
+ * implementation is supplied); every successful mutation is also
+ * appended to a journal, and undone in memory again if the journal cannot be written. On startup the latest binary snapshot is loaded and the journals
+ * written after it are replayed. Once the journal grows large a background thread writes
+ * a fresh snapshot so the next recovery replays only a short journal.
+ */
+public class PersistentLibraryService implements LibraryService, Closeable {
+    
+    private static final String SNAPSHOT_FILE = "catalog.snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    
+    // Compact once the journal holds this many records, or more records than the catalog has books
+    private static final long MIN_COMPACTION_RECORDS = 50_000;
+    
+    private final Path dataDirectory;
+    private final LibraryService catalog;
+    private final ExecutorService compactionExecutor;
+    
+    private CatalogJournal journal;
+    private long journalGeneration;
+    private long journalRecords;
+    private boolean compactionRunning;
+    private final long recoveryMillis;
+    
+    /**
+     * Opens the catalog stored in the given directory, creating it if needed
+     * @param dataDirectory Directory holding the snapshot and journal files
+     * @throws IOException if the stored catalog cannot be read
+     */
+    public PersistentLibraryService(Path dataDirectory) throws IOException {
+        this(dataDirectory, LibraryServiceImpl::new);
+    }
+    
+    /**
+     * Opens the catalog stored in the given directory, holding it in the supplied in-memory catalog
+     * @param dataDirectory Directory holding the snapshot and journal files
+     * @param catalogFactory Creates the empty in-memory catalog, given the expected number of books
+     * @throws IOException if the stored catalog cannot be read
+     */
+    public PersistentLibraryService(Path dataDirectory, IntFunction<LibraryService> catalogFactory) throws IOException {
+        long start = System.nanoTime();
+        this.dataDirectory = dataDirectory;
+        Files.createDirectories(dataDirectory);
+        
+        // Load the snapshot, then replay every journal generation it does not cover
+        Path snapshotFile = dataDirectory.resolve(SNAPSHOT_FILE);
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshotFile)) {
+            CatalogSnapshotFile.Loaded loaded = CatalogSnapshotFile.read(snapshotFile, catalogFactory);
+            this.catalog = loaded.getCatalog();
+            snapshotGeneration = loaded.getGeneration();
+        } else {
+            this.catalog = catalogFactory.apply(0);
+        }
+        
+        long lastGeneration = snapshotGeneration;
+        for (long generation : listJournalGenerations()) {
+            Path journalFile = journalPath(generation);
+            if (generation < snapshotGeneration) {
+                // Left behind by a compaction that finished before the last shutdown
+                Files.delete(journalFile);
+                continue;
+            }
+            journalRecords += CatalogJournal.replay(journalFile, catalog);
+            lastGeneration = generation;
+        }
+        
+        this.journalGeneration = lastGeneration;
+        this.journal = new CatalogJournal(journalPath(journalGeneration));
+        this.compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "catalog-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+    
+    /**
+     * Gets how long opening the catalog took, including snapshot load and journal replay
+     * @return Recovery time in milliseconds
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+    
+    @Override
+    public synchronized void addBook(Book book) {
+        BookBatch.validate(book);
+        catalog.addBook(book);
+        log(() -> journal.appendAdd(book), () -> catalog.deleteBook(book.getBookId()));
+    }
+    
+    @Override
+    public synchronized void addBooks(Collection<Book> books) {
+        // The catalog validates the whole batch, field lengths included, before adding any of it
+        catalog.addBooks(books);
+        
+        // One flush for the whole batch
+        log(() -> {
+            for (Book book : books) {
+                journal.appendAdd(book);
+            }
+        }, books.size(), () -> {
+            List<String> bookIds = new ArrayList<>(books.size());
+            for (Book book : books) {
+                bookIds.add(book.getBookId());
+            }
+            catalog.deleteBooks(bookIds);
+        });
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return catalog.getAllBooks();
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return catalog.streamBooks();
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        return catalog.snapshot();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        return catalog.getBooksPage(afterBookId, pageSize);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        return catalog.searchBookById(bookId);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return catalog.searchBookByTitle(title);
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return catalog.searchRanked(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return catalog.searchBookByTitleFuzzy(title, limit);
+    }
+    
+    @Override
+    public synchronized boolean updateBook(String bookId, Book updatedBook) {
+        if (bookId == null || updatedBook == null) {
+            return false;
+        }
+        BookBatch.validate(updatedBook);
+        Optional<Book> previous = catalog.searchBookById(bookId).map(Book::copy);
+        if (!catalog.updateBook(bookId, updatedBook)) {
+            return false;
+        }
+        log(() -> journal.appendUpdate(bookId.trim(), updatedBook),
+            () -> catalog.updateBook(updatedBook.getBookId(), previous.get()));
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean deleteBook(String bookId) {
+        if (bookId == null) {
+            return false;
+        }
+        Optional<Book> previous = catalog.searchBookById(bookId).map(Book::copy);
+        if (!catalog.deleteBook(bookId)) {
+            return false;
+        }
+        log(() -> journal.appendDelete(bookId.trim()), () -> catalog.addBook(previous.get()));
+        return true;
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        return catalog.getBooksByIds(bookIds);
+    }
+    
+    @Override
+    public synchronized BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        for (Book book : updatedBooks) {
+            if (book != null) {
+                BookBatch.validate(book);
+            }
+        }
+        
+        // Details before the batch, for each ID it may replace
+        Map<String, Book> previous = new LinkedHashMap<>();
+        for (Book book : updatedBooks) {
+            if (book != null && book.getBookId() != null && !previous.containsKey(book.getBookId())) {
+                previous.put(book.getBookId(), catalog.searchBookById(book.getBookId()).map(Book::copy).orElse(null));
+            }
+        }
+        
+        BatchResult result = catalog.updateBooks(updatedBooks);
+        int applied = result.getAppliedCount();
+        if (applied > 0) {
+            // One flush for the whole batch
+            log(() -> {
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.isApplied(i)) {
+                        Book book = updatedBooks.get(i);
+                        journal.appendUpdate(book.getBookId(), book);
+                    }
+                }
+            }, applied, () -> {
+                List<Book> restored = new ArrayList<>();
+                for (int i = 0; i < result.size(); i++) {
+                    Book before = result.isApplied(i) ? previous.remove(updatedBooks.get(i).getBookId()) : null;
+                    if (before != null) {
+                        restored.add(before);
+                    }
+                }
+                catalog.updateBooks(restored);
+            });
+        }
+        return result;
+    }
+    
+    @Override
+    public synchronized BatchResult deleteBooks(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        
+        // The books the batch may delete, so they can be put back
+        List<Book> previous = new ArrayList<>(bookIds.size());
+        for (String bookId : bookIds) {
+            previous.add(bookId == null ? null : catalog.searchBookById(bookId).map(Book::copy).orElse(null));
+        }
+        
+        BatchResult result = catalog.deleteBooks(bookIds);
+        int applied = result.getAppliedCount();
+        if (applied > 0) {
+            log(() -> {
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.isApplied(i)) {
+                        journal.appendDelete(bookIds.get(i).trim());
+                    }
+                }
+            }, applied, () -> {
+                List<Book> restored = new ArrayList<>(applied);
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.isApplied(i)) {
+                        restored.add(previous.get(i));
+                    }
+                }
+                catalog.addBooks(restored);
+            });
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        return catalog.bookExists(bookId);
+    }
+    
+    @Override
+    public synchronized boolean checkout(String bookId, int copies) {
+        if (!catalog.checkout(bookId, copies)) {
+            return false;
+        }
+        logQuantity(bookId, () -> catalog.returnBook(bookId, copies));
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean returnBook(String bookId, int copies) {
+        if (!catalog.returnBook(bookId, copies)) {
+            return false;
+        }
+        logQuantity(bookId, () -> catalog.checkout(bookId, copies));
+        return true;
+    }
+    
+    @Override
+    public int getBookCount() {
+        return catalog.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return catalog.getBooksByAuthor(author);
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return catalog.getLowQuantityBooks(threshold);
+    }
+    
+    /**
+     * Starts a background compaction: the journal is rotated immediately and a snapshot of
+     * the catalog at the rotation point is written on the compaction thread.
+     * Does nothing if a compaction is already running.
+     */
+    public synchronized void compact() {
+        if (compactionRunning) {
+            return;
+        }
+        
+        // Capture the catalog while mutations are blocked; strings are immutable so only
+        // the references and the current quantities need copying
+        List<Book> books = catalog.getAllBooks();
+        String[] ids = new String[books.size()];
+        String[] titles = new String[ids.length];
+        String[] authors = new String[ids.length];
+        int[] quantities = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Book book = books.get(i);
+            ids[i] = book.getBookId();
+            titles[i] = book.getTitle();
+            authors[i] = book.getAuthor();
+            quantities[i] = book.getQuantity();
+        }
+        
+        long snapshotGeneration;
+        try {
+            journal.close();
+            snapshotGeneration = journalGeneration + 1;
+            journal = new CatalogJournal(journalPath(snapshotGeneration));
+            journalGeneration = snapshotGeneration;
+            journalRecords = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rotate catalog journal", e);
+        }
+        
+        compactionRunning = true;
+        compactionExecutor.execute(() -> writeSnapshot(ids, titles, authors, quantities, snapshotGeneration));
+    }
+    
+    /**
+     * Waits for any running compaction and closes the journal
+     * @throws IOException if the journal cannot be synced
+     */
+    @Override
+    public void close() throws IOException {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            journal.close();
+        }
+    }
+    
+    private void writeSnapshot(String[] ids, String[] titles, String[] authors, int[] quantities, long generation) {
+        try {
+            CatalogSnapshotFile.write(dataDirectory.resolve(SNAPSHOT_FILE), generation, ids, titles, authors, quantities);
+            // Older journals are fully covered by the new snapshot
+            for (long older : listJournalGenerations()) {
+                if (older < generation) {
+                    Files.deleteIfExists(journalPath(older));
+                }
+            }
+        } catch (IOException e) {
+            // The journals are still intact, so recovery stays correct; retry on the next trigger
+            System.err.println("Catalog compaction failed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                compactionRunning = false;
+            }
+        }
+    }
+    
+    private void logQuantity(String bookId, Runnable rollback) {
+        Optional<Book> book = catalog.searchBookById(bookId);
+        if (book.isPresent()) {
+            log(() -> journal.appendQuantity(book.get().getBookId(), book.get().getQuantity()), rollback);
+        }
+    }
+    
+    private void log(JournalWrite write, Runnable rollback) {
+        log(write, 1, rollback);
+    }
+    
+    /**
+     * Journals a change already applied to the in-memory catalog
+     * @param write Appends the change's records
+     * @param records Number of records appended
+     * @param rollback Undoes the change in memory if it cannot be journaled, so memory never
+     *                 holds a change that recovery would lose
+     */
+    private void log(JournalWrite write, int records, Runnable rollback) {
+        try {
+            write.run();
+            journal.flush();
+        } catch (IOException e) {
+            rollback.run();
+            throw new UncheckedIOException("Failed to write catalog journal", e);
+        } catch (RuntimeException e) {
+            rollback.run();
+            throw e;
+        }
+        
+        journalRecords += records;
+        if (journalRecords >= Math.max(MIN_COMPACTION_RECORDS, catalog.getBookCount())) {
+            compact();
+        }
+    }
+    
+    private Path journalPath(long generation) {
+        return dataDirectory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+    }
+    
+    private List<Long> listJournalGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dataDirectory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length());
+                try {
+                    generations.add(Long.parseLong(number));
+                } catch (NumberFormatException e) {
+                    // Not one of our journal files
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+    
+    /**
+     * A single journal append that may fail with an IOException
+     */
+    private interface JournalWrite {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * ReplicaLibraryService class is a read-only copy of a catalog that a ReplicationLeader in another
+ * process keeps up to date. Reads are answered from an in-memory LibraryServiceImpl; all mutating
+ * operations throw UnsupportedOperationException, since changes must be made on the leader.
+ *
+ * A background thread connects to the leader, loads the snapshot it sends and then applies its
+ * changes in sequence order. When the connection drops, the thread reconnects with growing delays
+ * and asks for the changes after the last one it applied, so the copy keeps serving reads in the
+ * meantime and only catches up on what it missed. If the leader was restarted or no longer holds
+ * those changes, it sends a fresh snapshot, which replaces the copy in one step.
+ *
+ * The leader sends a mark with its latest sequence number and clock every time it flushes, and at
+ * least every ReplicationLeader.HEARTBEAT_MILLIS, from which the replica reports how far it is
+ * behind. The lag in milliseconds compares the leader's clock with this process's, so it is exact
+ * on one machine and only as good as clock synchronization across machines.
+ */
+public class ReplicaLibraryService implements LibraryService, Closeable {
+    
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    
+    // A leader that sends nothing for this long, heartbeats included, is taken to be gone
+    private static final int READ_TIMEOUT_MILLIS = 3_000;
+    
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5_000;
+    
+    private final InetSocketAddress leaderAddress;
+    private final Thread replicationThread;
+    private final CountDownLatch firstSnapshot = new CountDownLatch(1);
+    
+    // Replaced as a whole when a snapshot arrives; otherwise changed by the replication thread only.
+    // LibraryServiceImpl takes its write lock for each change, so console and HTTP reads can run
+    // while changes are applied
+    private volatile LibraryServiceImpl catalog = new LibraryServiceImpl();
+    
+    // Written by the replication thread only
+    private volatile long leaderId;
+    private volatile long position;
+    private volatile long leaderSequence;
+    private volatile long consistentAtMillis;
+    private volatile boolean connected;
+    private volatile long snapshotCount;
+    private volatile long connectCount;
+    private volatile String lastError;
+    
+    private volatile Socket socket;
+    private volatile boolean closed;
+    
+    /**
+     * Creates a replica of the catalog served by a leader; call start to begin replicating
+     * @param leaderAddress Address the leader listens on
+     */
+    public ReplicaLibraryService(InetSocketAddress leaderAddress) {
+        this.leaderAddress = leaderAddress;
+        this.replicationThread = new Thread(this::replicate, "replication-follower");
+        this.replicationThread.setDaemon(true);
+    }
+    
+    /**
+     * Starts connecting to the leader in the background
+     */
+    public void start() {
+        replicationThread.start();
+    }
+    
+    /**
+     * Waits until the first snapshot from the leader has been loaded
+     * @param timeout Longest time to wait
+     * @param unit Unit of timeout
+     * @return true if the snapshot was loaded, false if the time ran out first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean awaitSnapshot(long timeout, TimeUnit unit) throws InterruptedException {
+        return firstSnapshot.await(timeout, unit);
+    }
+    
+    public InetSocketAddress getLeaderAddress() {
+        return leaderAddress;
+    }
+    
+    public boolean isConnected() {
+        return connected;
+    }
+    
+    /**
+     * Gets the sequence number of the next change this replica will apply
+     * @return Number of the leader's changes reflected in the copy
+     */
+    public long getPosition() {
+        return position;
+    }
+    
+    /**
+     * Gets how many changes the leader had made, at its last mark, that this replica has not applied
+     * @return Number of changes behind, or 0 when up to date
+     */
+    public long getLagChanges() {
+        return Math.max(0, leaderSequence - position);
+    }
+    
+    /**
+     * Gets how long ago the leader last held no change this replica is missing. This is an upper
+     * bound: an idle replica reports up to about one heartbeat interval, and a disconnected one
+     * falls further behind until it catches up.
+     * @return Milliseconds behind the leader, or -1 before the first snapshot has been loaded
+     */
+    public long getLagMillis() {
+        if (firstSnapshot.getCount() > 0) {
+            return -1;
+        }
+        return Math.max(0, System.currentTimeMillis() - consistentAtMillis);
+    }
+    
+    /**
+     * Gets how many snapshots have been loaded: one for the first connection, plus one for each
+     * reconnection that could not catch up from the leader's log
+     * @return Number of snapshots loaded
+     */
+    public long getSnapshotCount() {
+        return snapshotCount;
+    }
+    
+    /**
+     * Gets how many times the replica has connected to the leader
+     * @return Number of connections
+     */
+    public long getConnectCount() {
+        return connectCount;
+    }
+    
+    /**
+     * Gets the reason the last connection ended
+     * @return Error message, or null if no connection has failed
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        throw readOnly();
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        throw readOnly();
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return catalog.getAllBooks();
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return catalog.streamBooks();
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        return catalog.snapshot();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        return catalog.getBooksPage(afterBookId, pageSize);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        return catalog.searchBookById(bookId);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return catalog.searchBookByTitle(title);
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return catalog.searchRanked(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return catalog.searchBookByTitleFuzzy(title, limit);
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        throw readOnly();
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        return catalog.getBooksByIds(bookIds);
+    }
+    
+    @Override
+    public BatchResult updateBooks(List<Book> updatedBooks) {
+        throw readOnly();
+    }
+    
+    @Override
+    public BatchResult deleteBooks(List<String> bookIds) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        return catalog.bookExists(bookId);
+    }
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        throw readOnly();
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        throw readOnly();
+    }
+    
+    @Override
+    public int getBookCount() {
+        return catalog.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return catalog.getBooksByAuthor(author);
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return catalog.getLowQuantityBooks(threshold);
+    }
+    
+    /**
+     * Stops replicating; the copy can still be read
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // The replication thread stops either way
+            }
+        }
+        replicationThread.interrupt();
+        try {
+            replicationThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Connects to the leader and applies what it sends, reconnecting until the replica is closed
+     */
+    private void replicate() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (closed) {
+                    return;
+                }
+                connection.connect(leaderAddress, CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(connection.getInputStream(), ReplicationLeader.BUFFER_SIZE));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                
+                out.writeInt(ReplicationLeader.MAGIC);
+                out.writeInt(ReplicationLeader.VERSION);
+                out.writeLong(leaderId);
+                out.writeLong(position);
+                out.flush();
+                if (in.readInt() != ReplicationLeader.MAGIC || in.readInt() != ReplicationLeader.VERSION) {
+                    throw new IOException(leaderAddress + " is not a replication leader of this version");
+                }
+                long currentLeaderId = in.readLong();
+                connected = true;
+                connectCount++;
+                retryMillis = MIN_RETRY_MILLIS;
+                applyFrames(in, currentLeaderId);
+            } catch (IOException e) {
+                lastError = e.getMessage();
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+    
+    /**
+     * Applies snapshots, changes and marks from the leader until the connection ends
+     */
+    private void applyFrames(DataInputStream in, long currentLeaderId) throws IOException {
+        while (true) {
+            byte frame = in.readByte();
+            switch (frame) {
+                case ReplicationLeader.SNAPSHOT_FRAME:
+                    loadSnapshot(in, currentLeaderId);
+                    break;
+                case ReplicationLeader.CHANGE_FRAME:
+                    applyChange(in);
+                    break;
+                case ReplicationLeader.MARK_FRAME:
+                    long sequence = in.readLong();
+                    long leaderMillis = in.readLong();
+                    leaderSequence = sequence;
+                    if (position >= sequence) {
+                        consistentAtMillis = Math.max(consistentAtMillis, leaderMillis);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown replication frame " + frame);
+            }
+        }
+    }
+    
+    private void loadSnapshot(DataInputStream in, long currentLeaderId) throws IOException {
+        long snapshotPosition = in.readLong();
+        int bookCount = in.readInt();
+        List<Book> books = new ArrayList<>(bookCount);
+        for (int i = 0; i < bookCount; i++) {
+            books.add(CatalogJournal.readBook(in));
+        }
+        LibraryServiceImpl loaded = new LibraryServiceImpl(bookCount);
+        loaded.addBooks(books);
+        
+        catalog = loaded;
+        leaderId = currentLeaderId;
+        position = snapshotPosition;
+        leaderSequence = snapshotPosition;
+        consistentAtMillis = 0;
+        snapshotCount++;
+        firstSnapshot.countDown();
+    }
+    
+    private void applyChange(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        int typeIndex = in.readUnsignedByte();
+        String bookId = in.readUTF();
+        CatalogChange.Type[] types = CatalogChange.Type.values();
+        if (typeIndex >= types.length) {
+            throw new IOException("Unknown change type " + typeIndex);
+        }
+        if (sequence != position) {
+            throw new IOException("Expected change " + position + " from the leader but got " + sequence);
+        }
+        
+        boolean applied;
+        try {
+            switch (types[typeIndex]) {
+                case ADDED:
+                    catalog.addBook(CatalogJournal.readBook(in));
+                    applied = true;
+                    break;
+                case UPDATED:
+                    applied = catalog.updateBook(bookId, CatalogJournal.readBook(in));
+                    break;
+                case DELETED:
+                    applied = catalog.deleteBook(bookId);
+                    break;
+                default:
+                    int delta = in.readInt();
+                    applied = delta < 0 ? catalog.checkout(bookId, -delta) : catalog.returnBook(bookId, delta);
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            applied = false;
+        }
+        if (!applied) {
+            // The copy no longer matches the leader's; ask for a fresh snapshot
+            leaderId = 0;
+            throw new IOException("Change " + sequence + " (" + types[typeIndex] + " " + bookId
+                                  + ") does not apply to the replica");
+        }
+        
+        position = sequence + 1;
+        // The leader held nothing newer than this change until just after its timestamp
+        consistentAtMillis = Math.max(consistentAtMillis, timestamp);
+    }
+    
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("This catalog is a read-only replica; make changes on the leader");
+    }
+}
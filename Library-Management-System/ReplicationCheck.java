@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * ReplicationCheck class checks that a read replica ends up with the same catalog as its leader,
+ * for each kind of catalog the leader can run on. For every catalog it starts a ReplicationLeader
+ * on a loopback port and a ReplicaLibraryService following it, makes every kind of change on the
+ * leader (adds, renames, edits, checkouts, returns and deletes, one at a time and in batches),
+ * and then verifies that
+ *
+ *   - every change that was applied was also published, so the leader's sequence is as expected;
+ *   - the replica applied them all without falling back to a fresh snapshot;
+ *   - the replica's books match the leader's, field by field.
+ *
+ * It then adds and deletes many more books on the leader while another thread keeps searching
+ * and listing the replica, which must not fail while the replica applies the changes.
+ *
+ * The compact catalog matters most here: it hands out live views of its books, so a leader that
+ * read the old details after making a change would publish nothing or the wrong book.
+ *
+ * Usage: java ReplicationCheck [--services impl,compact,sharded]
+ * Exits with status 1 if any check fails.
+ */
+public class ReplicationCheck {
+    
+    private static final long SYNC_TIMEOUT_MILLIS = 10_000;
+    
+    // Books added, and deleted again, on the leader while the replica is being read
+    private static final int CHURN_BOOKS = 20_000;
+    private static final int CHURN_KEPT = 100;
+    
+    public static void main(String[] args) throws Exception {
+        String services = "impl,compact,sharded";
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--services")) {
+                services = args[i + 1];
+            }
+        }
+        
+        int failures = 0;
+        for (String service : services.split(",")) {
+            String failure = check(catalogFactory(service.trim()));
+            if (failure == null) {
+                System.out.println("PASS " + service.trim());
+            } else {
+                System.out.println("FAIL " + service.trim() + ": " + failure);
+                failures++;
+            }
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    private static Supplier<LibraryService> catalogFactory(String service) {
+        switch (service) {
+            case "impl":
+                return LibraryServiceImpl::new;
+            case "compact":
+                return CompactLibraryService::new;
+            case "sharded":
+                return () -> new ShardedLibraryService(4);
+            default:
+                throw new IllegalArgumentException("Unknown service '" + service + "'");
+        }
+    }
+    
+    /**
+     * Replicates a series of changes from a new catalog and compares the two copies
+     * @param factory Creates the leader's catalog
+     * @return null if every check passed, or a description of the first failure
+     */
+    private static String check(Supplier<LibraryService> factory) throws IOException, InterruptedException {
+        LibraryService catalog = factory.get();
+        for (int i = 1; i <= 5; i++) {
+            catalog.addBook(new Book("B" + i, "Title " + i, "Author " + (i % 2), 3));
+        }
+        
+        try (ReplicationLeader leader = new ReplicationLeader(catalog)) {
+            leader.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (ReplicaLibraryService replica = new ReplicaLibraryService(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), leader.getPort()))) {
+                replica.start();
+                if (!replica.awaitSnapshot(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return "no snapshot from the leader (" + replica.getLastError() + ")";
+                }
+                
+                long published = leader.getSequence();
+                leader.addBook(new Book("A1", "Added", "New Author", 2));
+                leader.updateBook("B1", new Book("B1-renamed", "Renamed", "Author 1", 4));
+                leader.updateBook("B2", new Book("B2", "Retitled", "Author 0", 1));
+                leader.checkout("B3", 2);
+                leader.returnBook("B3", 1);
+                leader.deleteBook("B4");
+                leader.updateBooks(List.of(new Book("B5", "Batch Title", "Author 1", 7),
+                                           new Book("A1-renamed", "Batch Renamed", "New Author", 2)));
+                leader.deleteBooks(Arrays.asList("B2", "missing", "B1-renamed"));
+                leader.addBooks(List.of(new Book("A2", "Second", "New Author", 1)));
+                long expected = published + 10;
+                if (leader.getSequence() != expected) {
+                    return "leader published " + (leader.getSequence() - published) + " of 10 changes";
+                }
+                
+                String failure = compare(leader, replica);
+                if (failure != null) {
+                    return failure;
+                }
+                
+                // Read the replica from another thread while it applies a stream of adds and deletes
+                AtomicReference<RuntimeException> readFailure = new AtomicReference<>();
+                AtomicBoolean reading = new AtomicBoolean(true);
+                Thread reader = new Thread(() -> {
+                    while (reading.get() && readFailure.get() == null) {
+                        try {
+                            replica.searchBookByTitle("churn");
+                            replica.getBooksByAuthor("churn");
+                            replica.getLowQuantityBooks(1);
+                            replica.searchRanked("churn", 5);
+                            replica.streamBooks().count();
+                            replica.getAllBooks();
+                        } catch (RuntimeException e) {
+                            readFailure.set(e);
+                        }
+                    }
+                }, "replication-check-reader");
+                reader.start();
+                for (int i = 0; i < CHURN_BOOKS; i++) {
+                    leader.addBook(new Book("C" + i, "Churn " + i, "Churn Author", 1));
+                    if (i >= CHURN_KEPT) {
+                        leader.deleteBook("C" + (i - CHURN_KEPT));
+                    }
+                }
+                failure = compare(leader, replica);
+                reading.set(false);
+                reader.join();
+                if (readFailure.get() != null) {
+                    return "reading the replica while it applied changes failed with " + readFailure.get();
+                }
+                return failure;
+            }
+        }
+    }
+    
+    /**
+     * Waits for the replica to apply every change published so far and compares the catalogs
+     * @return null if they match, or a description of the difference
+     */
+    private static String compare(ReplicationLeader leader, ReplicaLibraryService replica) throws InterruptedException {
+        long expected = leader.getSequence();
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        while (replica.getPosition() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        if (replica.getPosition() != expected) {
+            return "replica stopped at change " + replica.getPosition() + " of " + expected
+                   + " (" + replica.getLastError() + ")";
+        }
+        if (replica.getSnapshotCount() != 1) {
+            return "replica loaded " + replica.getSnapshotCount() + " snapshots; a change could not be applied ("
+                   + replica.getLastError() + ")";
+        }
+        
+        List<String> leaderBooks = describe(leader.getAllBooks());
+        List<String> replicaBooks = describe(replica.getAllBooks());
+        if (!leaderBooks.equals(replicaBooks)) {
+            return "catalogs differ: leader " + leaderBooks.size() + " books, replica " + replicaBooks.size()
+                   + "; first difference at " + firstDifference(leaderBooks, replicaBooks);
+        }
+        return null;
+    }
+    
+    private static String firstDifference(List<String> leaderBooks, List<String> replicaBooks) {
+        for (int i = 0; i < Math.min(leaderBooks.size(), replicaBooks.size()); i++) {
+            if (!leaderBooks.get(i).equals(replicaBooks.get(i))) {
+                return leaderBooks.get(i) + " / " + replicaBooks.get(i);
+            }
+        }
+        return leaderBooks.size() > replicaBooks.size() ? leaderBooks.get(replicaBooks.size())
+                                                         : replicaBooks.get(leaderBooks.size());
+    }
+    
+    private static List<String> describe(List<Book> books) {
+        List<String> descriptions = new ArrayList<>(books.size());
+        for (Book book : books) {
+            descriptions.add(book.getBookId() + "|" + book.getTitle() + "|" + book.getAuthor() + "|" + book.getQuantity());
+        }
+        descriptions.sort(Comparator.naturalOrder());
+        return descriptions;
+    }
+}
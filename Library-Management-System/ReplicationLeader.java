@@ -0,0 +1,553 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * ReplicationLeader class ships every change to a catalog to follower processes over TCP, so
+ * reads can be spread across processes that each hold their own copy (see ReplicaLibraryService).
+ *
+ * It sits in front of the catalog like the other decorators. Reads pass straight through; each
+ * mutation is applied and then published to a CatalogChangeLog while holding this object's lock,
+ * so the log lists changes in the order they took effect, checkouts included, and a snapshot
+ * taken under the same lock matches an exact position in the log.
+ *
+ * A follower connects and sends the leader ID and sequence number it has reached. If it last
+ * followed this leader and the log still holds that sequence, it is sent only the changes it
+ * missed; otherwise it is sent a snapshot of the catalog and then the changes after it. Every
+ * follower has its own thread and its own log subscription. A subscription holds writers back
+ * once it is a whole log behind, and a follower that accepts no data for FOLLOWER_TIMEOUT_MILLIS is
+ * disconnected, so a stuck follower cannot stall the catalog for long.
+ */
+public class ReplicationLeader implements LibraryService, Closeable {
+    
+    // Wire format shared with ReplicaLibraryService
+    static final int MAGIC = 0x5245504C; // "REPL"
+    static final int VERSION = 1;
+    static final byte SNAPSHOT_FRAME = 1;
+    static final byte CHANGE_FRAME = 2;
+    static final byte MARK_FRAME = 3;
+    
+    // An idle follower is sent a mark this often, so it knows it is up to date
+    static final long HEARTBEAT_MILLIS = 100;
+    
+    static final int BUFFER_SIZE = 1 << 16;
+    
+    public static final long FOLLOWER_TIMEOUT_MILLIS = 5_000;
+    
+    // Changes sent before a follower's stream is flushed and a mark is sent
+    private static final int CHANGES_PER_FLUSH = 1024;
+    
+    private final LibraryService delegate;
+    private final CatalogChangeLog changeLog;
+    private final long leaderId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bootstrapCount = new AtomicLong();
+    private final AtomicLong catchUpCount = new AtomicLong();
+    
+    private ServerSocket serverSocket;
+    private ExecutorService connectionExecutor;
+    private ScheduledExecutorService watchdog;
+    
+    /**
+     * Creates a leader in front of a catalog. Every mutation of the catalog must go through it.
+     * @param delegate Catalog to replicate
+     */
+    public ReplicationLeader(LibraryService delegate) {
+        this(delegate, CatalogChangeLog.DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a leader in front of a catalog. Every mutation of the catalog must go through it.
+     * @param delegate Catalog to replicate
+     * @param logCapacity Number of changes kept for followers that reconnect, which is also how
+     *                    far a connected follower may fall behind before writers wait for it
+     */
+    public ReplicationLeader(LibraryService delegate, int logCapacity) {
+        this.delegate = delegate;
+        this.changeLog = new CatalogChangeLog(logCapacity);
+    }
+    
+    /**
+     * Starts accepting followers
+     * @param address Address to listen on; port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     * @throws IllegalStateException if the leader is already listening
+     */
+    public synchronized void listen(InetSocketAddress address) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Already listening on port " + serverSocket.getLocalPort());
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replication-leader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        ServerSocket acceptingSocket = serverSocket;
+        connectionExecutor.execute(() -> acceptFollowers(acceptingSocket));
+        watchdog.scheduleWithFixedDelay(this::dropStuckFollowers, 1, 1, TimeUnit.SECONDS);
+    }
+    
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+    
+    /**
+     * Gets the ID that distinguishes this leader from earlier runs, whose sequence numbers started over
+     * @return Leader ID
+     */
+    public long getLeaderId() {
+        return leaderId;
+    }
+    
+    /**
+     * Gets the sequence number the next change will get
+     * @return Number of changes published
+     */
+    public long getSequence() {
+        return changeLog.getNextSequence();
+    }
+    
+    public int getFollowerCount() {
+        return followers.size();
+    }
+    
+    /**
+     * Gets how many followers were sent a full snapshot
+     * @return Number of snapshot bootstraps
+     */
+    public long getBootstrapCount() {
+        return bootstrapCount.get();
+    }
+    
+    /**
+     * Gets how many followers reconnected and were sent only the changes they missed
+     * @return Number of catch-ups from the log
+     */
+    public long getCatchUpCount() {
+        return catchUpCount.get();
+    }
+    
+    /**
+     * Gets how far the slowest connected follower is behind
+     * @return Number of changes not yet sent to it, or 0 without followers
+     */
+    public long getMaxFollowerLag() {
+        long head = changeLog.getNextSequence();
+        long lag = 0;
+        for (Follower follower : followers) {
+            CatalogChangeLog.Subscription subscription = follower.subscription;
+            if (subscription != null) {
+                lag = Math.max(lag, head - subscription.getPosition());
+            }
+        }
+        return lag;
+    }
+    
+    @Override
+    public synchronized void addBook(Book book) {
+        delegate.addBook(book);
+        changeLog.added(book);
+    }
+    
+    @Override
+    public synchronized void addBooks(Collection<Book> books) {
+        delegate.addBooks(books);
+        for (Book book : books) {
+            changeLog.added(book);
+        }
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return delegate.getAllBooks();
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return delegate.streamBooks();
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        return delegate.snapshot();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        return delegate.getBooksPage(afterBookId, pageSize);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        return delegate.searchBookById(bookId);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return delegate.searchBookByTitle(title);
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return delegate.searchRanked(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return delegate.searchBookByTitleFuzzy(title, limit);
+    }
+    
+    @Override
+    public synchronized boolean updateBook(String bookId, Book updatedBook) {
+        Book previous = detachedBook(bookId);
+        if (previous == null || !delegate.updateBook(bookId, updatedBook)) {
+            return false;
+        }
+        changeLog.updated(previous, updatedBook);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean deleteBook(String bookId) {
+        Book previous = detachedBook(bookId);
+        if (previous == null || !delegate.deleteBook(bookId)) {
+            return false;
+        }
+        changeLog.deleted(previous);
+        return true;
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        return delegate.getBooksByIds(bookIds);
+    }
+    
+    @Override
+    public synchronized BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        List<String> bookIds = new ArrayList<>(updatedBooks.size());
+        for (Book book : updatedBooks) {
+            bookIds.add(book == null ? null : book.getBookId());
+        }
+        List<Book> previous = detachedBooks(bookIds);
+        
+        BatchResult result = delegate.updateBooks(updatedBooks);
+        for (int i = 0; i < result.size(); i++) {
+            if (result.isApplied(i)) {
+                changeLog.updated(previous.get(i), updatedBooks.get(i));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public synchronized BatchResult deleteBooks(List<String> bookIds) {
+        List<Book> previous = detachedBooks(bookIds);
+        BatchResult result = delegate.deleteBooks(bookIds);
+        for (int i = 0; i < result.size(); i++) {
+            if (result.isApplied(i)) {
+                changeLog.deleted(previous.get(i));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        return delegate.bookExists(bookId);
+    }
+    
+    @Override
+    public synchronized boolean checkout(String bookId, int copies) {
+        if (!delegate.checkout(bookId, copies)) {
+            return false;
+        }
+        changeLog.quantityChanged(bookId.trim(), -copies);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean returnBook(String bookId, int copies) {
+        if (!delegate.returnBook(bookId, copies)) {
+            return false;
+        }
+        changeLog.quantityChanged(bookId.trim(), copies);
+        return true;
+    }
+    
+    @Override
+    public int getBookCount() {
+        return delegate.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return delegate.getBooksByAuthor(author);
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return delegate.getLowQuantityBooks(threshold);
+    }
+    
+    public LibraryService getDelegate() {
+        return delegate;
+    }
+    
+    /**
+     * Copies a book before it is changed. Catalogs may hand out live books (the compact catalog's
+     * views read the current state and fail once deleted), so the change log must be given the
+     * old details, and the old ID a rename is published under, before the change is made.
+     * @param bookId ID of the book
+     * @return A copy of the book, or null if there is no such book
+     */
+    private Book detachedBook(String bookId) {
+        return delegate.searchBookById(bookId).map(Book::copy).orElse(null);
+    }
+    
+    private List<Book> detachedBooks(List<String> bookIds) {
+        List<Book> books = delegate.getBooksByIds(bookIds);
+        List<Book> copies = new ArrayList<>(books.size());
+        for (Book book : books) {
+            copies.add(book == null ? null : book.copy());
+        }
+        return copies;
+    }
+    
+    /**
+     * Stops accepting followers and disconnects the connected ones. The catalog itself is not closed.
+     */
+    @Override
+    public void close() {
+        ServerSocket socket;
+        synchronized (this) {
+            socket = serverSocket;
+            if (socket == null) {
+                return;
+            }
+            serverSocket = null;
+        }
+        closeQuietly(socket);
+        for (Follower follower : followers) {
+            closeQuietly(follower.socket);
+        }
+        watchdog.shutdownNow();
+        connectionExecutor.shutdownNow();
+    }
+    
+    private void acceptFollowers(ServerSocket acceptingSocket) {
+        while (true) {
+            Socket socket;
+            try {
+                socket = acceptingSocket.accept();
+            } catch (IOException e) {
+                // Closed by close()
+                return;
+            }
+            try {
+                connectionExecutor.execute(() -> serveFollower(socket));
+            } catch (RuntimeException e) {
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Brings one follower up to date and then streams changes to it until it disconnects
+     */
+    private void serveFollower(Socket socket) {
+        Follower follower = new Follower(socket);
+        followers.add(follower);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            long followedLeaderId = in.readLong();
+            long position = in.readLong();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(leaderId);
+            
+            CatalogChangeLog.Subscription subscription = null;
+            if (followedLeaderId == leaderId) {
+                try {
+                    subscription = changeLog.subscribe(position);
+                    catchUpCount.incrementAndGet();
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    // The follower is ahead of this log, or too far behind it: start it over
+                }
+            }
+            if (subscription == null) {
+                CatalogSnapshot snapshot;
+                synchronized (this) {
+                    snapshot = delegate.snapshot();
+                    subscription = changeLog.subscribe();
+                }
+                follower.subscription = subscription;
+                try {
+                    writeSnapshot(out, snapshot, subscription.getPosition(), follower);
+                } catch (IOException e) {
+                    subscription.close();
+                    throw e;
+                }
+                bootstrapCount.incrementAndGet();
+            }
+            
+            try (CatalogChangeLog.Subscription changes = subscription) {
+                follower.subscription = changes;
+                streamChanges(out, changes, follower);
+            }
+        } catch (IOException e) {
+            // The follower disconnected or was dropped; it catches up when it reconnects
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+            closeQuietly(socket);
+        }
+    }
+    
+    private static void writeSnapshot(DataOutputStream out, CatalogSnapshot snapshot, long position,
+                                      Follower follower) throws IOException {
+        out.writeByte(SNAPSHOT_FRAME);
+        out.writeLong(position);
+        out.writeInt(snapshot.getBookCount());
+        int written = 0;
+        for (Book book : snapshot.getAllBooks()) {
+            CatalogJournal.writeBook(out, book);
+            if (++written % CHANGES_PER_FLUSH == 0) {
+                follower.progress++;
+            }
+        }
+        out.flush();
+        follower.progress++;
+    }
+    
+    private void streamChanges(DataOutputStream out, CatalogChangeLog.Subscription changes, Follower follower)
+            throws IOException, InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            CatalogChange change = changes.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            int sent = 0;
+            while (change != null) {
+                writeChange(out, change);
+                if (++sent == CHANGES_PER_FLUSH) {
+                    break;
+                }
+                change = changes.poll();
+            }
+            
+            // The follower is as current as the leader was now once it has applied everything
+            // before the mark
+            out.writeByte(MARK_FRAME);
+            out.writeLong(changeLog.getNextSequence());
+            out.writeLong(System.currentTimeMillis());
+            out.flush();
+            follower.progress++;
+        }
+    }
+    
+    private static void writeChange(DataOutputStream out, CatalogChange change) throws IOException {
+        out.writeByte(CHANGE_FRAME);
+        out.writeLong(change.getSequence());
+        out.writeLong(change.getTimestamp());
+        out.writeByte(change.getType().ordinal());
+        out.writeUTF(change.getBookId());
+        switch (change.getType()) {
+            case ADDED:
+            case UPDATED:
+                CatalogJournal.writeBook(out, change.getAfter());
+                break;
+            case QUANTITY_CHANGED:
+                out.writeInt(change.getQuantityDelta());
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Disconnects followers that have accepted no data for FOLLOWER_TIMEOUT_MILLIS. Idle followers
+     * are sent a mark every HEARTBEAT_MILLIS, so only a follower that stopped reading gets that far.
+     */
+    private void dropStuckFollowers() {
+        long now = System.nanoTime();
+        for (Follower follower : followers) {
+            if (follower.isStuck(now)) {
+                closeQuietly(follower.socket);
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+    }
+    
+    /**
+     * One connected follower, and the progress the watchdog last saw it make
+     */
+    private static final class Follower {
+        
+        private final Socket socket;
+        
+        // Set by the follower's thread: its subscription once it has one, and a count of flushes
+        private volatile CatalogChangeLog.Subscription subscription;
+        private volatile long progress;
+        
+        // Used by the watchdog thread only
+        private long lastProgress;
+        private long lastProgressNanos = System.nanoTime();
+        
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+        
+        boolean isStuck(long now) {
+            long current = progress;
+            if (current != lastProgress) {
+                lastProgress = current;
+                lastProgressNanos = now;
+                return false;
+            }
+            return now - lastProgressNanos > TimeUnit.MILLISECONDS.toNanos(FOLLOWER_TIMEOUT_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * ShardedLibraryService class partitions the catalog across independent shards by a hash of the book ID.
+ * Each shard is an ordinary LibraryService guarded by its own read-write lock, so operations on
+ * different shards never contend and no single collection holds the whole catalog.
+ *
+ * Operations on one book go to the shard owning its ID. Searches and listings run on all shards in
+ * parallel and concatenate the results in shard order; within a shard books keep insertion order.
+ */
+public class ShardedLibraryService implements LibraryService {
+    
+    private final LibraryService[] shards;
+    private final ReentrantReadWriteLock[] locks;
+    
+    /**
+     * Creates a catalog with the given number of LibraryServiceImpl shards
+     * @param shardCount Number of shards
+     */
+    public ShardedLibraryService(int shardCount) {
+        this(shardCount, 0, LibraryServiceImpl::new);
+    }
+    
+    /**
+     * Creates a catalog with the given number of shards
+     * @param shardCount Number of shards
+     * @param expectedBooks Number of books the whole catalog is expected to hold
+     * @param shardFactory Creates an empty shard, given the number of books it is expected to hold
+     * @throws IllegalArgumentException if shardCount is not positive
+     */
+    public ShardedLibraryService(int shardCount, int expectedBooks, IntFunction<LibraryService> shardFactory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.shards = new LibraryService[shardCount];
+        this.locks = new ReentrantReadWriteLock[shardCount];
+        int booksPerShard = (int) ((expectedBooks + (long) shardCount - 1) / shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = shardFactory.apply(booksPerShard);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+    
+    public int getShardCount() {
+        return shards.length;
+    }
+    
+    @Override
+    public void addBook(Book book) {
+        if (book == null) {
+            throw new IllegalArgumentException("Book cannot be null");
+        }
+        int shard = shardOf(book.getBookId());
+        write(shard, catalog -> {
+            catalog.addBook(book);
+            return null;
+        });
+    }
+    
+    @Override
+    public void addBooks(Collection<Book> books) {
+        BookBatch.validate(books);
+        
+        List<List<Book>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (Book book : books) {
+            parts.get(shardOf(book.getBookId())).add(book);
+        }
+        
+        // Lock every shard in index order, check the whole batch, then add; a failure can
+        // therefore never leave part of the batch behind in some shards
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < shards.length; i++) {
+                for (Book book : parts.get(i)) {
+                    if (!seen.add(book.getBookId())) {
+                        throw BookBatch.duplicate(book.getBookId(), false);
+                    }
+                    if (shards[i].bookExists(book.getBookId())) {
+                        throw BookBatch.duplicate(book.getBookId(), true);
+                    }
+                }
+            }
+            
+            // Shards are independent, so they can load their parts in parallel
+            IntStream.range(0, shards.length).parallel()
+                    .filter(i -> !parts.get(i).isEmpty())
+                    .forEach(i -> shards[i].addBooks(parts.get(i)));
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].writeLock().unlock();
+            }
+        }
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return gather(LibraryService::getAllBooks);
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        // Each shard is copied under its read lock when the stream reaches it, so at most one
+        // shard's worth of references is buffered per thread
+        return IntStream.range(0, shards.length).boxed()
+                .flatMap(shard -> read(shard, LibraryService::getAllBooks).stream());
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        
+        // The next page is among the first pageSize books after the cursor in each shard
+        List<BookPage> pages = IntStream.range(0, shards.length).parallel()
+                .mapToObj(shard -> read(shard, catalog -> catalog.getBooksPage(afterBookId, pageSize)))
+                .collect(Collectors.toList());
+        
+        List<Book> merged = new ArrayList<>();
+        boolean more = false;
+        for (BookPage page : pages) {
+            merged.addAll(page.getBooks());
+            more |= page.hasMore();
+        }
+        merged.sort(Comparator.comparing(Book::getBookId));
+        if (merged.size() > pageSize) {
+            merged.subList(pageSize, merged.size()).clear();
+            more = true;
+        }
+        
+        String nextCursor = more && !merged.isEmpty() ? merged.get(merged.size() - 1).getBookId() : null;
+        return new BookPage(merged, nextCursor);
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        // Hold every shard still only while taking the shard snapshots, which is immediate for
+        // shards that keep versions; the versions are merged after writers are let go again
+        CatalogSnapshot[] parts = new CatalogSnapshot[shards.length];
+        for (ReentrantReadWriteLock lock : locks) {
+            lock.readLock().lock();
+        }
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                parts[i] = shards[i].snapshot();
+            }
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].readLock().unlock();
+            }
+        }
+        
+        CatalogSnapshot merged = CatalogSnapshot.EMPTY;
+        for (CatalogSnapshot part : parts) {
+            merged = merged.withAll(part);
+        }
+        return merged;
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        return read(shardOf(bookId), catalog -> catalog.searchBookById(bookId));
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return gather(catalog -> catalog.searchBookByTitle(title));
+    }
+    
+    @Override
+    public boolean updateBook(String bookId, Book updatedBook) {
+        if (bookId == null || bookId.trim().isEmpty() || updatedBook == null) {
+            return false;
+        }
+        
+        int source = shardOf(bookId);
+        int target = shardOf(updatedBook.getBookId());
+        if (source == target) {
+            return write(source, catalog -> catalog.updateBook(bookId, updatedBook));
+        }
+        
+        // The new ID belongs to another shard: move the book, locking both shards in index order
+        int first = Math.min(source, target);
+        int second = Math.max(source, target);
+        locks[first].writeLock().lock();
+        locks[second].writeLock().lock();
+        try {
+            if (!shards[source].bookExists(bookId)) {
+                return false;
+            }
+            if (shards[target].bookExists(updatedBook.getBookId())) {
+                throw new DuplicateBookException(updatedBook.getBookId());
+            }
+            shards[target].addBook(updatedBook);
+            shards[source].deleteBook(bookId);
+            return true;
+        } finally {
+            locks[second].writeLock().unlock();
+            locks[first].writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public boolean deleteBook(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        return write(shardOf(bookId), catalog -> catalog.deleteBook(bookId));
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        Book[] books = new Book[bookIds.size()];
+        int[][] positions = partition(bookIds, bookId -> bookId != null && !bookId.trim().isEmpty());
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (positions[shard].length == 0) {
+                continue;
+            }
+            List<String> ids = select(bookIds, positions[shard]);
+            List<Book> found = read(shard, catalog -> catalog.getBooksByIds(ids));
+            for (int i = 0; i < found.size(); i++) {
+                books[positions[shard][i]] = found.get(i);
+            }
+        }
+        return Arrays.asList(books);
+    }
+    
+    @Override
+    public BatchResult updateBooks(List<Book> updatedBooks) {
+        if (updatedBooks == null) {
+            throw new IllegalArgumentException("Books cannot be null");
+        }
+        // IDs stay the same, so every book is updated within its own shard
+        List<String> bookIds = new ArrayList<>(updatedBooks.size());
+        for (Book book : updatedBooks) {
+            bookIds.add(book == null ? null : book.getBookId());
+        }
+        int[][] positions = partition(bookIds, BookBatch::isExactId);
+        return applyByShard(updatedBooks.size(), positions,
+                (catalog, shard) -> catalog.updateBooks(select(updatedBooks, positions[shard])));
+    }
+    
+    @Override
+    public BatchResult deleteBooks(List<String> bookIds) {
+        if (bookIds == null) {
+            throw new IllegalArgumentException("Book IDs cannot be null");
+        }
+        int[][] positions = partition(bookIds, bookId -> bookId != null && !bookId.trim().isEmpty());
+        return applyByShard(bookIds.size(), positions,
+                (catalog, shard) -> catalog.deleteBooks(select(bookIds, positions[shard])));
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        return read(shardOf(bookId), catalog -> catalog.bookExists(bookId));
+    }
+    
+    @Override
+    public boolean checkout(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to check out must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        // Checkouts change only a quantity, which the shard updates atomically, so a read lock suffices
+        return read(shardOf(bookId), catalog -> catalog.checkout(bookId, copies));
+    }
+    
+    @Override
+    public boolean returnBook(String bookId, int copies) {
+        if (copies <= 0) {
+            throw new IllegalArgumentException("Copies to return must be positive");
+        }
+        if (bookId == null || bookId.trim().isEmpty()) {
+            return false;
+        }
+        return read(shardOf(bookId), catalog -> catalog.returnBook(bookId, copies));
+    }
+    
+    @Override
+    public int getBookCount() {
+        int count = 0;
+        for (int i = 0; i < shards.length; i++) {
+            count += read(i, LibraryService::getBookCount);
+        }
+        return count;
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return gather(catalog -> catalog.getBooksByAuthor(author));
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return gather(catalog -> catalog.getLowQuantityBooks(threshold));
+    }
+    
+    /**
+     * Runs a query on every shard in parallel and concatenates the results in shard order
+     */
+    private List<Book> gather(Function<LibraryService, List<Book>> query) {
+        List<List<Book>> results = IntStream.range(0, shards.length).parallel()
+                .mapToObj(shard -> read(shard, query))
+                .collect(Collectors.toList());
+        
+        int total = 0;
+        for (List<Book> result : results) {
+            total += result.size();
+        }
+        List<Book> merged = new ArrayList<>(total);
+        for (List<Book> result : results) {
+            merged.addAll(result);
+        }
+        return merged;
+    }
+    
+    /**
+     * Groups the positions of a batch by the shard owning each ID
+     * @param valid Tells which IDs can be routed; the others belong to no shard
+     * @return For each shard, the positions of its items in input order
+     */
+    private int[][] partition(List<String> bookIds, Predicate<String> valid) {
+        int[] counts = new int[shards.length];
+        int[] owners = new int[bookIds.size()];
+        for (int i = 0; i < owners.length; i++) {
+            String bookId = bookIds.get(i);
+            owners[i] = valid.test(bookId) ? shardOf(bookId) : -1;
+            if (owners[i] >= 0) {
+                counts[owners[i]]++;
+            }
+        }
+        int[][] positions = new int[shards.length][];
+        for (int shard = 0; shard < shards.length; shard++) {
+            positions[shard] = new int[counts[shard]];
+            counts[shard] = 0;
+        }
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] >= 0) {
+                positions[owners[i]][counts[owners[i]]++] = i;
+            }
+        }
+        return positions;
+    }
+    
+    private static <T> List<T> select(List<T> items, int[] positions) {
+        List<T> selected = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            selected.add(items.get(position));
+        }
+        return selected;
+    }
+    
+    /**
+     * Applies a batch shard by shard, taking each shard's write lock once
+     * @return Outcome of each item in input order; items routed to no shard are INVALID
+     */
+    private BatchResult applyByShard(int size, int[][] positions, BiFunction<LibraryService, Integer, BatchResult> operation) {
+        BatchResult.Status[] statuses = new BatchResult.Status[size];
+        Arrays.fill(statuses, BatchResult.Status.INVALID);
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (positions[shard].length == 0) {
+                continue;
+            }
+            int current = shard;
+            BatchResult result = write(shard, catalog -> operation.apply(catalog, current));
+            for (int i = 0; i < result.size(); i++) {
+                statuses[positions[shard][i]] = result.getStatus(i);
+            }
+        }
+        return new BatchResult(statuses);
+    }
+    
+    private <T> T read(int shard, Function<LibraryService, T> operation) {
+        locks[shard].readLock().lock();
+        try {
+            return operation.apply(shards[shard]);
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+    }
+    
+    private <T> T write(int shard, Function<LibraryService, T> operation) {
+        locks[shard].writeLock().lock();
+        try {
+            return operation.apply(shards[shard]);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Picks the shard for a book ID. IDs are trimmed first, as the shards do when looking books up.
+     */
+    private int shardOf(String bookId) {
+        int hash = bookId == null ? 0 : bookId.trim().hashCode();
+        // Mix the high bits in, since String hashes of similar IDs differ mostly in the low bits
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards.length);
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * StoredLibraryService class keeps a LibraryService in a RecordStore from the shared storage
+ * engine. Reads go straight to an in-memory catalog (LibraryServiceImpl unless another in-memory
+ * implementation is supplied) loaded from the store on startup; every successful mutation is
+ * written through to the store, so the engine decides how the catalog is kept (in memory only,
+ * journaled with snapshots, or in a memory-mapped file).
+ */
+public class StoredLibraryService implements LibraryService, Closeable {
+    
+    private final RecordStore<String, Book> store;
+    private final LibraryService catalog;
+    
+    /**
+     * Loads the books of a store into a LibraryServiceImpl
+     * @param store Store holding the books, keyed by book ID
+     */
+    public StoredLibraryService(RecordStore<String, Book> store) {
+        this(store, LibraryServiceImpl::new);
+    }
+    
+    /**
+     * Loads the books of a store into the supplied in-memory catalog
+     * @param store Store holding the books, keyed by book ID
+     * @param catalogFactory Creates the empty in-memory catalog, given the expected number of books
+     */
+    public StoredLibraryService(RecordStore<String, Book> store, IntFunction<LibraryService> catalogFactory) {
+        this.store = store;
+        List<Book> books = store.values();
+        this.catalog = catalogFactory.apply(books.size());
+        catalog.addBooks(books);
+    }
+    
+    @Override
+    public synchronized void addBook(Book book) {
+        catalog.addBook(book);
+        store.put(book);
+    }
+    
+    @Override
+    public synchronized void addBooks(Collection<Book> books) {
+        catalog.addBooks(books);
+        store.putAll(books);
+    }
+    
+    @Override
+    public List<Book> getAllBooks() {
+        return catalog.getAllBooks();
+    }
+    
+    @Override
+    public Stream<Book> streamBooks() {
+        return catalog.streamBooks();
+    }
+    
+    @Override
+    public CatalogSnapshot snapshot() {
+        return catalog.snapshot();
+    }
+    
+    @Override
+    public BookPage getBooksPage(String afterBookId, int pageSize) {
+        return catalog.getBooksPage(afterBookId, pageSize);
+    }
+    
+    @Override
+    public Optional<Book> searchBookById(String bookId) {
+        return catalog.searchBookById(bookId);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitle(String title) {
+        return catalog.searchBookByTitle(title);
+    }
+    
+    @Override
+    public List<Book> searchRanked(String query, int limit) {
+        return catalog.searchRanked(query, limit);
+    }
+    
+    @Override
+    public List<Book> searchBookByTitleFuzzy(String title, int limit) {
+        return catalog.searchBookByTitleFuzzy(title, limit);
+    }
+    
+    @Override
+    public synchronized boolean updateBook(String bookId, Book updatedBook) {
+        if (!catalog.updateBook(bookId, updatedBook)) {
+            return false;
+        }
+        // An update may change the book ID, which is the store key
+        String oldId = bookId.trim();
+        if (!oldId.equals(updatedBook.getBookId())) {
+            store.remove(oldId);
+        }
+        store.put(updatedBook);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean deleteBook(String bookId) {
+        if (!catalog.deleteBook(bookId)) {
+            return false;
+        }
+        store.remove(bookId.trim());
+        return true;
+    }
+    
+    @Override
+    public List<Book> getBooksByIds(List<String> bookIds) {
+        return catalog.getBooksByIds(bookIds);
+    }
+    
+    @Override
+    public synchronized BatchResult updateBooks(List<Book> updatedBooks) {
+        BatchResult result = catalog.updateBooks(updatedBooks);
+        if (result.getAppliedCount() > 0) {
+            // One store write for the whole batch
+            List<Book> applied = new ArrayList<>(result.getAppliedCount());
+            for (int i = 0; i < result.size(); i++) {
+                if (result.isApplied(i)) {
+                    applied.add(updatedBooks.get(i));
+                }
+            }
+            store.putAll(applied);
+        }
+        return result;
+    }
+    
+    @Override
+    public synchronized BatchResult deleteBooks(List<String> bookIds) {
+        BatchResult result = catalog.deleteBooks(bookIds);
+        if (result.getAppliedCount() > 0) {
+            List<String> applied = new ArrayList<>(result.getAppliedCount());
+            for (int i = 0; i < result.size(); i++) {
+                if (result.isApplied(i)) {
+                    applied.add(bookIds.get(i).trim());
+                }
+            }
+            store.removeAll(applied);
+        }
+        return result;
+    }
+    
+    @Override
+    public boolean bookExists(String bookId) {
+        return catalog.bookExists(bookId);
+    }
+    
+    @Override
+    public synchronized boolean checkout(String bookId, int copies) {
+        if (!catalog.checkout(bookId, copies)) {
+            return false;
+        }
+        storeCurrent(bookId);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean returnBook(String bookId, int copies) {
+        if (!catalog.returnBook(bookId, copies)) {
+            return false;
+        }
+        storeCurrent(bookId);
+        return true;
+    }
+    
+    @Override
+    public int getBookCount() {
+        return catalog.getBookCount();
+    }
+    
+    @Override
+    public List<Book> getBooksByAuthor(String author) {
+        return catalog.getBooksByAuthor(author);
+    }
+    
+    @Override
+    public List<Book> getLowQuantityBooks(int threshold) {
+        return catalog.getLowQuantityBooks(threshold);
+    }
+    
+    /**
+     * Closes the store, writing out anything it still buffers
+     * @throws IOException if the store cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        store.close();
+    }
+    
+    /**
+     * Writes the catalog's current copy of a book, after its quantity changed in place
+     */
+    private void storeCurrent(String bookId) {
+        catalog.searchBookById(bookId).ifPresent(store::put);
+    }
+}
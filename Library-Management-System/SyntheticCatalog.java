@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * SyntheticCatalog class generates a reproducible catalog of books for benchmarks and load tests.
+ * Book i is derived from the seed and i alone, so the same seed and size always give the same
+ * catalog, and any single book can be generated without the others.
+ *
+ * Selectivity is the share of the catalog that one title or author query matches, and the share
+ * of books at or below the low quantity threshold. Every title carries a group code such as
+ * "group 000042" and every author a code such as "writer 000017"; all codes have the same width,
+ * so a query for one code never matches another.
+ */
+public final class SyntheticCatalog {
+    
+    /** Books at or below this quantity are the low quantity share of the catalog */
+    public static final int LOW_QUANTITY_THRESHOLD = 5;
+    
+    private static final int MAX_QUANTITY = 100;
+    private static final int MAX_GROUPS = 1_000_000;
+    
+    private static final String[] WORDS = {
+        "Advanced", "Algorithms", "Applied", "Art", "Basics", "Concurrent", "Data", "Design",
+        "Distributed", "Effective", "Engineering", "Functional", "Guide", "Introduction", "Java",
+        "Modern", "Networks", "Patterns", "Practical", "Principles", "Programming", "Systems",
+        "Structures", "Theory"
+    };
+    private static final String[] FIRST_NAMES = {
+        "Ada", "Alan", "Barbara", "Donald", "Edsger", "Grace", "John", "Ken", "Leslie", "Margaret",
+        "Niklaus", "Radia", "Robert", "Tony"
+    };
+    
+    // A word that no generated title or author contains, for queries that match nothing
+    private static final String ABSENT_WORD = "Quixotic";
+    
+    private final long seed;
+    private final int size;
+    private final double selectivity;
+    private final int groups;
+    
+    /**
+     * Describes a catalog
+     * @param seed Seed that every book is derived from
+     * @param size Number of books
+     * @param selectivity Share of the catalog matched by one query, between 0 (exclusive) and 1
+     */
+    public SyntheticCatalog(long seed, int size, double selectivity) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative");
+        }
+        if (!(selectivity > 0 && selectivity <= 1)) {
+            throw new IllegalArgumentException("Selectivity must be greater than 0 and at most 1");
+        }
+        this.seed = seed;
+        this.size = size;
+        this.selectivity = selectivity;
+        this.groups = (int) Math.min(MAX_GROUPS, Math.max(1, Math.round(1 / selectivity)));
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    public double getSelectivity() {
+        return selectivity;
+    }
+    
+    /**
+     * Gets the number of distinct title groups (and author groups)
+     * @return Number of groups; a query for one group matches about size / groups books
+     */
+    public int getGroupCount() {
+        return groups;
+    }
+    
+    /**
+     * Generates book i. Indexes at or beyond the size give books that are not in the catalog,
+     * which is how benchmarks get books to add.
+     * @param index Index of the book, not negative
+     * @return A new Book object
+     */
+    public Book book(int index) {
+        SplittableRandom random = random(index);
+        StringBuilder title = new StringBuilder(48);
+        title.append(WORDS[random.nextInt(WORDS.length)]).append(' ')
+             .append(WORDS[random.nextInt(WORDS.length)]).append(' ')
+             .append(code("Group", index % groups));
+        String author = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + code("Writer", random.nextInt(groups));
+        int quantity = random.nextDouble() < selectivity
+                ? random.nextInt(LOW_QUANTITY_THRESHOLD + 1)
+                : LOW_QUANTITY_THRESHOLD + 1 + random.nextInt(MAX_QUANTITY - LOW_QUANTITY_THRESHOLD);
+        return new Book(bookId(index), title.toString(), author, quantity);
+    }
+    
+    /**
+     * Generates every book of the catalog, in index order
+     * @return A new list of size books
+     */
+    public List<Book> books() {
+        List<Book> books = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            books.add(book(i));
+        }
+        return books;
+    }
+    
+    /**
+     * Gets the ID of book i. IDs are unique for every index and are not in index order, so
+     * inserting books by index does not insert them in ID order.
+     * @param index Index of the book, not negative
+     * @return The book ID
+     */
+    public String bookId(int index) {
+        // Multiplying by an odd constant is a bijection on 32 bits, so distinct indexes give distinct IDs
+        int scrambled = (index * 0x9E3779B1) ^ (int) seed;
+        return "BK" + padded(Integer.toHexString(scrambled).toUpperCase(Locale.ROOT), 8);
+    }
+    
+    /**
+     * Gets an ID that no book of this catalog has
+     * @param index Any number; different numbers give different IDs
+     * @return An ID missing from the catalog
+     */
+    public String missingBookId(int index) {
+        return "NO" + Integer.toHexString(index);
+    }
+    
+    /**
+     * Gets a title query that matches one group, about selectivity * size books
+     * @param group Group number; taken modulo the group count
+     * @return Query text
+     */
+    public String titleQuery(int group) {
+        return code("Group", Math.floorMod(group, groups));
+    }
+    
+    /**
+     * Gets an author query that matches one group, about selectivity * size books
+     * @param group Group number; taken modulo the group count
+     * @return Query text
+     */
+    public String authorQuery(int group) {
+        return code("Writer", Math.floorMod(group, groups));
+    }
+    
+    /**
+     * Gets a title or author query that matches no book
+     * @return Query text
+     */
+    public String missingQuery() {
+        return ABSENT_WORD;
+    }
+    
+    private SplittableRandom random(int index) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + index);
+    }
+    
+    private static String code(String word, int group) {
+        return word + " " + padded(Integer.toString(group), 6);
+    }
+    
+    private static String padded(String digits, int width) {
+        return digits.length() >= width ? digits : "000000000".substring(0, width - digits.length()) + digits;
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * TermDictionary class holds the distinct words of the catalog in sorted order and finds every word
+ * within a small edit distance of a query without comparing the query against every word.
+ *
+ * The search runs the Levenshtein automaton of the query over the dictionary as if it were a trie:
+ * words are visited in sorted order, one row of the edit distance table is computed per character,
+ * and rows are reused for the prefix a word shares with the previous one. As soon as every entry
+ * of a row exceeds the distance limit, no word starting with that prefix can match, and the search
+ * jumps past all of them with a single lookup in the sorted set.
+ * Not thread-safe; callers synchronize.
+ */
+public class TermDictionary {
+    
+    private final NavigableSet<String> words = new TreeSet<>();
+    
+    /**
+     * Adds a word to the dictionary
+     * @param word Word to add
+     * @return true if the word was not already present
+     */
+    public boolean add(String word) {
+        return words.add(word);
+    }
+    
+    /**
+     * Removes a word from the dictionary
+     * @param word Word to remove
+     * @return true if the word was present
+     */
+    public boolean remove(String word) {
+        return words.remove(word);
+    }
+    
+    public int size() {
+        return words.size();
+    }
+    
+    /**
+     * Finds every word within an edit distance of the query
+     * @param query Query word
+     * @param maxDistance Maximum number of insertions, deletions and substitutions
+     * @return Matching words, in sorted order, mapped to their distance from the query
+     */
+    public Map<String, Integer> search(String query, int maxDistance) {
+        Map<String, Integer> matches = new LinkedHashMap<>();
+        int columns = query.length() + 1;
+        
+        // rows[d] is the edit distance table row after the first d characters of a word
+        int[][] rows = new int[query.length() + maxDistance + 2][columns];
+        for (int j = 0; j < columns; j++) {
+            rows[0][j] = j;
+        }
+        String previous = "";
+        int validRows = 1;
+        
+        String word = words.isEmpty() ? null : words.first();
+        while (word != null) {
+            int depth = Math.min(commonPrefix(previous, word) + 1, validRows);
+            int deadAt = -1;
+            // Words longer than query + maxDistance cannot match; stop computing at that depth
+            int limit = Math.min(word.length(), rows.length - 1);
+            for (; depth <= limit; depth++) {
+                if (!fillRow(rows[depth - 1], rows[depth], word.charAt(depth - 1), query, maxDistance)) {
+                    deadAt = depth;
+                    break;
+                }
+            }
+            previous = word;
+            
+            if (deadAt > 0) {
+                // No word with this prefix can match; skip to the first word after all of them
+                validRows = deadAt;
+                word = words.higher(word.substring(0, deadAt) + Character.MAX_VALUE);
+                continue;
+            }
+            
+            validRows = limit + 1;
+            if (word.length() == limit && rows[limit][query.length()] <= maxDistance) {
+                matches.put(word, rows[limit][query.length()]);
+            }
+            word = words.higher(word);
+        }
+        return matches;
+    }
+    
+    /**
+     * Computes the Levenshtein distance between two words, giving up once it exceeds a limit
+     * @param a First word
+     * @param b Second word
+     * @param limit Largest distance of interest
+     * @return The distance, or limit + 1 if it is larger than limit
+     */
+    public static int distance(String a, String b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) {
+            return limit + 1;
+        }
+        
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        
+        for (int i = 1; i <= a.length(); i++) {
+            if (!fillRow(previous, current, a.charAt(i - 1), b, limit)) {
+                return limit + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        int distance = previous[b.length()];
+        return distance > limit ? limit + 1 : distance;
+    }
+    
+    /**
+     * Computes the next row of the edit distance table for one more character of the word
+     * @return false if every entry of the row exceeds the limit
+     */
+    private static boolean fillRow(int[] previous, int[] current, char c, String query, int limit) {
+        current[0] = previous[0] + 1;
+        int rowMinimum = current[0];
+        for (int j = 1; j < current.length; j++) {
+            int substitution = previous[j - 1] + (c == query.charAt(j - 1) ? 0 : 1);
+            current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            rowMinimum = Math.min(rowMinimum, current[j]);
+        }
+        return rowMinimum <= limit;
+    }
+    
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * AgeStatistics Class
+ * Counts students by age, from which the mean, percentiles and histograms follow exactly
+ * Ages are whole years, so one counter per age holds everything; ages outside 0 to MAX_AGE
+ * are counted at the nearest end
+ * Not thread-safe: each thread of a parallel aggregation fills its own and they are merged
+ */
+public class AgeStatistics {
+    public static final int MAX_AGE = 150;
+
+    private final long[] countsByAge = new long[MAX_AGE + 1];
+    private long count;
+    private long ageSum;
+
+    /**
+     * Counts one student
+     * @param age the student's age
+     */
+    public void add(int age) {
+        countsByAge[Math.max(0, Math.min(MAX_AGE, age))]++;
+        count++;
+        ageSum += age;
+    }
+
+    /**
+     * Adds the counts of another instance to this one
+     * @param other statistics to merge in
+     * @return this instance
+     */
+    public AgeStatistics merge(AgeStatistics other) {
+        for (int age = 0; age <= MAX_AGE; age++) {
+            countsByAge[age] += other.countsByAge[age];
+        }
+        count += other.count;
+        ageSum += other.ageSum;
+        return this;
+    }
+
+    /**
+     * Gets the number of students counted
+     * @return student count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the average age
+     * @return mean age, or 0 if no students were counted
+     */
+    public double getAverageAge() {
+        return count == 0 ? 0 : (double) ageSum / count;
+    }
+
+    /**
+     * Gets the age below or at which the given share of students fall (nearest-rank method)
+     * @param percentile percentile between 0 and 100, e.g. 50 for the median
+     * @return the age, or 0 if no students were counted
+     */
+    public int getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int age = 0; age <= MAX_AGE; age++) {
+            seen += countsByAge[age];
+            if (seen >= rank) {
+                return age;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the youngest age counted
+     * @return minimum age, or 0 if no students were counted
+     */
+    public int getMinAge() {
+        return getPercentile(0);
+    }
+
+    /**
+     * Gets the oldest age counted
+     * @return maximum age, or 0 if no students were counted
+     */
+    public int getMaxAge() {
+        return getPercentile(100);
+    }
+
+    /**
+     * Counts students in age ranges of equal width: ages 0 to width - 1, width to 2 * width - 1, ...
+     * @param bucketWidth number of ages per range
+     * @return student count of each range, up to the one holding MAX_AGE
+     */
+    public long[] getHistogram(int bucketWidth) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException("Bucket width must be positive");
+        }
+        long[] buckets = new long[MAX_AGE / bucketWidth + 1];
+        for (int age = 0; age <= MAX_AGE; age++) {
+            buckets[age / bucketWidth] += countsByAge[age];
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BatchCommandRunner Class
+ * Runs a script of roster commands without the menus, for bulk changes from a file or a pipe
+ * Commands are read with a CommandReader (one per line, tab-separated fields) and each prints
+ * one result line, in script order:
+ *   add NAME AGE COURSE              added ID, or failed
+ *   update ID NAME AGE COURSE        ok, or failed (an empty field or age 0 keeps the old value)
+ *   delete ID                        ok, or failed
+ *   get ID                           ID NAME AGE COURSE, or not found
+ *   course COURSE                    the number of students, then one line per student
+ *   count                            the number of students
+ *   stats                            count, average, median and oldest age
+ * Validation messages from StudentService come just before the failed line they explain
+ * In grouped mode, runs of consecutive adds are stored with one addStudents call, and their
+ * validation messages come before the results of the whole run
+ */
+public class BatchCommandRunner {
+    // Largest number of adds stored in one call
+    private static final int GROUP_LIMIT = 10_000;
+
+    private final StudentService studentService;
+    private final PrintStream out;
+    private final boolean grouped;
+    private final List<Student> groupedAdds = new ArrayList<>();
+
+    private long commandCount;
+    private long errorCount;
+
+    /**
+     * Constructor
+     * @param studentService roster the commands apply to
+     * @param out stream the results are written to; flushed when the script ends
+     * @param grouped true to store runs of adds with one call
+     */
+    public BatchCommandRunner(StudentService studentService, PrintStream out, boolean grouped) {
+        this.studentService = studentService;
+        this.out = out;
+        this.grouped = grouped;
+    }
+
+    /**
+     * Runs every command of a script; a command that fails prints an error line and the script carries on
+     * @param commands script to run
+     * @throws IOException if the script cannot be read
+     */
+    public void run(CommandReader commands) throws IOException {
+        try {
+            while (commands.next()) {
+                commandCount++;
+                try {
+                    execute(commands);
+                } catch (IllegalArgumentException e) {
+                    addGroup();
+                    errorCount++;
+                    out.println("error: line " + commands.getLineNumber() + ": " + e.getMessage());
+                }
+            }
+            addGroup();
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Gets the number of commands run
+     * @return command count
+     */
+    public long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Gets the number of commands that failed
+     * @return error count
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Runs the current command of the script
+     * @param commands script positioned at the command
+     */
+    private void execute(CommandReader commands) {
+        String command = commands.getField(0);
+        if (grouped && command.equals("add")) {
+            if (groupedAdds.size() >= GROUP_LIMIT) {
+                addGroup();
+            }
+            groupedAdds.add(readStudent(commands, 1));
+            return;
+        }
+        addGroup();
+
+        switch (command) {
+            case "add":
+                Student student = readStudent(commands, 1);
+                printAdded(studentService.addStudents(List.of(student))[0]);
+                break;
+            case "update":
+                Student updated = readStudent(commands, 2);
+                boolean ok = studentService.updateStudent(commands.getIntField(1), updated.getName(),
+                                                          updated.getAge(), updated.getCourse());
+                result(ok);
+                break;
+            case "delete":
+                result(studentService.deleteStudent(commands.getIntField(1)));
+                break;
+            case "get":
+                Student found = studentService.getStudentById(commands.getIntField(1));
+                if (found != null) {
+                    printStudent(found);
+                } else {
+                    out.println("not found");
+                }
+                break;
+            case "course":
+                List<Student> enrolled = studentService.getStudentsByCourse(commands.getField(1));
+                out.println(enrolled.size());
+                for (Student enrolledStudent : enrolled) {
+                    printStudent(enrolledStudent);
+                }
+                break;
+            case "count":
+                out.println(studentService.getStudentCount());
+                break;
+            case "stats":
+                AgeStatistics statistics = studentService.getAgeStatistics();
+                out.printf("%d\t%.2f\t%d\t%d%n", statistics.getCount(), statistics.getAverageAge(),
+                           statistics.getPercentile(50), statistics.getMaxAge());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command '" + command + "'");
+        }
+    }
+
+    /**
+     * Reads the name, age and course fields of an add or update command
+     * @param commands script positioned at the command
+     * @param first position of the name field
+     * @return student with ID 0
+     */
+    private static Student readStudent(CommandReader commands, int first) {
+        String age = commands.getField(first + 1).trim();
+        return new Student(0, commands.getField(first), age.isEmpty() ? 0 : commands.getIntField(first + 1),
+                           commands.getField(first + 2));
+    }
+
+    /**
+     * Stores the waiting run of adds and prints a result for each
+     */
+    private void addGroup() {
+        if (groupedAdds.isEmpty()) {
+            return;
+        }
+        for (int studentId : studentService.addStudents(groupedAdds)) {
+            printAdded(studentId);
+        }
+        groupedAdds.clear();
+    }
+
+    private void printAdded(int studentId) {
+        if (studentId != 0) {
+            out.println("added " + studentId);
+        } else {
+            failed();
+        }
+    }
+
+    private void printStudent(Student student) {
+        out.println(student.getStudentId() + "\t" + student.getName() + "\t" + student.getAge() + "\t"
+                    + student.getCourse());
+    }
+
+    private void result(boolean ok) {
+        if (ok) {
+            out.println("ok");
+        } else {
+            failed();
+        }
+    }
+
+    private void failed() {
+        errorCount++;
+        out.println("failed");
+    }
+}
@@ -1,5 +1,12 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.InputMismatchException;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -8,27 +15,98 @@ import java.util.Scanner;
  * Provides menu-driven console interface for user interaction
  */
 public class Main {
+    private static final String DATA_DIRECTORY = "student-data";
+    private static final String STORE_NAME = "students";
+
     private static StudentService studentService;
     private static Scanner scanner;
 
     /**
      * Main method - entry point of the application
-     * @param args command line arguments
+     * @param args command line arguments; --engine memory|journal|mapped|tiered picks the storage
+     *             engine (journal by default); --batch FILE runs a command script (- for standard
+     *             input) instead of the menu, and --grouped stores its runs of adds together
      */
     public static void main(String[] args) {
-        studentService = new StudentService();
-        scanner = new Scanner(System.in);
-        
-        // Ensure data file exists
-        FileHandler.createFileIfNotExists();
-        
-        System.out.println("=================================");
-        System.out.println("  Student Management System");
-        System.out.println("=================================");
-        
-        runMainMenu();
-        
-        scanner.close();
+        String engine = RecordStores.JOURNAL;
+        String batchSource = null;
+        boolean grouped = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--engine") && i + 1 < args.length) {
+                engine = args[++i];
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                batchSource = args[++i];
+            } else if (args[i].equals("--grouped")) {
+                grouped = true;
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.err.println("Usage: java Main [--engine memory|journal|mapped|tiered] [--batch FILE|- [--grouped]]");
+                return;
+            }
+        }
+
+        RecordStore<Integer, Student> store;
+        try {
+            store = RecordStores.open(engine, Paths.get(DATA_DIRECTORY), STORE_NAME, new StudentCodec());
+            // The tiered engine keeps memory use fixed, so courses are scanned rather than indexed
+            studentService = new StudentService(store, !(store instanceof TieredRecordStore));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error opening student data: " + e.getMessage());
+            return;
+        }
+        // In batch mode standard output carries only the script's results
+        PrintStream report = System.out;
+        if (batchSource != null) {
+            report = System.err;
+            runBatch(batchSource, grouped);
+        } else {
+            scanner = new Scanner(System.in);
+            
+            System.out.println("=================================");
+            System.out.println("  Student Management System");
+            System.out.println("=================================");
+            
+            runMainMenu();
+            
+            scanner.close();
+        }
+        if (store instanceof TieredRecordStore) {
+            TieredRecordStore<Integer, Student> tiered = (TieredRecordStore<Integer, Student>) store;
+            report.printf("Student cache: %d hits, %d misses (%.1f%% hit ratio)%n",
+                          tiered.getHits(), tiered.getMisses(), 100 * tiered.getHitRatio());
+        }
+        try {
+            studentService.close();
+        } catch (IOException e) {
+            System.err.println("Error closing student data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a command script against the roster
+     * Results go to standard output through a buffer, which also carries StudentService's
+     * messages so they stay next to the results they explain; the summary goes to standard error
+     * @param source path of the script, or - for standard input
+     * @param grouped true to store runs of adds together
+     */
+    private static void runBatch(String source, boolean grouped) {
+        PrintStream console = System.out;
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                                                                   CommandReader.BUFFER_SIZE), false);
+        System.setOut(out);
+        BatchCommandRunner runner = new BatchCommandRunner(studentService, out, grouped);
+        long startTime = System.nanoTime();
+        try (CommandReader commands = CommandReader.open(source)) {
+            runner.run(commands);
+        } catch (IOException e) {
+            System.err.println("Error reading commands from " + source + ": " + e.getMessage());
+        } finally {
+            out.flush();
+            System.setOut(console);
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+        System.err.println("Ran " + runner.getCommandCount() + " command(s) in " + elapsedMillis + " ms, "
+                           + runner.getErrorCount() + " failed");
     }
 
     /**
@@ -37,7 +115,7 @@ public class Main {
     private static void runMainMenu() {
         while (true) {
             displayMainMenu();
-            int choice = getMenuChoice(1, 6);
+            int choice = getMenuChoice(1, 8);
             
             switch (choice) {
                 case 1:
@@ -56,6 +134,12 @@ public class Main {
                     deleteStudent();
                     break;
                 case 6:
+                    searchStudentsByCourse();
+                    break;
+                case 7:
+                    showStatistics();
+                    break;
+                case 8:
                     System.out.println("Thank you for using Student Management System!");
                     return;
                 default:
@@ -76,8 +160,10 @@ public class Main {
         System.out.println("3. Search Student by ID");
         System.out.println("4. Update Student");
         System.out.println("5. Delete Student");
-        System.out.println("6. Exit");
-        System.out.print("Enter your choice (1-6): ");
+        System.out.println("6. Search Students by Course");
+        System.out.println("7. Roster Statistics");
+        System.out.println("8. Exit");
+        System.out.print("Enter your choice (1-8): ");
     }
 
     /**
@@ -186,6 +272,60 @@ public class Main {
         }
     }
 
+    /**
+     * Handles searching for the students of a course
+     */
+    private static void searchStudentsByCourse() {
+        System.out.println("\n--- Search Students by Course ---");
+        
+        System.out.print("Enter course: ");
+        String course = scanner.nextLine().trim();
+        
+        List<Student> students = studentService.getStudentsByCourse(course);
+        if (students.isEmpty()) {
+            System.out.println("No students found in course " + course + ".");
+        } else {
+            System.out.println("Students in " + course + ": " + students.size());
+            System.out.println("----------------------------------------");
+            for (Student student : students) {
+                System.out.println(student);
+            }
+            System.out.println("----------------------------------------");
+        }
+    }
+
+    /**
+     * Shows students per course with their ages, and the age distribution of the roster
+     */
+    private static void showStatistics() {
+        System.out.println("\n--- Roster Statistics ---");
+        
+        AgeStatistics roster = studentService.getAgeStatistics();
+        if (roster.getCount() == 0) {
+            System.out.println("No students found.");
+            return;
+        }
+        
+        System.out.printf("%-30s %8s %8s %8s %8s%n", "Course", "Students", "Avg age", "Median", "P90");
+        System.out.println("----------------------------------------------------------------------");
+        for (Map.Entry<String, AgeStatistics> entry : studentService.getAgeStatisticsByCourse().entrySet()) {
+            AgeStatistics course = entry.getValue();
+            System.out.printf("%-30s %8d %8.1f %8d %8d%n", entry.getKey(), course.getCount(),
+                              course.getAverageAge(), course.getPercentile(50), course.getPercentile(90));
+        }
+        System.out.println("----------------------------------------------------------------------");
+        System.out.printf("%-30s %8d %8.1f %8d %8d%n", "All courses", roster.getCount(),
+                          roster.getAverageAge(), roster.getPercentile(50), roster.getPercentile(90));
+        
+        System.out.println("\nAge distribution:");
+        long[] histogram = roster.getHistogram(10);
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            if (histogram[bucket] > 0) {
+                System.out.printf("  %3d-%-3d %8d%n", bucket * 10, bucket * 10 + 9, histogram[bucket]);
+            }
+        }
+    }
+
     /**
      * Handles updating student information
      */
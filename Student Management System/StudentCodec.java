@@ -0,0 +1,43 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * StudentCodec Class
+ * Tells a RecordStore how to key and serialize Student records
+ * Students are keyed by their student ID
+ */
+public class StudentCodec implements RecordCodec<Integer, Student> {
+
+    @Override
+    public Integer keyOf(Student student) {
+        return student.getStudentId();
+    }
+
+    @Override
+    public void writeKey(DataOutput out, Integer studentId) throws IOException {
+        out.writeInt(studentId);
+    }
+
+    @Override
+    public Integer readKey(DataInput in) throws IOException {
+        return in.readInt();
+    }
+
+    @Override
+    public void writeValue(DataOutput out, Student student) throws IOException {
+        out.writeInt(student.getStudentId());
+        out.writeUTF(student.getName());
+        out.writeInt(student.getAge());
+        out.writeUTF(student.getCourse());
+    }
+
+    @Override
+    public Student readValue(DataInput in) throws IOException {
+        int studentId = in.readInt();
+        String name = in.readUTF();
+        int age = in.readInt();
+        String course = in.readUTF();
+        return new Student(studentId, name, age, course);
+    }
+}
@@ -1,36 +1,61 @@
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collector;
 
 /**
  * StudentService Class
  * Contains business logic for CRUD operations on Student entities
- * Uses ArrayList for in-memory operations and FileHandler for persistence
+ * Keeps students in a RecordStore, so the storage engine (in-memory, journaled,
+ * memory-mapped or tiered) is chosen by whoever opens the store
+ * Roster statistics run in parallel over stores that hold the students in memory
  */
-public class StudentService {
-    private List<Student> students;
+public class StudentService implements Closeable {
+    private final RecordStore<Integer, Student> students;
+    private final HashIndex<String, Integer, Student> courseIndex; // null when courses are scanned
     private int nextStudentId;
 
     /**
-     * Constructor initializes the service and loads existing data
+     * Constructor initializes the service on a store of students
+     * An empty store is first filled from students.txt, so existing data carries over
+     * @param students store holding the students, keyed by student ID
      */
-    public StudentService() {
-        students = new ArrayList<>();
-        loadStudents();
-        nextStudentId = generateNextId();
+    public StudentService(RecordStore<Integer, Student> students) {
+        this(students, true);
     }
 
     /**
-     * Loads all students from file into memory
+     * Constructor initializes the service on a store of students
+     * An empty store is first filled from students.txt, so existing data carries over
+     * @param students store holding the students, keyed by student ID
+     * @param indexCourses true to index students by course in memory; false to scan the store
+     *                     on each course search, so memory use does not grow with the roster
      */
-    private void loadStudents() {
-        students = FileHandler.readAllStudents();
+    public StudentService(RecordStore<Integer, Student> students, boolean indexCourses) {
+        this.students = students;
+        if (students.size() == 0 && FileHandler.fileExists()) {
+            importStudents();
+        }
+        if (indexCourses) {
+            courseIndex = new HashIndex<>(student -> student.getCourse().toLowerCase(Locale.ROOT));
+            students.addIndex(courseIndex);
+        } else {
+            courseIndex = null;
+        }
+        nextStudentId = generateNextId();
     }
 
     /**
-     * Saves all students from memory to file
+     * Loads all students from the text file into the store
      */
-    private void saveStudents() {
-        FileHandler.writeAllStudents(students);
+    private void importStudents() {
+        students.putAll(FileHandler.readAllStudents());
     }
 
     /**
@@ -38,13 +63,9 @@ public class StudentService {
      * @return next available ID
      */
     private int generateNextId() {
-        int maxId = 0;
-        for (Student student : students) {
-            if (student.getStudentId() > maxId) {
-                maxId = student.getStudentId();
-            }
-        }
-        return maxId + 1;
+        int[] maxId = {0};
+        students.forEach(student -> maxId[0] = Math.max(maxId[0], student.getStudentId()));
+        return maxId[0] + 1;
     }
 
     /**
@@ -56,24 +77,13 @@ public class StudentService {
      */
     public boolean addStudent(String name, int age, String course) {
         try {
-            // Validate input
-            if (name == null || name.trim().isEmpty()) {
-                System.out.println("Error: Name cannot be empty.");
-                return false;
-            }
-            if (age <= 0 || age > 120) {
-                System.out.println("Error: Age must be between 1 and 120.");
-                return false;
-            }
-            if (course == null || course.trim().isEmpty()) {
-                System.out.println("Error: Course cannot be empty.");
+            if (!isValid(name, age, course)) {
                 return false;
             }
 
             Student student = new Student(nextStudentId, name.trim(), age, course.trim());
-            students.add(student);
+            students.put(student);
             nextStudentId++;
-            saveStudents();
             return true;
         } catch (Exception e) {
             System.err.println("Error adding student: " + e.getMessage());
@@ -81,12 +91,41 @@ public class StudentService {
         }
     }
 
+    /**
+     * Adds many students with one write to the store, which a journaled store saves as one batch
+     * Each valid student is stored as a new, trimmed copy with the next ID; invalid ones are
+     * reported as by addStudent and skipped. The given students are left unchanged
+     * @param newStudents students to add; their IDs are ignored
+     * @return the ID given to each student, in order, or 0 for each one that was not added
+     */
+    public int[] addStudents(List<Student> newStudents) {
+        int[] assignedIds = new int[newStudents.size()];
+        List<Student> valid = new ArrayList<>(newStudents.size());
+        for (int i = 0; i < newStudents.size(); i++) {
+            Student student = newStudents.get(i);
+            if (isValid(student.getName(), student.getAge(), student.getCourse())) {
+                assignedIds[i] = nextStudentId + valid.size();
+                valid.add(new Student(assignedIds[i], student.getName().trim(), student.getAge(),
+                                      student.getCourse().trim()));
+            }
+        }
+
+        try {
+            students.putAll(valid);
+        } catch (Exception e) {
+            System.err.println("Error adding students: " + e.getMessage());
+            return new int[newStudents.size()];
+        }
+        nextStudentId += valid.size();
+        return assignedIds;
+    }
+
     /**
      * Retrieves all students from the system
      * @return List of all students
      */
     public List<Student> getAllStudents() {
-        return new ArrayList<>(students); // Return a copy to maintain encapsulation
+        return students.values(); // The store returns a new list
     }
 
     /**
@@ -95,12 +134,35 @@ public class StudentService {
      * @return Student object if found, null otherwise
      */
     public Student getStudentById(int studentId) {
-        for (Student student : students) {
-            if (student.getStudentId() == studentId) {
-                return student;
+        return students.get(studentId);
+    }
+
+    /**
+     * Finds the students enrolled in a course, ignoring case
+     * @param course course to search for
+     * @return List of matching students, in the order the store lists them
+     */
+    public List<Student> getStudentsByCourse(String course) {
+        List<Student> matching = new ArrayList<>();
+        if (course == null) {
+            return matching;
+        }
+        String searchCourse = course.trim().toLowerCase(Locale.ROOT);
+        if (courseIndex == null) {
+            students.forEach(student -> {
+                if (student.getCourse().toLowerCase(Locale.ROOT).equals(searchCourse)) {
+                    matching.add(student);
+                }
+            });
+            return matching;
+        }
+        for (int studentId : courseIndex.keysFor(searchCourse)) {
+            Student student = students.get(studentId);
+            if (student != null) {
+                matching.add(student);
             }
         }
-        return null;
+        return matching;
     }
 
     /**
@@ -120,17 +182,18 @@ public class StudentService {
             }
 
             // Update only non-null and valid values
+            Student updated = new Student(studentId, student.getName(), student.getAge(), student.getCourse());
             if (name != null && !name.trim().isEmpty()) {
-                student.setName(name.trim());
+                updated.setName(name.trim());
             }
             if (age > 0 && age <= 120) {
-                student.setAge(age);
+                updated.setAge(age);
             }
             if (course != null && !course.trim().isEmpty()) {
-                student.setCourse(course.trim());
+                updated.setCourse(course.trim());
             }
 
-            saveStudents();
+            students.put(updated);
             return true;
         } catch (Exception e) {
             System.err.println("Error updating student: " + e.getMessage());
@@ -145,24 +208,40 @@ public class StudentService {
      */
     public boolean deleteStudent(int studentId) {
         try {
-            Student student = getStudentById(studentId);
-            if (student == null) {
+            if (!students.remove(studentId)) {
                 System.out.println("Error: Student with ID " + studentId + " not found.");
                 return false;
             }
-
-            boolean removed = students.remove(student);
-            if (removed) {
-                saveStudents();
-                return true;
-            }
-            return false;
+            return true;
         } catch (Exception e) {
             System.err.println("Error deleting student: " + e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Checks the details of a new student, reporting the first problem
+     * @param name student name
+     * @param age student age
+     * @param course student course
+     * @return true if the details are valid
+     */
+    private boolean isValid(String name, int age, String course) {
+        if (name == null || name.trim().isEmpty()) {
+            System.out.println("Error: Name cannot be empty.");
+            return false;
+        }
+        if (age <= 0 || age > 120) {
+            System.out.println("Error: Age must be between 1 and 120.");
+            return false;
+        }
+        if (course == null || course.trim().isEmpty()) {
+            System.out.println("Error: Course cannot be empty.");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Gets the total count of students
      * @return number of students
@@ -177,6 +256,61 @@ public class StudentService {
      * @return true if ID exists, false otherwise
      */
     public boolean studentExists(int studentId) {
-        return getStudentById(studentId) != null;
+        return students.containsKey(studentId);
+    }
+
+    /**
+     * Counts the ages of all students, in parallel on in-memory stores
+     * @return age statistics of the whole roster
+     */
+    public AgeStatistics getAgeStatistics() {
+        return students.aggregate(Collector.of(AgeStatistics::new,
+                                               (statistics, student) -> statistics.add(student.getAge()),
+                                               AgeStatistics::merge));
+    }
+
+    /**
+     * Groups the students and counts the ages of each group, in parallel on in-memory stores
+     * Every thread groups its share of the roster into its own map; the maps are merged at the end
+     * @param classifier gives the group of a student
+     * @param <G> group type
+     * @return age statistics of each group, in no particular order
+     */
+    public <G> Map<G, AgeStatistics> getAgeStatisticsBy(Function<? super Student, ? extends G> classifier) {
+        return students.aggregate(Collector.<Student, Map<G, AgeStatistics>>of(
+                HashMap::new,
+                (groups, student) -> groups.computeIfAbsent(classifier.apply(student), group -> new AgeStatistics())
+                                           .add(student.getAge()),
+                (groups, other) -> {
+                    other.forEach((group, statistics) -> groups.merge(group, statistics, AgeStatistics::merge));
+                    return groups;
+                }));
+    }
+
+    /**
+     * Counts the ages of the students of each course
+     * @return age statistics by course, sorted by course
+     */
+    public Map<String, AgeStatistics> getAgeStatisticsByCourse() {
+        return new TreeMap<>(getAgeStatisticsBy(Student::getCourse));
+    }
+
+    /**
+     * Counts the students of each course
+     * @return student count by course, sorted by course
+     */
+    public Map<String, Long> countStudentsByCourse() {
+        Map<String, Long> counts = new TreeMap<>();
+        getAgeStatisticsBy(Student::getCourse).forEach((course, statistics) -> counts.put(course, statistics.getCount()));
+        return counts;
+    }
+
+    /**
+     * Closes the underlying store, writing out anything it still buffers
+     * @throws IOException if the store cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        students.close();
     }
 }
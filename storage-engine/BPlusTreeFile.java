@@ -0,0 +1,873 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * BPlusTreeFile class is a B+tree of records kept in fixed-size pages of a file and read through a
+ * FileChannel, for record sets larger than the heap. Leaves hold the encoded records in key order
+ * and are linked for range scans; internal nodes hold separator keys. Only a bounded number of
+ * decoded pages is cached, so heap use does not depend on the number of records.
+ *
+ * Nodes split when their entries no longer fit in a page and are merged with (or refilled from)
+ * a sibling when they fall below a quarter of a page, so every page but the root stays at least a
+ * quarter full. Freed pages are reused. The pages changed by an operation are written when it
+ * completes; they are not written atomically, so a crash during a split or merge can leave the
+ * file inconsistent, and crash safety needs a journal or an export to rebuild from.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class BPlusTreeFile<K, V> implements Closeable {
+    
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_CACHE_PAGES = 1024;
+    
+    private static final int MAGIC = 0x42545245; // "BTRE"
+    private static final int VERSION = 1;
+    private static final int HEADER_PAGE = 0;
+    
+    private static final byte FREE = 0;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    
+    // Type, entry count, and the next leaf (leaves) or first child (internal nodes)
+    private static final int NODE_HEADER_SIZE = 1 + 2 + 4;
+    
+    private final Path file;
+    private final RecordCodec<K, V> codec;
+    private final Comparator<? super K> order;
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int cachePages;
+    private final int maxEntrySize;
+    private final int minNodeSize;
+    private final ByteBuffer pageBuffer;
+    
+    // Decoded pages in access order; only unchanged pages are evicted
+    private final Map<Integer, Node<K>> cache;
+    private final List<Node<K>> dirty = new ArrayList<>();
+    
+    private int rootPage;
+    private int pageCount;
+    private int freePage;
+    private long recordCount;
+    private int height;
+    private long pageReads;
+    
+    // Reusable buffer for encoding keys and records
+    private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream encoder = new DataOutputStream(encodeBuffer);
+    
+    /**
+     * Opens the tree in a file with the default page size and cache, creating it if needed
+     * @param file Tree file
+     * @param codec Serializes keys and records
+     * @param order Order of the keys
+     * @throws IOException if the file cannot be opened or is not a tree file
+     */
+    public BPlusTreeFile(Path file, RecordCodec<K, V> codec, Comparator<? super K> order) throws IOException {
+        this(file, codec, order, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES);
+    }
+    
+    /**
+     * Opens the tree in a file, creating it if needed
+     * @param file Tree file
+     * @param codec Serializes keys and records
+     * @param order Order of the keys
+     * @param pageSize Page size of a new file; an existing file keeps the page size it was created with
+     * @param cachePages Number of decoded pages kept in memory
+     * @throws IOException if the file cannot be opened or is not a tree file
+     */
+    public BPlusTreeFile(Path file, RecordCodec<K, V> codec, Comparator<? super K> order,
+                         int pageSize, int cachePages) throws IOException {
+        if (pageSize < 256 || pageSize > 1 << 16) {
+            throw new IllegalArgumentException("Page size must be between 256 and 65536 bytes");
+        }
+        if (cachePages < 16) {
+            throw new IllegalArgumentException("The cache must hold at least 16 pages");
+        }
+        this.file = file;
+        this.codec = codec;
+        this.order = order;
+        this.cachePages = cachePages;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.cache = new LinkedHashMap<Integer, Node<K>>(cachePages * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Node<K>> eldest) {
+                return size() > cachePages && !eldest.getValue().dirty;
+            }
+        };
+        
+        if (channel.size() == 0) {
+            this.pageSize = pageSize;
+            this.pageBuffer = ByteBuffer.allocate(pageSize);
+            pageCount = 1;
+            Node<K> root = newNode(true);
+            rootPage = root.page;
+            height = 1;
+            writeDirty();
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(36);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("Not a B+tree file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported B+tree file version " + version + ": " + file);
+            }
+            this.pageSize = header.getInt();
+            this.pageBuffer = ByteBuffer.allocate(this.pageSize);
+            rootPage = header.getInt();
+            pageCount = header.getInt();
+            freePage = header.getInt();
+            recordCount = header.getLong();
+            height = header.getInt();
+        }
+        
+        // A split of an overfull node leaves both halves at least a quarter full when no entry
+        // takes more than a quarter of a page
+        this.maxEntrySize = (this.pageSize - NODE_HEADER_SIZE) / 4;
+        this.minNodeSize = this.pageSize / 4;
+    }
+    
+    /**
+     * Gets a record
+     * @param key Key to look up
+     * @return The record, or null if no record has the key
+     */
+    public synchronized V get(K key) {
+        Node<K> leaf = findLeaf(key);
+        int index = search(leaf, key);
+        return index < 0 ? null : value(leaf, index);
+    }
+    
+    public synchronized boolean containsKey(K key) {
+        Node<K> leaf = findLeaf(key);
+        return search(leaf, key) >= 0;
+    }
+    
+    /**
+     * Stores a record, replacing any record with the same key
+     * @param value Record to store
+     * @return true if a record was replaced, false if the key is new
+     * @throws IllegalArgumentException if the encoded record is larger than a quarter page
+     */
+    public synchronized boolean put(V value) {
+        boolean replaced = insertRecord(value);
+        writeDirty();
+        return replaced;
+    }
+    
+    /**
+     * Stores several records, writing each changed page once rather than once per record
+     * @param values Records to store, in order
+     * @throws IllegalArgumentException if an encoded record is larger than a quarter page; the
+     *         records before it are stored
+     */
+    public synchronized void putAll(Collection<? extends V> values) {
+        try {
+            for (V value : values) {
+                insertRecord(value);
+                // Changed pages cannot be evicted, so write them before they crowd the cache
+                if (dirty.size() >= cachePages / 2) {
+                    writeDirty();
+                }
+            }
+        } finally {
+            writeDirty();
+        }
+    }
+    
+    private boolean insertRecord(V value) {
+        K key = codec.keyOf(value);
+        byte[] keyBytes = encodeKey(key);
+        byte[] valueBytes;
+        try {
+            codec.writeValue(encoder, value);
+            valueBytes = takeEncoded();
+        } catch (IOException e) {
+            encodeBuffer.reset();
+            throw new UncheckedIOException("Failed to encode record " + key, e);
+        }
+        if (leafEntrySize(keyBytes, valueBytes) > maxEntrySize) {
+            throw new IllegalArgumentException("Record " + key + " takes more than " + maxEntrySize + " bytes");
+        }
+        
+        long countBefore = recordCount;
+        Split<K> split = insert(load(rootPage), key, keyBytes, valueBytes);
+        if (split != null) {
+            growRoot(split);
+        }
+        return recordCount == countBefore;
+    }
+    
+    /**
+     * Removes a record
+     * @param key Key of the record
+     * @return true if a record was removed
+     */
+    public synchronized boolean remove(K key) {
+        long countBefore = recordCount;
+        Node<K> root = load(rootPage);
+        Split<K> split = delete(root, key);
+        if (split != null) {
+            growRoot(split);
+        } else if (!root.leaf && count(root) == 0) {
+            // The root's last two children were merged
+            rootPage = root.children.get(0);
+            height--;
+            free(root);
+        }
+        writeDirty();
+        return recordCount < countBefore;
+    }
+    
+    /**
+     * Visits records in key order, starting from a key
+     * @param from First key to visit, or null to start at the smallest key
+     * @param inclusive Whether a record with the key from itself is visited
+     * @param visitor Called with each record until it returns false
+     */
+    public synchronized void scan(K from, boolean inclusive, Predicate<? super V> visitor) {
+        Node<K> leaf = from == null ? firstLeaf() : findLeaf(from);
+        int index = 0;
+        if (from != null) {
+            index = search(leaf, from);
+            index = index >= 0 ? (inclusive ? index : index + 1) : -index - 1;
+        }
+        while (true) {
+            for (; index < count(leaf); index++) {
+                if (!visitor.test(value(leaf, index))) {
+                    return;
+                }
+            }
+            if (leaf.next == 0) {
+                return;
+            }
+            leaf = load(leaf.next);
+            index = 0;
+        }
+    }
+    
+    public synchronized long size() {
+        return recordCount;
+    }
+    
+    /**
+     * Gets the number of levels, 1 while the root is a leaf
+     * @return Height of the tree
+     */
+    public synchronized int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Gets the number of pages in the file, including free pages and the header page
+     * @return Number of pages
+     */
+    public synchronized int getPageCount() {
+        return pageCount;
+    }
+    
+    /**
+     * Gets how many pages have been read from the file because they were not cached
+     * @return Number of page reads since the tree was opened
+     */
+    public synchronized long getPageReads() {
+        return pageReads;
+    }
+    
+    /**
+     * Forces every write so far to the storage device
+     * @throws IOException if the device cannot be written
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(true);
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(true);
+        channel.close();
+    }
+    
+    /**
+     * Inserts an entry below a node
+     * @return The new right sibling of the node and its separator if the node was split, otherwise null
+     */
+    private Split<K> insert(Node<K> node, K key, byte[] keyBytes, byte[] valueBytes) {
+        if (node.leaf) {
+            int index = search(node, key);
+            unpack(node);
+            if (index >= 0) {
+                node.bytes += valueBytes.length - node.values.get(index).length;
+                node.values.set(index, valueBytes);
+            } else {
+                index = -index - 1;
+                node.keys.add(index, key);
+                node.keyBytes.add(index, keyBytes);
+                node.values.add(index, valueBytes);
+                node.bytes += leafEntrySize(keyBytes, valueBytes);
+                recordCount++;
+            }
+            markDirty(node);
+            return node.bytes > pageSize ? split(node) : null;
+        }
+        
+        int index = childIndex(node, key);
+        Split<K> childSplit = insert(load(node.children.get(index)), key, keyBytes, valueBytes);
+        if (childSplit == null) {
+            return null;
+        }
+        addSplit(node, index, childSplit);
+        return node.bytes > pageSize ? split(node) : null;
+    }
+    
+    /**
+     * Deletes an entry below a node, rebalancing the child it was deleted from
+     * @return The new right sibling of the node and its separator if a longer separator made the
+     *         node overflow, otherwise null
+     */
+    private Split<K> delete(Node<K> node, K key) {
+        if (node.leaf) {
+            int index = search(node, key);
+            if (index >= 0) {
+                unpack(node);
+                node.bytes -= leafEntrySize(node.keyBytes.get(index), node.values.get(index));
+                node.keys.remove(index);
+                node.keyBytes.remove(index);
+                node.values.remove(index);
+                recordCount--;
+                markDirty(node);
+            }
+            return null;
+        }
+        
+        int index = childIndex(node, key);
+        Node<K> child = load(node.children.get(index));
+        long countBefore = recordCount;
+        Split<K> childSplit = delete(child, key);
+        if (recordCount == countBefore) {
+            return null;
+        }
+        if (childSplit != null) {
+            addSplit(node, index, childSplit);
+        } else if (child.bytes < minNodeSize) {
+            rebalance(node, index, child);
+        }
+        return node.bytes > pageSize ? split(node) : null;
+    }
+    
+    /**
+     * Merges an underfull child with a sibling, or redistributes their entries if they do not
+     * fit in one page
+     */
+    private void rebalance(Node<K> parent, int index, Node<K> child) {
+        int separator = index > 0 ? index - 1 : index;
+        Node<K> left = index > 0 ? load(parent.children.get(index - 1)) : child;
+        Node<K> right = index > 0 ? child : load(parent.children.get(index + 1));
+        unpack(parent);
+        unpack(left);
+        unpack(right);
+        
+        // Move everything into the left node
+        if (!left.leaf) {
+            left.keys.add(parent.keys.get(separator));
+            left.keyBytes.add(parent.keyBytes.get(separator));
+            left.bytes += internalEntrySize(parent.keyBytes.get(separator));
+            left.children.addAll(right.children);
+        } else {
+            left.values.addAll(right.values);
+            left.next = right.next;
+        }
+        left.keys.addAll(right.keys);
+        left.keyBytes.addAll(right.keyBytes);
+        left.bytes += right.bytes - NODE_HEADER_SIZE;
+        markDirty(left);
+        
+        parent.bytes -= internalEntrySize(parent.keyBytes.get(separator));
+        parent.keys.remove(separator);
+        parent.keyBytes.remove(separator);
+        parent.children.remove(separator + 1);
+        markDirty(parent);
+        
+        if (left.bytes <= pageSize) {
+            free(right);
+            return;
+        }
+        
+        // Too much for one page: split again at the middle, reusing the right node's page
+        Split<K> split = split(left, right);
+        addSplit(parent, separator, split);
+    }
+    
+    /**
+     * Moves the upper half of an overfull node's entries to a new node
+     */
+    private Split<K> split(Node<K> node) {
+        return split(node, newNode(node.leaf));
+    }
+    
+    /**
+     * Moves the upper half of an overfull node's entries to an empty node
+     */
+    private Split<K> split(Node<K> node, Node<K> right) {
+        unpack(node);
+        unpack(right);
+        right.leaf = node.leaf;
+        right.keys.clear();
+        right.keyBytes.clear();
+        right.values.clear();
+        right.children.clear();
+        
+        // Find the first entry past half of the node's bytes
+        int half = (node.bytes - NODE_HEADER_SIZE) / 2;
+        int bytes = 0;
+        int middle = 0;
+        while (middle < node.keys.size() - 1) {
+            bytes += node.leaf
+                    ? leafEntrySize(node.keyBytes.get(middle), node.values.get(middle))
+                    : internalEntrySize(node.keyBytes.get(middle));
+            middle++;
+            if (bytes >= half) {
+                break;
+            }
+        }
+        
+        K separator;
+        byte[] separatorBytes;
+        int size = node.keys.size();
+        if (node.leaf) {
+            // The separator is a copy of the right node's first key
+            separator = node.keys.get(middle);
+            separatorBytes = node.keyBytes.get(middle);
+            right.keys.addAll(node.keys.subList(middle, size));
+            right.keyBytes.addAll(node.keyBytes.subList(middle, size));
+            right.values.addAll(node.values.subList(middle, size));
+            node.values.subList(middle, size).clear();
+            right.next = node.next;
+            node.next = right.page;
+        } else {
+            // The middle key moves up; its right child becomes the right node's first child
+            separator = node.keys.get(middle - 1);
+            separatorBytes = node.keyBytes.get(middle - 1);
+            right.keys.addAll(node.keys.subList(middle, size));
+            right.keyBytes.addAll(node.keyBytes.subList(middle, size));
+            right.children.addAll(node.children.subList(middle, size + 1));
+            node.children.subList(middle, size + 1).clear();
+            middle--;
+        }
+        node.keys.subList(middle, size).clear();
+        node.keyBytes.subList(middle, size).clear();
+        
+        node.bytes = encodedSize(node);
+        right.bytes = encodedSize(right);
+        markDirty(node);
+        markDirty(right);
+        return new Split<>(separator, separatorBytes, right.page);
+    }
+    
+    /**
+     * Adds a split child's new sibling to the parent, right after the child
+     */
+    private void addSplit(Node<K> parent, int index, Split<K> split) {
+        unpack(parent);
+        parent.keys.add(index, split.key);
+        parent.keyBytes.add(index, split.keyBytes);
+        parent.children.add(index + 1, split.rightPage);
+        parent.bytes += internalEntrySize(split.keyBytes);
+        markDirty(parent);
+    }
+    
+    private void growRoot(Split<K> split) {
+        Node<K> root = newNode(false);
+        root.children.add(rootPage);
+        addSplit(root, 0, split);
+        rootPage = root.page;
+        height++;
+    }
+    
+    private Node<K> findLeaf(K key) {
+        Node<K> node = load(rootPage);
+        while (!node.leaf) {
+            node = load(node.children.get(childIndex(node, key)));
+        }
+        return node;
+    }
+    
+    private Node<K> firstLeaf() {
+        Node<K> node = load(rootPage);
+        while (!node.leaf) {
+            node = load(node.children.get(0));
+        }
+        return node;
+    }
+    
+    /**
+     * Binary search for a key in a node
+     * @return Index of the key, or -(insertion point) - 1 if it is absent
+     */
+    private int search(Node<K> node, K key) {
+        int low = 0;
+        int high = count(node) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = order.compare(key(node, middle), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+    
+    /**
+     * Index of the child of an internal node whose subtree holds a key
+     */
+    private int childIndex(Node<K> node, K key) {
+        int index = search(node, key);
+        // A key equal to a separator is in the separator's right subtree
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+    
+    private Node<K> newNode(boolean leaf) {
+        int page;
+        if (freePage != 0) {
+            page = freePage;
+            ByteBuffer next = ByteBuffer.allocate(4);
+            readFully(next, (long) page * pageSize + 1);
+            freePage = next.getInt(0);
+        } else {
+            page = pageCount++;
+        }
+        Node<K> node = new Node<>(page, leaf);
+        node.bytes = NODE_HEADER_SIZE;
+        cache.put(page, node);
+        markDirty(node);
+        return node;
+    }
+    
+    private void free(Node<K> node) {
+        cache.remove(node.page);
+        dirty.remove(node);
+        ByteBuffer page = ByteBuffer.allocate(5);
+        page.put(FREE).putInt(freePage).flip();
+        writeFully(page, (long) node.page * pageSize);
+        freePage = node.page;
+    }
+    
+    private void markDirty(Node<K> node) {
+        if (!node.dirty) {
+            node.dirty = true;
+            dirty.add(node);
+        }
+    }
+    
+    private Node<K> load(int page) {
+        Node<K> node = cache.get(page);
+        if (node != null) {
+            return node;
+        }
+        
+        pageBuffer.clear();
+        readFully(pageBuffer, (long) page * pageSize);
+        byte type = pageBuffer.get(0);
+        if (type != LEAF && type != INTERNAL) {
+            throw new UncheckedIOException(new IOException("Page " + page + " of " + file + " is not a tree node"));
+        }
+        node = new Node<>(page, type == LEAF);
+        pack(node, pageBuffer.array(), pageSize);
+        pageReads++;
+        cache.put(page, node);
+        return node;
+    }
+    
+    /**
+     * Writes the pages changed by the current operation and the file header
+     */
+    private void writeDirty() {
+        for (Node<K> node : dirty) {
+            pageBuffer.clear();
+            pageBuffer.put(node.leaf ? LEAF : INTERNAL);
+            pageBuffer.putShort((short) node.keys.size());
+            pageBuffer.putInt(node.leaf ? node.next : node.children.get(0));
+            for (int i = 0; i < node.keys.size(); i++) {
+                byte[] keyBytes = node.keyBytes.get(i);
+                pageBuffer.putShort((short) keyBytes.length);
+                pageBuffer.put(keyBytes);
+                if (node.leaf) {
+                    byte[] valueBytes = node.values.get(i);
+                    pageBuffer.putShort((short) valueBytes.length);
+                    pageBuffer.put(valueBytes);
+                } else {
+                    pageBuffer.putInt(node.children.get(i + 1));
+                }
+            }
+            int used = pageBuffer.position();
+            
+            // Zero the rest of the page so the file is the same whatever the page held before
+            Arrays.fill(pageBuffer.array(), used, pageSize, (byte) 0);
+            pageBuffer.position(pageSize);
+            pageBuffer.flip();
+            writeFully(pageBuffer, (long) node.page * pageSize);
+            node.dirty = false;
+            
+            // Keep the cached copy packed like a page read from the file
+            List<K> decodedKeys = node.keys;
+            pack(node, pageBuffer.array(), used);
+            for (int i = 0; i < decodedKeys.size(); i++) {
+                node.packedKeys[i] = decodedKeys.get(i);
+            }
+        }
+        dirty.clear();
+        
+        ByteBuffer header = ByteBuffer.allocate(36);
+        header.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(rootPage).putInt(pageCount)
+              .putInt(freePage).putLong(recordCount).putInt(height).flip();
+        writeFully(header, (long) HEADER_PAGE * pageSize);
+    }
+    
+    private int encodedSize(Node<K> node) {
+        int bytes = NODE_HEADER_SIZE;
+        for (int i = 0; i < node.keys.size(); i++) {
+            bytes += node.leaf
+                    ? leafEntrySize(node.keyBytes.get(i), node.values.get(i))
+                    : internalEntrySize(node.keyBytes.get(i));
+        }
+        return bytes;
+    }
+    
+    private static int leafEntrySize(byte[] keyBytes, byte[] valueBytes) {
+        return 2 + keyBytes.length + 2 + valueBytes.length;
+    }
+    
+    private static int internalEntrySize(byte[] keyBytes) {
+        return 2 + keyBytes.length + 4;
+    }
+    
+    private byte[] encodeKey(K key) {
+        try {
+            codec.writeKey(encoder, key);
+            return takeEncoded();
+        } catch (IOException e) {
+            encodeBuffer.reset();
+            throw new UncheckedIOException("Failed to encode key " + key, e);
+        }
+    }
+    
+    private byte[] takeEncoded() throws IOException {
+        encoder.flush();
+        byte[] bytes = encodeBuffer.toByteArray();
+        encodeBuffer.reset();
+        return bytes;
+    }
+    
+    /**
+     * Makes a node packed, holding a copy of the entries of a page
+     */
+    private void pack(Node<K> node, byte[] page, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(page, 0, length);
+        buffer.get();
+        int count = buffer.getShort() & 0xFFFF;
+        int link = buffer.getInt();
+        List<Integer> children = new ArrayList<>(node.leaf ? 0 : count + 1);
+        if (node.leaf) {
+            node.next = link;
+        } else {
+            children.add(link);
+        }
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = buffer.position();
+            int keyLength = buffer.getShort() & 0xFFFF;
+            buffer.position(buffer.position() + keyLength);
+            if (node.leaf) {
+                int valueLength = buffer.getShort() & 0xFFFF;
+                buffer.position(buffer.position() + valueLength);
+            } else {
+                children.add(buffer.getInt());
+            }
+        }
+        
+        // Copy only the entries; the rest of the page is empty
+        node.data = Arrays.copyOf(page, buffer.position());
+        node.offsets = offsets;
+        node.packedKeys = new Object[count];
+        node.children = children;
+        node.bytes = buffer.position();
+        node.keys = null;
+        node.keyBytes = null;
+        node.values = null;
+    }
+    
+    /**
+     * Makes a packed node editable, copying its entries into lists
+     */
+    @SuppressWarnings("unchecked")
+    private void unpack(Node<K> node) {
+        if (node.data == null) {
+            return;
+        }
+        int count = node.offsets.length;
+        node.keys = new ArrayList<>(count + 1);
+        node.keyBytes = new ArrayList<>(count + 1);
+        node.values = new ArrayList<>(node.leaf ? count + 1 : 0);
+        for (int i = 0; i < count; i++) {
+            int offset = node.offsets[i];
+            int keyLength = unsignedShort(node.data, offset);
+            node.keys.add((K) node.packedKeys[i]);
+            node.keyBytes.add(Arrays.copyOfRange(node.data, offset + 2, offset + 2 + keyLength));
+            if (node.leaf) {
+                int valueOffset = offset + 2 + keyLength;
+                int valueLength = unsignedShort(node.data, valueOffset);
+                node.values.add(Arrays.copyOfRange(node.data, valueOffset + 2, valueOffset + 2 + valueLength));
+            }
+        }
+        node.data = null;
+        node.offsets = null;
+        node.packedKeys = null;
+    }
+    
+    private static int count(Node<?> node) {
+        return node.data != null ? node.offsets.length : node.keyBytes.size();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private K key(Node<K> node, int index) {
+        if (node.data != null) {
+            K key = (K) node.packedKeys[index];
+            if (key == null) {
+                int offset = node.offsets[index];
+                key = decodeKey(node.data, offset + 2, unsignedShort(node.data, offset));
+                node.packedKeys[index] = key;
+            }
+            return key;
+        }
+        K key = node.keys.get(index);
+        if (key == null) {
+            byte[] bytes = node.keyBytes.get(index);
+            key = decodeKey(bytes, 0, bytes.length);
+            node.keys.set(index, key);
+        }
+        return key;
+    }
+    
+    private V value(Node<K> node, int index) {
+        if (node.data != null) {
+            int offset = node.offsets[index];
+            int valueOffset = offset + 2 + unsignedShort(node.data, offset);
+            return decodeValue(node.data, valueOffset + 2, unsignedShort(node.data, valueOffset));
+        }
+        byte[] bytes = node.values.get(index);
+        return decodeValue(bytes, 0, bytes.length);
+    }
+    
+    private static int unsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+    
+    private K decodeKey(byte[] data, int offset, int length) {
+        try {
+            return codec.readKey(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode a key in " + file, e);
+        }
+    }
+    
+    private V decodeValue(byte[] data, int offset, int length) {
+        try {
+            return codec.readValue(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode a record in " + file, e);
+        }
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
+        }
+    }
+    
+    private void writeFully(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file, e);
+        }
+    }
+    
+    /**
+     * A cached page. A node read from the file is packed: its entries stay in a copy of the page
+     * and are decoded when used, so a cached page costs little more heap than its size. An
+     * operation that changes a node unpacks it into lists first, and writing it packs it again.
+     * Internal nodes have one more child than keys; children are always kept in a list.
+     */
+    private static final class Node<K> {
+        final int page;
+        boolean leaf;
+        int next;
+        int bytes;
+        boolean dirty;
+        List<Integer> children = new ArrayList<>();
+        
+        // Packed form: the page bytes, the offset of each entry, and the keys decoded so far
+        byte[] data;
+        int[] offsets;
+        Object[] packedKeys;
+        
+        // Unpacked form; a key is null until it is first needed
+        List<K> keys = new ArrayList<>();
+        List<byte[]> keyBytes = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        
+        Node(int page, boolean leaf) {
+            this.page = page;
+            this.leaf = leaf;
+        }
+    }
+    
+    /**
+     * The new right sibling of a split node and the key separating the two
+     */
+    private static final class Split<K> {
+        final K key;
+        final byte[] keyBytes;
+        final int rightPage;
+        
+        Split(K key, byte[] keyBytes, int rightPage) {
+            this.key = key;
+            this.keyBytes = keyBytes;
+            this.rightPage = rightPage;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * BlockSnapshotFile class reads and writes snapshots of records in independently compressed
+ * blocks. Records are encoded with a RecordCodec, packed into blocks of about BLOCK_SIZE bytes
+ * and compressed with LzCodec, so strings that repeat from record to record are stored once per
+ * block. A block index at the end of the file gives each block's position, record count,
+ * checksum and smallest and largest key.
+ *
+ * Loading decompresses several blocks at once on the common fork-join pool and hands the records
+ * over in file order. A Reader can also fetch one record by key, decompressing only the blocks
+ * whose key range covers it; that is a single block when the records were written in key order.
+ *
+ * The file starts with the caller's magic number, format version and a tag of its choosing (such
+ * as the journal generation a snapshot covers), so each snapshot keeps its own header.
+ */
+public class BlockSnapshotFile {
+    
+    // Uncompressed size a block is filled to before it is compressed
+    public static final int BLOCK_SIZE = 64 * 1024;
+    private static final int TRAILER_MAGIC = 0x424C4B49; // "BLKI"
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 28;
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private BlockSnapshotFile() {
+    }
+    
+    /**
+     * Writes a snapshot atomically: the data goes to a temporary file that replaces the
+     * old snapshot only after it has been fully written and synced.
+     * @param file Snapshot file path
+     * @param magic Magic number identifying the kind of snapshot
+     * @param version Format version of the snapshot
+     * @param tag Value stored in the header for the caller
+     * @param codec Serializes the records and orders their keys
+     * @param values Records to store
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static <K, V> void write(Path file, int magic, int version, long tag, RecordCodec<K, V> codec,
+                                    Iterable<? extends V> values) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Comparator<? super K> order = codec.keyOrder();
+        
+        try (FileOutputStream fileStream = new FileOutputStream(temp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(tag);
+            
+            ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+            DataOutputStream block = new DataOutputStream(blockBuffer);
+            ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBuffer);
+            CRC32 crc = new CRC32();
+            
+            long position = HEADER_SIZE;
+            int blockCount = 0;
+            long recordCount = 0;
+            int blockRecords = 0;
+            K minKey = null;
+            K maxKey = null;
+            for (V value : values) {
+                K key = codec.keyOf(value);
+                codec.writeValue(block, value);
+                if (minKey == null || order.compare(key, minKey) < 0) {
+                    minKey = key;
+                }
+                if (maxKey == null || order.compare(key, maxKey) > 0) {
+                    maxKey = key;
+                }
+                blockRecords++;
+                recordCount++;
+                
+                if (blockBuffer.size() >= BLOCK_SIZE) {
+                    position += writeBlock(out, index, codec, blockBuffer, crc, position, blockRecords, minKey, maxKey);
+                    blockCount++;
+                    blockRecords = 0;
+                    minKey = null;
+                    maxKey = null;
+                }
+            }
+            if (blockRecords > 0) {
+                position += writeBlock(out, index, codec, blockBuffer, crc, position, blockRecords, minKey, maxKey);
+                blockCount++;
+            }
+            
+            crc.reset();
+            crc.update(indexBuffer.toByteArray(), 0, indexBuffer.size());
+            indexBuffer.writeTo(out);
+            out.writeLong(position);
+            out.writeInt(blockCount);
+            out.writeLong(recordCount);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(TRAILER_MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        }
+        
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Compresses the buffered block into the file and describes it in the index
+     * @return Number of bytes written to the file
+     */
+    private static <K, V> int writeBlock(DataOutputStream out, DataOutputStream index, RecordCodec<K, V> codec,
+                                         ByteArrayOutputStream blockBuffer, CRC32 crc, long position,
+                                         int records, K minKey, K maxKey) throws IOException {
+        byte[] raw = blockBuffer.toByteArray();
+        blockBuffer.reset();
+        byte[] compressed = LzCodec.compress(raw, raw.length);
+        crc.reset();
+        crc.update(raw, 0, raw.length);
+        out.write(compressed);
+        
+        index.writeLong(position);
+        index.writeInt(compressed.length);
+        index.writeInt(raw.length);
+        index.writeInt(records);
+        index.writeInt((int) crc.getValue());
+        codec.writeKey(index, minKey);
+        codec.writeKey(index, maxKey);
+        return compressed.length;
+    }
+    
+    /**
+     * Reads every record of a snapshot, decompressing blocks in parallel
+     * @param file Snapshot file path
+     * @param magic Expected magic number
+     * @param codec Reads the records
+     * @param target Receives the records in the order they were written
+     * @return The tag stored in the header
+     * @throws IOException if the snapshot cannot be read or is damaged
+     */
+    public static <K, V> long read(Path file, int magic, RecordCodec<K, V> codec,
+                                   Consumer<? super V> target) throws IOException {
+        try (Reader<K, V> reader = new Reader<>(file, magic, codec)) {
+            reader.forEach(target);
+            return reader.getTag();
+        }
+    }
+    
+    /**
+     * Reader class opens a snapshot for reading records by key or all at once.
+     * It keeps the block index in memory and reads blocks from the file as needed.
+     * Thread-safe.
+     * @param <K> Key type
+     * @param <V> Record type
+     */
+    public static class Reader<K, V> implements Closeable {
+        
+        private final Path file;
+        private final RecordCodec<K, V> codec;
+        private final Comparator<? super K> order;
+        private final FileChannel channel;
+        private final int version;
+        private final long tag;
+        private final long recordCount;
+        
+        private final long[] positions;
+        private final int[] compressedLengths;
+        private final int[] rawLengths;
+        private final int[] recordCounts;
+        private final int[] checksums;
+        private final List<K> minKeys;
+        private final List<K> maxKeys;
+        
+        private long blocksRead;
+        
+        /**
+         * Opens a snapshot and reads its block index
+         * @param file Snapshot file path
+         * @param magic Expected magic number
+         * @param codec Reads the records and orders their keys
+         * @throws IOException if the file cannot be read or is not a block snapshot
+         */
+        public Reader(Path file, int magic, RecordCodec<K, V> codec) throws IOException {
+            this.file = file;
+            this.codec = codec;
+            this.order = codec.keyOrder();
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = readFully(0, HEADER_SIZE);
+                if (header.getInt() != magic) {
+                    throw new IOException("Not a snapshot of the expected kind: " + file);
+                }
+                this.version = header.getInt();
+                this.tag = header.getLong();
+                
+                long size = channel.size();
+                ByteBuffer trailer = readFully(size - TRAILER_SIZE, TRAILER_SIZE);
+                long indexPosition = trailer.getLong();
+                int blockCount = trailer.getInt();
+                this.recordCount = trailer.getLong();
+                int indexChecksum = trailer.getInt();
+                if (trailer.getInt() != TRAILER_MAGIC || indexPosition < HEADER_SIZE
+                        || indexPosition > size - TRAILER_SIZE || blockCount < 0) {
+                    throw new IOException("Snapshot has no intact block index: " + file);
+                }
+                
+                byte[] indexBytes = readFully(indexPosition, (int) (size - TRAILER_SIZE - indexPosition)).array();
+                CRC32 crc = new CRC32();
+                crc.update(indexBytes, 0, indexBytes.length);
+                if ((int) crc.getValue() != indexChecksum) {
+                    throw new IOException("Snapshot block index checksum mismatch: " + file);
+                }
+                
+                DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+                this.positions = new long[blockCount];
+                this.compressedLengths = new int[blockCount];
+                this.rawLengths = new int[blockCount];
+                this.recordCounts = new int[blockCount];
+                this.checksums = new int[blockCount];
+                this.minKeys = new ArrayList<>(blockCount);
+                this.maxKeys = new ArrayList<>(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    positions[i] = index.readLong();
+                    compressedLengths[i] = index.readInt();
+                    rawLengths[i] = index.readInt();
+                    recordCounts[i] = index.readInt();
+                    checksums[i] = index.readInt();
+                    minKeys.add(codec.readKey(index));
+                    maxKeys.add(codec.readKey(index));
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Gets the format version stored in the header
+         * @return Version number
+         */
+        public int getVersion() {
+            return version;
+        }
+        
+        /**
+         * Gets the tag stored in the header
+         * @return The tag
+         */
+        public long getTag() {
+            return tag;
+        }
+        
+        public long size() {
+            return recordCount;
+        }
+        
+        public int getBlockCount() {
+            return positions.length;
+        }
+        
+        /**
+         * Gets the number of blocks decompressed so far, by get and forEach
+         * @return Number of blocks read
+         */
+        public synchronized long getBlocksRead() {
+            return blocksRead;
+        }
+        
+        /**
+         * Finds a record, decompressing only the blocks whose key range covers the key
+         * @param key Key to look up
+         * @return The record, or null if the snapshot has no record with the key
+         * @throws IOException if a block cannot be read or is damaged
+         */
+        public V get(K key) throws IOException {
+            for (int block = 0; block < positions.length; block++) {
+                if (order.compare(key, minKeys.get(block)) < 0 || order.compare(key, maxKeys.get(block)) > 0) {
+                    continue;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBlock(block)));
+                for (int i = 0; i < recordCounts[block]; i++) {
+                    V value = codec.readValue(in);
+                    if (key.equals(codec.keyOf(value))) {
+                        return value;
+                    }
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Reads every record, decompressing batches of blocks in parallel and handing their
+         * records over in file order
+         * @param target Receives the records in the order they were written
+         * @throws IOException if a block cannot be read or is damaged
+         */
+        public void forEach(Consumer<? super V> target) throws IOException {
+            int batchSize = 4 * Runtime.getRuntime().availableProcessors();
+            for (int first = 0; first < positions.length; first += batchSize) {
+                List<List<V>> blocks;
+                try {
+                    blocks = IntStream.range(first, Math.min(positions.length, first + batchSize))
+                            .parallel()
+                            .mapToObj(this::decodeBlockUnchecked)
+                            .collect(Collectors.toList());
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (List<V> values : blocks) {
+                    values.forEach(target);
+                }
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+        private List<V> decodeBlockUnchecked(int block) {
+            try {
+                return decodeBlock(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        private List<V> decodeBlock(int block) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBlock(block)));
+            List<V> values = new ArrayList<>(recordCounts[block]);
+            for (int i = 0; i < recordCounts[block]; i++) {
+                values.add(codec.readValue(in));
+            }
+            return values;
+        }
+        
+        /**
+         * Reads, decompresses and checks one block
+         */
+        private byte[] readBlock(int block) throws IOException {
+            byte[] compressed = readFully(positions[block], compressedLengths[block]).array();
+            byte[] raw = LzCodec.decompress(compressed, rawLengths[block]);
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, raw.length);
+            if ((int) crc.getValue() != checksums[block]) {
+                throw new IOException("Snapshot block " + block + " checksum mismatch: " + file);
+            }
+            synchronized (this) {
+                blocksRead++;
+            }
+            return raw;
+        }
+        
+        private ByteBuffer readFully(long position, int length) throws IOException {
+            if (position < 0 || length < 0) {
+                throw new IOException("Damaged snapshot: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                // Positional reads leave the channel's position alone, so blocks can be read in parallel
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Snapshot ends early: " + file);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CommandReader class splits a script of commands into fields, for the applications' batch modes.
+ * Each line is one command whose fields are separated by tabs, so titles and names may contain
+ * spaces; blank lines and lines starting with # are skipped. Lines are read through a large
+ * buffer and split by hand rather than with a regular expression or a Scanner, so reading a
+ * script costs far less than running it.
+ */
+public class CommandReader implements Closeable {
+    
+    public static final int BUFFER_SIZE = 1 << 16;
+    
+    private final BufferedReader reader;
+    private String[] fields = new String[8];
+    private int fieldCount;
+    private long lineNumber;
+    
+    /**
+     * Creates a reader over a stream of UTF-8 text
+     * @param in Stream holding the commands
+     */
+    public CommandReader(InputStream in) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+    
+    /**
+     * Opens a command file, or standard input for "-"
+     * @param source Path of the file, or "-"
+     * @return The reader
+     * @throws IOException if the file cannot be opened
+     */
+    public static CommandReader open(String source) throws IOException {
+        return new CommandReader(source.equals("-") ? System.in : new FileInputStream(source));
+    }
+    
+    /**
+     * Reads the next command, skipping blank lines and comments
+     * @return true if a command was read, false at the end of the script
+     * @throws IOException if reading fails
+     */
+    public boolean next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\r') {
+                end--;
+            }
+            if (end == 0 || line.charAt(0) == '#' || line.isBlank()) {
+                continue;
+            }
+            
+            fieldCount = 0;
+            int start = 0;
+            while (true) {
+                int tab = line.indexOf('\t', start);
+                if (tab < 0 || tab > end) {
+                    addField(line.substring(start, end));
+                    return true;
+                }
+                addField(line.substring(start, tab));
+                start = tab + 1;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the number of fields of the current command, including the command name
+     * @return Field count
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+    
+    /**
+     * Gets a field of the current command; field 0 is the command name
+     * @param index Position of the field
+     * @return The field's text
+     * @throws IllegalArgumentException if the command has no such field
+     */
+    public String getField(int index) {
+        if (index >= fieldCount) {
+            throw new IllegalArgumentException("'" + fields[0] + "' needs at least " + index + " argument(s)");
+        }
+        return fields[index];
+    }
+    
+    /**
+     * Gets a whole-number field of the current command
+     * @param index Position of the field
+     * @return The field's value
+     * @throws IllegalArgumentException if the command has no such field or it is not a number
+     */
+    public int getIntField(int index) {
+        String field = getField(index).trim();
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + field + "' is not a number");
+        }
+    }
+    
+    /**
+     * Gets the line number of the current command, counting from 1
+     * @return Line number
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+    
+    private void addField(String field) {
+        if (fieldCount == fields.length) {
+            fields = Arrays.copyOf(fields, fieldCount * 2);
+        }
+        fields[fieldCount++] = field;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * CuckooFilter class answers "might this key be stored?" in a few bytes per key. A no is always
+ * right; a yes is wrong for roughly the configured share of absent keys, so a store can skip
+ * looking up keys it does not have. Unlike a Bloom filter, keys can be removed again.
+ *
+ * Each key is reduced to a small fingerprint that lives in one of two buckets of four slots; a
+ * key whose buckets are both full moves an existing fingerprint to its other bucket, and so on.
+ * Once that fails the filter is full: put returns false and the owner builds a larger filter from
+ * its keys. Keys are given as 64-bit hashes (see hash), and the same key must not be put twice.
+ * Not thread-safe; callers synchronize.
+ */
+public class CuckooFilter {
+    
+    private static final int MAGIC = 0x434B4F46; // "CKOF"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SLOTS_PER_BUCKET = 4;
+    private static final double MAX_LOAD = 0.95;
+    private static final int MAX_KICKS = 500;
+    private static final int MIN_FINGERPRINT_BITS = 4;
+    private static final int MAX_FINGERPRINT_BITS = 16;
+    
+    private final int fingerprintBits;
+    private final int bucketMask;
+    // Fingerprints, four slots per bucket; 0 is an empty slot
+    private final short[] table;
+    private int count;
+    
+    // A fingerprint displaced by a put that ran out of moves, kept so it is not lost
+    private int victimIndex;
+    private int victimFingerprint;
+    
+    // State of the random walk that picks which fingerprint to move
+    private int kickSeed = 0x2545F491;
+    
+    /**
+     * Creates an empty filter
+     * @param capacity Number of keys the filter should hold
+     * @param falsePositiveRate Share of absent keys the full filter may report as present, for example 0.01
+     * @throws IllegalArgumentException if the capacity is negative or the rate is not between 0 and 1
+     */
+    public CuckooFilter(int capacity, double falsePositiveRate) {
+        this(fingerprintBits(falsePositiveRate), bucketCount(capacity));
+    }
+    
+    private CuckooFilter(int fingerprintBits, int bucketCount) {
+        this.fingerprintBits = fingerprintBits;
+        this.bucketMask = bucketCount - 1;
+        this.table = new short[bucketCount * SLOTS_PER_BUCKET];
+    }
+    
+    /**
+     * Hashes a key for the filter; the whole 64 bits are used, so unlike String.hashCode
+     * large filters stay accurate
+     * @param key Key to hash
+     * @return 64-bit hash of the key
+     */
+    public static long hash(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+    
+    /**
+     * Checks whether a key might have been put
+     * @param hash Hash of the key
+     * @return false if the key was certainly not put (or was removed)
+     */
+    public boolean mightContain(long hash) {
+        int fingerprint = fingerprint(hash);
+        int index = index(hash);
+        int alternate = alternateIndex(index, fingerprint);
+        return bucketContains(index, fingerprint) || bucketContains(alternate, fingerprint)
+                || (victimFingerprint == fingerprint && (victimIndex == index || victimIndex == alternate));
+    }
+    
+    /**
+     * Adds a key
+     * @param hash Hash of the key
+     * @return true if the key was added; false if the filter is full, in which case nothing changed
+     */
+    public boolean put(long hash) {
+        if (victimFingerprint != 0) {
+            return false;
+        }
+        
+        place(index(hash), fingerprint(hash));
+        return true;
+    }
+    
+    /**
+     * Removes a key that was put
+     * @param hash Hash of the key
+     * @return true if a matching fingerprint was removed
+     */
+    public boolean remove(long hash) {
+        int fingerprint = fingerprint(hash);
+        int index = index(hash);
+        int alternate = alternateIndex(index, fingerprint);
+        if (victimFingerprint == fingerprint && (victimIndex == index || victimIndex == alternate)) {
+            victimFingerprint = 0;
+            count--;
+            return true;
+        }
+        if (!delete(index, fingerprint) && !delete(alternate, fingerprint)) {
+            return false;
+        }
+        count--;
+        
+        // A slot is free again, so the displaced fingerprint may fit now
+        if (victimFingerprint != 0) {
+            int victim = victimFingerprint;
+            victimFingerprint = 0;
+            count--;
+            place(victimIndex, victim);
+        }
+        return true;
+    }
+    
+    /**
+     * Gets the number of keys in the filter
+     * @return Number of keys put and not removed
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Gets the number of keys the filter was sized for; puts beyond it soon fail
+     * @return Capacity in keys
+     */
+    public int getCapacity() {
+        return (int) (table.length * MAX_LOAD);
+    }
+    
+    /**
+     * Gets the number of fingerprint bits, which sets the false positive rate
+     * @return Bits per fingerprint
+     */
+    public int getFingerprintBits() {
+        return fingerprintBits;
+    }
+    
+    /**
+     * Gets the number of fingerprint bits used for a false positive rate
+     * @param falsePositiveRate Share of absent keys a full filter may report as present
+     * @return Bits per fingerprint
+     * @throws IllegalArgumentException if the rate is not between 0 and 1
+     */
+    public static int fingerprintBits(double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        // A lookup compares against up to 8 fingerprints, each matching with probability 2^-bits
+        int bits = (int) Math.ceil(Math.log(2.0 * SLOTS_PER_BUCKET / falsePositiveRate) / Math.log(2));
+        return Math.max(MIN_FINGERPRINT_BITS, Math.min(MAX_FINGERPRINT_BITS, bits));
+    }
+    
+    /**
+     * Writes the filter atomically: the data goes to a temporary file that replaces the old one
+     * only after it has been fully written and synced
+     * @param file Filter file path
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        
+        try (FileOutputStream fileStream = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprintBits);
+            out.writeInt(bucketMask + 1);
+            out.writeInt(count);
+            out.writeInt(victimIndex);
+            out.writeInt(victimFingerprint);
+            for (short fingerprint : table) {
+                out.writeShort(fingerprint);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileStream.getFD().sync();
+        }
+        
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads a filter written by write
+     * @param file Filter file path
+     * @return The filter
+     * @throws IOException if the file cannot be read or is damaged
+     */
+    public static CuckooFilter read(Path file) throws IOException {
+        try (InputStream raw = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(raw, BUFFER_SIZE), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cuckoo filter file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported filter file version " + version + ": " + file);
+            }
+            
+            int fingerprintBits = in.readInt();
+            int bucketCount = in.readInt();
+            if (fingerprintBits < MIN_FINGERPRINT_BITS || fingerprintBits > MAX_FINGERPRINT_BITS
+                    || bucketCount <= 0 || Integer.bitCount(bucketCount) != 1
+                    || bucketCount > Integer.MAX_VALUE / SLOTS_PER_BUCKET) {
+                throw new IOException("Damaged filter file: " + file);
+            }
+            CuckooFilter filter = new CuckooFilter(fingerprintBits, bucketCount);
+            filter.count = in.readInt();
+            filter.victimIndex = in.readInt();
+            filter.victimFingerprint = in.readInt();
+            for (int i = 0; i < filter.table.length; i++) {
+                filter.table[i] = in.readShort();
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Filter checksum mismatch: " + file);
+            }
+            return filter;
+        }
+    }
+    
+    private static int bucketCount(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative");
+        }
+        // A power of two, so the alternate bucket can be found from either bucket with an XOR
+        long buckets = (long) Math.ceil(capacity / (SLOTS_PER_BUCKET * MAX_LOAD));
+        if (buckets > (1 << 28)) {
+            throw new IllegalArgumentException("Capacity is too large: " + capacity);
+        }
+        return Math.max(1, Integer.highestOneBit((int) Math.max(1, buckets) * 2 - 1));
+    }
+    
+    private int fingerprint(long hash) {
+        int fingerprint = (int) (hash & ((1 << fingerprintBits) - 1));
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+    
+    private int index(long hash) {
+        return (int) (hash >>> 32) & bucketMask;
+    }
+    
+    private int alternateIndex(int index, int fingerprint) {
+        return (index ^ (fingerprint * 0x5bd1e995)) & bucketMask;
+    }
+    
+    private boolean bucketContains(int index, int fingerprint) {
+        int start = index * SLOTS_PER_BUCKET;
+        for (int slot = start; slot < start + SLOTS_PER_BUCKET; slot++) {
+            if ((table[slot] & 0xFFFF) == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean insert(int index, int fingerprint) {
+        int start = index * SLOTS_PER_BUCKET;
+        for (int slot = start; slot < start + SLOTS_PER_BUCKET; slot++) {
+            if (table[slot] == 0) {
+                table[slot] = (short) fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean delete(int index, int fingerprint) {
+        int start = index * SLOTS_PER_BUCKET;
+        for (int slot = start; slot < start + SLOTS_PER_BUCKET; slot++) {
+            if ((table[slot] & 0xFFFF) == fingerprint) {
+                table[slot] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Stores a fingerprint in one of its buckets. When both are full, fingerprints are moved to
+     * their other bucket until one finds room; the fingerprint left over after MAX_KICKS moves
+     * becomes the victim, which makes the filter full.
+     */
+    private void place(int index, int fingerprint) {
+        count++;
+        if (insert(index, fingerprint) || insert(alternateIndex(index, fingerprint), fingerprint)) {
+            return;
+        }
+        if ((nextKick() & 1) == 0) {
+            index = alternateIndex(index, fingerprint);
+        }
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = index * SLOTS_PER_BUCKET + (nextKick() & (SLOTS_PER_BUCKET - 1));
+            int displaced = table[slot] & 0xFFFF;
+            table[slot] = (short) fingerprint;
+            fingerprint = displaced;
+            index = alternateIndex(index, fingerprint);
+            if (insert(index, fingerprint)) {
+                return;
+            }
+        }
+        victimIndex = index;
+        victimFingerprint = fingerprint;
+    }
+    
+    private int nextKick() {
+        kickSeed ^= kickSeed << 13;
+        kickSeed ^= kickSeed >>> 17;
+        kickSeed ^= kickSeed << 5;
+        return kickSeed >>> 8;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * FrequencySketch class estimates how often each key has been seen recently (a count-min sketch).
+ * Counters are 4 bits wide and packed sixteen to a long, so the sketch stays a few bytes per
+ * cached entry. Once enough increments have been recorded every counter is halved, so keys
+ * that were popular long ago fade and newly popular keys can take their place.
+ * Not thread-safe; callers synchronize.
+ */
+public class FrequencySketch {
+    
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+    
+    /**
+     * Creates a sketch sized for a cache of the given capacity
+     * @param maximumSize Number of entries the cache holds
+     */
+    public FrequencySketch(int maximumSize) {
+        int size = Integer.highestOneBit(Math.max(16, maximumSize) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max(16, maximumSize);
+    }
+    
+    /**
+     * Estimates how often a key has been seen, capped at 15
+     * @param hashCode Hash code of the key
+     * @return Estimated frequency
+     */
+    public int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int depth = 0; depth < 4; depth++) {
+            int index = indexOf(hash, depth);
+            int count = (int) ((table[index] >>> ((start + depth) << 2)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+    
+    /**
+     * Records one occurrence of a key
+     * @param hashCode Hash code of the key
+     */
+    public void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int depth = 0; depth < 4; depth++) {
+            int index = indexOf(hash, depth);
+            int offset = (start + depth) << 2;
+            if (((table[index] >>> offset) & 0xF) != MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+    
+    /**
+     * Halves every counter so old popularity decays
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+    
+    private int indexOf(int hash, int depth) {
+        long mixed = (hash + SEEDS[depth]) * SEEDS[depth];
+        mixed += mixed >>> 32;
+        return (int) mixed & tableMask;
+    }
+    
+    private static int spread(int hashCode) {
+        int hash = hashCode * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * HashIndex class is a SecondaryIndex mapping each value of one record attribute to the keys of
+ * the records that have it, for exact-match lookups.
+ * @param <A> Attribute type
+ * @param <K> Key type of the store
+ * @param <V> Record type of the store
+ */
+public class HashIndex<A, K, V> implements SecondaryIndex<K, V> {
+    
+    private final Function<? super V, ? extends A> attribute;
+    private final Map<A, Set<K>> keys = new HashMap<>();
+    
+    /**
+     * Creates an empty index; add it to a store with RecordStore.addIndex
+     * @param attribute Extracts the indexed attribute from a record; may return null, which is
+     *                  indexed like any other value
+     */
+    public HashIndex(Function<? super V, ? extends A> attribute) {
+        this.attribute = attribute;
+    }
+    
+    /**
+     * Gets the keys of the records with an attribute value
+     * @param value Attribute value
+     * @return Keys in the order the records were added; empty if there are none
+     */
+    public synchronized Set<K> keysFor(A value) {
+        Set<K> matching = keys.get(value);
+        return matching == null ? Collections.emptySet() : new LinkedHashSet<>(matching);
+    }
+    
+    @Override
+    public synchronized void added(K key, V value) {
+        keys.computeIfAbsent(attribute.apply(value), ignored -> new LinkedHashSet<>()).add(key);
+    }
+    
+    @Override
+    public synchronized void removed(K key, V value) {
+        A attributeValue = attribute.apply(value);
+        Set<K> matching = keys.get(attributeValue);
+        if (matching != null && matching.remove(key) && matching.isEmpty()) {
+            keys.remove(attributeValue);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+
+/**
+ * JournaledRecordStore class is the durable in-memory storage engine. Records are held in a
+ * MemoryRecordStore, and every put and remove is appended to a journal before it is applied.
+ * Opening the store loads the latest snapshot and replays the journal written after it.
+ *
+ * Once the journal holds more entries than the store has records (and at least
+ * MIN_COMPACTION_ENTRIES), the records are written to a new snapshot and the journal is emptied,
+ * so recovery never replays more than a short journal. A crash between the two steps is
+ * harmless: replaying a journal over a snapshot that already contains it gives the same records.
+ * Records are listed in the order their keys were first stored; replacing a record keeps its place.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class JournaledRecordStore<K, V> implements RecordStore<K, V> {
+    
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final long MIN_COMPACTION_ENTRIES = 50_000;
+    
+    private final RecordCodec<K, V> codec;
+    private final Path snapshotFile;
+    private final MemoryRecordStore<K, V> records;
+    private final RecordJournal<K, V> journal;
+    private long journalEntries;
+    
+    /**
+     * Opens the store kept in the given directory, creating it if needed
+     * @param directory Directory holding the snapshot and journal
+     * @param name Name of the store; its files are name.snapshot and name.journal
+     * @param codec Serializes keys and records
+     * @throws IOException if the stored records cannot be read
+     */
+    public JournaledRecordStore(Path directory, String name, RecordCodec<K, V> codec) throws IOException {
+        this.codec = codec;
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve(name + SNAPSHOT_SUFFIX);
+        Path journalFile = directory.resolve(name + JOURNAL_SUFFIX);
+        
+        this.records = new MemoryRecordStore<>(codec);
+        if (Files.exists(snapshotFile)) {
+            RecordSnapshotFile.read(snapshotFile, codec, records::put);
+        }
+        this.journalEntries = RecordJournal.replay(journalFile, codec, new RecordJournal.Replay<K, V>() {
+            @Override
+            public void put(V value) {
+                records.put(value);
+            }
+            
+            @Override
+            public void remove(K key) {
+                records.remove(key);
+            }
+        });
+        this.journal = new RecordJournal<>(journalFile, codec);
+    }
+    
+    @Override
+    public V get(K key) {
+        return records.get(key);
+    }
+    
+    @Override
+    public boolean containsKey(K key) {
+        return records.containsKey(key);
+    }
+    
+    @Override
+    public synchronized boolean put(V value) {
+        // Journaled first, so a record that cannot be written is not stored either
+        append(() -> journal.appendPut(value));
+        boolean replaced = records.put(value);
+        written(1);
+        return replaced;
+    }
+    
+    @Override
+    public synchronized void putAll(Collection<? extends V> values) {
+        List<V> journaled = new ArrayList<>(values.size());
+        try {
+            append(() -> {
+                for (V value : values) {
+                    journal.appendPut(value);
+                    journaled.add(value);
+                }
+            });
+        } finally {
+            // If a record fails partway through, the ones journaled before it will be replayed
+            // on recovery, so they are stored now as well
+            records.putAll(journaled);
+            written(journaled.size());
+        }
+    }
+    
+    @Override
+    public synchronized boolean remove(K key) {
+        if (!records.containsKey(key)) {
+            return false;
+        }
+        append(() -> journal.appendRemove(key));
+        records.remove(key);
+        written(1);
+        return true;
+    }
+    
+    @Override
+    public synchronized int removeAll(Collection<? extends K> keys) {
+        Set<K> present = new LinkedHashSet<>();
+        for (K key : keys) {
+            if (records.containsKey(key)) {
+                present.add(key);
+            }
+        }
+        if (present.isEmpty()) {
+            return 0;
+        }
+        append(() -> {
+            for (K key : present) {
+                journal.appendRemove(key);
+            }
+        });
+        int removed = records.removeAll(present);
+        written(present.size());
+        return removed;
+    }
+    
+    @Override
+    public int size() {
+        return records.size();
+    }
+    
+    @Override
+    public List<V> values() {
+        return records.values();
+    }
+    
+    @Override
+    public void forEach(Consumer<? super V> action) {
+        records.forEach(action);
+    }
+    
+    @Override
+    public <R> R aggregate(Collector<? super V, ?, R> collector) {
+        return records.aggregate(collector);
+    }
+    
+    @Override
+    public void addIndex(SecondaryIndex<K, V> index) {
+        records.addIndex(index);
+    }
+    
+    /**
+     * Writes every record to a new snapshot and empties the journal
+     * @throws UncheckedIOException if the snapshot cannot be written; the journal is then kept
+     */
+    public synchronized void compact() {
+        try {
+            RecordSnapshotFile.write(snapshotFile, codec, records.values());
+            journal.clear();
+            journalEntries = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compact store", e);
+        }
+    }
+    
+    @Override
+    public synchronized void sync() throws IOException {
+        journal.sync();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+    
+    private void append(JournalWrite write) {
+        try {
+            write.run();
+            journal.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write store journal", e);
+        }
+    }
+    
+    /**
+     * Counts journal entries whose changes have been applied, compacting once there are enough
+     */
+    private void written(int entries) {
+        journalEntries += entries;
+        if (journalEntries >= Math.max(MIN_COMPACTION_ENTRIES, records.size())) {
+            compact();
+        }
+    }
+    
+    /**
+     * A journal append that may fail with an IOException
+     */
+    private interface JournalWrite {
+        void run() throws IOException;
+    }
+}
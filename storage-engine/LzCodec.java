@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LzCodec class is a small LZ77 compressor in the style of LZ4, for blocks of records that
+ * repeat the same strings (courses, authors, ID prefixes). It needs no library and decompresses
+ * at memory speed, at the cost of a lower ratio than deflate.
+ *
+ * Compressed data is a series of sequences: a token byte holding the literal length (high four
+ * bits) and the match length minus four (low four bits), further length bytes when a length is
+ * 15 or more, the literal bytes, then the match as a two-byte little-endian distance back into
+ * the output. The last sequence has literals only.
+ */
+public class LzCodec {
+    
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_BITS = 14;
+    
+    private LzCodec() {
+    }
+    
+    /**
+     * Compresses the start of an array
+     * @param source Bytes to compress
+     * @param length Number of bytes to compress
+     * @return The compressed bytes
+     */
+    public static byte[] compress(byte[] source, int length) {
+        byte[] target = new byte[length + length / 255 + 16];
+        // Position + 1 of the last place each 4-byte sequence was seen; 0 means never
+        int[] table = new int[1 << HASH_BITS];
+        
+        int out = 0;
+        int anchor = 0;
+        int position = 0;
+        while (position + MIN_MATCH <= length) {
+            int sequence = readInt(source, position);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = position + 1;
+            if (candidate < 0 || position - candidate > MAX_DISTANCE || readInt(source, candidate) != sequence) {
+                position++;
+                continue;
+            }
+            
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < length && source[candidate + matchLength] == source[position + matchLength]) {
+                matchLength++;
+            }
+            out = writeSequence(target, out, source, anchor, position - anchor, position - candidate, matchLength);
+            position += matchLength;
+            anchor = position;
+        }
+        out = writeSequence(target, out, source, anchor, length - anchor, 0, 0);
+        return Arrays.copyOf(target, out);
+    }
+    
+    /**
+     * Decompresses bytes written by compress
+     * @param source Compressed bytes
+     * @param length Number of bytes they decompress to
+     * @return The decompressed bytes
+     * @throws IOException if the data is damaged
+     */
+    public static byte[] decompress(byte[] source, int length) throws IOException {
+        byte[] target = new byte[length];
+        int in = 0;
+        int out = 0;
+        try {
+            while (in < source.length) {
+                int token = source[in++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int extra;
+                    do {
+                        extra = source[in++] & 0xFF;
+                        literalLength += extra;
+                    } while (extra == 255);
+                }
+                System.arraycopy(source, in, target, out, literalLength);
+                in += literalLength;
+                out += literalLength;
+                if (in == source.length) {
+                    break;
+                }
+                
+                int distance = (source[in] & 0xFF) | (source[in + 1] & 0xFF) << 8;
+                in += 2;
+                int matchLength = (token & 0xF) + MIN_MATCH;
+                if ((token & 0xF) == 15) {
+                    int extra;
+                    do {
+                        extra = source[in++] & 0xFF;
+                        matchLength += extra;
+                    } while (extra == 255);
+                }
+                int from = out - distance;
+                if (distance == 0 || from < 0 || out + matchLength > length) {
+                    throw new IOException("Damaged compressed data: bad match at output offset " + out);
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(target, from, target, out, matchLength);
+                    out += matchLength;
+                } else {
+                    // The match overlaps the bytes it produces, as in a run of one repeated byte
+                    for (int i = 0; i < matchLength; i++) {
+                        target[out++] = target[from + i];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Damaged compressed data: truncated at input offset " + in);
+        }
+        if (out != length) {
+            throw new IOException("Damaged compressed data: " + out + " bytes instead of " + length);
+        }
+        return target;
+    }
+    
+    private static int writeSequence(byte[] target, int out, byte[] source, int literalStart, int literalLength,
+                                     int distance, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        target[out++] = (byte) (Math.min(literalLength, 15) << 4 | Math.min(matchCode, 15));
+        if (literalLength >= 15) {
+            out = writeLength(target, out, literalLength - 15);
+        }
+        System.arraycopy(source, literalStart, target, out, literalLength);
+        out += literalLength;
+        if (matchLength == 0) {
+            return out;
+        }
+        
+        target[out++] = (byte) distance;
+        target[out++] = (byte) (distance >>> 8);
+        if (matchCode >= 15) {
+            out = writeLength(target, out, matchCode - 15);
+        }
+        return out;
+    }
+    
+    private static int writeLength(byte[] target, int out, int remaining) {
+        while (remaining >= 255) {
+            target[out++] = (byte) 255;
+            remaining -= 255;
+        }
+        target[out++] = (byte) remaining;
+        return out;
+    }
+    
+    private static int readInt(byte[] bytes, int position) {
+        return (bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8
+                | (bytes[position + 2] & 0xFF) << 16 | (bytes[position + 3] & 0xFF) << 24;
+    }
+}
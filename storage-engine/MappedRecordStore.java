@@ -0,0 +1,355 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * MappedRecordStore class is the memory-mapped storage engine. Records live only in a
+ * log-structured file mapped into memory; the heap holds just the offset of each key's latest
+ * record, so a store can be far larger than the heap and opening it reads no more than the keys.
+ * A get decodes the record from the mapping, which returns a new object every time.
+ *
+ * Puts and removes append an entry (length, CRC32, type, data) at the end of the file. Writing
+ * to the mapping needs no system call, and the operating system writes the pages back even if the
+ * process crashes. Opening the store scans the entries and stops at the first one that is empty
+ * or damaged. Once replaced and removed records take up more space than live ones, the live
+ * records are copied to a new file that atomically replaces the old one.
+ * Records are listed in the order their keys were first stored; replacing a record keeps its place.
+ * The file may grow to at most 2 GB.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class MappedRecordStore<K, V> implements RecordStore<K, V> {
+    
+    private static final int MAGIC = 0x5245434D; // "RECM"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    // Every entry starts with its payload length and the CRC32 of the payload
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+    private static final int STALE_SCAN_LONGS = 512;
+    
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    
+    private final Path file;
+    private final RecordCodec<K, V> codec;
+    // File offset of the latest entry of each key, in key insertion order
+    private final Map<K, Integer> offsets = new LinkedHashMap<>();
+    private final List<SecondaryIndex<K, V>> indexes = new ArrayList<>();
+    
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes;
+    
+    // Reusable buffers for encoding an entry before it is copied into the mapping
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBuffer);
+    private final CRC32 crc = new CRC32();
+    
+    /**
+     * Opens the store kept in the given directory, creating it if needed
+     * @param directory Directory holding the store file
+     * @param name Name of the store; its file is name.data
+     * @param codec Serializes keys and records
+     * @throws IOException if the file cannot be opened or is not a store file
+     */
+    public MappedRecordStore(Path directory, String name, RecordCodec<K, V> codec) throws IOException {
+        this.codec = codec;
+        Files.createDirectories(directory);
+        this.file = directory.resolve(name + ".data");
+        open();
+    }
+    
+    @Override
+    public synchronized V get(K key) {
+        Integer offset = offsets.get(key);
+        return offset == null ? null : decodeValue(offset);
+    }
+    
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return offsets.containsKey(key);
+    }
+    
+    @Override
+    public synchronized boolean put(V value) {
+        K key = codec.keyOf(value);
+        try {
+            payload.writeByte(PUT);
+            codec.writeValue(payload, value);
+        } catch (IOException e) {
+            payloadBuffer.reset();
+            throw new UncheckedIOException("Failed to encode record " + key, e);
+        }
+        
+        Integer previous = offsets.get(key);
+        V previousValue = previous != null && !indexes.isEmpty() ? decodeValue(previous) : null;
+        int offset = appendEntry();
+        offsets.put(key, offset);
+        liveBytes += entrySize(offset);
+        if (previous != null) {
+            liveBytes -= entrySize(previous);
+        }
+        for (SecondaryIndex<K, V> index : indexes) {
+            if (previousValue != null) {
+                index.removed(key, previousValue);
+            }
+            index.added(key, value);
+        }
+        compactIfSparse();
+        return previous != null;
+    }
+    
+    @Override
+    public synchronized void putAll(Collection<? extends V> values) {
+        for (V value : values) {
+            put(value);
+        }
+    }
+    
+    @Override
+    public synchronized boolean remove(K key) {
+        Integer previous = offsets.get(key);
+        if (previous == null) {
+            return false;
+        }
+        V previousValue = indexes.isEmpty() ? null : decodeValue(previous);
+        try {
+            payload.writeByte(REMOVE);
+            codec.writeKey(payload, key);
+        } catch (IOException e) {
+            payloadBuffer.reset();
+            throw new UncheckedIOException("Failed to encode key " + key, e);
+        }
+        appendEntry();
+        offsets.remove(key);
+        liveBytes -= entrySize(previous);
+        for (SecondaryIndex<K, V> index : indexes) {
+            index.removed(key, previousValue);
+        }
+        compactIfSparse();
+        return true;
+    }
+    
+    @Override
+    public synchronized int removeAll(Collection<? extends K> keys) {
+        int removed = 0;
+        for (K key : keys) {
+            if (remove(key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+    
+    @Override
+    public synchronized int size() {
+        return offsets.size();
+    }
+    
+    @Override
+    public synchronized List<V> values() {
+        List<V> values = new ArrayList<>(offsets.size());
+        forEach(values::add);
+        return values;
+    }
+    
+    @Override
+    public synchronized void forEach(Consumer<? super V> action) {
+        for (int offset : offsets.values()) {
+            action.accept(decodeValue(offset));
+        }
+    }
+    
+    @Override
+    public synchronized void addIndex(SecondaryIndex<K, V> index) {
+        for (Map.Entry<K, Integer> entry : offsets.entrySet()) {
+            index.added(entry.getKey(), decodeValue(entry.getValue()));
+        }
+        indexes.add(index);
+    }
+    
+    /**
+     * Copies the live records to a new file that replaces the current one
+     * @throws UncheckedIOException if the new file cannot be written; the current file is then kept
+     */
+    public synchronized void compact() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(out, header);
+            for (Map.Entry<K, Integer> entry : offsets.entrySet()) {
+                int offset = entry.getValue();
+                writeFully(out, buffer.slice(offset, entrySize(offset)));
+            }
+            out.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compact store " + file, e);
+        }
+        
+        try {
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The new file holds the same records in the same order, so the indexes stay valid
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to reopen store " + file + " after compaction", e);
+        }
+    }
+    
+    @Override
+    public synchronized void sync() {
+        buffer.force();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+    
+    /**
+     * Maps the file and rebuilds the key offsets from its entries
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Store file is larger than 2 GB: " + file);
+        }
+        map((int) Math.max(fileSize, INITIAL_CAPACITY));
+        if (fileSize == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        } else if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a record store file: " + file);
+        } else if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported store file version " + buffer.getInt(4) + ": " + file);
+        }
+        
+        offsets.clear();
+        liveBytes = 0;
+        end = FILE_HEADER_SIZE;
+        while (end + ENTRY_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || length > buffer.capacity() - end - ENTRY_HEADER_SIZE) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(end + ENTRY_HEADER_SIZE, bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if (buffer.getInt(end + 4) != (int) crc.getValue()) {
+                break;
+            }
+            
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, length - 1));
+            K key = bytes[0] == PUT ? codec.keyOf(codec.readValue(in)) : codec.readKey(in);
+            Integer previous = bytes[0] == PUT ? offsets.put(key, end) : offsets.remove(key);
+            if (previous != null) {
+                liveBytes -= entrySize(previous);
+            }
+            if (bytes[0] == PUT) {
+                liveBytes += ENTRY_HEADER_SIZE + length;
+            }
+            end += ENTRY_HEADER_SIZE + length;
+        }
+        
+        // Clear whatever a crash left after the last intact entry, so stale bytes are never read
+        // as entries after new ones; the torn entry ends before the first zeroed 4 KB run
+        int zeroLongs = 0;
+        for (int stale = end; stale + 8 <= buffer.capacity() && zeroLongs < STALE_SCAN_LONGS; stale += 8) {
+            if (buffer.getLong(stale) == 0) {
+                zeroLongs++;
+            } else {
+                buffer.putLong(stale, 0);
+                zeroLongs = 0;
+            }
+        }
+    }
+    
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+    
+    /**
+     * Appends the encoded payload as an entry; the length is written last, so an entry is only
+     * seen once it is complete
+     * @return Offset of the entry
+     */
+    private int appendEntry() {
+        byte[] bytes = payloadBuffer.toByteArray();
+        int length = payloadBuffer.size();
+        payloadBuffer.reset();
+        
+        int offset = end;
+        long needed = (long) offset + ENTRY_HEADER_SIZE + length + ENTRY_HEADER_SIZE;
+        if (needed > buffer.capacity()) {
+            if (needed > Integer.MAX_VALUE) {
+                throw new UncheckedIOException(new IOException("Store file is full at 2 GB: " + file));
+            }
+            try {
+                map((int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity())));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to grow store file " + file, e);
+            }
+        }
+        
+        crc.reset();
+        crc.update(bytes, 0, length);
+        buffer.put(offset + ENTRY_HEADER_SIZE, bytes, 0, length);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, length);
+        end = offset + ENTRY_HEADER_SIZE + length;
+        return offset;
+    }
+    
+    private int entrySize(int offset) {
+        return ENTRY_HEADER_SIZE + buffer.getInt(offset);
+    }
+    
+    private V decodeValue(int offset) {
+        int length = buffer.getInt(offset);
+        byte[] bytes = new byte[length - 1];
+        buffer.get(offset + ENTRY_HEADER_SIZE + 1, bytes);
+        try {
+            return codec.readValue(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode record at offset " + offset + " of " + file, e);
+        }
+    }
+    
+    private void compactIfSparse() {
+        long deadBytes = end - FILE_HEADER_SIZE - liveBytes;
+        if (deadBytes > liveBytes && deadBytes > MIN_COMPACTION_BYTES) {
+            compact();
+        }
+    }
+    
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+}
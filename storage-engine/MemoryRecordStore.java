@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.StreamSupport;
+
+/**
+ * MemoryRecordStore class is the in-memory storage engine. Records sit in an array in key
+ * insertion order, with a hash map from each key to its slot; a removed record leaves an empty
+ * slot until more than half the slots are empty and the array is compacted. Nothing is written
+ * anywhere, so the records are lost when the process ends.
+ * The other engines use it to hold their records in memory.
+ *
+ * Because the records are in one array, aggregate splits them into ranges of slots that the
+ * fork-join pool works through in parallel, without copying them.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class MemoryRecordStore<K, V> implements RecordStore<K, V> {
+    
+    private final RecordCodec<K, V> codec;
+    // Slot of each key's record in the array
+    private final Map<K, Integer> slots;
+    private final List<SecondaryIndex<K, V>> indexes = new ArrayList<>();
+    private Object[] records;
+    // Slots in use or emptied since the last compaction
+    private int end;
+    
+    /**
+     * Creates an empty store
+     * @param codec Gives the key of each record
+     */
+    public MemoryRecordStore(RecordCodec<K, V> codec) {
+        this(codec, 16);
+    }
+    
+    /**
+     * Creates an empty store sized for the given number of records
+     * @param codec Gives the key of each record
+     * @param expectedRecords Number of records the store is expected to hold
+     */
+    public MemoryRecordStore(RecordCodec<K, V> codec, int expectedRecords) {
+        this.codec = codec;
+        this.slots = new HashMap<>(Math.max(16, (int) (expectedRecords / 0.75f) + 1));
+        this.records = new Object[Math.max(16, expectedRecords)];
+    }
+    
+    @Override
+    public synchronized V get(K key) {
+        Integer slot = slots.get(key);
+        return slot == null ? null : record(slot);
+    }
+    
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return slots.containsKey(key);
+    }
+    
+    @Override
+    public synchronized boolean put(V value) {
+        K key = codec.keyOf(value);
+        Integer slot = slots.get(key);
+        V previous = null;
+        if (slot != null) {
+            previous = record(slot);
+            records[slot] = value;
+        } else {
+            if (end == records.length) {
+                records = Arrays.copyOf(records, Math.max(16, end + (end >> 1)));
+            }
+            records[end] = value;
+            slots.put(key, end++);
+        }
+        for (SecondaryIndex<K, V> index : indexes) {
+            if (previous != null) {
+                index.removed(key, previous);
+            }
+            index.added(key, value);
+        }
+        return previous != null;
+    }
+    
+    @Override
+    public synchronized void putAll(Collection<? extends V> values) {
+        for (V value : values) {
+            put(value);
+        }
+    }
+    
+    @Override
+    public synchronized boolean remove(K key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        V previous = record(slot);
+        records[slot] = null;
+        for (SecondaryIndex<K, V> index : indexes) {
+            index.removed(key, previous);
+        }
+        if (end - slots.size() > Math.max(16, slots.size())) {
+            compact();
+        }
+        return true;
+    }
+    
+    @Override
+    public synchronized int removeAll(Collection<? extends K> keys) {
+        int removed = 0;
+        for (K key : keys) {
+            if (remove(key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+    
+    @Override
+    public synchronized int size() {
+        return slots.size();
+    }
+    
+    @Override
+    public synchronized List<V> values() {
+        List<V> values = new ArrayList<>(slots.size());
+        forEach(values::add);
+        return values;
+    }
+    
+    @Override
+    public synchronized void forEach(Consumer<? super V> action) {
+        for (int slot = 0; slot < end; slot++) {
+            if (records[slot] != null) {
+                action.accept(record(slot));
+            }
+        }
+    }
+    
+    /**
+     * Runs the collector on the fork-join pool over ranges of the record array. The store stays
+     * locked until it finishes, so writers wait rather than change records being read.
+     */
+    @Override
+    public synchronized <R> R aggregate(Collector<? super V, ?, R> collector) {
+        return StreamSupport.stream(new SlotSpliterator(0, end), true).collect(collector);
+    }
+    
+    @Override
+    public synchronized void addIndex(SecondaryIndex<K, V> index) {
+        forEach(value -> index.added(codec.keyOf(value), value));
+        indexes.add(index);
+    }
+    
+    @Override
+    public void sync() {
+    }
+    
+    @Override
+    public void close() {
+    }
+    
+    /**
+     * Moves the records down over the empty slots, keeping their order
+     */
+    private void compact() {
+        int live = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (records[slot] != null) {
+                if (slot != live) {
+                    records[live] = records[slot];
+                    slots.put(codec.keyOf(record(live)), live);
+                }
+                live++;
+            }
+        }
+        Arrays.fill(records, live, end, null);
+        end = live;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private V record(int slot) {
+        return (V) records[slot];
+    }
+    
+    /**
+     * Splits a range of slots in half for the fork-join pool, skipping empty slots.
+     * Used only while the store is locked.
+     */
+    private class SlotSpliterator implements Spliterator<V> {
+        private int origin;
+        private final int fence;
+        
+        SlotSpliterator(int origin, int fence) {
+            this.origin = origin;
+            this.fence = fence;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            while (origin < fence) {
+                Object value = records[origin++];
+                if (value != null) {
+                    action.accept(record(origin - 1));
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public void forEachRemaining(Consumer<? super V> action) {
+            Object[] array = records;
+            for (int slot = origin; slot < fence; slot++) {
+                if (array[slot] != null) {
+                    action.accept(record(slot));
+                }
+            }
+            origin = fence;
+        }
+        
+        @Override
+        public Spliterator<V> trySplit() {
+            int middle = (origin + fence) >>> 1;
+            if (middle <= origin) {
+                return null;
+            }
+            Spliterator<V> prefix = new SlotSpliterator(origin, middle);
+            origin = middle;
+            return prefix;
+        }
+        
+        @Override
+        public long estimateSize() {
+            return fence - origin;
+        }
+        
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+}
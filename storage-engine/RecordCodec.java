@@ -0,0 +1,39 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * RecordCodec interface tells a RecordStore how to identify and serialize its records.
+ * Journals, snapshots and mapped files all store records in the form written here, so a codec
+ * must read back exactly what it wrote.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public interface RecordCodec<K, V> {
+    
+    /**
+     * Gets the key of a record
+     * @param value The record
+     * @return Its key, never null
+     */
+    K keyOf(V value);
+    
+    void writeKey(DataOutput out, K key) throws IOException;
+    
+    K readKey(DataInput in) throws IOException;
+    
+    void writeValue(DataOutput out, V value) throws IOException;
+    
+    V readValue(DataInput in) throws IOException;
+    
+    /**
+     * Gets the order of the keys, used by engines and files that keep records sorted by key.
+     * The default is the natural order, so keys that are not Comparable must override it.
+     * @return Comparator of keys
+     */
+    @SuppressWarnings("unchecked")
+    default Comparator<? super K> keyOrder() {
+        return (a, b) -> ((Comparable<? super K>) a).compareTo(b);
+    }
+}
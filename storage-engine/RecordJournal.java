@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * RecordJournal class is an append-only log of the records put into and removed from a store.
+ * Every entry is framed as length, payload and CRC32, so an entry torn by a crash is detected
+ * during replay and cut off instead of corrupting the store. Replaying an entry twice has the
+ * same effect as replaying it once.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class RecordJournal<K, V> implements Closeable {
+    
+    // Entry types stored as the first payload byte
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    
+    /**
+     * Receives the entries of a journal as it is replayed
+     */
+    public interface Replay<K, V> {
+        void put(V value);
+        
+        void remove(K key);
+    }
+    
+    private final Path file;
+    private final RecordCodec<K, V> codec;
+    private FileOutputStream fileStream;
+    private DataOutputStream out;
+    
+    // Reusable buffers for framing an entry before it is written
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBuffer);
+    private final CRC32 crc = new CRC32();
+    
+    /**
+     * Opens a journal for appending, creating the file if needed
+     * @param file Path of the journal file
+     * @param codec Serializes keys and records
+     * @throws IOException if the file cannot be opened
+     */
+    public RecordJournal(Path file, RecordCodec<K, V> codec) throws IOException {
+        this.file = file;
+        this.codec = codec;
+        open(true);
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    public void appendPut(V value) throws IOException {
+        try {
+            payload.writeByte(PUT);
+            codec.writeValue(payload, value);
+        } catch (IOException | RuntimeException e) {
+            discardEntry();
+            throw e;
+        }
+        commitEntry();
+    }
+    
+    public void appendRemove(K key) throws IOException {
+        try {
+            payload.writeByte(REMOVE);
+            codec.writeKey(payload, key);
+        } catch (IOException | RuntimeException e) {
+            discardEntry();
+            throw e;
+        }
+        commitEntry();
+    }
+    
+    /**
+     * Flushes buffered entries to the operating system
+     * @throws IOException if the flush fails
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    /**
+     * Flushes buffered entries and forces them to the storage device
+     * @throws IOException if the sync fails
+     */
+    public void sync() throws IOException {
+        out.flush();
+        fileStream.getFD().sync();
+    }
+    
+    /**
+     * Discards every entry, once a snapshot covers them
+     * @throws IOException if the file cannot be truncated
+     */
+    public void clear() throws IOException {
+        out.close();
+        open(false);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        sync();
+        out.close();
+    }
+    
+    private void open(boolean append) throws IOException {
+        fileStream = new FileOutputStream(file.toFile(), append);
+        out = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+    }
+    
+    /**
+     * Drops an entry the codec could not write, e.g. a string too long for writeUTF, so its
+     * first bytes are not framed together with the next entry
+     */
+    private void discardEntry() {
+        payloadBuffer.reset();
+    }
+    
+    private void commitEntry() throws IOException {
+        byte[] bytes = payloadBuffer.toByteArray();
+        int length = payloadBuffer.size();
+        payloadBuffer.reset();
+        
+        crc.reset();
+        crc.update(bytes, 0, length);
+        
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+    
+    /**
+     * Replays every intact entry of a journal file.
+     * A truncated or corrupt tail left by a crash is cut off so appends can resume after it.
+     * @param file Journal file to replay; a missing file has no entries
+     * @param codec Reads keys and records
+     * @param target Receives the entries in order
+     * @return Number of entries replayed
+     * @throws IOException if the file cannot be read
+     */
+    public static <K, V> long replay(Path file, RecordCodec<K, V> codec, Replay<K, V> target) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long replayed = 0;
+        long validLength = 0;
+        CRC32 checksum = new CRC32();
+        
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            byte[] buffer = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    checksum.reset();
+                    checksum.update(buffer, 0, length);
+                    if (in.readInt() != (int) checksum.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+                byte type = entry.readByte();
+                if (type == PUT) {
+                    target.put(codec.readValue(entry));
+                } else if (type == REMOVE) {
+                    target.remove(codec.readKey(entry));
+                } else {
+                    throw new IOException("Unknown journal entry type " + type + " in " + file);
+                }
+                validLength += 4 + length + 4;
+                replayed++;
+            }
+        }
+        
+        if (validLength < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return replayed;
+    }
+}
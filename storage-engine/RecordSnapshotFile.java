@@ -0,0 +1,104 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * RecordSnapshotFile class reads and writes a binary snapshot of every record of a store.
+ * Snapshots are written as compressed blocks (see BlockSnapshotFile), each with a CRC32, so a
+ * damaged snapshot is reported rather than loaded. Version 1 snapshots, one uncompressed stream
+ * ending with a CRC32, can still be read.
+ */
+public class RecordSnapshotFile {
+    
+    private static final int MAGIC = 0x52454353; // "RECS"
+    private static final int VERSION = 2;
+    private static final int STREAM_VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private RecordSnapshotFile() {
+    }
+    
+    /**
+     * Writes a snapshot atomically: the data goes to a temporary file that replaces the
+     * old snapshot only after it has been fully written and synced.
+     * @param file Snapshot file path
+     * @param codec Serializes the records
+     * @param values Records to store
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static <K, V> void write(Path file, RecordCodec<K, V> codec, Collection<? extends V> values) throws IOException {
+        BlockSnapshotFile.write(file, MAGIC, VERSION, 0, codec, values);
+    }
+    
+    /**
+     * Reads every record of a snapshot
+     * @param file Snapshot file path
+     * @param codec Reads the records
+     * @param target Receives the records in the order they were written
+     * @return Number of records read
+     * @throws IOException if the snapshot cannot be read or is damaged
+     */
+    public static <K, V> int read(Path file, RecordCodec<K, V> codec, Consumer<? super V> target) throws IOException {
+        if (readVersion(file) == VERSION) {
+            int[] count = {0};
+            BlockSnapshotFile.read(file, MAGIC, codec, value -> {
+                target.accept(value);
+                count[0]++;
+            });
+            return count[0];
+        }
+        
+        try (InputStream raw = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(raw, BUFFER_SIZE), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a record snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (version != STREAM_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                target.accept(codec.readValue(in));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Snapshot checksum mismatch: " + file);
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Opens a snapshot for reading single records by key, each decompressing only its block
+     * @param file Snapshot file path, written by this version
+     * @param codec Reads the records
+     * @return The reader, to be closed by the caller
+     * @throws IOException if the snapshot cannot be read or is an older, uncompressed snapshot
+     */
+    public static <K, V> BlockSnapshotFile.Reader<K, V> openReader(Path file, RecordCodec<K, V> codec) throws IOException {
+        int version = readVersion(file);
+        if (version != VERSION) {
+            throw new IOException("Snapshot version " + version + " has no block index: " + file);
+        }
+        return new BlockSnapshotFile.Reader<>(file, MAGIC, codec);
+    }
+    
+    private static int readVersion(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a record snapshot: " + file);
+            }
+            return in.readInt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+
+/**
+ * RecordStore interface is the storage engine SPI: a keyed collection of records that an engine
+ * may keep in memory, in a journal with snapshots, in a memory-mapped file, or in an on-disk
+ * B+tree behind a bounded cache.
+ *
+ * The order records are listed in is engine-defined; engines that keep a particular order
+ * document it. A record is stored as it is when put; changing an object after putting it does
+ * not change the store (and may not even change what get returns), so callers put the changed
+ * record again. Every write is handed to the operating system before the call returns, so it
+ * survives the process crashing; sync also survives the machine crashing. Engines that batch
+ * writes instead document it, and only sync and close make their writes durable.
+ * Write failures are thrown as UncheckedIOException. Implementations are thread-safe.
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public interface RecordStore<K, V> extends Closeable {
+    
+    /**
+     * Gets a record
+     * @param key Key to look up
+     * @return The record, or null if no record has the key
+     */
+    V get(K key);
+    
+    boolean containsKey(K key);
+    
+    /**
+     * Stores a record, replacing any record with the same key
+     * @param value Record to store
+     * @return true if a record was replaced, false if the key is new
+     */
+    boolean put(V value);
+    
+    /**
+     * Stores several records with a single write to the operating system
+     * @param values Records to store, in order
+     */
+    void putAll(Collection<? extends V> values);
+    
+    /**
+     * Removes a record
+     * @param key Key of the record
+     * @return true if a record was removed
+     */
+    boolean remove(K key);
+    
+    /**
+     * Removes several records with a single write to the operating system
+     * @param keys Keys of the records
+     * @return Number of records removed
+     */
+    int removeAll(Collection<? extends K> keys);
+    
+    int size();
+    
+    /**
+     * Gets every record
+     * @return A new list of the records, in the engine's order
+     */
+    List<V> values();
+    
+    /**
+     * Passes every record to an action, in the same order as values; engines that keep records
+     * on disk override this to avoid holding them all in memory at once
+     * @param action Action called for each record; it must not call back into the store
+     */
+    default void forEach(Consumer<? super V> action) {
+        values().forEach(action);
+    }
+    
+    /**
+     * Aggregates every record with a collector. Engines that hold their records in memory run
+     * it in parallel on the fork-join pool, each thread filling its own partial result that the
+     * collector then merges; others pass the records through forEach on the calling thread.
+     * @param collector Collector to run; it must not call back into the store
+     * @param <R> Result type
+     * @return The collector's result
+     */
+    default <R> R aggregate(Collector<? super V, ?, R> collector) {
+        return collect(this, collector);
+    }
+    
+    /**
+     * Adds a secondary index, first telling it about every record already stored
+     * @param index Index to keep up to date
+     */
+    void addIndex(SecondaryIndex<K, V> index);
+    
+    /**
+     * Forces every write so far to the storage device
+     * @throws IOException if the device cannot be written
+     */
+    void sync() throws IOException;
+    
+    private static <V, A, R> R collect(RecordStore<?, V> store, Collector<? super V, A, R> collector) {
+        A container = collector.supplier().get();
+        BiConsumer<A, ? super V> accumulator = collector.accumulator();
+        store.forEach(value -> accumulator.accept(container, value));
+        return collector.finisher().apply(container);
+    }
+}
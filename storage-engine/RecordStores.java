@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * RecordStores class opens a RecordStore by engine name, so an application can pick its storage
+ * engine from the command line without knowing the implementations.
+ */
+public class RecordStores {
+    
+    public static final String MEMORY = "memory";
+    public static final String JOURNAL = "journal";
+    public static final String MAPPED = "mapped";
+    public static final String TIERED = "tiered";
+    
+    private RecordStores() {
+    }
+    
+    /**
+     * Opens a store with the named engine
+     * @param engine One of memory, journal, mapped or tiered
+     * @param directory Directory holding the store files; unused by the memory engine
+     * @param name Name of the store, used to name its files
+     * @param codec Serializes keys and records; the tiered engine also orders keys with it
+     * @param <K> Key type
+     * @param <V> Record type
+     * @return The opened store
+     * @throws IOException if the stored records cannot be read
+     * @throws IllegalArgumentException if the engine name is unknown
+     */
+    public static <K, V> RecordStore<K, V> open(String engine, Path directory, String name,
+                                                RecordCodec<K, V> codec) throws IOException {
+        switch (engine) {
+            case MEMORY:
+                return new MemoryRecordStore<>(codec);
+            case JOURNAL:
+                return new JournaledRecordStore<>(directory, name, codec);
+            case MAPPED:
+                return new MappedRecordStore<>(directory, name, codec);
+            case TIERED:
+                return new TieredRecordStore<>(directory, name, codec, codec.keyOrder());
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine + " (expected "
+                        + MEMORY + ", " + JOURNAL + ", " + MAPPED + " or " + TIERED + ")");
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * SecondaryIndex interface is notified of every record a RecordStore adds or removes, so it can
+ * keep a lookup by some other attribute in step with the store. Replacing a record is reported as
+ * removing the old record and then adding the new one.
+ * Calls are made while the store is locked; an index must not call back into the store.
+ * @param <K> Key type of the store
+ * @param <V> Record type of the store
+ */
+public interface SecondaryIndex<K, V> {
+    
+    void added(K key, V value);
+    
+    void removed(K key, V value);
+}
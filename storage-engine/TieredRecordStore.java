@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * TieredRecordStore class is the hot/cold storage engine. Every record lives in an on-disk
+ * B+tree keyed by record key (the cold tier); a bounded cache keeps the records read or written
+ * most (the hot tier), so heap use depends on the cache size and not on how many records there are.
+ *
+ * The cache uses the same W-TinyLFU policy as the library's search cache: a small LRU window
+ * takes new records, and a record leaving it only displaces one in the main segment if it has
+ * been used more often, as estimated by a frequency sketch. Reading every record once, as a
+ * listing does, therefore cannot flush out the records that are used all the time; values and
+ * forEach read straight from the tree and do not touch the cache at all.
+ *
+ * Writes are batched: puts and removes are held in a write-back buffer (which get also reads)
+ * and written to the tree together once WRITE_BATCH_SIZE keys are buffered, on sync and on close.
+ * Unlike the other engines, a crash loses the buffered writes since the last batch.
+ * Records are listed in key order rather than the order they were first stored, so keys must
+ * have a natural order (Integer, String, ...).
+ * @param <K> Key type
+ * @param <V> Record type
+ */
+public class TieredRecordStore<K, V> implements RecordStore<K, V> {
+    
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+    // Tree pages kept in memory; the record cache already holds the hot records
+    public static final int DEFAULT_CACHE_PAGES = 256;
+    private static final int WRITE_BATCH_SIZE = 256;
+    
+    private final RecordCodec<K, V> codec;
+    private final BPlusTreeFile<K, V> tree;
+    private final List<SecondaryIndex<K, V>> indexes = new ArrayList<>();
+    
+    // Buffered writes not yet in the tree; a null value is a buffered remove
+    private final Map<K, V> pending = new LinkedHashMap<>();
+    private int size;
+    
+    // W-TinyLFU segments, each in access order (eldest first)
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final int windowMaximum;
+    private final int mainMaximum;
+    private final int protectedMaximum;
+    
+    private long hits;
+    private long misses;
+    
+    /**
+     * Opens the store kept in the given directory with the default cache sizes, creating it if needed
+     * @param directory Directory holding the store file
+     * @param name Name of the store; its file is name.btree
+     * @param codec Serializes keys and records
+     * @param order Order of the keys
+     * @throws IOException if the file cannot be opened or is not a B+tree file
+     */
+    public TieredRecordStore(Path directory, String name, RecordCodec<K, V> codec,
+                             Comparator<? super K> order) throws IOException {
+        this(directory, name, codec, order, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_PAGES);
+    }
+    
+    /**
+     * Opens the store kept in the given directory, creating it if needed
+     * @param directory Directory holding the store file
+     * @param name Name of the store; its file is name.btree
+     * @param codec Serializes keys and records
+     * @param order Order of the keys
+     * @param cacheSize Number of records kept in memory
+     * @param cachePages Number of tree pages kept in memory
+     * @throws IOException if the file cannot be opened or is not a B+tree file
+     */
+    public TieredRecordStore(Path directory, String name, RecordCodec<K, V> codec, Comparator<? super K> order,
+                             int cacheSize, int cachePages) throws IOException {
+        if (cacheSize < 2) {
+            throw new IllegalArgumentException("Cache size must be at least 2");
+        }
+        this.codec = codec;
+        Files.createDirectories(directory);
+        this.tree = new BPlusTreeFile<>(directory.resolve(name + ".btree"), codec, order,
+                                        BPlusTreeFile.DEFAULT_PAGE_SIZE, cachePages);
+        this.size = (int) Math.min(Integer.MAX_VALUE, tree.size());
+        
+        this.windowMaximum = Math.max(1, cacheSize / 100);
+        this.mainMaximum = cacheSize - windowMaximum;
+        this.protectedMaximum = mainMaximum * 4 / 5;
+        this.sketch = new FrequencySketch(cacheSize);
+    }
+    
+    @Override
+    public synchronized V get(K key) {
+        if (pending.containsKey(key)) {
+            hits++;
+            return pending.get(key);
+        }
+        V value = lookup(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        
+        misses++;
+        value = tree.get(key);
+        if (value != null) {
+            admit(key, value);
+        }
+        return value;
+    }
+    
+    @Override
+    public synchronized boolean containsKey(K key) {
+        if (pending.containsKey(key)) {
+            return pending.get(key) != null;
+        }
+        return cached(key) != null || tree.containsKey(key);
+    }
+    
+    @Override
+    public synchronized boolean put(V value) {
+        K key = codec.keyOf(value);
+        V previous = indexes.isEmpty() ? null : current(key);
+        boolean replaced = indexes.isEmpty() ? containsKey(key) : previous != null;
+        
+        pending.put(key, value);
+        if (!replaced) {
+            size++;
+        }
+        if (cached(key) != null) {
+            replaceCached(key, value);
+        } else {
+            admit(key, value);
+        }
+        for (SecondaryIndex<K, V> index : indexes) {
+            if (previous != null) {
+                index.removed(key, previous);
+            }
+            index.added(key, value);
+        }
+        flushIfFull();
+        return replaced;
+    }
+    
+    @Override
+    public synchronized void putAll(Collection<? extends V> values) {
+        for (V value : values) {
+            put(value);
+        }
+    }
+    
+    @Override
+    public synchronized boolean remove(K key) {
+        V previous = current(key);
+        if (previous == null) {
+            return false;
+        }
+        
+        pending.put(key, null);
+        size--;
+        window.remove(key);
+        probation.remove(key);
+        protectedSegment.remove(key);
+        for (SecondaryIndex<K, V> index : indexes) {
+            index.removed(key, previous);
+        }
+        flushIfFull();
+        return true;
+    }
+    
+    @Override
+    public synchronized int removeAll(Collection<? extends K> keys) {
+        int removed = 0;
+        for (K key : keys) {
+            if (remove(key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+    
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Reads every record from the tree without caching them
+     * @return A new list of the records, in key order
+     */
+    @Override
+    public synchronized List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach(values::add);
+        return values;
+    }
+    
+    /**
+     * Reads every record from the tree without caching them, holding at most one page of records at a time
+     */
+    @Override
+    public synchronized void forEach(Consumer<? super V> action) {
+        flush();
+        tree.scan(null, true, value -> {
+            action.accept(value);
+            return true;
+        });
+    }
+    
+    @Override
+    public synchronized void addIndex(SecondaryIndex<K, V> index) {
+        forEach(value -> index.added(codec.keyOf(value), value));
+        indexes.add(index);
+    }
+    
+    /**
+     * Gets the number of get calls answered from memory
+     * @return Number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Gets the number of get calls that read the tree
+     * @return Number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Gets the share of get calls answered from memory
+     * @return Hit ratio between 0 and 1, or 0 before the first get
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+    
+    /**
+     * Gets the number of records currently held in the cache
+     * @return Number of cached records
+     */
+    public synchronized int getCachedCount() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+    
+    /**
+     * Writes the buffered writes to the tree and forces the tree to the storage device
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        flush();
+        tree.sync();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        tree.close();
+    }
+    
+    /**
+     * Writes the buffered puts and removes to the tree; each key is buffered once, so their order does not matter
+     */
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        
+        List<V> puts = new ArrayList<>(pending.size());
+        for (Map.Entry<K, V> entry : pending.entrySet()) {
+            if (entry.getValue() != null) {
+                puts.add(entry.getValue());
+            } else {
+                tree.remove(entry.getKey());
+            }
+        }
+        tree.putAll(puts);
+        pending.clear();
+    }
+    
+    private void flushIfFull() {
+        if (pending.size() >= WRITE_BATCH_SIZE) {
+            flush();
+        }
+    }
+    
+    /**
+     * Gets the current record with the given key from the buffer, the cache or the tree, without counting a lookup
+     */
+    private V current(K key) {
+        if (pending.containsKey(key)) {
+            return pending.get(key);
+        }
+        V value = cached(key);
+        return value != null ? value : tree.get(key);
+    }
+    
+    private V cached(K key) {
+        V value = window.get(key);
+        if (value == null) {
+            value = probation.get(key);
+        }
+        if (value == null) {
+            value = protectedSegment.get(key);
+        }
+        return value;
+    }
+    
+    private void replaceCached(K key, V value) {
+        if (window.containsKey(key)) {
+            window.put(key, value);
+        } else if (probation.containsKey(key)) {
+            probation.put(key, value);
+        } else {
+            protectedSegment.put(key, value);
+        }
+    }
+    
+    /**
+     * Finds a cached record, recording the access in the frequency sketch.
+     * A hit in probation promotes the record to the protected segment.
+     */
+    private V lookup(K key) {
+        sketch.increment(key.hashCode());
+        
+        V value = window.get(key);
+        if (value == null) {
+            value = probation.remove(key);
+            if (value != null) {
+                protectedSegment.put(key, value);
+                if (protectedSegment.size() > protectedMaximum) {
+                    Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            } else {
+                value = protectedSegment.get(key);
+            }
+        }
+        return value;
+    }
+    
+    /**
+     * Adds a record to the window; the record leaving the window competes with the main segment's next victim
+     */
+    private void admit(K key, V value) {
+        window.put(key, value);
+        if (window.size() <= windowMaximum) {
+            return;
+        }
+        
+        Map.Entry<K, V> candidate = removeEldest(window);
+        if (probation.size() + protectedSegment.size() < mainMaximum) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        
+        LinkedHashMap<K, V> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        K victim = victimSegment.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.hashCode())) {
+            victimSegment.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+    
+    private static <K, V> Map.Entry<K, V> removeEldest(Map<K, V> segment) {
+        Iterator<Map.Entry<K, V>> entries = segment.entrySet().iterator();
+        Map.Entry<K, V> eldest = entries.next();
+        entries.remove();
+        return eldest;
+    }
+}